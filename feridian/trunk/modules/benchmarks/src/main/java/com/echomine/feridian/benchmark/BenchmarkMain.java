@@ -0,0 +1,32 @@
+package com.echomine.feridian.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the allocation rate and the collections of each
+ * one reported next to its time (the JMH GC profiler), since garbage on the
+ * read and write path matters as much as speed for a connection that runs
+ * for days. Any JMH option is accepted, ie. to run the read loop over the
+ * large roster only:
+ *
+ * <pre>
+ *  java -jar target/benchmarks.jar ConnectionHandlerBenchmark -p corpus=LARGE_ROSTER
+ * </pre>
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        if (cmdOptions.shouldHelp() || cmdOptions.shouldList() || cmdOptions.shouldListWithParams()
+                || cmdOptions.shouldListProfilers() || cmdOptions.shouldListResultFormats()) {
+            // leaves the informational options to jmh itself
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        Options options = new OptionsBuilder().parent(cmdOptions).addProfiler(GCProfiler.class).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,90 @@
+package com.echomine.feridian.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.jibx.runtime.JiBXException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.echomine.jibx.JiBXUtil;
+import com.echomine.jibx.StanzaTemplate;
+import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.packet.MessagePacket;
+
+/**
+ * Measures the sending of the same headline message to many recipients: a
+ * packet is either marshalled for each recipient, or copies are written from
+ * a stanza template compiled once per broadcast. The time is per broadcast.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BroadcastBenchmark {
+    private static final String BODY = "Breaking news: the quick brown fox jumps over the lazy dog. "
+            + "Follow <http://example.com/news?id=1&src=feed> for the \"full\" story.";
+
+    @Param({ "1000" })
+    int recipients;
+
+    JID[] jids;
+
+    XMPPStreamWriter writer;
+
+    NullOutputStream output;
+
+    @Setup
+    public void setUp() throws Exception {
+        jids = new JID[recipients];
+        for (int i = 0; i < recipients; i++)
+            jids[i] = new JID("user" + i, "example.com", "mobile");
+        output = new NullOutputStream();
+        writer = new XMPPStreamWriter();
+        writer.setOutput(output);
+        writer.startHandshakeStream(XMPPConstants.NS_XMPP_CLIENT, "example.com", null);
+    }
+
+    private static MessagePacket createMessage() {
+        MessagePacket msg = new MessagePacket();
+        msg.setType(MessagePacket.TYPE_HEADLINE);
+        msg.setFrom(new JID("news", "example.com", null));
+        msg.setSubject("Headline");
+        msg.setBody(BODY);
+        return msg;
+    }
+
+    @Benchmark
+    public long marshall() throws JiBXException, IOException {
+        for (int i = 0; i < jids.length; i++) {
+            MessagePacket msg = createMessage();
+            msg.setTo(jids[i]);
+            msg.setId("bc-" + i);
+            JiBXUtil.marshallObject(writer, msg);
+        }
+        writer.flush();
+        return output.getCount();
+    }
+
+    @Benchmark
+    public long template() throws JiBXException, IOException {
+        StanzaTemplate template = StanzaTemplate.compile(createMessage(), "bc");
+        for (int i = 0; i < jids.length; i++)
+            template.write(writer, jids[i]);
+        writer.flush();
+        return output.getCount();
+    }
+}
@@ -0,0 +1,132 @@
+package com.echomine.feridian.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.jibx.runtime.impl.UnmarshallingContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.echomine.feridian.FeridianConfiguration;
+import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.net.ConnectionContext;
+import com.echomine.net.MockConnectionContext;
+import com.echomine.net.MockSocket;
+import com.echomine.xmpp.IPacketListener;
+import com.echomine.xmpp.IXMPPConnection;
+import com.echomine.xmpp.PacketEvent;
+import com.echomine.xmpp.XMPPStreamContext;
+import com.echomine.xmpp.impl.XMPPConnectionHandler;
+import com.echomine.xmpp.impl.XMPPConnectionImpl;
+
+/**
+ * Measures the connection's read loop (XMPPConnectionHandler.handle()) over
+ * a whole stream held in memory: reading, dispatching and unmarshalling each
+ * stanza, matching replies and firing the packet listeners, plus the replies
+ * the connection writes itself. The handshake is done before each run and is
+ * not measured. The cost of connection metrics and of stanza interceptors is
+ * measured by enabling them, ie. with -p metrics=false,true or
+ * -p interceptors=0,1,4. The time is per stream.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ConnectionHandlerBenchmark {
+    @Param
+    Corpus corpus;
+
+    @Param({ "1000" })
+    int stanzas;
+
+    @Param({ "false" })
+    boolean metrics;
+
+    @Param({ "0" })
+    int interceptors;
+
+    byte[] stream;
+
+    XMPPConnectionHandler handler;
+
+    MockSocket socket;
+
+    ConnectionContext connectionCtx;
+
+    CountingListener listener;
+
+    @Setup
+    public void setUp() throws Exception {
+        stream = corpus.stream(stanzas).getBytes("UTF-8");
+        // the metrics of a connection are created with its handler
+        FeridianConfiguration.getConfig().setMetricsEnabled(metrics);
+        handler = new XMPPConnectionHandler();
+        listener = new CountingListener();
+        IXMPPConnection connection = new XMPPConnectionImpl(handler);
+        connection.addPacketListener(listener);
+        for (int i = 0; i < interceptors; i++)
+            connection.addStanzaInterceptor(new PassingInterceptor());
+        connectionCtx = new MockConnectionContext("example.com", "127.0.0.1", IXMPPConnection.DEFAULT_XMPP_PORT);
+    }
+
+    /**
+     * Starts the handler over a new socket (the previous one is closed on
+     * shutdown) reading the stream from the start, and reads the stream
+     * header and features
+     */
+    @Setup(Level.Invocation)
+    public void connect() throws Exception {
+        handler.start();
+        XMPPStreamContext streamCtx = handler.getStreamContext();
+        socket = new MockSocket(IXMPPConnection.DEFAULT_XMPP_PORT);
+        socket.setInputStream(new ByteArrayInputStream(stream));
+        socket.setOutputStream(new NullOutputStream());
+        streamCtx.setSocket(socket);
+        streamCtx.setWriter(new XMPPStreamWriter());
+        streamCtx.setUnmarshallingContext(new UnmarshallingContext());
+        handler.handshake(socket, connectionCtx);
+    }
+
+    @TearDown(Level.Invocation)
+    public void disconnect() {
+        handler.shutdown();
+    }
+
+    @TearDown
+    public void checkReceived() {
+        FeridianConfiguration.getConfig().setMetricsEnabled(false);
+        if (listener.count == 0)
+            throw new IllegalStateException("No packets were received from the " + corpus + " stream");
+    }
+
+    @Benchmark
+    public long handle() throws Exception {
+        handler.handle(socket, connectionCtx);
+        return listener.count;
+    }
+
+    /**
+     * Counts the packets received, as the lightest listener an application
+     * could have
+     */
+    static class CountingListener implements IPacketListener {
+        long count;
+
+        public void packetReceived(PacketEvent event) {
+            count++;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.echomine.feridian.benchmark;
+
+/**
+ * The streams of stanzas the read and write benchmarks run over. Each corpus
+ * stands for a kind of session whose traffic stresses a different part of the
+ * parsing and writing.
+ */
+public enum Corpus {
+    /**
+     * Short chat messages with the odd presence change and iq result, as in a
+     * one to one conversation
+     */
+    SMALL_CHAT {
+        String stanza(int index) {
+            switch (index % 8) {
+            case 3:
+                return Stanzas.PRESENCE;
+            case 7:
+                return Stanzas.IQ_RESULT;
+            default:
+                return "<message from='juliet@example.com/balcony' to='romeo@example.net' type='chat'><body>Line "
+                        + index + "</body></message>";
+            }
+        }
+    },
+    /**
+     * The login of a user with a large roster: one roster result with all the
+     * contacts, followed by the presence of each contact
+     */
+    LARGE_ROSTER {
+        String stanza(int index) {
+            if (index == 0)
+                return Stanzas.roster(ROSTER_SIZE);
+            return Stanzas.contactPresence((index - 1) % ROSTER_SIZE);
+        }
+    },
+    /**
+     * Stanzas that carry extensions, both bound (data forms, disco, privacy)
+     * and unknown (entity caps, delays)
+     */
+    EXTENSION_HEAVY {
+        String stanza(int index) {
+            switch (index % 4) {
+            case 0:
+                return Stanzas.DATA_FORM;
+            case 1:
+                return Stanzas.DISCO_INFO;
+            case 2:
+                return Stanzas.PRESENCE_CAPS;
+            default:
+                return Stanzas.PRIVACY;
+            }
+        }
+    };
+
+    /** the number of contacts in the large roster */
+    public static final int ROSTER_SIZE = 500;
+
+    /**
+     * @param index the position of the stanza in the stream
+     * @return the stanza at the position
+     */
+    abstract String stanza(int index);
+
+    /**
+     * @param count the number of stanzas
+     * @return the stanzas of the corpus
+     */
+    public String[] stanzas(int count) {
+        String[] stanzas = new String[count];
+        for (int i = 0; i < count; i++)
+            stanzas[i] = stanza(i);
+        return stanzas;
+    }
+
+    /**
+     * @param count the number of stanzas
+     * @return the stanzas in a stream as received from the server, from the
+     *         opening of the stream and its features to its closing
+     */
+    public String stream(int count) {
+        StringBuffer buf = new StringBuffer(count * 256);
+        buf.append(Stanzas.STREAM_HEADER);
+        for (int i = 0; i < count; i++)
+            buf.append(stanza(i));
+        buf.append(Stanzas.STREAM_FOOTER);
+        return buf.toString();
+    }
+}
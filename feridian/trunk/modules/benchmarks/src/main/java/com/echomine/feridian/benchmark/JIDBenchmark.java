@@ -0,0 +1,38 @@
+package com.echomine.feridian.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.JIDFormatException;
+
+/**
+ * Measures the parsing of jids of each form, since every addressed stanza
+ * parses at least one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JIDBenchmark {
+    @Param({ "example.com", "juliet@example.com", "juliet@example.com/balcony",
+            "contact1234@conference.example.org/Juliet Capulet (mobile)" })
+    String jid;
+
+    @Benchmark
+    public JID parseJID() throws JIDFormatException {
+        return JID.parseJID(jid);
+    }
+}
@@ -0,0 +1,78 @@
+package com.echomine.feridian.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.echomine.feridian.FeridianConfiguration;
+import com.echomine.xmpp.IXMPPConnection;
+import com.echomine.xmpp.StubXMPPServer;
+import com.echomine.xmpp.XMPPConnectionFactory;
+
+/**
+ * Measures connection startup (connect and login) against a local stub
+ * server that delays every reply to simulate a remote link. Logins negotiate
+ * one step at a time, or pipeline the post-authentication requests once the
+ * server's features are cached. The time is per login, and is mostly the
+ * round trips waited for.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoginBenchmark {
+    private static final String HOST = "localhost";
+
+    @Param({ "80" })
+    long latency;
+
+    @Param({ "false", "true" })
+    boolean pipelined;
+
+    StubXMPPServer server;
+
+    IXMPPConnection connection;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new StubXMPPServer(HOST, latency);
+        server.start();
+        FeridianConfiguration.getConfig().setPipelinedLogin(pipelined);
+        // caches the server's features, which pipelining relies on
+        login();
+        connection.disconnect();
+    }
+
+    @TearDown(Level.Invocation)
+    public void disconnect() {
+        connection.disconnect();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+        FeridianConfiguration.getConfig().setPipelinedLogin(false);
+    }
+
+    @Benchmark
+    public IXMPPConnection login() throws Exception {
+        connection = XMPPConnectionFactory.getFactory().createXMPPConnection();
+        connection.connect(HOST, server.getPort(), true);
+        connection.login("user", "password".toCharArray(), "bench");
+        return connection;
+    }
+}
@@ -0,0 +1,27 @@
+package com.echomine.feridian.benchmark;
+
+import java.io.OutputStream;
+
+/**
+ * Discards everything written to it, so that only the writing of the output
+ * is measured. The number of bytes is kept to check that something was
+ * written.
+ */
+class NullOutputStream extends OutputStream {
+    private long count;
+
+    public void write(int b) {
+        count++;
+    }
+
+    public void write(byte[] b, int off, int len) {
+        count += len;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    long getCount() {
+        return count;
+    }
+}
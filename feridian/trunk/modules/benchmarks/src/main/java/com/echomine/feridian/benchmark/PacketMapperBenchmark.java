@@ -0,0 +1,125 @@
+package com.echomine.feridian.benchmark;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.jibx.runtime.JiBXException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.echomine.jabber.packet.DataXPacket;
+import com.echomine.jabber.packet.DiscoveryInfoIQPacket;
+import com.echomine.jibx.JiBXUtil;
+import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PresencePacket;
+import com.echomine.xmpp.packet.PrivacyIQPacket;
+import com.echomine.xmpp.packet.RosterIQPacket;
+import com.echomine.xmpp.packet.StreamFeatures;
+
+/**
+ * Measures the unmarshalling and marshalling of a single packet of each type
+ * through its JiBX mapper. Stream features are only unmarshalled since a
+ * client never sends them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketMapperBenchmark {
+    /**
+     * The packets, each with its markup, the class it is unmarshalled as and
+     * the class the result is checked against
+     */
+    public enum Packet {
+        PRESENCE(Stanzas.PRESENCE, PresencePacket.class, PresencePacket.class),
+        MESSAGE(Stanzas.MESSAGE, MessagePacket.class, MessagePacket.class),
+        IQ(Stanzas.IQ_RESULT, IQPacket.class, IQPacket.class),
+        ROSTER(Stanzas.roster(20), IQPacket.class, RosterIQPacket.class),
+        PRIVACY(Stanzas.PRIVACY, IQPacket.class, PrivacyIQPacket.class),
+        DISCO(Stanzas.DISCO_INFO, IQPacket.class, DiscoveryInfoIQPacket.class),
+        DATA_FORM(Stanzas.DATA_FORM, MessagePacket.class, MessagePacket.class),
+        STREAM_FEATURES(Stanzas.FEATURES, StreamFeatures.class, StreamFeatures.class);
+
+        final String xml;
+        final Class unmarshalledAs;
+        final Class expected;
+
+        Packet(String stanza, Class unmarshalledAs, Class expected) {
+            this.xml = Stanzas.standalone(stanza);
+            this.unmarshalledAs = unmarshalledAs;
+            this.expected = expected;
+        }
+
+        Object unmarshall() throws JiBXException {
+            return JiBXUtil.unmarshallObject(new StringReader(xml), unmarshalledAs);
+        }
+
+        /**
+         * Unmarshalls the packet once and checks that it is mapped to the
+         * expected class, so that a broken mapping does not go unnoticed
+         */
+        Object sample() throws JiBXException {
+            Object packet = unmarshall();
+            if (packet == null || !expected.isInstance(packet))
+                throw new IllegalStateException(this + " unmarshalled as " + packet);
+            if (this == DATA_FORM && !(((MessagePacket) packet).getExtension("jabber:x:data") instanceof DataXPacket))
+                throw new IllegalStateException("The data form extension was not unmarshalled");
+            return packet;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Received {
+        @Param
+        Packet packet;
+
+        @Setup
+        public void setUp() throws JiBXException {
+            packet.sample();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Sent {
+        @Param({ "PRESENCE", "MESSAGE", "IQ", "ROSTER", "PRIVACY", "DISCO", "DATA_FORM" })
+        Packet packet;
+
+        Object sample;
+
+        XMPPStreamWriter writer;
+
+        @Setup
+        public void setUp() throws JiBXException {
+            sample = packet.sample();
+            writer = new XMPPStreamWriter();
+            writer.setOutput(new NullOutputStream());
+            writer.pushExtensionNamespaces(new String[] { "jabber:client" });
+        }
+    }
+
+    @Benchmark
+    public Object unmarshall(Received state) throws JiBXException {
+        return state.packet.unmarshall();
+    }
+
+    @Benchmark
+    public void marshall(Sent state) throws Exception {
+        if (state.sample instanceof IQPacket)
+            JiBXUtil.marshallIQPacket(state.writer, (IQPacket) state.sample);
+        else
+            JiBXUtil.marshallObject(state.writer, state.sample);
+        state.writer.flush();
+    }
+}
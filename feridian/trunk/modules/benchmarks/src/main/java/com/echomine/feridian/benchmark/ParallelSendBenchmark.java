@@ -0,0 +1,100 @@
+package com.echomine.feridian.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.SendPacketFailedException;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.impl.PacketQueue;
+import com.echomine.xmpp.impl.XMPPConnectionHandler;
+import com.echomine.xmpp.packet.MessagePacket;
+
+/**
+ * Measures the throughput of a connection with several threads sending chat
+ * messages at the same time, with packets marshalled under the writer lock
+ * and with packets marshalled in parallel by the sending threads. Packets are
+ * written directly by the sending threads to a stream that discards them. The
+ * gain from parallel marshalling depends on the number of cores available;
+ * the number of threads is changed with -t. The throughput is in messages.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ParallelSendBenchmark {
+    @Param({ "false", "true" })
+    boolean parallel;
+
+    PacketQueue queue;
+
+    NullOutputStream output;
+
+    @Setup
+    public void setUp() throws IOException {
+        XMPPConnectionHandler handler = new XMPPConnectionHandler();
+        output = new NullOutputStream();
+        XMPPStreamWriter writer = handler.getStreamContext().getWriter();
+        writer.setOutput(output);
+        writer.startHandshakeStream(XMPPConstants.NS_XMPP_CLIENT, "example.com", null);
+        handler.setParallelMarshalling(parallel);
+        queue = new PacketQueue(handler);
+        queue.setDirectWrite(true);
+        queue.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        queue.stop();
+        if (output.getCount() == 0)
+            throw new IllegalStateException("No packets were written");
+    }
+
+    @Benchmark
+    public void send(Sender sender) throws SendPacketFailedException {
+        int number = sender.sequence++;
+        MessagePacket msg = new MessagePacket();
+        msg.setType(MessagePacket.TYPE_CHAT);
+        msg.setTo(sender.to);
+        msg.setId("m" + number);
+        msg.setThreadID("thread-1");
+        msg.setBody("this is message number " + number + " of the conversation & it has <markup> to escape");
+        queue.queuePacket(msg, false);
+    }
+
+    /**
+     * A sending thread, writing to a contact of its own
+     */
+    @State(Scope.Thread)
+    public static class Sender {
+        private static final AtomicInteger contacts = new AtomicInteger();
+
+        JID to;
+
+        int sequence;
+
+        @Setup
+        public void setUp() {
+            to = new JID("contact" + contacts.incrementAndGet(), "example.com", "desktop");
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.echomine.feridian.benchmark;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.jibx.runtime.IXMLReader;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.echomine.jibx.JiBXUtil;
+import com.echomine.jibx.XMPPPullReader;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PresencePacket;
+
+/**
+ * Measures the parser a stream is read with, the one jibx creates by default
+ * or the XMPP pull parser with its symbol table, both when only parsing the
+ * stream (which shows the strings the parser creates) and when unmarshalling
+ * every stanza. The garbage created is what differs most, thus these are best
+ * run with the GC profiler, as BenchmarkMain does. The time is per stream.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+    @Param
+    Corpus corpus;
+
+    @Param({ "1000" })
+    int stanzas;
+
+    @Param({ "false", "true" })
+    boolean symbolTable;
+
+    String stream;
+
+    @Setup
+    public void setUp() {
+        stream = corpus.stream(stanzas);
+    }
+
+    /**
+     * @return a context positioned on the stream's opening tag
+     */
+    private UnmarshallingContext open() throws JiBXException {
+        UnmarshallingContext uctx = new UnmarshallingContext();
+        if (symbolTable)
+            XMPPPullReader.setDocument(uctx, new StringReader(stream));
+        else
+            uctx.setDocument(new StringReader(stream));
+        uctx.toStart();
+        uctx.next();
+        return uctx;
+    }
+
+    @Benchmark
+    public int parse() throws JiBXException {
+        UnmarshallingContext uctx = open();
+        int count = 0;
+        while (true) {
+            int event = uctx.next();
+            if (event == IXMLReader.END_DOCUMENT)
+                break;
+            if (event == IXMLReader.START_TAG) {
+                count++;
+                uctx.getName();
+                for (int i = uctx.getAttributeCount() - 1; i >= 0; i--)
+                    uctx.getAttributeValue(i);
+            } else if (event == IXMLReader.TEXT) {
+                uctx.getText();
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int unmarshall() throws JiBXException {
+        UnmarshallingContext uctx = open();
+        int count = 0;
+        while (true) {
+            // unmarshallers leave the context at the end tag of the stanza,
+            // while skipping leaves it past the end tag
+            if (uctx.currentEvent() == IXMLReader.END_TAG)
+                uctx.next();
+            if (uctx.toTag() != IXMLReader.START_TAG)
+                break;
+            if (uctx.isAt(XMPPConstants.NS_XMPP_CLIENT, "message"))
+                unmarshall(uctx, MessagePacket.class);
+            else if (uctx.isAt(XMPPConstants.NS_XMPP_CLIENT, "presence"))
+                unmarshall(uctx, PresencePacket.class);
+            else if (uctx.isAt(XMPPConstants.NS_XMPP_CLIENT, "iq"))
+                unmarshall(uctx, IQPacket.class);
+            else
+                uctx.skipElement();
+            count++;
+        }
+        // the stanzas and the stream features
+        if (count != stanzas + 1)
+            throw new IllegalStateException("Read " + count + " elements of the " + corpus + " stream");
+        return count;
+    }
+
+    private static Object unmarshall(UnmarshallingContext uctx, Class cls) throws JiBXException {
+        UnmarshallingContext fctx = (UnmarshallingContext) JiBXUtil.getFactory(cls).createUnmarshallingContext();
+        fctx.setFromContext(uctx);
+        return fctx.unmarshalElement();
+    }
+}
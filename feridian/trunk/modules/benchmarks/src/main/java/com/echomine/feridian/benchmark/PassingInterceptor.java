@@ -0,0 +1,33 @@
+package com.echomine.feridian.benchmark;
+
+import com.echomine.xmpp.IStanzaInterceptor;
+import com.echomine.xmpp.IStanzaPacket;
+
+/**
+ * Looks at each stanza and passes it on, as a tracing or metrics interceptor
+ * would, so that only the cost of running the interceptor chain is measured.
+ */
+class PassingInterceptor implements IStanzaInterceptor {
+    long count;
+
+    long lastTime;
+
+    public IStanzaPacket received(IStanzaPacket packet, long readTime, long parsedTime) {
+        count++;
+        lastTime = parsedTime - readTime;
+        return packet;
+    }
+
+    public void dispatched(IStanzaPacket packet, long dispatchedTime) {
+        lastTime = dispatchedTime;
+    }
+
+    public IStanzaPacket sending(IStanzaPacket packet, long queuedTime) {
+        count++;
+        return packet;
+    }
+
+    public void sent(IStanzaPacket packet, long queuedTime, long marshalledTime, long flushedTime) {
+        lastTime = flushedTime - queuedTime;
+    }
+}
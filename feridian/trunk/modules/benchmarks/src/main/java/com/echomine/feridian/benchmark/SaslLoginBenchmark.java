@@ -0,0 +1,106 @@
+package com.echomine.feridian.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.echomine.util.Base64;
+import com.echomine.xmpp.XMPPAuthCallback;
+import com.echomine.xmpp.XMPPSessionContext;
+import com.echomine.xmpp.XMPPStreamContext;
+import com.echomine.xmpp.auth.sasl.DigestMD5SaslClient;
+import com.echomine.xmpp.auth.sasl.ScramKeyCache;
+import com.echomine.xmpp.auth.sasl.ScramSaslClient;
+
+/**
+ * Measures the client side of a SASL login, from the initial response to the
+ * final one. SCRAM is measured with an empty key cache (every login runs
+ * PBKDF2, as on the first login of an account) and with a warm cache (as on
+ * reconnects). The time is per login.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SaslLoginBenchmark {
+    private static final String DIGEST_CHALLENGE = "cmVhbG09InNvbWVyZWFsbSIsbm9uY2U9Ik9BNk1HOXRFUUdtMmhoIixxb3A9ImF1dGgiLGNoYXJzZXQ9dXRmLTgsYWxnb3JpdGhtPW1kNS1zZXNzCg==";
+
+    private static final String SALT = "QSXCR+Q6sek8bf92";
+
+    @Param({ "SHA-1", "SHA-256" })
+    String hash;
+
+    @Param({ "4096" })
+    int iterations;
+
+    char[] password = "pencil".toCharArray();
+
+    ScramKeyCache coldCache;
+
+    ScramKeyCache warmCache;
+
+    XMPPSessionContext sessCtx;
+
+    XMPPStreamContext streamCtx;
+
+    @Setup
+    public void setUp() throws Exception {
+        coldCache = new ScramKeyCache(0);
+        warmCache = new ScramKeyCache(10);
+        scramLogin(warmCache);
+        sessCtx = new XMPPSessionContext();
+        sessCtx.setHostName("example.com");
+        streamCtx = new XMPPStreamContext();
+        XMPPAuthCallback callback = new XMPPAuthCallback();
+        callback.setUsername("user");
+        callback.setPassword(password);
+        streamCtx.setAuthCallback(callback);
+    }
+
+    /**
+     * Runs the client side of a login against a server first message with the
+     * benchmark's salt and iteration count
+     *
+     * @return the client final message
+     */
+    private String scramLogin(ScramKeyCache cache) throws Exception {
+        ScramSaslClient client = new ScramSaslClient(hash, "Hmac" + hash.replace("-", ""), cache);
+        String clientFirst = new String(Base64.decode(client.getInitialResponse("user", "user@example.com")), "UTF-8");
+        String nonce = clientFirst.substring(clientFirst.indexOf(",r=") + 3);
+        String serverFirst = "r=" + nonce + "3rfcNHYJY1ZVvWVs7j,s=" + SALT + ",i=" + iterations;
+        return client.getFinalResponse(Base64.encodeBytes(serverFirst.getBytes("UTF-8")), password);
+    }
+
+    @Benchmark
+    public String scramColdCache() throws Exception {
+        return scramLogin(coldCache);
+    }
+
+    @Benchmark
+    public String scramWarmCache() throws Exception {
+        return scramLogin(warmCache);
+    }
+
+    /**
+     * DIGEST-MD5 does not depend on the hash or the iteration count, thus its
+     * results are the same for every combination of them.
+     */
+    @Benchmark
+    public String digestMD5() {
+        DigestMD5SaslClient client = new DigestMD5SaslClient();
+        client.unwrapChallenge(DIGEST_CHALLENGE);
+        return client.getAuthResponse(sessCtx, streamCtx);
+    }
+}
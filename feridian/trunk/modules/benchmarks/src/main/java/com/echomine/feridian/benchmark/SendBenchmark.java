@@ -0,0 +1,110 @@
+package com.echomine.feridian.benchmark;
+
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.echomine.feridian.FeridianConfiguration;
+import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.net.MockSocket;
+import com.echomine.xmpp.IXMPPConnection;
+import com.echomine.xmpp.SendPacketFailedException;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.XMPPStreamContext;
+import com.echomine.xmpp.impl.PacketQueue;
+import com.echomine.xmpp.impl.XMPPConnectionHandler;
+import com.echomine.xmpp.packet.MessagePacket;
+
+/**
+ * Measures the time from queuing a message until it is written out, with
+ * packets handed over to the queue thread and with packets written directly
+ * by the sending thread. Messages are sent one at a time, the way a bot sends
+ * a reply to each request it receives, to a socket that discards them; the
+ * bytes go through the connection's output stream, and are thus counted when
+ * metrics are enabled (-p metrics=false,true). The time is per message, with
+ * its percentiles.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SendBenchmark {
+    @Param({ "false", "true" })
+    boolean directWrite;
+
+    @Param({ "false" })
+    boolean metrics;
+
+    PacketQueue queue;
+
+    WrittenStream output;
+
+    MessagePacket msg;
+
+    @Setup
+    public void setUp() throws Exception {
+        // the metrics of a connection are created with its handler
+        FeridianConfiguration.getConfig().setMetricsEnabled(metrics);
+        XMPPConnectionHandler handler = new XMPPConnectionHandler();
+        XMPPStreamContext streamCtx = handler.getStreamContext();
+        MockSocket socket = new MockSocket(IXMPPConnection.DEFAULT_XMPP_PORT);
+        output = new WrittenStream();
+        socket.setOutputStream(output);
+        streamCtx.setSocket(socket);
+        XMPPStreamWriter writer = streamCtx.getWriter();
+        writer.setOutput(streamCtx.getOutputStream());
+        writer.startHandshakeStream(XMPPConstants.NS_XMPP_CLIENT, "example.com", null);
+        queue = new PacketQueue(handler);
+        queue.setDirectWrite(directWrite);
+        queue.start();
+        msg = new MessagePacket();
+        msg.setType(MessagePacket.TYPE_CHAT);
+        msg.setId("m1");
+        msg.setBody("Wherefore art thou?");
+    }
+
+    @TearDown
+    public void tearDown() {
+        queue.stop();
+        FeridianConfiguration.getConfig().setMetricsEnabled(false);
+    }
+
+    @Benchmark
+    public long send() throws SendPacketFailedException {
+        long written = output.count;
+        queue.queuePacket(msg, false);
+        while (output.count == written)
+            Thread.yield();
+        return output.count;
+    }
+
+    /**
+     * Discards everything written to it, counting the bytes so that the
+     * sending thread sees when the queue thread wrote a packet
+     */
+    static class WrittenStream extends OutputStream {
+        volatile long count;
+
+        public void write(int b) {
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.echomine.feridian.benchmark;
+
+/**
+ * The stanzas the benchmarks are made of. They are written as they appear
+ * inside a stream, thus they inherit the jabber:client namespace; use
+ * standalone() to parse one on its own.
+ */
+public class Stanzas {
+    public static final String STREAM_HEADER = "<?xml version='1.0'?>"
+            + "<stream:stream from='example.com' id='someid' version='1.0'"
+            + " xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>"
+            + "<stream:features><mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'>"
+            + "<mechanism>PLAIN</mechanism></mechanisms></stream:features>";
+
+    public static final String STREAM_FOOTER = "</stream:stream>";
+
+    public static final String FEATURES = "<stream:features xmlns:stream='http://etherx.jabber.org/streams'>"
+            + "<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'><required/></starttls>"
+            + "<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'>"
+            + "<mechanism>SCRAM-SHA-1</mechanism><mechanism>DIGEST-MD5</mechanism><mechanism>PLAIN</mechanism></mechanisms>"
+            + "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/>"
+            + "<session xmlns='urn:ietf:params:xml:ns:xmpp-session'/></stream:features>";
+
+    public static final String PRESENCE = "<presence from='juliet@example.com/balcony' to='romeo@example.net'>"
+            + "<show>away</show><status>Wherefore art thou?</status><priority>5</priority></presence>";
+
+    public static final String MESSAGE = "<message id='m_0001' from='juliet@example.com/balcony' to='romeo@example.net' type='chat'>"
+            + "<subject>Balcony</subject><body>Art thou not Romeo, and a Montague?</body>"
+            + "<thread>e0ffe42b28561960c6b12b944a092794b9683a38</thread></message>";
+
+    public static final String IQ_RESULT = "<iq type='result' id='iq_0001' from='example.com' to='juliet@example.com/balcony'/>";
+
+    public static final String PRIVACY = "<iq type='result' id='iq_0002'>"
+            + "<query xmlns='jabber:iq:privacy'><list name='public'>"
+            + "<item type='jid' value='tybalt@example.com' action='deny' order='1'/>"
+            + "<item type='group' value='Capulets' action='deny' order='2'/>"
+            + "<item type='subscription' value='none' action='deny' order='3'>"
+            + "<message/><presence-in/></item>"
+            + "<item action='allow' order='4'/></list></query></iq>";
+
+    public static final String DISCO_INFO = "<iq type='result' id='iq_0003' from='conference.example.com' to='juliet@example.com/balcony'>"
+            + "<query xmlns='http://jabber.org/protocol/disco#info'>"
+            + "<identity category='conference' type='text' name='Play-Specific Chatrooms'/>"
+            + "<identity category='directory' type='chatroom' name='Play-Specific Chatrooms'/>"
+            + "<feature var='http://jabber.org/protocol/disco#info'/>"
+            + "<feature var='http://jabber.org/protocol/disco#items'/>"
+            + "<feature var='http://jabber.org/protocol/muc'/>"
+            + "<feature var='jabber:iq:register'/>"
+            + "<feature var='jabber:iq:search'/>"
+            + "<feature var='jabber:iq:time'/>"
+            + "<feature var='jabber:iq:version'/></query></iq>";
+
+    public static final String DATA_FORM = "<message id='m_0002' from='bot@example.com/work' to='juliet@example.com/balcony'>"
+            + "<body>Please configure the room</body>"
+            + "<x xmlns='jabber:x:data' type='form'><title>Room Configuration</title>"
+            + "<instructions>Fill out this form to configure the room</instructions>"
+            + "<field type='hidden' var='FORM_TYPE'><value>http://jabber.org/protocol/muc#roomconfig</value></field>"
+            + "<field type='text-single' var='muc#roomconfig_roomname' label='Natural-Language Room Name'><value>Balcony</value></field>"
+            + "<field type='boolean' var='muc#roomconfig_persistentroom' label='Make Room Persistent?'><value>1</value></field>"
+            + "<field type='list-single' var='muc#roomconfig_maxusers' label='Maximum Number of Occupants'><value>20</value>"
+            + "<option label='10'><value>10</value></option><option label='20'><value>20</value></option>"
+            + "<option label='30'><value>30</value></option></field>"
+            + "<field type='jid-multi' var='muc#roomconfig_roomadmins' label='Room Admins'>"
+            + "<value>juliet@example.com</value><value>nurse@example.com</value></field></x></message>";
+
+    /**
+     * A presence with entity capabilities and a delay, which are not bound,
+     * thus they are skipped (or captured when raw extensions are kept)
+     */
+    public static final String PRESENCE_CAPS = "<presence from='nurse@example.com/home'><priority>1</priority>"
+            + "<c xmlns='http://jabber.org/protocol/caps' hash='sha-1' node='http://example.com/client' ver='QgayPKawpkPSDYmwT/WM94uAlu0='/>"
+            + "<delay xmlns='urn:xmpp:delay' from='example.com' stamp='2002-09-10T23:08:25Z'/></presence>";
+
+    /**
+     * @param items the number of contacts
+     * @return a roster result with the number of contacts
+     */
+    public static String roster(int items) {
+        StringBuffer buf = new StringBuffer(items * 128);
+        buf.append("<iq type='result' id='roster_1' to='juliet@example.com/balcony'><query xmlns='jabber:iq:roster'>");
+        for (int i = 0; i < items; i++)
+            buf.append("<item jid='").append(contact(i)).append("' name='Contact ").append(i)
+                    .append("' subscription='both'><group>").append(i % 2 == 0 ? "Friends" : "Family")
+                    .append("</group></item>");
+        buf.append("</query></iq>");
+        return buf.toString();
+    }
+
+    /**
+     * @param index the index of the contact
+     * @return the available presence of a contact in the roster
+     */
+    public static String contactPresence(int index) {
+        return "<presence from='" + contact(index) + "/home' to='juliet@example.com/balcony'>"
+                + "<show>" + (index % 3 == 0 ? "away" : "chat") + "</show><status>Contact " + index + "</status></presence>";
+    }
+
+    /**
+     * @param index the index of the contact
+     * @return the bare jid of a contact in the roster
+     */
+    public static String contact(int index) {
+        return "contact" + index + "@example.org";
+    }
+
+    /**
+     * Declares the jabber:client namespace on the stanza, so that it can be
+     * parsed outside of a stream.
+     */
+    public static String standalone(String stanza) {
+        int end = stanza.indexOf(' ');
+        int tagEnd = stanza.indexOf('>');
+        if (end < 0 || tagEnd < end)
+            end = tagEnd;
+        return stanza.substring(0, end) + " xmlns='jabber:client'" + stanza.substring(end);
+    }
+}
@@ -0,0 +1,111 @@
+package com.echomine.feridian.benchmark;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.jibx.runtime.JiBXException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.echomine.jibx.JiBXUtil;
+import com.echomine.jibx.StanzaBuffer;
+import com.echomine.jibx.StanzaRenderer;
+import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PresencePacket;
+
+/**
+ * Measures the writing of a batch of stanzas to an open stream, as the
+ * connection writes its outgoing queue: the stanzas are either marshalled
+ * straight into the stream writer, or rendered beforehand and copied into it.
+ * The time is per batch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StreamWriterBenchmark {
+    @Param
+    Corpus corpus;
+
+    @Param({ "100" })
+    int stanzas;
+
+    IStanzaPacket[] packets;
+
+    byte[][] rendered;
+
+    XMPPStreamWriter writer;
+
+    NullOutputStream output;
+
+    @Setup
+    public void setUp() throws Exception {
+        String[] markup = corpus.stanzas(stanzas);
+        packets = new IStanzaPacket[markup.length];
+        rendered = new byte[markup.length][];
+        for (int i = 0; i < markup.length; i++) {
+            packets[i] = unmarshall(markup[i]);
+            StanzaBuffer buf = StanzaRenderer.render(packets[i], XMPPConstants.NS_XMPP_CLIENT);
+            rendered[i] = new byte[buf.size()];
+            System.arraycopy(buf.getData(), 0, rendered[i], 0, buf.size());
+            buf.release();
+        }
+        output = new NullOutputStream();
+        writer = new XMPPStreamWriter();
+        writer.setOutput(output);
+        writer.startHandshakeStream(XMPPConstants.NS_XMPP_CLIENT, "example.com", null);
+    }
+
+    /**
+     * @return the packet of the stanza, unmarshalled as the connection would
+     */
+    private static IStanzaPacket unmarshall(String stanza) throws JiBXException {
+        Class cls;
+        if (stanza.startsWith("<iq"))
+            cls = IQPacket.class;
+        else if (stanza.startsWith("<message"))
+            cls = MessagePacket.class;
+        else
+            cls = PresencePacket.class;
+        IStanzaPacket packet = (IStanzaPacket) JiBXUtil.unmarshallObject(new StringReader(Stanzas.standalone(stanza)), cls);
+        if (packet == null)
+            throw new IllegalStateException("Unable to unmarshall " + stanza);
+        return packet;
+    }
+
+    @Benchmark
+    public long marshall() throws JiBXException, IOException {
+        for (int i = 0; i < packets.length; i++) {
+            if (packets[i] instanceof IQPacket)
+                JiBXUtil.marshallIQPacket(writer, (IQPacket) packets[i]);
+            else
+                JiBXUtil.marshallObject(writer, packets[i]);
+        }
+        writer.flush();
+        return output.getCount();
+    }
+
+    @Benchmark
+    public long writeRendered() throws IOException {
+        for (int i = 0; i < rendered.length; i++)
+            writer.writeStanzaBytes(rendered[i], 0, rendered[i].length);
+        writer.flush();
+        return output.getCount();
+    }
+}
@@ -0,0 +1,118 @@
+package com.echomine.feridian;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Precompiles feridian extension files into extension indexes. This is run at
+ * build time, after the classes are compiled, over the META-INF directory of
+ * each module. For every feridian-extensions*.xml file found, an index file of
+ * the same name ending in .idx is written next to it. At startup, the
+ * configuration reads the index instead of the xml file, which requires no
+ * xml parsing and lets the extension classes be loaded only when they are
+ * first used. Extension files without an index are still parsed as xml.
+ * <p>
+ * The index is a UTF-8 text file with one extension per line. Each line holds
+ * the element name of the extension followed by its attributes, separated by
+ * a space (namespaces and class names never contain spaces):
+ * </p>
+ * <pre>
+ *  authenticator &lt;class&gt;
+ *  stream &lt;ns&gt; &lt;class&gt; [unmarshaller]
+ *  packet &lt;ns&gt; &lt;class&gt;
+ * </pre>
+ * <p>
+ * Lines starting with # are comments. Authenticators are listed in the same
+ * order as in the xml file. The generator only reads names and does not load
+ * any of the classes.
+ * </p>
+ * Usage:
+ * <pre>
+ *  java com.echomine.feridian.ExtensionIndexGenerator &lt;dir&gt; [dir...]
+ * </pre>
+ */
+public class ExtensionIndexGenerator {
+    static final String INDEX_SUFFIX = ".idx";
+    static final String AUTHENTICATOR = "authenticator";
+    static final String STREAM = "stream";
+    static final String PACKET = "packet";
+    private static final String EXTENSIONS_PREFIX = "feridian-extensions";
+    private static final String XML_SUFFIX = ".xml";
+
+    public static void main(String[] args) throws Exception {
+        for (int i = 0; i < args.length; i++) {
+            File dir = new File(args[i]);
+            File[] files = dir.listFiles();
+            if (files == null)
+                continue;
+            for (int j = 0; j < files.length; j++) {
+                String name = files[j].getName();
+                if (name.startsWith(EXTENSIONS_PREFIX) && name.endsWith(XML_SUFFIX)) {
+                    File index = new File(dir, name.substring(0, name.length() - XML_SUFFIX.length()) + INDEX_SUFFIX);
+                    generate(files[j], index);
+                    System.out.println("Generated extension index " + index);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the extension file and writes its index.
+     *
+     * @param extensionsFile the feridian extensions xml file
+     * @param indexFile the index file to write
+     * @throws IOException if the files cannot be read or written
+     * @throws SAXException if the extensions file is not well-formed
+     */
+    public static void generate(File extensionsFile, File indexFile) throws IOException, SAXException {
+        final List<String> lines = new ArrayList<String>();
+        try {
+            SAXParserFactory.newInstance().newSAXParser().parse(extensionsFile, new DefaultHandler() {
+                public void startElement(String uri, String localName, String qName, Attributes attrs) throws SAXException {
+                    String cls = attrs.getValue("class");
+                    if (AUTHENTICATOR.equals(qName)) {
+                        lines.add(line(qName, cls, null, null));
+                    } else if (STREAM.equals(qName)) {
+                        lines.add(line(qName, attrs.getValue("ns"), cls, attrs.getValue("unmarshaller")));
+                    } else if (PACKET.equals(qName)) {
+                        lines.add(line(qName, attrs.getValue("ns"), cls, null));
+                    }
+                }
+            });
+        } catch (ParserConfigurationException ex) {
+            throw new SAXException(ex);
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(indexFile), "UTF-8");
+        try {
+            writer.write("# generated from " + extensionsFile.getName() + ", do not edit\n");
+            for (String line : lines)
+                writer.write(line + "\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String line(String type, String value1, String value2, String value3) throws SAXException {
+        if (value1 == null || (value2 == null && !AUTHENTICATOR.equals(type)))
+            throw new SAXException("Missing attribute in " + type + " element");
+        StringBuffer buf = new StringBuffer(type);
+        buf.append(' ').append(value1.trim());
+        if (value2 != null)
+            buf.append(' ').append(value2.trim());
+        if (value3 != null)
+            buf.append(' ').append(value3.trim());
+        return buf.toString();
+    }
+}
@@ -1,5 +1,7 @@
 package com.echomine.feridian;
 
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -11,14 +13,19 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jibx.runtime.JiBXException;
 
 import com.echomine.jibx.JiBXUtil;
+import com.echomine.jibx.SymbolTable;
 import com.echomine.util.ClassUtil;
 import com.echomine.xmpp.IXMPPAuthenticator;
+import com.echomine.xmpp.impl.InboundFloodGuard;
+import com.echomine.xmpp.impl.KeepAliveScheduler;
 
 /**
  * Holds all the configuration information. The feridian-config.xml file is
@@ -34,6 +41,14 @@ import com.echomine.xmpp.IXMPPAuthenticator;
  * then the last parsed extension will be the one used. With this order of
  * parsing, user can use "/" classpath files to override those in "META-INF/",
  * which in turn will override the default extensions file.
+ * <p>
+ * If an extension file has an index precompiled at build time next to it (ie.
+ * feridian-extensions.idx), the index is read instead of the xml file. Classes
+ * named by an index are loaded when first looked up, and authenticators are
+ * instantiated when first retrieved, which keeps startup cheap.
+ * </p>
+ * 
+ * @see ExtensionIndexGenerator
  */
 public class FeridianConfiguration {
     private static final Log log = LogFactory.getLog(FeridianConfiguration.class);
@@ -43,12 +58,39 @@ public class FeridianConfiguration {
     private static final String DEFAULT_EXTENSIONS_FILENAME = "feridian-extensions-default.xml";
     private static FeridianConfiguration config;
 
-    private HashMap<String, Class> extMappings = new HashMap<String, Class>();
+    // values are the Class, or the class name until it is first looked up
+    private ConcurrentHashMap<String, Object> extMappings = new ConcurrentHashMap<String, Object>();
+    // reverse of the extension mappings, "" for classes without a namespace
+    private ConcurrentHashMap<Class, String> uriMappings = new ConcurrentHashMap<Class, String>();
     private HashMap<String, FeridianStreamExtension> streamMappings = new HashMap<String, FeridianStreamExtension>();
-    private LinkedList<IXMPPAuthenticator> authenticators = new LinkedList<IXMPPAuthenticator>();
+    private LinkedList<String> authenticatorClassNames = new LinkedList<String>();
+    private List<IXMPPAuthenticator> authenticators;
     private Class connectionFactoryClass;
     private Class streamFactoryClass;
     private Class idGeneratorClass;
+    private String keepAliveMode = "none";
+    private long keepAliveIdleTime = 60000;
+    private long keepAlivePingTimeout = 30000;
+    private boolean pipelinedLogin;
+    private boolean lazyUnmarshalling;
+    private boolean directWrite;
+    private boolean parallelMarshalling;
+    private int outboundMaxStanzas;
+    private long outboundMaxBytes;
+    private int outboundHighWatermark = 80;
+    private int outboundLowWatermark = 40;
+    private boolean outboundCoalescing;
+    private double rateLimit;
+    private int rateLimitBurst = 20;
+    private double destinationRateLimit;
+    private int destinationRateLimitBurst = 5;
+    private String rateLimitDestination = "domain";
+    private double inboundRateLimit;
+    private int inboundRateLimitBurst = 10;
+    private String inboundRateLimitAction = "drop";
+    private boolean metricsEnabled;
+    private String metricsRegistryClassName = "com.echomine.xmpp.metrics.JMXMetricsRegistry";
+    private String tracerClassName;
 
     /**
      * Obtains the config file. It will first look in the main classpath "/". If
@@ -104,8 +146,20 @@ public class FeridianConfiguration {
      * 
      * @return non-modifiable, never-null list of authenticators
      */
-    public List<IXMPPAuthenticator> getAuthenticators() {
-        return Collections.unmodifiableList(authenticators);
+    public synchronized List<IXMPPAuthenticator> getAuthenticators() {
+        if (authenticators == null) {
+            LinkedList<IXMPPAuthenticator> list = new LinkedList<IXMPPAuthenticator>();
+            for (String name : authenticatorClassNames) {
+                try {
+                    list.add((IXMPPAuthenticator) ClassUtil.newInstance(ClassUtil.loadClass(name), IXMPPAuthenticator.class));
+                } catch (Exception ex) {
+                    if (log.isWarnEnabled())
+                        log.warn("Skipping... Unable to instantiate authenticator " + name, ex);
+                }
+            }
+            authenticators = Collections.unmodifiableList(list);
+        }
+        return authenticators;
     }
 
     /**
@@ -120,7 +174,45 @@ public class FeridianConfiguration {
     public Class getClassForUri(String ns) {
         if (ns == null)
             return null;
-        return extMappings.get(ns);
+        Object value = extMappings.get(ns);
+        if (!(value instanceof String))
+            return (Class) value;
+        try {
+            Class cls = ClassUtil.loadClass((String) value);
+            extMappings.replace(ns, value, cls);
+            return cls;
+        } catch (ClassNotFoundException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unable to load class " + value + " for packet extension " + ns, ex);
+            extMappings.remove(ns, value);
+            return null;
+        }
+    }
+
+    /**
+     * Obtains the extension URI that the specified packet class is registered
+     * for. The mappings are searched on the first call for each class and the
+     * result is cached.
+     * 
+     * @param cls the packet class
+     * @return the URI, or null if the class is not registered
+     */
+    public String getUriForClass(Class cls) {
+        String ns = uriMappings.get(cls);
+        if (ns == null) {
+            ns = "";
+            Iterator<Map.Entry<String, Object>> iter = extMappings.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<String, Object> entry = iter.next();
+                Object value = entry.getValue();
+                if (value == cls || cls.getName().equals(value)) {
+                    ns = entry.getKey();
+                    break;
+                }
+            }
+            uriMappings.put(cls, ns);
+        }
+        return ns.length() == 0 ? null : ns;
     }
 
     /**
@@ -179,6 +271,248 @@ public class FeridianConfiguration {
         return idGeneratorClass;
     }
 
+    /**
+     * The type of keepalive sent on idle connections. An unrecognized mode
+     * disables keepalives.
+     * 
+     * @return the keepalive mode, never null
+     */
+    public KeepAliveScheduler.Mode getKeepAliveMode() {
+        if (keepAliveMode == null)
+            return KeepAliveScheduler.Mode.NONE;
+        try {
+            return KeepAliveScheduler.Mode.valueOf(keepAliveMode.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unknown keepalive mode " + keepAliveMode + ".  Keepalive is disabled.");
+            return KeepAliveScheduler.Mode.NONE;
+        }
+    }
+
+    /**
+     * the time in ms that a connection can go without receiving any data
+     * before a keepalive is sent
+     */
+    public long getKeepAliveIdleTime() {
+        return keepAliveIdleTime;
+    }
+
+    /**
+     * the time in ms to wait for any data after a ping is sent before the
+     * connection is considered dead
+     */
+    public long getKeepAlivePingTimeout() {
+        return keepAlivePingTimeout;
+    }
+
+    /**
+     * Whether login should send its post-authentication requests without
+     * waiting for each reply when the host's features are known. This is off
+     * by default, since the requests are then sent before the stream features
+     * that follow authentication are received, ahead of the order of RFC 6120.
+     * 
+     * @return true if login is pipelined
+     */
+    public boolean isPipelinedLogin() {
+        return pipelinedLogin;
+    }
+
+    /**
+     * Enables or disables pipelined login. This affects logins started after
+     * the change.
+     * 
+     * @param pipelinedLogin true to pipeline the login
+     */
+    public void setPipelinedLogin(boolean pipelinedLogin) {
+        this.pipelinedLogin = pipelinedLogin;
+    }
+
+    /**
+     * Whether the children of incoming message and presence stanzas are kept
+     * as raw markup and only unmarshalled when first accessed. Stanzas whose
+     * content is never accessed are forwarded with the content as received.
+     * 
+     * @return true if unmarshalling is lazy
+     */
+    public boolean isLazyUnmarshalling() {
+        return lazyUnmarshalling;
+    }
+
+    /**
+     * Enables or disables lazy unmarshalling. This affects stanzas received
+     * after the change.
+     * 
+     * @param lazyUnmarshalling true to unmarshall lazily
+     */
+    public void setLazyUnmarshalling(boolean lazyUnmarshalling) {
+        this.lazyUnmarshalling = lazyUnmarshalling;
+    }
+
+    /**
+     * Whether packets are written out by the thread sending them, instead of
+     * being handed over to the connection's queue thread.
+     * 
+     * @return true if packets are written directly
+     */
+    public boolean isDirectWrite() {
+        return directWrite;
+    }
+
+    /**
+     * Whether packets are marshalled by the threads sending them, leaving
+     * only the copying of their bytes to the connection's writer.
+     * 
+     * @return true if packets are marshalled on the sending threads
+     */
+    public boolean isParallelMarshalling() {
+        return parallelMarshalling;
+    }
+
+    /**
+     * the maximum number of packets waiting to be sent on a connection, 0 for
+     * no limit
+     */
+    public int getOutboundMaxStanzas() {
+        return outboundMaxStanzas;
+    }
+
+    /**
+     * the maximum size in bytes of the packets waiting to be sent on a
+     * connection, 0 for no limit
+     */
+    public long getOutboundMaxBytes() {
+        return outboundMaxBytes;
+    }
+
+    /**
+     * the percentage of the outbound limits at which a connection stops being
+     * writable
+     */
+    public int getOutboundHighWatermark() {
+        return outboundHighWatermark;
+    }
+
+    /**
+     * the percentage of the outbound limits at which a connection is writable
+     * again
+     */
+    public int getOutboundLowWatermark() {
+        return outboundLowWatermark;
+    }
+
+    /**
+     * Whether presence and chat state updates waiting to be sent are replaced
+     * by newer updates of the same kind to the same recipient.
+     * 
+     * @return true if superseded updates are coalesced
+     */
+    public boolean isOutboundCoalescing() {
+        return outboundCoalescing;
+    }
+
+    /**
+     * the stanzas per second written out on a connection, 0 for no limit
+     */
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    /**
+     * the stanzas that can be written out at once on a connection
+     */
+    public int getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+
+    /**
+     * the stanzas per second written out to each recipient, 0 for no limit
+     */
+    public double getDestinationRateLimit() {
+        return destinationRateLimit;
+    }
+
+    /**
+     * the stanzas that can be written out at once to each recipient
+     */
+    public int getDestinationRateLimitBurst() {
+        return destinationRateLimitBurst;
+    }
+
+    /**
+     * Whether the recipient rate limit applies to each full JID instead of
+     * each domain.
+     * 
+     * @return true if recipients are told apart by full JID
+     */
+    public boolean isDestinationRateLimitPerJID() {
+        return "jid".equalsIgnoreCase(rateLimitDestination);
+    }
+
+    /**
+     * the stanzas per second each sender may send to a connection, 0 for no
+     * limit
+     */
+    public double getInboundRateLimit() {
+        return inboundRateLimit;
+    }
+
+    /**
+     * the stanzas each sender may send to a connection at once
+     */
+    public int getInboundRateLimitBurst() {
+        return inboundRateLimitBurst;
+    }
+
+    /**
+     * What is done with incoming stanzas over the rate limit of their sender.
+     * 
+     * @return the action, DROP if not set or unknown
+     */
+    public InboundFloodGuard.Action getInboundRateLimitAction() {
+        if (inboundRateLimitAction == null)
+            return InboundFloodGuard.Action.DROP;
+        try {
+            return InboundFloodGuard.Action.valueOf(inboundRateLimitAction.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unknown inbound rate limit action " + inboundRateLimitAction + ".  Stanzas over the limit are dropped.");
+            return InboundFloodGuard.Action.DROP;
+        }
+    }
+
+    /**
+     * @return true if the metrics of connections are collected
+     */
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * Enables or disables the collection of metrics. This affects connections
+     * created after the change.
+     * 
+     * @param metricsEnabled true to collect metrics
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    /**
+     * @return the class name of the registry that metrics are published
+     *         through, null to not publish them
+     */
+    public String getMetricsRegistryClassName() {
+        return metricsRegistryClassName;
+    }
+
+    /**
+     * @return the class name of the tracer that connection events are passed
+     *         to, null if connections are not traced
+     */
+    public String getTracerClassName() {
+        return tracerClassName;
+    }
+
     /**
      * Loads the extensions if there are any. First, it loads the default
      * config. Then it looks for all resources located in
@@ -207,46 +541,99 @@ public class FeridianConfiguration {
      * elements (feature stream) will get overridden by subsequent loading of
      * the same type. Authenticators will be added on a LIFO matter, meaning
      * that the first authenticator added is the last authenticator to be
-     * retrieved.
+     * retrieved. The precompiled index of each file is used when one exists.
      * 
      * @param resources the list of resource files to load resources from
      */
     private void loadExtensionsFromResources(Enumeration resources) {
         URL url;
-        FeridianExtensions extensions;
         while (resources.hasMoreElements()) {
             url = (URL) resources.nextElement();
             try {
-                extensions = (FeridianExtensions) JiBXUtil.unmarshallObject(new InputStreamReader(url.openStream(), "UTF-8"), FeridianExtensions.class);
-                Iterator iter = extensions.getPacketExtensions().iterator();
-                FeridianPacketExtension ext;
-                while (iter.hasNext()) {
-                    ext = (FeridianPacketExtension) iter.next();
-                    if (log.isInfoEnabled())
-                        log.info("Packet Extension Found: URI=" + ext.getNamespace() + ", class=" + ext.getPacketClass().getName());
-                    extMappings.put(ext.getNamespace(), ext.getPacketClass());
-                }
-                iter = extensions.getStreamList().iterator();
-                FeridianStreamExtension stream;
-                while (iter.hasNext()) {
-                    stream = (FeridianStreamExtension) iter.next();
-                    if (log.isInfoEnabled())
-                        log.info("Stream Extension Found: URI=" + stream.getNamespace() + ", class=" + stream.getStreamClass().getName());
-                    streamMappings.put(stream.getNamespace(), stream);
-                }
-                List list = extensions.getAuthenticators();
-                int size = list.size();
-                FeridianAuthenticator auth;
-                for (int i = 0; i < size; i++) {
-                    auth = (FeridianAuthenticator) list.get(i);
-                    if (log.isInfoEnabled())
-                        log.info("Authenticator Found: " + auth.getAuthenticatorClass().getName());
-                    authenticators.add(i, (IXMPPAuthenticator) ClassUtil.newInstance(auth.getAuthenticatorClass(), IXMPPAuthenticator.class));
-                }
+                if (!loadExtensionsFromIndex(url))
+                    loadExtensionsFromXML(url);
             } catch (Throwable thr) {
                 if (log.isWarnEnabled())
                     log.warn("Skipping... Unable to properly load feridian extension file. Check configuration file.", thr);
             }
         }
     }
+
+    /**
+     * Loads the extensions from the index precompiled from the extension file.
+     * Only class names are recorded, no classes are loaded.
+     * 
+     * @param url the location of the extension xml file
+     * @return true if an index was found and loaded, false if there is none
+     */
+    private boolean loadExtensionsFromIndex(URL url) throws IOException {
+        String path = url.toExternalForm();
+        if (!path.endsWith(".xml"))
+            return false;
+        URL indexUrl = new URL(path.substring(0, path.length() - 4) + ExtensionIndexGenerator.INDEX_SUFFIX);
+        BufferedReader rdr;
+        try {
+            rdr = new BufferedReader(new InputStreamReader(indexUrl.openStream(), "UTF-8"));
+        } catch (FileNotFoundException ex) {
+            return false;
+        }
+        try {
+            String line;
+            int authIdx = 0;
+            while ((line = rdr.readLine()) != null) {
+                if (line.length() == 0 || line.charAt(0) == '#')
+                    continue;
+                String[] fields = line.split(" ");
+                if (ExtensionIndexGenerator.PACKET.equals(fields[0]) && fields.length == 3) {
+                    // namespaces of extensions are read by the parser as symbols
+                    extMappings.put(SymbolTable.addSymbol(fields[1]), fields[2]);
+                } else if (ExtensionIndexGenerator.STREAM.equals(fields[0]) && fields.length >= 3) {
+                    streamMappings.put(fields[1], new FeridianStreamExtension(fields[1], fields[2], fields.length > 3 ? fields[3] : null));
+                } else if (ExtensionIndexGenerator.AUTHENTICATOR.equals(fields[0]) && fields.length == 2) {
+                    authenticatorClassNames.add(authIdx++, fields[1]);
+                } else if (log.isWarnEnabled()) {
+                    log.warn("Ignoring unrecognized line in extension index " + indexUrl + ": " + line);
+                }
+            }
+        } finally {
+            rdr.close();
+        }
+        if (log.isInfoEnabled())
+            log.info("Extensions loaded from index " + indexUrl);
+        return true;
+    }
+
+    /**
+     * Loads the extensions by unmarshalling the extension xml file
+     * 
+     * @param url the location of the extension xml file
+     */
+    private void loadExtensionsFromXML(URL url) throws JiBXException, IOException {
+        FeridianExtensions extensions = (FeridianExtensions) JiBXUtil.unmarshallObject(new InputStreamReader(url.openStream(), "UTF-8"), FeridianExtensions.class);
+        Iterator iter = extensions.getPacketExtensions().iterator();
+        FeridianPacketExtension ext;
+        while (iter.hasNext()) {
+            ext = (FeridianPacketExtension) iter.next();
+            if (log.isInfoEnabled())
+                log.info("Packet Extension Found: URI=" + ext.getNamespace() + ", class=" + ext.getPacketClass().getName());
+            extMappings.put(SymbolTable.addSymbol(ext.getNamespace()), ext.getPacketClass());
+        }
+        iter = extensions.getStreamList().iterator();
+        FeridianStreamExtension stream;
+        while (iter.hasNext()) {
+            stream = (FeridianStreamExtension) iter.next();
+            if (log.isInfoEnabled())
+                log.info("Stream Extension Found: URI=" + stream.getNamespace() + ", class=" + stream.getStreamClass().getName());
+            streamMappings.put(stream.getNamespace(), stream);
+        }
+        List list = extensions.getAuthenticators();
+        int size = list.size();
+        FeridianAuthenticator auth;
+        for (int i = 0; i < size; i++) {
+            auth = (FeridianAuthenticator) list.get(i);
+            if (log.isInfoEnabled())
+                log.info("Authenticator Found: " + auth.getAuthenticatorClass().getName());
+            authenticatorClassNames.add(i, auth.getAuthenticatorClass().getName());
+        }
+    }
 }
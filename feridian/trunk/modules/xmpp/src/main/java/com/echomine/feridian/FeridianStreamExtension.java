@@ -1,19 +1,49 @@
 package com.echomine.feridian;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.util.ClassUtil;
+
 /**
- * Encapsulates a feridian stream extension element.
+ * Encapsulates a feridian stream extension element. When read from an
+ * extension index, the classes are only loaded when first requested.
  */
 public class FeridianStreamExtension extends FeridianPacketExtension {
+    private static final Log log = LogFactory.getLog(FeridianStreamExtension.class);
     private String namespace;
     private Class unmarshaller;
     private Class cls;
+    private String clsName;
+    private String unmarshallerName;
+
+    public FeridianStreamExtension() {
+        super();
+    }
+
+    /**
+     * Creates an extension whose classes are loaded on first use
+     * 
+     * @param namespace the feature namespace
+     * @param clsName the name of the stream class
+     * @param unmarshallerName the name of the unmarshaller class, or null
+     */
+    FeridianStreamExtension(String namespace, String clsName, String unmarshallerName) {
+        this.namespace = namespace;
+        this.clsName = clsName;
+        this.unmarshallerName = unmarshallerName;
+    }
 
     /**
      * The class associated with the packet extension
      * 
      * @return Returns the cls.
      */
-    public Class getStreamClass() {
+    public synchronized Class getStreamClass() {
+        if (cls == null && clsName != null) {
+            cls = loadClass(clsName);
+            clsName = null;
+        }
         return cls;
     }
 
@@ -27,7 +57,21 @@ public class FeridianStreamExtension extends FeridianPacketExtension {
     /**
      * @return Returns the unmarshaller.
      */
-    public Class getUnmarshallerClass() {
+    public synchronized Class getUnmarshallerClass() {
+        if (unmarshaller == null && unmarshallerName != null) {
+            unmarshaller = loadClass(unmarshallerName);
+            unmarshallerName = null;
+        }
         return unmarshaller;
     }
+
+    private Class loadClass(String name) {
+        try {
+            return ClassUtil.loadClass(name);
+        } catch (ClassNotFoundException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unable to load class " + name + " for stream extension " + namespace, ex);
+            return null;
+        }
+    }
 }
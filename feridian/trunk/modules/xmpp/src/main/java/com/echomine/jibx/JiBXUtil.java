@@ -2,16 +2,20 @@ package com.echomine.jibx;
 
 import java.io.Reader;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jibx.runtime.BindingDirectory;
 import org.jibx.runtime.IBindingFactory;
 import org.jibx.runtime.IMarshaller;
+import org.jibx.runtime.IXMLReader;
 import org.jibx.runtime.JiBXException;
 import org.jibx.runtime.impl.MarshallingContext;
 import org.jibx.runtime.impl.UnmarshallingContext;
 
+import com.echomine.xmpp.XMPPConstants;
 import com.echomine.xmpp.packet.IQPacket;
 
 /**
@@ -21,10 +25,11 @@ public class JiBXUtil {
     private static Log log = LogFactory.getLog(JiBXUtil.class);
     private static IMarshaller iqPacketMapper;
     private static IBindingFactory iqfactory;
+    private static final ConcurrentHashMap<Class, IBindingFactory> factories = new ConcurrentHashMap<Class, IBindingFactory>();
 
     static {
         try {
-            iqfactory = BindingDirectory.getFactory(IQPacket.class);
+            iqfactory = getFactory(IQPacket.class);
             if (iqfactory == null && log.isWarnEnabled()) {
                 log.warn("No IQPacket Factory found (check to make sure binding file exists).  IQ packet marshalling is disabled.");
             } else {
@@ -44,6 +49,25 @@ public class JiBXUtil {
         }
     }
 
+    /**
+     * Retrieves the binding factory for the class. Looking up a factory in the
+     * binding directory uses reflection, thus factories are cached per class
+     * after the first lookup.
+     * 
+     * @param cls the bound class
+     * @return the binding factory, or null if none is found
+     * @throws JiBXException if the binding information cannot be accessed
+     */
+    public static final IBindingFactory getFactory(Class cls) throws JiBXException {
+        IBindingFactory factory = factories.get(cls);
+        if (factory == null) {
+            factory = BindingDirectory.getFactory(cls);
+            if (factory != null)
+                factories.put(cls, factory);
+        }
+        return factory;
+    }
+
     /**
      * unmarshalls a document. This is a convenience method to unmarshall a
      * document from beginning to end without utilizing a previous context.
@@ -56,7 +80,7 @@ public class JiBXUtil {
     public static final Object unmarshallObject(Reader rdr, Class cls) throws JiBXException {
         if (rdr == null)
             throw new IllegalArgumentException("Reader cannot be null");
-        IBindingFactory factory = BindingDirectory.getFactory(cls);
+        IBindingFactory factory = getFactory(cls);
         if (factory == null)
             return null;
         UnmarshallingContext fctx = (UnmarshallingContext) factory.createUnmarshallingContext();
@@ -76,11 +100,12 @@ public class JiBXUtil {
     public static final Object unmarshallObject(UnmarshallingContext parentCtx, Class cls) throws JiBXException {
         if (parentCtx == null || cls == null)
             throw new IllegalArgumentException("Context or class reference cannot be null");
-        IBindingFactory factory = BindingDirectory.getFactory(cls);
+        IBindingFactory factory = getFactory(cls);
         if (factory == null)
             return null;
         UnmarshallingContext fctx = (UnmarshallingContext) factory.createUnmarshallingContext();
         fctx.setFromContext(parentCtx);
+        fctx.setUserContext(parentCtx.getUserContext());
         return fctx.unmarshalElement();
     }
 
@@ -98,7 +123,7 @@ public class JiBXUtil {
     public static final void marshallObject(MarshallingContext parentCtx, Object obj) throws JiBXException {
         if (parentCtx == null || obj == null)
             throw new IllegalArgumentException("Context or object to marshall cannot be null");
-        IBindingFactory factory = BindingDirectory.getFactory(obj.getClass());
+        IBindingFactory factory = getFactory(obj.getClass());
         if (factory == null)
             return;
         MarshallingContext fctx = (MarshallingContext) factory.createMarshallingContext();
@@ -120,7 +145,7 @@ public class JiBXUtil {
     public static final void marshallObject(XMPPStreamWriter writer, Object obj) throws JiBXException {
         if (writer == null || obj == null)
             throw new IllegalArgumentException("Writer or object to marshall cannot be null");
-        IBindingFactory factory = BindingDirectory.getFactory(obj.getClass());
+        IBindingFactory factory = getFactory(obj.getClass());
         if (factory == null)
             return;
         MarshallingContext fctx = (MarshallingContext) factory.createMarshallingContext();
@@ -146,7 +171,7 @@ public class JiBXUtil {
     public static final void marshallObject(Writer writer, Object obj) throws JiBXException {
         if (writer == null || obj == null)
             throw new IllegalArgumentException("Writer or object to marshall cannot be null");
-        IBindingFactory factory = BindingDirectory.getFactory(obj.getClass());
+        IBindingFactory factory = getFactory(obj.getClass());
         if (factory == null)
             return;
         MarshallingContext fctx = (MarshallingContext) factory.createMarshallingContext();
@@ -177,4 +202,142 @@ public class JiBXUtil {
             writer.setStreamCloseable(true);
         }
     }
+
+    /**
+     * Reads the element the context is positioned at and writes its markup
+     * into the buffer. The markup is written back from the parse events, thus
+     * it is equivalent to, though not necessarily byte for byte identical with,
+     * the markup that was received (ie. quoting and entities may differ,
+     * comments are dropped). Namespace declarations are kept, and any prefix or
+     * default namespace that was declared by an ancestor outside the element is
+     * declared again, so the markup stands on its own when placed under the
+     * given default namespace. When the method returns, the context is
+     * positioned at the event following the end tag of the element.
+     * 
+     * @param ctx the context positioned at a start tag
+     * @param inheritedNs the default namespace the markup will be placed
+     *            under (ie. jabber:client)
+     * @param buf the buffer to write the markup to
+     * @throws JiBXException if the element cannot be read
+     */
+    public static final void captureElement(UnmarshallingContext ctx, String inheritedNs, StringBuffer buf) throws JiBXException {
+        if (ctx.currentEvent() != IXMLReader.START_TAG)
+            throw new JiBXException("Expecting a start tag to capture");
+        // prefix/uri pairs in scope of the markup written so far
+        ArrayList<String> scope = new ArrayList<String>();
+        scope.add("");
+        scope.add(inheritedNs);
+        scope.add("xml");
+        scope.add(XMPPConstants.NS_XML);
+        int[] marks = new int[8];
+        int depth = 0;
+        while (true) {
+            int event = ctx.currentEvent();
+            if (event == IXMLReader.START_TAG) {
+                if (depth == marks.length) {
+                    int[] temp = new int[depth * 2];
+                    System.arraycopy(marks, 0, temp, 0, depth);
+                    marks = temp;
+                }
+                marks[depth++] = scope.size();
+                String prefix = nonNull(ctx.getPrefix());
+                buf.append('<');
+                appendName(buf, prefix, ctx.getName());
+                for (int i = 0; i < ctx.getNamespaceCount(); i++)
+                    declare(scope, buf, nonNull(ctx.getNamespacePrefix(i)), ctx.getNamespaceUri(i));
+                if (!nonNull(ctx.getNamespace()).equals(lookup(scope, prefix)))
+                    declare(scope, buf, prefix, nonNull(ctx.getNamespace()));
+                int count = ctx.getAttributeCount();
+                for (int i = 0; i < count; i++) {
+                    String attrPrefix = nonNull(ctx.getAttributePrefix(i));
+                    if (attrPrefix.length() > 0 && !nonNull(ctx.getAttributeNamespace(i)).equals(lookup(scope, attrPrefix)))
+                        declare(scope, buf, attrPrefix, ctx.getAttributeNamespace(i));
+                }
+                for (int i = 0; i < count; i++) {
+                    buf.append(' ');
+                    appendName(buf, nonNull(ctx.getAttributePrefix(i)), ctx.getAttributeName(i));
+                    buf.append("=\"");
+                    escape(ctx.getAttributeValue(i), buf, true);
+                    buf.append('"');
+                }
+                buf.append('>');
+            } else if (event == IXMLReader.END_TAG) {
+                buf.append("</");
+                appendName(buf, nonNull(ctx.getPrefix()), ctx.getName());
+                buf.append('>');
+                int mark = marks[--depth];
+                while (scope.size() > mark)
+                    scope.remove(scope.size() - 1);
+                if (depth == 0) {
+                    ctx.next();
+                    return;
+                }
+            } else if (event == IXMLReader.TEXT) {
+                escape(ctx.getText(), buf, false);
+            } else if (event == IXMLReader.END_DOCUMENT) {
+                throw new JiBXException("Unexpected end of document while capturing element");
+            }
+            ctx.next();
+        }
+    }
+
+    private static String nonNull(String str) {
+        return str == null ? "" : str;
+    }
+
+    private static void appendName(StringBuffer buf, String prefix, String name) {
+        if (prefix.length() > 0)
+            buf.append(prefix).append(':');
+        buf.append(name);
+    }
+
+    /**
+     * @return the uri bound to the prefix in the scope, or null if unbound
+     */
+    private static String lookup(ArrayList<String> scope, String prefix) {
+        for (int i = scope.size() - 2; i >= 0; i -= 2) {
+            if (scope.get(i).equals(prefix))
+                return scope.get(i + 1);
+        }
+        return null;
+    }
+
+    /**
+     * Writes a namespace declaration and adds it to the scope
+     */
+    private static void declare(ArrayList<String> scope, StringBuffer buf, String prefix, String uri) {
+        scope.add(prefix);
+        scope.add(uri);
+        appendNamespace(buf, prefix, uri);
+    }
+
+    private static void appendNamespace(StringBuffer buf, String prefix, String uri) {
+        buf.append(" xmlns");
+        if (prefix != null && prefix.length() > 0)
+            buf.append(':').append(prefix);
+        buf.append("=\"");
+        escape(uri, buf, true);
+        buf.append('"');
+    }
+
+    /**
+     * Escapes the characters that are special in XML text or attribute values
+     */
+    private static void escape(String text, StringBuffer buf, boolean attribute) {
+        if (text == null)
+            return;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&')
+                buf.append("&amp;");
+            else if (c == '<')
+                buf.append("&lt;");
+            else if (c == '>')
+                buf.append("&gt;");
+            else if (c == '"' && attribute)
+                buf.append("&quot;");
+            else
+                buf.append(c);
+        }
+    }
 }
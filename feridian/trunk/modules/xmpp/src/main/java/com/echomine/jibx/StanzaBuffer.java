@@ -0,0 +1,98 @@
+package com.echomine.jibx;
+
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A growable byte buffer holding a rendered stanza. Buffers are taken from a
+ * pool shared by all threads with acquire() and must be given back with
+ * release() once their content is written out, thus rendering a stanza does
+ * not allocate a new buffer each time. Buffers that grew large are not kept
+ * in the pool.
+ */
+public class StanzaBuffer extends OutputStream {
+    private static final int INITIAL_SIZE = 512;
+    private static final int MAX_POOLED_SIZE = 16384;
+    private static final int MAX_POOLED = 64;
+    private static final ConcurrentLinkedQueue<StanzaBuffer> pool = new ConcurrentLinkedQueue<StanzaBuffer>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private byte[] data = new byte[INITIAL_SIZE];
+    private int size;
+
+    private StanzaBuffer() {
+    }
+
+    /**
+     * Takes an empty buffer from the pool, or creates one if the pool is
+     * empty.
+     *
+     * @return an empty buffer
+     */
+    public static StanzaBuffer acquire() {
+        StanzaBuffer buf = pool.poll();
+        if (buf == null)
+            return new StanzaBuffer();
+        pooled.decrementAndGet();
+        return buf;
+    }
+
+    /**
+     * Gives the buffer back to the pool. The buffer must not be used
+     * afterwards.
+     */
+    public void release() {
+        size = 0;
+        if (data.length > MAX_POOLED_SIZE)
+            return;
+        if (pooled.incrementAndGet() > MAX_POOLED) {
+            pooled.decrementAndGet();
+            return;
+        }
+        pool.offer(this);
+    }
+
+    /**
+     * @return the array holding the content, which is valid up to size()
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the number of bytes written to the buffer
+     */
+    public int size() {
+        return size;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.OutputStream#write(int)
+     */
+    public void write(int b) {
+        ensureCapacity(1);
+        data[size++] = (byte) b;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, data, size, len);
+        size += len;
+    }
+
+    private void ensureCapacity(int len) {
+        if (size + len > data.length) {
+            byte[] newData = new byte[Math.max(size + len, data.length * 2)];
+            System.arraycopy(data, 0, newData, 0, size);
+            data = newData;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.echomine.jibx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.jibx.runtime.JiBXException;
+
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.packet.IQPacket;
+
+/**
+ * Renders stanzas into UTF-8 bytes that can be copied into a connection's
+ * writer later on. Each thread renders with a writer of its own that is put
+ * into the same state as a connection's writer (ie. inside the stream element,
+ * with the stanza namespace as the default namespace), thus the bytes are the
+ * same as the connection's writer would have written for the stanza and
+ * stanzas can be rendered by many threads at the same time.
+ */
+public class StanzaRenderer {
+    private static final ThreadLocal<StanzaRenderer> renderers = new ThreadLocal<StanzaRenderer>();
+
+    private final String stanzaNs;
+    private final XMPPStreamWriter writer;
+    private final Sink sink;
+
+    private StanzaRenderer(String stanzaNs) throws IOException {
+        this.stanzaNs = stanzaNs;
+        sink = new Sink();
+        writer = new XMPPStreamWriter();
+        writer.setLogOutgoing(false);
+        writer.setOutput(sink);
+        // the stream header goes nowhere
+        writer.startHandshakeStream(stanzaNs, "localhost", null);
+    }
+
+    /**
+     * Renders the packet into a pooled buffer, which the caller must release
+     * once it is written out.
+     *
+     * @param packet the packet to render
+     * @param stanzaNs the stanza namespace of the stream the packet is
+     *            written to (ie. jabber:client)
+     * @return the buffer holding the rendered packet
+     * @throws JiBXException if the packet cannot be marshalled
+     */
+    public static StanzaBuffer render(IStanzaPacket packet, String stanzaNs) throws JiBXException {
+        StanzaRenderer renderer = renderers.get();
+        try {
+            if (renderer == null || !renderer.stanzaNs.equals(stanzaNs)) {
+                renderer = new StanzaRenderer(stanzaNs);
+                renderers.set(renderer);
+            }
+        } catch (IOException ex) {
+            throw new JiBXException("Unable to create renderer", ex);
+        }
+        return renderer.renderPacket(packet);
+    }
+
+    private StanzaBuffer renderPacket(IStanzaPacket packet) throws JiBXException {
+        StanzaBuffer buf = StanzaBuffer.acquire();
+        sink.target = buf;
+        boolean rendered = false;
+        try {
+            if (packet instanceof IQPacket)
+                JiBXUtil.marshallIQPacket(writer, (IQPacket) packet);
+            else
+                JiBXUtil.marshallObject(writer, packet);
+            writer.flush();
+            rendered = true;
+            return buf;
+        } catch (IOException ex) {
+            throw new JiBXException("Unable to render packet", ex);
+        } finally {
+            sink.target = null;
+            if (!rendered) {
+                // the writer may be left inside the failed stanza
+                buf.release();
+                renderers.remove();
+            }
+        }
+    }
+
+    /**
+     * Passes the data written to the buffer currently rendered into, or
+     * discards it when there is none.
+     */
+    private static class Sink extends OutputStream {
+        StanzaBuffer target;
+
+        public void write(int b) {
+            if (target != null)
+                target.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) {
+            if (target != null)
+                target.write(b, off, len);
+        }
+    }
+}
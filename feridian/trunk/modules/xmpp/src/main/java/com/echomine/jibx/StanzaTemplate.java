@@ -0,0 +1,165 @@
+package com.echomine.jibx;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jibx.runtime.JiBXException;
+
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.packet.StanzaPacketBase;
+import com.echomine.xmpp.packet.XMLTextPacket;
+
+/**
+ * A stanza that is marshalled once and can then be written any number of times
+ * with a different recipient (and id) for each copy. The stanza is rendered
+ * into UTF-8 bytes with placeholders in the <code>to</code> and
+ * <code>id</code> attributes. Writing a copy only copies the bytes between the
+ * placeholders straight into the writer's buffer and escapes the per-copy
+ * attribute values, thus the body and extensions are escaped and encoded only
+ * once no matter how many recipients there are. This is meant for sending the
+ * same message (ie. a headline) to a large number of recipients.
+ * <p>
+ * The template is immutable after it is compiled and can be written by
+ * multiple connections at the same time.
+ * </p>
+ */
+public class StanzaTemplate {
+    private static final Random random = new Random();
+    private static final int SLOT_TO = 0;
+    private static final int SLOT_ID = 1;
+
+    private final byte[] data;
+    private final int[] slotOffsets;
+    private final int[] slotTypes;
+    private final int placeholderLength;
+    private final String idPrefix;
+    private final AtomicLong idCounter = new AtomicLong();
+
+    private StanzaTemplate(byte[] data, int[] slotOffsets, int[] slotTypes, int placeholderLength, String idPrefix) {
+        this.data = data;
+        this.slotOffsets = slotOffsets;
+        this.slotTypes = slotTypes;
+        this.placeholderLength = placeholderLength;
+        this.idPrefix = idPrefix;
+    }
+
+    /**
+     * Compiles the packet into a template for the jabber:client stream
+     * namespace.
+     *
+     * @see #compile(StanzaPacketBase, String, String)
+     */
+    public static StanzaTemplate compile(StanzaPacketBase packet, String idPrefix) throws JiBXException {
+        return compile(packet, "jabber:client", idPrefix);
+    }
+
+    /**
+     * Compiles the packet into a template. The packet's recipient is ignored
+     * and is replaced for each copy. If the packet has an id, every copy will
+     * carry that same id. Otherwise, if an id prefix is given, each copy is
+     * given a unique id made of the prefix and a sequence number. The packet's
+     * to and id are changed during compilation and restored afterwards, thus
+     * the packet must not be sent at the same time.
+     *
+     * @param packet the packet to compile
+     * @param stanzaNs the stanza namespace of the stream the template is
+     *            written to (ie. jabber:client)
+     * @param idPrefix the prefix for generated ids, or null to send copies
+     *            without an id when the packet has none
+     * @return the compiled template
+     * @throws JiBXException if the packet cannot be marshalled
+     */
+    public static StanzaTemplate compile(StanzaPacketBase packet, String stanzaNs, String idPrefix) throws JiBXException {
+        if (packet == null)
+            throw new IllegalArgumentException("Packet to compile cannot be null");
+        if (packet instanceof XMLTextPacket)
+            throw new IllegalArgumentException("XML text packets cannot be compiled into templates");
+        String placeholder;
+        synchronized (random) {
+            placeholder = Long.toHexString(random.nextLong() | Long.MIN_VALUE);
+        }
+        String toPlaceholder = "t" + placeholder;
+        String idPlaceholder = "i" + placeholder;
+        boolean hasIdSlot = packet.getId() == null && idPrefix != null;
+        JID oldTo = packet.getTo();
+        String oldId = packet.getId();
+        byte[] data;
+        try {
+            packet.setTo(new JID(null, toPlaceholder, null));
+            if (hasIdSlot)
+                packet.setId(idPlaceholder);
+            StanzaBuffer buf = StanzaRenderer.render(packet, stanzaNs);
+            data = new byte[buf.size()];
+            System.arraycopy(buf.getData(), 0, data, 0, data.length);
+            buf.release();
+        } finally {
+            packet.setTo(oldTo);
+            packet.setId(oldId);
+        }
+        int toOffset = findPlaceholder(data, toPlaceholder);
+        if (!hasIdSlot)
+            return new StanzaTemplate(data, new int[] { toOffset }, new int[] { SLOT_TO }, toPlaceholder.length(), idPrefix);
+        int idOffset = findPlaceholder(data, idPlaceholder);
+        if (toOffset < idOffset)
+            return new StanzaTemplate(data, new int[] { toOffset, idOffset }, new int[] { SLOT_TO, SLOT_ID }, toPlaceholder.length(), idPrefix);
+        return new StanzaTemplate(data, new int[] { idOffset, toOffset }, new int[] { SLOT_ID, SLOT_TO }, toPlaceholder.length(), idPrefix);
+    }
+
+    /**
+     * Locates the placeholder as a quoted attribute value. The placeholder must
+     * appear exactly once.
+     */
+    private static int findPlaceholder(byte[] data, String placeholder) throws JiBXException {
+        byte[] pattern;
+        try {
+            pattern = ("\"" + placeholder + "\"").getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new JiBXException("UTF-8 encoding is not supported", ex);
+        }
+        int found = -1;
+        for (int i = 0; i <= data.length - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j])
+                j++;
+            if (j == pattern.length) {
+                if (found != -1)
+                    throw new JiBXException("Template placeholder appears more than once");
+                found = i + 1;
+            }
+        }
+        if (found == -1)
+            throw new JiBXException("Packet did not render a to or id attribute");
+        return found;
+    }
+
+    /**
+     * Writes a copy of the stanza to the writer. A new id is generated for the
+     * copy if the template has an id slot.
+     *
+     * @param writer the writer positioned between stanzas
+     * @param to the recipient of the copy
+     * @throws IOException
+     */
+    public void write(XMPPStreamWriter writer, JID to) throws IOException {
+        int pos = 0;
+        for (int i = 0; i < slotOffsets.length; i++) {
+            writer.writeBytes(data, pos, slotOffsets[i] - pos);
+            if (slotTypes[i] == SLOT_TO)
+                writer.writeAttributeValue(to.toString());
+            else
+                writer.writeAttributeValue(idPrefix + "-" + idCounter.incrementAndGet());
+            pos = slotOffsets[i] + placeholderLength;
+        }
+        writer.writeBytes(data, pos, data.length - pos);
+    }
+
+    /**
+     * @return the size of the rendered stanza in bytes, excluding the
+     *         per-copy attribute values
+     */
+    public int getSize() {
+        return data.length - slotOffsets.length * placeholderLength;
+    }
+}
@@ -0,0 +1,206 @@
+package com.echomine.jibx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps characters read by the parser to canonical strings, so that the same
+ * element names, namespaces and common values are not created again for every
+ * stanza. It has three parts:
+ * <ul>
+ * <li>A table of symbols shared by all parsers, holding the names, namespaces
+ * and values defined by XMPP plus the namespaces of registered extensions.
+ * Symbols are interned strings, thus they are the same instances as the
+ * string constants used by the mappers and can be compared by reference.</li>
+ * <li>A bounded cache of other names and namespaces. Names are always
+ * interned, as the parser compares them by reference.</li>
+ * <li>A bounded cache of other short values seen recently (ie. the xml:lang
+ * or the thread of a conversation).</li>
+ * </ul>
+ * In both caches, each string maps to a single slot and replaces whatever was
+ * there before, thus the caches never grow and a string read over and over
+ * stays in them. The shared table is safe to use from any thread. The caches
+ * are not synchronized, thus each parser has a symbol table instance of its
+ * own.
+ */
+public class SymbolTable {
+    /** names longer than this are never cached */
+    public static final int MAX_LENGTH = 48;
+    /**
+     * values longer than this are never cached, as long values (ie. ids and
+     * message bodies) rarely repeat
+     */
+    public static final int MAX_VALUE_LENGTH = 16;
+    private static final int NAME_CACHE_SIZE = 256;
+    private static final int VALUE_CACHE_SIZE = 512;
+    private static final String[] PREDEFINED = {
+            // namespaces
+            "http://www.w3.org/XML/1998/namespace", "http://etherx.jabber.org/streams", "jabber:client", "jabber:server",
+            "urn:ietf:params:xml:ns:xmpp-streams", "urn:ietf:params:xml:ns:xmpp-stanzas", "urn:ietf:params:xml:ns:xmpp-tls",
+            "urn:ietf:params:xml:ns:xmpp-bind", "urn:ietf:params:xml:ns:xmpp-session", "urn:ietf:params:xml:ns:xmpp-sasl",
+            "urn:xmpp:ping", "jabber:iq:roster", "jabber:iq:privacy", "jabber:x:delay", "urn:xmpp:delay",
+            "http://jabber.org/protocol/chatstates", "http://jabber.org/protocol/caps", "urn:xmpp:receipts",
+            // prefixes, element and attribute names
+            "stream", "xml", "xmlns", "features", "error", "text", "presence", "message", "iq", "show", "status",
+            "priority", "body", "subject", "thread", "query", "item", "x", "c", "delay", "ping", "r", "a", "to",
+            "from", "id", "type", "lang", "code", "jid", "name", "subscription", "ask", "group", "node", "ver",
+            "hash", "stamp", "version", "active", "composing", "paused", "inactive", "gone", "request",
+            "received",
+            // attribute and text values
+            "chat", "normal", "groupchat", "headline", "available", "unavailable", "subscribe", "subscribed",
+            "unsubscribe", "unsubscribed", "probe", "get", "set", "result", "away", "dnd", "xa", "none", "both",
+            "remove", "cancel", "continue", "modify", "auth", "wait", "en", "1.0", "0", "1", "5", "sha-1" };
+    private static volatile String[] symbols = createTable(Arrays.asList(PREDEFINED));
+
+    private final String[] names = new String[NAME_CACHE_SIZE];
+    private final String[] values = new String[VALUE_CACHE_SIZE];
+
+    /**
+     * Adds a symbol shared by all parsers. This is meant for the names and
+     * namespaces of extensions and is done when extensions are loaded, as the
+     * shared table is copied each time.
+     *
+     * @param symbol the symbol to add
+     * @return the interned symbol
+     */
+    public static synchronized String addSymbol(String symbol) {
+        symbol = symbol.intern();
+        String[] table = symbols;
+        if (symbol.length() > MAX_LENGTH || find(table, symbol.toCharArray(), 0, symbol.length(), symbol.hashCode()) != null)
+            return symbol;
+        List<String> list = new ArrayList<String>(table.length);
+        for (int i = 0; i < table.length; i++)
+            if (table[i] != null)
+                list.add(table[i]);
+        list.add(symbol);
+        symbols = createTable(list);
+        return symbol;
+    }
+
+    /**
+     * Retrieves the interned string for the characters of a name, prefix or
+     * namespace. Symbols are returned as they are. Other names are taken from
+     * the name cache if they are in it, or else created, interned and put in
+     * the cache.
+     *
+     * @param buf the character buffer
+     * @param off the offset of the first character
+     * @param len the number of characters
+     * @return the interned string holding the characters
+     */
+    public String lookupName(char[] buf, int off, int len) {
+        if (len > MAX_LENGTH)
+            return new String(buf, off, len).intern();
+        int hash = hash(buf, off, len);
+        String str = find(symbols, buf, off, len, hash);
+        if (str != null)
+            return str;
+        int slot = spread(hash) & (NAME_CACHE_SIZE - 1);
+        str = names[slot];
+        if (str == null || !equals(str, buf, off, len)) {
+            str = new String(buf, off, len).intern();
+            names[slot] = str;
+        }
+        return str;
+    }
+
+    /**
+     * Retrieves the canonical string for the characters of a value. Symbols
+     * are returned as they are. Other values are taken from the value cache if
+     * they are in it, or else created and put in the cache.
+     *
+     * @param buf the character buffer
+     * @param off the offset of the first character
+     * @param len the number of characters
+     * @return the string holding the characters
+     */
+    public String lookupValue(char[] buf, int off, int len) {
+        if (len > MAX_VALUE_LENGTH)
+            return new String(buf, off, len);
+        int hash = hash(buf, off, len);
+        String str = find(symbols, buf, off, len, hash);
+        if (str != null)
+            return str;
+        int slot = spread(hash) & (VALUE_CACHE_SIZE - 1);
+        str = values[slot];
+        if (str == null || !equals(str, buf, off, len)) {
+            str = new String(buf, off, len);
+            values[slot] = str;
+        }
+        return str;
+    }
+
+    /**
+     * Retrieves the canonical string equal to a value the parser has already
+     * created, so that the copy that is kept is shared.
+     *
+     * @param str the value
+     * @return the canonical string, or the value itself if it is not a symbol
+     *         and was not cached yet
+     */
+    public String lookupValue(String str) {
+        if (str.length() > MAX_VALUE_LENGTH)
+            return str;
+        int hash = str.hashCode();
+        String[] table = symbols;
+        int mask = table.length - 1;
+        String symbol;
+        for (int idx = spread(hash) & mask; (symbol = table[idx]) != null; idx = (idx + 1) & mask) {
+            if (symbol.hashCode() == hash && symbol.equals(str))
+                return symbol;
+        }
+        int slot = spread(hash) & (VALUE_CACHE_SIZE - 1);
+        String cached = values[slot];
+        if (cached != null && cached.equals(str))
+            return cached;
+        values[slot] = str;
+        return str;
+    }
+
+    private static String[] createTable(List<String> list) {
+        int size = 1;
+        while (size < list.size() * 2)
+            size <<= 1;
+        String[] table = new String[size];
+        for (String symbol : list) {
+            int idx = spread(symbol.hashCode()) & (size - 1);
+            while (table[idx] != null)
+                idx = (idx + 1) & (size - 1);
+            table[idx] = symbol.intern();
+        }
+        return table;
+    }
+
+    private static String find(String[] table, char[] buf, int off, int len, int hash) {
+        int mask = table.length - 1;
+        int idx = spread(hash) & mask;
+        String str;
+        while ((str = table[idx]) != null) {
+            if (str.hashCode() == hash && equals(str, buf, off, len))
+                return str;
+            idx = (idx + 1) & mask;
+        }
+        return null;
+    }
+
+    private static int hash(char[] buf, int off, int len) {
+        int hash = 0;
+        for (int i = off, end = off + len; i < end; i++)
+            hash = 31 * hash + buf[i];
+        return hash;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(String str, char[] buf, int off, int len) {
+        if (str.length() != len)
+            return false;
+        for (int i = 0; i < len; i++)
+            if (str.charAt(i) != buf[off + i])
+                return false;
+        return true;
+    }
+}
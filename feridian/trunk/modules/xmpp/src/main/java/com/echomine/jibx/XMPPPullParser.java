@@ -0,0 +1,93 @@
+package com.echomine.jibx;
+
+import java.io.IOException;
+
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * The pull parser used to read XMPP streams. It takes the names, namespaces,
+ * attribute values and short text it reads from a symbol table, thus most of
+ * the strings of a stanza are shared with the stanzas before it and the values
+ * XMPP defines are the same instances as the constants of the packets. Long
+ * values and text (ie. ids and message bodies) are created as usual.
+ * <p>
+ * Like the caching parser xpp3 creates by default, all names are interned so
+ * the parser can compare them by reference, but the names it keeps are
+ * bounded by the symbol table. Attribute values are created by MXParser
+ * without going through newString(), thus they are replaced with their
+ * canonical string once the start tag is parsed.
+ * </p>
+ */
+public class XMPPPullParser extends MXParser {
+    private final SymbolTable symbolTable;
+
+    public XMPPPullParser() {
+        this(new SymbolTable());
+    }
+
+    /**
+     * @param symbolTable the symbol table used by this parser only
+     */
+    public XMPPPullParser(SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
+        processNamespaces = true;
+        allStringsInterned = true;
+    }
+
+    /**
+     * @return the symbol table of the parser
+     */
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    /*
+     * MXParser only creates names with this method, which are interned as
+     * allStringsInterned is set.
+     *
+     * @see org.xmlpull.mxp1.MXParser#newString(char[], int, int)
+     */
+    protected String newString(char[] cbuf, int off, int len) {
+        return symbolTable.lookupName(cbuf, off, len);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.xmlpull.mxp1.MXParser#newStringIntern(char[], int, int)
+     */
+    protected String newStringIntern(char[] cbuf, int off, int len) {
+        return symbolTable.lookupName(cbuf, off, len);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.xmlpull.mxp1.MXParser#parseStartTag()
+     */
+    public int parseStartTag() throws XmlPullParserException, IOException {
+        int event = super.parseStartTag();
+        for (int i = 0; i < attributeCount; i++)
+            attributeValue[i] = symbolTable.lookupValue(attributeValue[i]);
+        return event;
+    }
+
+    /*
+     * Short text (ie. show values, or the whitespace between elements) is
+     * taken from the symbol table as well.
+     *
+     * @see org.xmlpull.mxp1.MXParser#getText()
+     */
+    public String getText() {
+        if (eventType == TEXT && text == null) {
+            if (usePC) {
+                if (pcEnd - pcStart <= SymbolTable.MAX_VALUE_LENGTH)
+                    text = symbolTable.lookupValue(pc, pcStart, pcEnd - pcStart);
+            } else if (posEnd - posStart <= SymbolTable.MAX_VALUE_LENGTH) {
+                text = symbolTable.lookupValue(buf, posStart, posEnd - posStart);
+            }
+        }
+        return super.getText();
+    }
+}
@@ -0,0 +1,344 @@
+package com.echomine.jibx;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.jibx.runtime.IXMLReader;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Adapts the XMPP pull parser to the reader interface used by the jibx
+ * unmarshalling context. It behaves the same as the reader jibx creates for
+ * xpp3, except that strings are taken from the symbol table of the parser.
+ * Use setDocument() to read a stream with it.
+ */
+public class XMPPPullReader implements IXMLReader {
+    private final XmlPullParser parser;
+
+    public XMPPPullReader() {
+        this(new XMPPPullParser());
+    }
+
+    /**
+     * @param parser the namespace aware parser to read with
+     */
+    public XMPPPullReader(XmlPullParser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * Sets the document of the unmarshalling context to the reader, parsed
+     * with a new XMPP pull parser. This replaces UnmarshallingContext's own
+     * setDocument() for stream data. The user context of the unmarshalling
+     * context is kept, since the stream is restarted with a new document
+     * during login.
+     *
+     * @param uctx the unmarshalling context
+     * @param rdr the reader to parse
+     * @throws JiBXException if the parser cannot be initialized
+     */
+    public static void setDocument(UnmarshallingContext uctx, Reader rdr) throws JiBXException {
+        XMPPPullReader reader = new XMPPPullReader();
+        reader.setInput(rdr);
+        Object userCtx = uctx.getUserContext();
+        uctx.setDocument(reader);
+        uctx.reset();
+        // reset() clears the user context
+        uctx.setUserContext(userCtx);
+    }
+
+    /**
+     * Sets the input of the parser.
+     *
+     * @param rdr the reader to parse
+     * @throws JiBXException if the parser cannot be initialized
+     */
+    public void setInput(Reader rdr) throws JiBXException {
+        try {
+            parser.setInput(rdr);
+        } catch (XmlPullParserException ex) {
+            throw new JiBXException("Error initializing parser", ex);
+        }
+    }
+
+    private String describeException(Exception ex) {
+        return "Error parsing document " + buildPositionString() + ": " + ex.getMessage();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#buildPositionString()
+     */
+    public String buildPositionString() {
+        return "(line " + parser.getLineNumber() + ", col " + parser.getColumnNumber() + ')';
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#nextToken()
+     */
+    public int nextToken() throws JiBXException {
+        try {
+            return parser.nextToken();
+        } catch (IOException ex) {
+            throw new JiBXException("Error accessing document", ex);
+        } catch (XmlPullParserException ex) {
+            throw new JiBXException("Error parsing document " + buildPositionString(), ex);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#next()
+     */
+    public int next() throws JiBXException {
+        try {
+            return parser.next();
+        } catch (IOException ex) {
+            throw new JiBXException("Error accessing document", ex);
+        } catch (XmlPullParserException ex) {
+            throw new JiBXException("Error parsing document " + buildPositionString(), ex);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getEventType()
+     */
+    public int getEventType() throws JiBXException {
+        try {
+            return parser.getEventType();
+        } catch (XmlPullParserException ex) {
+            throw new JiBXException("Error parsing document " + buildPositionString(), ex);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getName()
+     */
+    public String getName() {
+        String name = parser.getName();
+        if (name == null)
+            throw new IllegalStateException("Internal state error: not at start or end tag");
+        return name;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getNamespace()
+     */
+    public String getNamespace() {
+        String ns = parser.getNamespace();
+        if (ns == null)
+            throw new IllegalStateException("Internal state error: not at start or end tag");
+        return ns;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getPrefix()
+     */
+    public String getPrefix() {
+        return parser.getPrefix();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getAttributeCount()
+     */
+    public int getAttributeCount() {
+        int count = parser.getAttributeCount();
+        if (count < 0)
+            throw new IllegalStateException("Internal state error: not at start tag");
+        return count;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getAttributeName(int)
+     */
+    public String getAttributeName(int index) {
+        try {
+            return parser.getAttributeName(index);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalStateException(describeException(ex));
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getAttributeNamespace(int)
+     */
+    public String getAttributeNamespace(int index) {
+        try {
+            return parser.getAttributeNamespace(index);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalStateException(describeException(ex));
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getAttributePrefix(int)
+     */
+    public String getAttributePrefix(int index) {
+        try {
+            return parser.getAttributePrefix(index);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalStateException(describeException(ex));
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getAttributeValue(int)
+     */
+    public String getAttributeValue(int index) {
+        try {
+            return parser.getAttributeValue(index);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalStateException(describeException(ex));
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getAttributeValue(java.lang.String,
+     *      java.lang.String)
+     */
+    public String getAttributeValue(String ns, String name) {
+        try {
+            return parser.getAttributeValue(ns, name);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalStateException(describeException(ex));
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getText()
+     */
+    public String getText() {
+        return parser.getText();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getNestingDepth()
+     */
+    public int getNestingDepth() {
+        return parser.getDepth();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getNamespaceCount(int)
+     */
+    public int getNamespaceCount(int depth) {
+        try {
+            return parser.getNamespaceCount(depth);
+        } catch (XmlPullParserException ex) {
+            throw new IllegalArgumentException(describeException(ex));
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getNamespaceUri(int)
+     */
+    public String getNamespaceUri(int index) {
+        try {
+            return parser.getNamespaceUri(index);
+        } catch (XmlPullParserException ex) {
+            throw new IllegalArgumentException(describeException(ex));
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getNamespacePrefix(int)
+     */
+    public String getNamespacePrefix(int index) {
+        try {
+            return parser.getNamespacePrefix(index);
+        } catch (XmlPullParserException ex) {
+            throw new IllegalArgumentException(describeException(ex));
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getDocumentName()
+     */
+    public String getDocumentName() {
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getLineNumber()
+     */
+    public int getLineNumber() {
+        return parser.getLineNumber();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getColumnNumber()
+     */
+    public int getColumnNumber() {
+        return parser.getColumnNumber();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getNamespace(java.lang.String)
+     */
+    public String getNamespace(String prefix) {
+        return parser.getNamespace(prefix);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#getInputEncoding()
+     */
+    public String getInputEncoding() {
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.jibx.runtime.IXMLReader#isNamespaceAware()
+     */
+    public boolean isNamespaceAware() {
+        return parser.getFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES);
+    }
+}
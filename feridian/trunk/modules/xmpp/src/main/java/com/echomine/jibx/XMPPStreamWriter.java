@@ -1,6 +1,7 @@
 package com.echomine.jibx;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Locale;
 
 import org.jibx.runtime.impl.UTF8StreamWriter;
@@ -30,6 +31,10 @@ public class XMPPStreamWriter extends UTF8StreamWriter {
 
     private boolean streamCloseable = true;
 
+    private boolean logOutgoing = true;
+
+    private OutputStream output;
+
     /**
      * This constructor will setup a default set of URIs specifically for XMPP
      */
@@ -61,6 +66,17 @@ public class XMPPStreamWriter extends UTF8StreamWriter {
         streamCloseable = true;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.jibx.runtime.impl.StreamWriterBase#setOutput(java.io.OutputStream)
+     */
+    @Override
+    public void setOutput(OutputStream os) {
+        super.setOutput(os);
+        output = os;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -68,7 +84,7 @@ public class XMPPStreamWriter extends UTF8StreamWriter {
      */
     @Override
     public void flush() throws IOException {
-        if (XMPPLogger.canLogOutgoing())
+        if (logOutgoing && XMPPLogger.canLogOutgoing())
             if (m_fillOffset != 0)
                 XMPPLogger.logOutgoing(new String(m_buffer, 0, m_fillOffset));
         super.flush();
@@ -92,6 +108,77 @@ public class XMPPStreamWriter extends UTF8StreamWriter {
         super.writeMarkup(text);
     }
 
+    /**
+     * Outputs raw markup as content of the current element. Unlike
+     * writeMarkup(), this first completes a start tag that is still pending,
+     * thus the markup ends up inside the element rather than inside its start
+     * tag.
+     * 
+     * @param text the markup to write
+     * @throws IOException
+     */
+    public void writeContentMarkup(String text) throws IOException {
+        flagContent();
+        super.writeMarkup(text);
+    }
+
+    /**
+     * Outputs bytes that are already encoded in UTF-8 as content of the current
+     * element. The bytes are copied straight into the output buffer without
+     * any escaping or character conversion, thus they must contain complete,
+     * well-formed markup (ie. a stanza previously rendered by a writer in the
+     * same stream state).
+     * 
+     * @param data the UTF-8 encoded markup
+     * @param offset the offset of the first byte to write
+     * @param length the number of bytes to write
+     * @throws IOException
+     */
+    public void writeBytes(byte[] data, int offset, int length) throws IOException {
+        flagContent();
+        makeSpace(length);
+        System.arraycopy(data, offset, m_buffer, m_fillOffset, length);
+        m_fillOffset += length;
+    }
+
+    /**
+     * Outputs a stanza rendered by another writer in the same stream state
+     * (ie. by StanzaRenderer). A stanza that fits into the buffer is copied
+     * into it, thus consecutive stanzas go out in a single write. A larger
+     * stanza is written straight to the output after the buffer is flushed,
+     * without being copied.
+     * 
+     * @param data the UTF-8 encoded stanza
+     * @param offset the offset of the first byte to write
+     * @param length the number of bytes to write
+     * @throws IOException
+     */
+    public void writeStanzaBytes(byte[] data, int offset, int length) throws IOException {
+        flagContent();
+        if (m_fillOffset + length <= m_buffer.length) {
+            System.arraycopy(data, offset, m_buffer, m_fillOffset, length);
+            m_fillOffset += length;
+            return;
+        }
+        flush();
+        if (logOutgoing && XMPPLogger.canLogOutgoing())
+            XMPPLogger.logOutgoing(new String(data, offset, length, "UTF-8"));
+        output.write(data, offset, length);
+    }
+
+    /**
+     * Outputs the text of an attribute value, escaping the characters that are
+     * special within a double quoted attribute. The quotes themselves are not
+     * written. This is used to fill in attribute values of markup written with
+     * writeBytes().
+     * 
+     * @param text the attribute value
+     * @throws IOException
+     */
+    public void writeAttributeValue(String text) throws IOException {
+        writeAttributeText(text);
+    }
+
     /**
      * This will write out the initial handshake stream start tag that begins
      * the document. This will set to the most current version of the stream.
@@ -184,6 +271,15 @@ public class XMPPStreamWriter extends UTF8StreamWriter {
         endTag(STANZA_IDX, name);
     }
 
+    /**
+     * Sets whether flushed data is passed to the outgoing XMPP log. Writers
+     * that render markup into memory rather than to the remote entity turn
+     * this off.
+     */
+    void setLogOutgoing(boolean logOutgoing) {
+        this.logOutgoing = logOutgoing;
+    }
+
     /**
      * sets the stream to be closeable.  If a stream is not closeable,
      * then this writer will ignore any close() events.  This is
@@ -0,0 +1,56 @@
+package com.echomine.util;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A buffered output stream whose flushes can be temporarily suppressed
+ * ("corked"). This allows several separately flushed writes to leave in as few
+ * network packets as possible, which matters when requests are pipelined and
+ * Nagle's algorithm would otherwise hold back everything after the first
+ * packet until it is acknowledged.
+ */
+public class CorkableOutputStream extends BufferedOutputStream {
+    private boolean corked;
+
+    /**
+     * @param out the underlying output stream
+     * @param size the buffer size
+     */
+    public CorkableOutputStream(OutputStream out, int size) {
+        super(out, size);
+    }
+
+    /**
+     * Suppresses or re-enables flushing. Uncorking flushes any data that
+     * accumulated while corked.
+     * 
+     * @param corked true to suppress flushes
+     * @throws IOException if the buffered data cannot be written out
+     */
+    public synchronized void setCorked(boolean corked) throws IOException {
+        this.corked = corked;
+        if (!corked)
+            flush();
+    }
+
+    /**
+     * @return true if flushes are currently suppressed
+     */
+    public synchronized boolean isCorked() {
+        return corked;
+    }
+
+    /*
+     * Flushes only when not corked. Data is still written through when the
+     * buffer fills up.
+     * 
+     * @see java.io.BufferedOutputStream#flush()
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (!corked)
+            super.flush();
+    }
+}
@@ -0,0 +1,218 @@
+package com.echomine.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent histogram of non-negative values (ie. latencies) with bounded
+ * relative error, in the style of an HDR histogram. Values below 64 are counted
+ * exactly; larger values fall into buckets that are 1/32 of a power of two
+ * wide, thus any reported value is within about 3% of the recorded one. The
+ * buckets are allocated a power of two at a time, the first time a value
+ * falls into it, thus an empty histogram is small and one holding values of a
+ * few orders of magnitude stays small. The size is bounded regardless of how
+ * many values are recorded, and recording is lock-free and allocates nothing
+ * once the range of the values is covered, so it is safe to use on hot paths.
+ * The unit of the values is up to the caller.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+    // values beyond 2^40 are counted in the last bucket
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    // buckets are allocated in chunks of SUB_BUCKETS
+    private static final int CHUNKS = BUCKET_COUNT / SUB_BUCKETS;
+
+    private final AtomicReferenceArray<AtomicLongArray> chunks = new AtomicReferenceArray<AtomicLongArray>(CHUNKS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     * 
+     * @param value the value to record
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        int index = bucketIndex(value);
+        chunk(index >>> SUB_BUCKET_BITS).incrementAndGet(index & (SUB_BUCKETS - 1));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+            current = max.get();
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently with the reset
+     * may or may not be kept.
+     */
+    public void reset() {
+        for (int c = 0; c < CHUNKS; c++) {
+            AtomicLongArray chunk = chunks.get(c);
+            if (chunk != null) {
+                for (int i = 0; i < SUB_BUCKETS; i++)
+                    chunk.set(i, 0);
+            }
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Moves the values recorded so far into a new histogram and clears this
+     * one, thus successive calls return the values of successive intervals.
+     * A value recorded concurrently ends up in exactly one of the intervals,
+     * though the count, mean and max of the returned histogram may briefly
+     * disagree with its buckets.
+     * 
+     * @return the values recorded since the previous call
+     */
+    public LatencyHistogram getAndReset() {
+        LatencyHistogram interval = new LatencyHistogram();
+        for (int c = 0; c < CHUNKS; c++) {
+            AtomicLongArray chunk = chunks.get(c);
+            if (chunk == null)
+                continue;
+            for (int i = 0; i < SUB_BUCKETS; i++) {
+                if (chunk.get(i) != 0)
+                    interval.chunk(c).set(i, chunk.getAndSet(i, 0));
+            }
+        }
+        interval.count.set(count.getAndSet(0));
+        interval.total.set(total.getAndSet(0));
+        interval.max.set(max.getAndSet(0));
+        return interval;
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the largest value recorded, exactly
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, 0 if none
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    /**
+     * Retrieves the value at or below which the given percentage of values
+     * fall.
+     * 
+     * @param percentile the percentile between 0 and 100
+     * @return the value at the percentile, 0 if nothing is recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            n += bucketCount(i);
+        if (n == 0)
+            return 0;
+        long target = (long) Math.ceil(n * Math.min(100, Math.max(0, percentile)) / 100.0);
+        if (target < 1)
+            target = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += bucketCount(i);
+            if (seen >= target)
+                return Math.min(highestValueInBucket(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Adds all values recorded in the other histogram to this one
+     * 
+     * @param other the histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int c = 0; c < CHUNKS; c++) {
+            AtomicLongArray chunk = other.chunks.get(c);
+            if (chunk == null)
+                continue;
+            for (int i = 0; i < SUB_BUCKETS; i++) {
+                long n = chunk.get(i);
+                if (n != 0)
+                    chunk(c).addAndGet(i, n);
+            }
+        }
+        count.addAndGet(other.count.get());
+        total.addAndGet(other.total.get());
+        long value = other.max.get();
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+            current = max.get();
+    }
+
+    /**
+     * Summarizes the histogram as count, mean, median, 90th, 99th percentile
+     * and max.
+     */
+    public String toString() {
+        StringBuffer buf = new StringBuffer(96);
+        buf.append("count=").append(getCount());
+        buf.append(" mean=").append(Math.round(getMean()));
+        buf.append(" p50=").append(getValueAtPercentile(50));
+        buf.append(" p90=").append(getValueAtPercentile(90));
+        buf.append(" p99=").append(getValueAtPercentile(99));
+        buf.append(" max=").append(getMax());
+        return buf.toString();
+    }
+
+    /**
+     * @return the chunk of buckets, allocated on first use
+     */
+    private AtomicLongArray chunk(int c) {
+        AtomicLongArray chunk = chunks.get(c);
+        if (chunk == null) {
+            chunk = new AtomicLongArray(SUB_BUCKETS);
+            if (!chunks.compareAndSet(c, null, chunk))
+                chunk = chunks.get(c);
+        }
+        return chunk;
+    }
+
+    private long bucketCount(int index) {
+        AtomicLongArray chunk = chunks.get(index >>> SUB_BUCKET_BITS);
+        return chunk == null ? 0 : chunk.get(index & (SUB_BUCKETS - 1));
+    }
+
+    static int bucketIndex(long value) {
+        if (value < LINEAR_LIMIT)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT)
+            return BUCKET_COUNT - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + sub;
+    }
+
+    static long highestValueInBucket(int index) {
+        if (index < LINEAR_LIMIT)
+            return index;
+        if (index == BUCKET_COUNT - 1)
+            return Long.MAX_VALUE;
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -1,6 +1,7 @@
 package com.echomine.util;
 
 import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -15,9 +16,16 @@ import java.util.regex.Pattern;
  * Language-Tag = Primary-subtag *( "-" Subtag ) <br/> Primary-subtag = 1*8ALPHA
  * <br/> Subtag = 1*8(ALPHA / DIGIT)
  * </p>
+ * <p>
+ * Parsed locales are cached by their string, as the same few xml:lang values
+ * are parsed for most stanzas. The cache stops growing once it holds
+ * MAX_CACHED_LOCALES locales.
+ * </p>
  */
 public class LocaleUtil {
+    private static final int MAX_CACHED_LOCALES = 256;
     private static final Pattern localePat = Pattern.compile("([a-zA-Z]{1,8})(?:-(\\w{1,8}))?.*");
+    private static final ConcurrentHashMap<String, Locale> locales = new ConcurrentHashMap<String, Locale>();
 
     /**
      * formats the locale into a XMPP compliant xml:lang string. The format will
@@ -47,6 +55,16 @@ public class LocaleUtil {
     public static final Locale parseLocale(String localeStr) {
         if (localeStr == null) 
             throw new IllegalArgumentException("locale string cannot be null");
+        Locale locale = locales.get(localeStr);
+        if (locale != null)
+            return locale;
+        locale = createLocale(localeStr);
+        if (locale != null && locales.size() < MAX_CACHED_LOCALES)
+            locales.put(localeStr, locale);
+        return locale;
+    }
+
+    private static Locale createLocale(String localeStr) {
         Matcher matcher = localePat.matcher(localeStr);
         if (matcher.matches()) {
             int size = matcher.groupCount();
@@ -0,0 +1,96 @@
+package com.echomine.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A simple token bucket rate limiter. Permits are handed out at a steady rate,
+ * and up to a burst of permits may accumulate while the limiter is idle.
+ * Callers that ask for a permit before one is available are made to wait; no
+ * request is ever rejected.
+ */
+public class RateLimiter {
+    private final int burst;
+    private long interval;
+    private long burstAllowance;
+    private long nextPermit;
+
+    /**
+     * @param permitsPerSecond the steady rate of permits
+     * @param burst the number of permits that can accumulate while idle (at
+     *            least 1)
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0)
+            throw new IllegalArgumentException("Rate must be positive");
+        this.burst = burst < 1 ? 1 : burst;
+        interval = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        burstAllowance = interval * (this.burst - 1);
+        nextPermit = System.nanoTime() - burstAllowance;
+    }
+
+    /**
+     * Changes the steady rate of permits. Permits already reserved keep their
+     * time, and the burst keeps its number of permits.
+     * 
+     * @param permitsPerSecond the new rate of permits
+     */
+    public synchronized void setRate(double permitsPerSecond) {
+        if (permitsPerSecond <= 0)
+            throw new IllegalArgumentException("Rate must be positive");
+        interval = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        burstAllowance = interval * (burst - 1);
+    }
+
+    /**
+     * Reserves the next permit without waiting for it.
+     * 
+     * @return the time in nanoseconds until the reserved permit is available,
+     *         0 if it is available now
+     */
+    public synchronized long reserve() {
+        long now = System.nanoTime();
+        // permits do not accumulate beyond the burst
+        if (nextPermit < now - burstAllowance)
+            nextPermit = now - burstAllowance;
+        long wait = nextPermit - now;
+        nextPermit += interval;
+        return wait > 0 ? wait : 0;
+    }
+
+    /**
+     * Tells how long until a permit is available, without taking it.
+     * 
+     * @return the time in nanoseconds until a permit is available, 0 if one
+     *         is available now
+     */
+    public synchronized long peek() {
+        long wait = nextPermit - System.nanoTime();
+        return wait > 0 ? wait : 0;
+    }
+
+    /**
+     * Waits until a permit is available and takes it.
+     * 
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        long wait = reserve();
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * Takes a permit only if one is available right away.
+     * 
+     * @return true if a permit was taken
+     */
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        if (nextPermit < now - burstAllowance)
+            nextPermit = now - burstAllowance;
+        if (nextPermit > now)
+            return false;
+        nextPermit += interval;
+        return true;
+    }
+}
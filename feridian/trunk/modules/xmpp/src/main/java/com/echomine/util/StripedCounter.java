@@ -0,0 +1,72 @@
+package com.echomine.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can add to without contending on a single
+ * value. The count is spread over cells, each on a cache line of its own, and
+ * a thread always adds to the cell picked by its id. Adding is lock-free and
+ * allocates nothing; reading the count sums the cells, thus it is meant for
+ * values that are written much more often than they are read (ie. metrics).
+ */
+public class StripedCounter {
+    // longs per cache line, so that cells do not share lines
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripeCount();
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    /**
+     * Adds one to the count.
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Adds a value to the count.
+     *
+     * @param value the value to add, may be negative
+     */
+    public void add(long value) {
+        cells.addAndGet(cellIndex(), value);
+    }
+
+    /**
+     * @return the sum of everything added. Values added concurrently may or
+     *         may not be included
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+            sum += cells.get(i * PADDING);
+        return sum;
+    }
+
+    /**
+     * Sets the count back to 0. Values added concurrently with the reset may
+     * or may not be kept.
+     */
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++)
+            cells.set(i * PADDING, 0);
+    }
+
+    private static int cellIndex() {
+        // spreads sequential thread ids over the cells
+        int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return ((h >>> 16) & (STRIPES - 1)) * PADDING;
+    }
+
+    /**
+     * @return the power of two at or above twice the number of processors,
+     *         at most 64
+     */
+    private static int stripeCount() {
+        int target = Math.min(Runtime.getRuntime().availableProcessors() * 2, 64);
+        int stripes = 1;
+        while (stripes < target)
+            stripes <<= 1;
+        return stripes;
+    }
+}
@@ -0,0 +1,66 @@
+package com.echomine.xmpp;
+
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * The set of extension namespaces a connection decodes. Extensions of
+ * messages, presences and iq stanzas are normally decoded whenever a class is
+ * registered for their namespace, by any extension loaded in the process. A
+ * connection with a profile only decodes the namespaces in its profile, and
+ * either skips the others or keeps their markup as a
+ * {@link com.echomine.xmpp.packet.RawExtensionPacket}, thus a bot pays only for
+ * the extensions it uses.
+ * <p>
+ * The profile applies to the extensions of messages and presences and to the
+ * child of iq requests (get and set). Requests whose child is not in the
+ * profile are delivered as plain IQPackets, which means they are answered
+ * with service-unavailable. Results and errors are always decoded, since they
+ * answer requests the connection sent itself, and so are the namespaces the
+ * connection needs to log in and keep its roster: resource binding, session
+ * and roster requests always bypass the profile, thus roster pushes from the
+ * server are decoded whether or not the profile lists jabber:iq:roster. A
+ * profile cannot be changed once created, thus it can be shared by
+ * connections.
+ * </p>
+ * 
+ * @see XMPPStreamContext#setExtensionProfile(ExtensionProfile)
+ */
+public class ExtensionProfile {
+    /** What is done with extensions outside of the profile */
+    public enum Mode {
+        /** the extension is skipped */
+        SKIP,
+        /** the markup of the extension is kept without being decoded */
+        RAW
+    }
+
+    private final HashSet<String> namespaces;
+    private final Mode mode;
+
+    /**
+     * @param namespaces the namespaces to decode
+     * @param mode what is done with other extensions
+     */
+    public ExtensionProfile(Collection<String> namespaces, Mode mode) {
+        if (mode == null)
+            throw new IllegalArgumentException("Mode cannot be null");
+        this.namespaces = new HashSet<String>(namespaces);
+        this.mode = mode;
+    }
+
+    /**
+     * @param ns the namespace of an extension
+     * @return true if extensions of the namespace are decoded
+     */
+    public boolean isDecoded(String ns) {
+        return namespaces.contains(ns);
+    }
+
+    /**
+     * @return what is done with extensions outside of the profile
+     */
+    public Mode getMode() {
+        return mode;
+    }
+}
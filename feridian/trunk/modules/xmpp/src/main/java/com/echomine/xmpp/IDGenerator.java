@@ -11,9 +11,15 @@ import com.echomine.util.ClassUtil;
  * begin with an alphabet(a-z), underscore(_), or colon(:). The ID generator is
  * an abstract factory class. It will obtain the real implementation from the
  * configuration and instantiate.
+ * <p>
+ * Besides the shared generator, each connection can obtain its own generator
+ * through forConnection(). Implementations may give such generators a prefix
+ * of their own so that connections do not contend on a single sequence.
+ * Implementations must be thread safe.
+ * </p>
  */
 public abstract class IDGenerator {
-    private static IDGenerator generator;
+    private static volatile IDGenerator generator;
 
     /**
      * obatins the real generator implementation
@@ -26,20 +32,78 @@ public abstract class IDGenerator {
         }
     }
 
+    /**
+     * @return the shared generator, initializing it if this is the first call
+     */
+    private static IDGenerator getInstance() throws XMPPException {
+        IDGenerator gen = generator;
+        if (gen == null) {
+            synchronized (IDGenerator.class) {
+                gen = generator;
+                if (gen == null) {
+                    gen = getGenerator();
+                    generator = gen;
+                }
+            }
+        }
+        return gen;
+    }
+
     /**
      * This is the implementation to retrieve the next ID; This ID must be
-     * guaranteed to be unique in a given session.
+     * guaranteed to be unique in a given session. It may be called by
+     * multiple threads at once.
      */
     protected abstract String generateID();
 
+    /**
+     * Creates the generator used by a single connection. The default returns
+     * this generator itself, thus all connections share it.
+     * 
+     * @return the generator for a connection
+     */
+    protected IDGenerator createConnectionGenerator() {
+        return this;
+    }
+
+    /**
+     * Converts an id created by this generator into its sequence number. This
+     * allows ids to be compared and looked up as numbers instead of strings.
+     * The default does not support numeric ids.
+     * 
+     * @param id the id to convert
+     * @return the sequence number, or -1 if the id was not created by this
+     *         generator
+     */
+    public long toNumericID(String id) {
+        return -1;
+    }
+
+    /**
+     * Retrieves the next ID from this generator
+     * 
+     * @return the unique id
+     */
+    public String next() {
+        return generateID();
+    }
+
     /**
      * if this is the first time the method is called, it will initialize the
      * generator.
      */
     public static String nextID() throws XMPPException {
-        if (generator == null)
-            generator = getGenerator();
-        return generator.generateID();
+        return getInstance().generateID();
+    }
+
+    /**
+     * Obtains a generator for use by a single connection.
+     * 
+     * @return the generator for the connection
+     * @throws XMPPException if the generator cannot be initialized
+     */
+    public static IDGenerator forConnection() throws XMPPException {
+        return getInstance().createConnectionGenerator();
     }
 
     /**
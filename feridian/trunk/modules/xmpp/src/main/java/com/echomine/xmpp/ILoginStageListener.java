@@ -0,0 +1,36 @@
+package com.echomine.xmpp;
+
+/**
+ * Receives notifications as a connection progresses through the stages of
+ * connecting and logging in. Notifications are made on the thread doing the
+ * work, thus a listener may block in stageStarted() to throttle the stage (ie.
+ * to rate limit expensive TLS or SASL negotiations across many connections).
+ */
+public interface ILoginStageListener {
+    /**
+     * The stages of bringing up a connection. CONNECT covers opening the socket
+     * and the initial stream negotiation. TLS covers the STARTTLS negotiation
+     * and the stream restart. SASL covers authentication. BIND covers the
+     * stream restart after authentication (if the login is pipelined), resource
+     * binding and session establishment.
+     */
+    enum Stage {
+        CONNECT, TLS, SASL, BIND
+    }
+
+    /**
+     * Called right before the stage begins.
+     * 
+     * @param stage the stage about to begin
+     */
+    void stageStarted(Stage stage);
+
+    /**
+     * Called when the stage completed successfully. A stage that fails is not
+     * reported as completed; the failure surfaces as an exception from
+     * connect() or login() instead.
+     * 
+     * @param stage the stage that completed
+     */
+    void stageCompleted(Stage stage);
+}
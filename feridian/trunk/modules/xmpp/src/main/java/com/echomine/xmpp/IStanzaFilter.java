@@ -0,0 +1,27 @@
+package com.echomine.xmpp;
+
+/**
+ * Decides which incoming stanzas are processed, before they are unmarshalled.
+ * The filter only sees the element name and the attributes of the stanza's
+ * start tag, thus rejected stanzas are skipped in the stream without any
+ * objects being built for them. Filters are called on the connection's reading
+ * thread for every message, presence and iq request, and must return quickly.
+ * <p>
+ * Rejected iq requests (type get or set) are still answered with a
+ * service-unavailable error, as XMPP requires. Iq results and errors are not
+ * passed to the filter, as senders may be waiting for them.
+ * </p>
+ *
+ * @see IXMPPConnection#setStanzaFilter(IStanzaFilter)
+ */
+public interface IStanzaFilter {
+    /**
+     * @param name the element name: message, presence or iq
+     * @param from the from attribute, or null if there is none
+     * @param to the to attribute, or null if there is none
+     * @param type the type attribute, or null if there is none
+     * @param id the id attribute, or null if there is none
+     * @return true to process the stanza, false to skip it
+     */
+    boolean accept(String name, String from, String to, String type, String id);
+}
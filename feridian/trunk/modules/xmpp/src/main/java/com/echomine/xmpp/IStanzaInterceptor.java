@@ -0,0 +1,60 @@
+package com.echomine.xmpp;
+
+/**
+ * Observes and transforms stanzas on their way between the wire and the
+ * listeners, and between sending and the wire. Interceptors are called in the
+ * order they were added, each receiving the packet returned by the previous
+ * one. Returning a different packet replaces the stanza for the interceptors,
+ * listeners or writer after it; returning null drops it, which also stops the
+ * rest of the chain.
+ * <p>
+ * The times passed in are System.nanoTime() values, so they can only be
+ * compared with each other. Interceptors are called on the reading thread, on
+ * the sending threads and with the writer locked, and must return quickly.
+ * </p>
+ *
+ * @see IXMPPConnection#addStanzaInterceptor(IStanzaInterceptor)
+ */
+public interface IStanzaInterceptor {
+    /**
+     * Called for each stanza read, after it is matched with the request it
+     * answers and before it is passed to the listeners.
+     *
+     * @param packet the stanza read
+     * @param readTime when the start tag of the stanza was read off the socket
+     * @param parsedTime when unmarshalling the stanza completed
+     * @return the packet to pass to the listeners, or null to drop it
+     */
+    IStanzaPacket received(IStanzaPacket packet, long readTime, long parsedTime);
+
+    /**
+     * Called after the listeners processed a stanza read.
+     *
+     * @param packet the stanza passed to the listeners
+     * @param dispatchedTime when the listeners returned
+     */
+    void dispatched(IStanzaPacket packet, long dispatchedTime);
+
+    /**
+     * Called for each stanza sent through the connection, before it is
+     * queued. The packet already has its id.
+     *
+     * @param packet the stanza to send
+     * @param queuedTime when the stanza was handed to the connection
+     * @return the packet to queue, or null to drop it. A dropped request is
+     *         not waited for
+     */
+    IStanzaPacket sending(IStanzaPacket packet, long queuedTime);
+
+    /**
+     * Called after a stanza was written to the socket. Stanzas the connection
+     * writes itself (ie. during login) are included.
+     *
+     * @param packet the stanza written
+     * @param queuedTime when the stanza was queued, or when it was handed to
+     *            the writer if it was written directly
+     * @param marshalledTime when marshalling the stanza completed
+     * @param flushedTime when the stanza was flushed to the socket
+     */
+    void sent(IStanzaPacket packet, long queuedTime, long marshalledTime, long flushedTime);
+}
@@ -0,0 +1,31 @@
+package com.echomine.xmpp;
+
+/**
+ * Receives notifications as the packets waiting to be sent on a bounded
+ * connection cross the high and low watermarks. Producers should stop sending
+ * (or only offer packets) once the high watermark is reached and continue
+ * once the queue drained down to the low watermark. Notifications are made on
+ * the thread that made the queue cross the watermark, thus a listener must
+ * return quickly and must not send packets itself.
+ *
+ * @see IXMPPConnection#isWritable()
+ */
+public interface IWatermarkListener {
+    /**
+     * Called when the queued packets reach the high watermark. The connection
+     * is not writable afterwards.
+     *
+     * @param stanzas the number of packets waiting to be sent
+     * @param bytes the size of the packets waiting to be sent, where known
+     */
+    void highWatermarkReached(int stanzas, long bytes);
+
+    /**
+     * Called when the queued packets drain down to the low watermark after the
+     * high watermark was reached. The connection is writable again.
+     *
+     * @param stanzas the number of packets waiting to be sent
+     * @param bytes the size of the packets waiting to be sent, where known
+     */
+    void lowWatermarkReached(int stanzas, long bytes);
+}
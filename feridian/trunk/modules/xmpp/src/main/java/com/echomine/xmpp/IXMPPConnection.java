@@ -1,10 +1,14 @@
 package com.echomine.xmpp;
 
+import java.util.Collection;
+
+import com.echomine.jibx.StanzaTemplate;
 import com.echomine.net.ConnectionException;
 import com.echomine.net.ConnectionFailedException;
 import com.echomine.net.ConnectionListener;
 import com.echomine.net.ConnectionVetoException;
 import com.echomine.net.HandshakeFailedException;
+import com.echomine.xmpp.metrics.ConnectionMetrics;
 
 /**
  * This is the main connection to an XMPP-compliant entity. It allows one to
@@ -61,6 +65,134 @@ public interface IXMPPConnection {
     IStanzaPacket sendPacket(IStanzaPacket packet, boolean wait)
             throws SendPacketFailedException;
 
+    /**
+     * Sends a packet to the remote entity asynchronously if it can be queued
+     * right away. Unlike sendPacket(), which waits for room when the outgoing
+     * queue is full, this returns false instead, thus producers can hold back
+     * or drop packets rather than block.
+     * 
+     * @param packet the packet to send
+     * @return true if the packet is queued, false if the queue is full
+     * @throws SendPacketFailedException if the packet cannot be sent
+     * @see #isWritable()
+     */
+    boolean offerPacket(IStanzaPacket packet) throws SendPacketFailedException;
+
+    /**
+     * Sends a packet to the remote entity asynchronously, waiting up to the
+     * timeout for room in the outgoing queue if it is full.
+     * 
+     * @param packet the packet to send
+     * @param timeout the time in ms to wait for room in the queue
+     * @return true if the packet is queued, false if the queue stayed full
+     * @throws SendPacketFailedException if the packet cannot be sent
+     */
+    boolean offerPacket(IStanzaPacket packet, long timeout) throws SendPacketFailedException;
+
+    /**
+     * Checks whether packets can be sent without being held up. A connection
+     * stops being writable once the packets waiting to be sent reach the high
+     * watermark of the outgoing queue, and is writable again once they drained
+     * down to the low watermark.
+     * 
+     * @return true if the connection is connected and writable
+     */
+    boolean isWritable();
+
+    /**
+     * Sets the listener that is notified when the packets waiting to be sent
+     * cross the watermarks of the outgoing queue.
+     * 
+     * @param listener the listener, null to remove
+     */
+    void setWatermarkListener(IWatermarkListener listener);
+
+    /**
+     * Sets the filter that decides which incoming stanzas are processed. The
+     * filter sees only the start tag of each stanza, and rejected stanzas are
+     * skipped without being unmarshalled or passed to the listeners. This is
+     * useful when only some stanzas are of interest (ie. only messages).
+     * 
+     * @param filter the filter, null to process all stanzas
+     */
+    void setStanzaFilter(IStanzaFilter filter);
+
+    /**
+     * Adds an interceptor to the end of the chain that stanzas pass through
+     * between the wire and the listeners, and between sending and the wire.
+     * Interceptors may inspect, replace or drop stanzas, and are given the
+     * times each stanza reached every step. A connection without interceptors
+     * does no extra work.
+     * 
+     * @param interceptor the interceptor to add
+     */
+    void addStanzaInterceptor(IStanzaInterceptor interceptor);
+
+    /**
+     * Removes an interceptor from the chain.
+     * 
+     * @param interceptor the interceptor to remove
+     */
+    void removeStanzaInterceptor(IStanzaInterceptor interceptor);
+
+    /**
+     * Restricts the extensions decoded on this connection to those in the
+     * profile. Extensions in other namespaces are skipped or kept as raw
+     * markup, even if an extension registers a class for them, thus a
+     * connection does not pay for decoding extensions it never looks at.
+     * 
+     * @param profile the profile, null to decode all registered extensions
+     */
+    void setExtensionProfile(ExtensionProfile profile);
+
+    /**
+     * Retrieves the metrics of this connection: stanzas and bytes in and out,
+     * the state of the outgoing queue and the time spent on parsing, marshalling
+     * and listeners. Metrics are only collected when enabled in the
+     * configuration.
+     * 
+     * @return the metrics, or null if metrics are not collected
+     */
+    ConnectionMetrics getMetrics();
+
+    /**
+     * Retrieves the statistics of a lane of the outgoing queue: the number of
+     * packets waiting in it, and how long the packets sent from it waited.
+     * 
+     * @param lane the lane
+     * @return a snapshot of the lane's statistics
+     */
+    LaneStatistics getLaneStatistics(PacketLane lane);
+
+    /**
+     * Sends a copy of the packet to each of the recipients asynchronously. The
+     * packet is marshalled only once into a template, and each copy is written
+     * from the template with its own recipient, thus this is much cheaper than
+     * sending a separate packet to each recipient. If the packet has no id,
+     * each copy is given a unique id. The packet's own recipient is ignored.
+     * Replies to the copies are not waited for.
+     * 
+     * @param packet the packet to send
+     * @param recipients the recipients of the copies
+     * @throws SendPacketFailedException if the packet cannot be marshalled or
+     *         the copies cannot be queued
+     */
+    void broadcastPacket(IStanzaPacket packet, Collection<JID> recipients)
+            throws SendPacketFailedException;
+
+    /**
+     * Sends a copy of a precompiled template to each of the recipients
+     * asynchronously. This allows the same template to be sent over multiple
+     * connections while marshalling the stanza only once.
+     * 
+     * @param template the compiled stanza
+     * @param recipients the recipients of the copies
+     * @throws SendPacketFailedException if the copies cannot be queued
+     * @see StanzaTemplate#compile(com.echomine.xmpp.packet.StanzaPacketBase, String)
+     */
+    void broadcastPacket(StanzaTemplate template, Collection<JID> recipients)
+            throws SendPacketFailedException;
+
     /**
      * Checks whether the we are connected.
      * 
@@ -186,4 +318,13 @@ public interface IXMPPConnection {
      * @param listener the listener to remove
      */
     void removePacketListener(IPacketListener listener);
+
+    /**
+     * Sets the listener that is notified as the connection goes through the
+     * stages of connecting and logging in. This must be set before connecting
+     * in order to receive all notifications.
+     * 
+     * @param listener the listener, null to remove
+     */
+    void setLoginStageListener(ILoginStageListener listener);
 }
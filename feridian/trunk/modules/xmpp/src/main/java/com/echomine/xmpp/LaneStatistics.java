@@ -0,0 +1,81 @@
+package com.echomine.xmpp;
+
+/**
+ * A snapshot of the packets passing through one lane of the outgoing packet
+ * queue. Only packets that waited in the queue are counted; packets written
+ * out directly by the sending thread never enter a lane.
+ */
+public class LaneStatistics {
+    private final PacketLane lane;
+    private final int depth;
+    private final long sent;
+    private final long coalesced;
+    private final long totalWait;
+    private final long maxWait;
+
+    /**
+     * @param lane the lane
+     * @param depth the number of packets waiting in the lane
+     * @param sent the number of packets taken off the lane
+     * @param coalesced the number of packets superseded by newer ones before
+     *            they were sent
+     * @param totalWait the total time in ns the taken packets waited
+     * @param maxWait the longest time in ns a packet waited
+     */
+    public LaneStatistics(PacketLane lane, int depth, long sent, long coalesced, long totalWait, long maxWait) {
+        this.lane = lane;
+        this.depth = depth;
+        this.sent = sent;
+        this.coalesced = coalesced;
+        this.totalWait = totalWait;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * @return the lane
+     */
+    public PacketLane getLane() {
+        return lane;
+    }
+
+    /**
+     * @return the number of packets waiting in the lane
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the number of packets taken off the lane to be sent
+     */
+    public long getSentCount() {
+        return sent;
+    }
+
+    /**
+     * @return the number of packets dropped from the lane because a newer
+     *         packet superseded them
+     */
+    public long getCoalescedCount() {
+        return coalesced;
+    }
+
+    /**
+     * @return the average time in microseconds the packets waited in the lane
+     */
+    public long getAverageWaitTime() {
+        return sent == 0 ? 0 : totalWait / sent / 1000;
+    }
+
+    /**
+     * @return the longest time in microseconds a packet waited in the lane
+     */
+    public long getMaxWaitTime() {
+        return maxWait / 1000;
+    }
+
+    public String toString() {
+        return lane + ": depth=" + depth + ", sent=" + sent + ", coalesced=" + coalesced + ", avg wait=" + getAverageWaitTime() + "us, max wait="
+                + getMaxWaitTime() + "us";
+    }
+}
@@ -0,0 +1,16 @@
+package com.echomine.xmpp;
+
+/**
+ * The lanes of the outgoing packet queue. Packets waiting in the queue are
+ * sent lane by lane with a weighted share for each lane, thus control traffic
+ * (pings, keepalives and the error replies the connection sends by itself) is
+ * not held up behind a large number of bulk messages, while bulk messages are
+ * still guaranteed a share of the connection. Unless a packet is given a lane
+ * explicitly, the lane is inferred from the stanza: presence goes into
+ * PRESENCE, headline messages and broadcasts into BULK, and all other messages,
+ * iq and raw xml packets into INTERACTIVE. CONTROL is only used when set
+ * explicitly.
+ */
+public enum PacketLane {
+    CONTROL, PRESENCE, INTERACTIVE, BULK
+}
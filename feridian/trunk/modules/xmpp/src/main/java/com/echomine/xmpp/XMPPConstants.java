@@ -21,5 +21,10 @@ public interface XMPPConstants {
     static final String NS_STREAM_TLS = "urn:ietf:params:xml:ns:xmpp-tls";
     static final String NS_STREAM_BINDING = "urn:ietf:params:xml:ns:xmpp-bind";
     static final String NS_STREAM_SESSION = "urn:ietf:params:xml:ns:xmpp-session";
+    static final String NS_JABBER_ROSTER = "jabber:iq:roster";
     static final String NS_STREAM_SASL = "urn:ietf:params:xml:ns:xmpp-sasl";
+
+    // namespace constants for protocol extensions handled by the core
+    static final String NS_XMPP_PING = "urn:xmpp:ping";
+    static final String NS_CHAT_STATES = "http://jabber.org/protocol/chatstates";
 }
@@ -18,6 +18,7 @@ public class XMPPSessionContext {
     private String version;
     private String streamId;
     private Locale locale;
+    private boolean authenticated;
 
     /**
      * Resets the session data. This will reset all data acquired.
@@ -29,6 +30,7 @@ public class XMPPSessionContext {
         username = null;
         resource = null;
         locale = null;
+        authenticated = false;
     }
 
     /**
@@ -131,4 +133,23 @@ public class XMPPSessionContext {
     public Locale getLocale() {
         return locale;
     }
+
+    /**
+     * Checks whether the session has completed login (authentication and any
+     * resource binding and session establishment).
+     * 
+     * @return true if the session is authenticated
+     */
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    /**
+     * Marks whether the session has completed login
+     * 
+     * @param authenticated true if the session is authenticated
+     */
+    public void setAuthenticated(boolean authenticated) {
+        this.authenticated = authenticated;
+    }
 }
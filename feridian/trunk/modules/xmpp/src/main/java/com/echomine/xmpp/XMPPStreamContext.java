@@ -1,11 +1,17 @@
 package com.echomine.xmpp;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 
 import org.jibx.runtime.impl.UnmarshallingContext;
 
 import com.echomine.jibx.XMPPLoggableReader;
 import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.xmpp.metrics.ConnectionMetrics;
+import com.echomine.xmpp.metrics.IConnectionTracer;
+import com.echomine.xmpp.packet.IQPacketFactory;
 import com.echomine.xmpp.packet.StreamFeatures;
 
 /**
@@ -19,6 +25,11 @@ public class XMPPStreamContext {
     private Socket socket;
     private StreamFeatures features;
     private XMPPAuthCallback authCallback;
+    private ILoginStageListener loginStageListener;
+    private volatile ExtensionProfile extensionProfile;
+    private IQPacketFactory replyFactory;
+    private volatile ConnectionMetrics metrics;
+    private volatile IConnectionTracer tracer;
 
     public XMPPStreamContext() {
         reset();
@@ -65,6 +76,68 @@ public class XMPPStreamContext {
         return socket;
     }
 
+    /**
+     * Retrieves the input of the socket to read the stream from. When metrics
+     * are collected, the bytes read from it are counted.
+     * 
+     * @return the input stream of the current socket
+     * @throws IOException if the input stream cannot be obtained
+     */
+    public InputStream getInputStream() throws IOException {
+        InputStream in = socket.getInputStream();
+        ConnectionMetrics m = metrics;
+        return m == null ? in : m.meter(in);
+    }
+
+    /**
+     * Retrieves the output of the socket to write the stream to. When metrics
+     * are collected, the bytes written to it are counted.
+     * 
+     * @return the output stream of the current socket
+     * @throws IOException if the output stream cannot be obtained
+     */
+    public OutputStream getOutputStream() throws IOException {
+        OutputStream out = socket.getOutputStream();
+        ConnectionMetrics m = metrics;
+        return m == null ? out : m.meter(out);
+    }
+
+    /**
+     * @return the metrics of the connection, or null if metrics are not
+     *         collected
+     */
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics that the bytes of the stream and the login stages are
+     * recorded on. The metrics are kept when the context is reset.
+     * 
+     * @param metrics the metrics, null to not collect metrics
+     */
+    public void setMetrics(ConnectionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the tracer that the events of the connection are passed to, or
+     *         null if the connection is not traced
+     */
+    public IConnectionTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Sets the tracer that the events of the connection are passed to. The
+     * tracer is kept when the context is reset.
+     * 
+     * @param tracer the tracer, null to not trace the connection
+     */
+    public void setTracer(IConnectionTracer tracer) {
+        this.tracer = tracer;
+    }
+
     /**
      * @param socket The socket to set.
      */
@@ -72,6 +145,43 @@ public class XMPPStreamContext {
         this.socket = socket;
     }
 
+    /**
+     * @return the extensions decoded on this stream, or null if all
+     *         registered extensions are decoded
+     */
+    public ExtensionProfile getExtensionProfile() {
+        return extensionProfile;
+    }
+
+    /**
+     * Sets the extensions decoded on this stream. The profile is kept when
+     * the context is reset.
+     * 
+     * @param extensionProfile the profile, or null to decode all registered
+     *            extensions
+     */
+    public void setExtensionProfile(ExtensionProfile extensionProfile) {
+        this.extensionProfile = extensionProfile;
+    }
+
+    /**
+     * @return the factory of the iq reply being read, or null if the stanza
+     *         being read is not a reply anyone waits for
+     */
+    public IQPacketFactory getReplyFactory() {
+        return replyFactory;
+    }
+
+    /**
+     * Sets the factory creating the packet that the iq reply being read is
+     * decoded into, which is of the class of the request it answers.
+     * 
+     * @param replyFactory the factory, or null to decode a plain IQPacket
+     */
+    public void setReplyFactory(IQPacketFactory replyFactory) {
+        this.replyFactory = replyFactory;
+    }
+
     /**
      * resets the data in this class so that the class can be reused.
      */
@@ -80,6 +190,7 @@ public class XMPPStreamContext {
         writer = new XMPPStreamWriter();
         socket = null;
         reader = null;
+        replyFactory = null;
         if (features != null)
             features.clear();
         if (authCallback != null) {
@@ -143,5 +254,48 @@ public class XMPPStreamContext {
      */
     public void setReader(XMPPLoggableReader reader) {
         this.reader = reader;
-    } 
+    }
+
+    /**
+     * @return the listener for login stage notifications, or null if none
+     */
+    public ILoginStageListener getLoginStageListener() {
+        return loginStageListener;
+    }
+
+    /**
+     * Sets the listener for login stage notifications. The listener is kept
+     * when the context is reset.
+     * 
+     * @param listener the listener, null for none
+     */
+    public void setLoginStageListener(ILoginStageListener listener) {
+        this.loginStageListener = listener;
+    }
+
+    /**
+     * Notifies the login stage listener, if any, that a stage is starting
+     * 
+     * @param stage the stage
+     */
+    public void fireStageStarted(ILoginStageListener.Stage stage) {
+        ConnectionMetrics m = metrics;
+        if (m != null)
+            m.stageStarted(stage);
+        if (loginStageListener != null)
+            loginStageListener.stageStarted(stage);
+    }
+
+    /**
+     * Notifies the login stage listener, if any, that a stage completed
+     * 
+     * @param stage the stage
+     */
+    public void fireStageCompleted(ILoginStageListener.Stage stage) {
+        ConnectionMetrics m = metrics;
+        if (m != null)
+            m.stageCompleted(stage);
+        if (loginStageListener != null)
+            loginStageListener.stageCompleted(stage);
+    }
 }
@@ -10,12 +10,14 @@ import org.jibx.runtime.JiBXException;
 import org.jibx.runtime.impl.UnmarshallingContext;
 
 import com.echomine.jibx.XMPPLoggableReader;
+import com.echomine.jibx.XMPPPullReader;
 import com.echomine.jibx.XMPPStreamWriter;
 import com.echomine.xmpp.IXMPPAuthenticator;
 import com.echomine.xmpp.XMPPConstants;
 import com.echomine.xmpp.XMPPException;
 import com.echomine.xmpp.XMPPSessionContext;
 import com.echomine.xmpp.XMPPStreamContext;
+import com.echomine.xmpp.metrics.IConnectionTracer;
 
 /**
  * This is the base parent authenticator that all SASL-based authenticators can
@@ -60,6 +62,9 @@ public abstract class BaseSaslAuthenticator implements IXMPPAuthenticator,
                 buf.append(iter.next() + ",");
             log.debug(buf.toString());
         }
+        IConnectionTracer tracer = streamCtx.getTracer();
+        long start = tracer == null ? 0 : System.nanoTime();
+        boolean success = false;
         XMPPStreamWriter writer = streamCtx.getWriter();
         UnmarshallingContext uctx = streamCtx.getUnmarshallingContext();
         String[] extns = new String[] { NS_STREAM_SASL };
@@ -80,23 +85,35 @@ public abstract class BaseSaslAuthenticator implements IXMPPAuthenticator,
                 log.info("SASL authentication complete, resetting input and output streams for new handshake");
             // reset writer and unmarshalling context for handshake
             // renegotiation preparation
-            XMPPLoggableReader bis = new XMPPLoggableReader(streamCtx.getSocket().getInputStream(), "UTF-8");
-            BufferedOutputStream bos = new BufferedOutputStream(streamCtx.getSocket().getOutputStream(), SOCKETBUF);
+            XMPPLoggableReader bis = new XMPPLoggableReader(streamCtx.getInputStream(), "UTF-8");
+            BufferedOutputStream bos = new BufferedOutputStream(streamCtx.getOutputStream(), SOCKETBUF);
             writer.flush();
             writer = new XMPPStreamWriter();
             writer.setOutput(bos);
-            uctx.setDocument(bis);
+            XMPPPullReader.setDocument(uctx, bis);
             streamCtx.setWriter(writer);
             streamCtx.setReader(bis);
+            success = true;
         } catch (IOException ex) {
             throw new XMPPException(ex);
         } catch (JiBXException ex) {
             throw new XMPPException(ex);
         } finally {
             streamCtx.getReader().stopLogging();
+            if (tracer != null)
+                tracer.saslAuthenticated(sessCtx, getMechanism(), System.nanoTime() - start, success);
         }
     }
 
+    /**
+     * @return the name of the SASL mechanism authenticated with, or null if
+     *         it is not known. Subclasses override this to report their
+     *         mechanism to the connection tracer
+     */
+    protected String getMechanism() {
+        return null;
+    }
+
     /**
      * All subclasses will implement this method to do the main bulk of the
      * authentication. Before the method is called, the base parent class
@@ -26,6 +26,15 @@ public class DigestMD5SaslAuthenticator extends BaseSaslAuthenticator {
     private static final String CHALLENGE_ELEMENT_NAME = "challenge";
     private static final String RESPONSE_ELEMENT_NAME = "response";
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.auth.BaseSaslAuthenticator#getMechanism()
+     */
+    protected String getMechanism() {
+        return DIGEST_MD5;
+    }
+
     /*
      * (non-Javadoc)
      * 
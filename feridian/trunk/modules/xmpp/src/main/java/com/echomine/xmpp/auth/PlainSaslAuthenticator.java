@@ -23,6 +23,15 @@ import com.echomine.xmpp.XMPPStreamContext;
 public class PlainSaslAuthenticator extends BaseSaslAuthenticator {
     private static final String PLAIN = "PLAIN";
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.auth.BaseSaslAuthenticator#getMechanism()
+     */
+    protected String getMechanism() {
+        return PLAIN;
+    }
+
     /*
      * (non-Javadoc)
      * 
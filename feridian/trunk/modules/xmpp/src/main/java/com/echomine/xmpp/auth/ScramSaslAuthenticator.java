@@ -0,0 +1,141 @@
+package com.echomine.xmpp.auth;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.xmpp.XMPPAuthCallback;
+import com.echomine.xmpp.XMPPException;
+import com.echomine.xmpp.XMPPSessionContext;
+import com.echomine.xmpp.XMPPStreamContext;
+import com.echomine.xmpp.auth.sasl.ScramKeyCache;
+import com.echomine.xmpp.auth.sasl.ScramSaslClient;
+
+/**
+ * The base authenticator for the SCRAM family of SASL mechanisms. Unlike PLAIN,
+ * the password is never sent to the server, and unlike DIGEST-MD5, the server
+ * proves that it knows the password as well. The keys derived from the
+ * password are cached (see ScramKeyCache), thus reconnecting an account costs
+ * only a few HMAC computations.
+ * 
+ * @see com.echomine.xmpp.auth.sasl.ScramKeyCache
+ */
+public abstract class ScramSaslAuthenticator extends BaseSaslAuthenticator {
+    private static Log log = LogFactory.getLog(ScramSaslAuthenticator.class);
+    private static final String CHALLENGE_ELEMENT_NAME = "challenge";
+    private static final String RESPONSE_ELEMENT_NAME = "response";
+    private static final String SUCCESS_ELEMENT_NAME = "success";
+    private String mechanism;
+    private String hashAlgorithm;
+    private String macAlgorithm;
+
+    /**
+     * @param mechanism the SASL mechanism name (ie. SCRAM-SHA-1)
+     * @param hashAlgorithm the hash function of the mechanism (ie. SHA-1)
+     * @param macAlgorithm the HMAC of the hash function (ie. HmacSHA1)
+     */
+    protected ScramSaslAuthenticator(String mechanism, String hashAlgorithm, String macAlgorithm) {
+        this.mechanism = mechanism;
+        this.hashAlgorithm = hashAlgorithm;
+        this.macAlgorithm = macAlgorithm;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.auth.BaseSaslAuthenticator#getMechanism()
+     */
+    protected String getMechanism() {
+        return mechanism;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPAuthenticator#canAuthenticate(com.echomine.xmpp.XMPPSessionContext,
+     *      com.echomine.xmpp.XMPPStreamContext)
+     */
+    public boolean canAuthenticate(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) {
+        if (!streamCtx.getFeatures().isSaslSupported()) return false;
+        return streamCtx.getFeatures().isSaslMechanismSupported(mechanism);
+    }
+
+    /**
+     * Creates the client that works through the exchange
+     * 
+     * @return a new client using the shared key cache
+     */
+    protected ScramSaslClient createClient() {
+        return new ScramSaslClient(hashAlgorithm, macAlgorithm, ScramKeyCache.getCache());
+    }
+
+    /*
+     * Authenticates using the SCRAM mechanism
+     * 
+     * @see com.echomine.xmpp.auth.BaseSaslAuthenticator#processSasl(int,
+     *      org.jibx.runtime.impl.UnmarshallingContext,
+     *      com.echomine.jibx.XMPPStreamWriter,
+     *      com.echomine.xmpp.XMPPSessionContext,
+     *      com.echomine.xmpp.XMPPStreamContext)
+     */
+    @Override
+    protected void processSasl(int idx, UnmarshallingContext uctx, XMPPStreamWriter writer, XMPPSessionContext sessCtx, XMPPStreamContext streamCtx)
+            throws IOException, JiBXException, XMPPException {
+        XMPPAuthCallback callback = streamCtx.getAuthCallback();
+        if (callback == null)
+            throw new IllegalStateException("Authentication callback must be set");
+        ScramSaslClient client = createClient();
+        // send client-first-message
+        writer.startTagNamespaces(idx, "auth", new int[] { idx }, new String[] { "" });
+        writer.addAttribute(0, "mechanism", mechanism);
+        writer.closeStartTag();
+        writer.writeTextContent(client.getInitialResponse(callback.getUsername(), callback.getUsername() + "@" + sessCtx.getHostName()));
+        writer.endTag(idx, "auth");
+        writer.flush();
+        // synchronize the first access in case connection handler read extra
+        // data
+        synchronized (uctx) {
+            if (!uctx.isAt(NS_STREAM_SASL, CHALLENGE_ELEMENT_NAME)
+                    && !uctx.isAt(NS_STREAM_SASL, FAILURE_ELEMENT_NAME))
+                uctx.next();
+        }
+        parseAndThrowFailure(uctx, streamCtx);
+        String challenge = parseElementText(uctx, CHALLENGE_ELEMENT_NAME, streamCtx);
+        // send client-final-message with the proof
+        String response = client.getFinalResponse(challenge, callback.getPassword());
+        writer.startTagNamespaces(idx, RESPONSE_ELEMENT_NAME, new int[] { idx }, new String[] { "" });
+        writer.closeStartTag();
+        writer.writeTextContent(response);
+        writer.endTag(idx, RESPONSE_ELEMENT_NAME);
+        writer.flush();
+        uctx.next();
+        try {
+            parseAndThrowFailure(uctx, streamCtx);
+        } catch (XMPPException ex) {
+            // the cached keys may be stale
+            client.invalidateKeys();
+            throw ex;
+        }
+        if (uctx.isAt(NS_STREAM_SASL, CHALLENGE_ELEMENT_NAME)) {
+            // some servers send the server-final-message as a challenge and
+            // expect an empty response before reporting success
+            client.verifyServerFinal(parseElementText(uctx, CHALLENGE_ELEMENT_NAME, streamCtx));
+            writer.startTagNamespaces(idx, RESPONSE_ELEMENT_NAME, new int[] { idx }, new String[] { "" });
+            writer.closeEmptyTag();
+            writer.flush();
+            uctx.next();
+            parseAndThrowFailure(uctx, streamCtx);
+            parseElementText(uctx, SUCCESS_ELEMENT_NAME, streamCtx);
+        } else {
+            if (!uctx.isAt(NS_STREAM_SASL, SUCCESS_ELEMENT_NAME))
+                throw new XMPPException("Expecting <success> tag, but found: " + uctx.getName());
+            client.verifyServerFinal(parseElementText(uctx, SUCCESS_ELEMENT_NAME, streamCtx));
+        }
+        if (log.isInfoEnabled())
+            log.info(mechanism + " authentication accepted and server signature verified");
+    }
+}
@@ -0,0 +1,10 @@
+package com.echomine.xmpp.auth;
+
+/**
+ * Performs SASL SCRAM-SHA-1 authentication
+ */
+public class ScramSha1SaslAuthenticator extends ScramSaslAuthenticator {
+    public ScramSha1SaslAuthenticator() {
+        super("SCRAM-SHA-1", "SHA-1", "HmacSHA1");
+    }
+}
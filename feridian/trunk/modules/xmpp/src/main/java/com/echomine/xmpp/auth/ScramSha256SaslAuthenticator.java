@@ -0,0 +1,10 @@
+package com.echomine.xmpp.auth;
+
+/**
+ * Performs SASL SCRAM-SHA-256 authentication
+ */
+public class ScramSha256SaslAuthenticator extends ScramSaslAuthenticator {
+    public ScramSha256SaslAuthenticator() {
+        super("SCRAM-SHA-256", "SHA-256", "HmacSHA256");
+    }
+}
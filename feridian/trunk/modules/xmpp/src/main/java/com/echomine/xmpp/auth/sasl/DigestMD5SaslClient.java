@@ -1,10 +1,8 @@
 package com.echomine.xmpp.auth.sasl;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,6 +27,7 @@ import com.echomine.xmpp.XMPPStreamContext;
  */
 public class DigestMD5SaslClient {
     private static final Log log = LogFactory.getLog(DigestMD5SaslClient.class);
+    private static final byte[] COLON = { ':' };
     private DigestMD5SaslContext challengeCtx = new DigestMD5SaslContext();
     private String cnonce;
     // private JID authzid;
@@ -81,55 +80,75 @@ public class DigestMD5SaslClient {
      * @return the password digest string
      */
     private String generatePasswordDigest(XMPPSessionContext sessCtx, XMPPAuthCallback callback) {
-        MessageDigest md;
-        byte[] temp;
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            md = MessageDigest.getInstance("MD5");
+            MessageDigest md = MessageDigest.getInstance("MD5");
             String realm = challengeCtx.getRealm() != null ? challengeCtx.getRealm()
                     : "";
-            String x = callback.getUsername() + ":" + realm + ":"
-                    + new String(callback.getPassword());
-            temp = md.digest(x.getBytes());
-            bos.write(temp);
-            String b = ":" + challengeCtx.getNonce() + ":" + cnonce;  // + ":" + authzid.toString();
-            bos.write(b.getBytes());
-            byte[] a1 = bos.toByteArray();
-            String a2 = "AUTHENTICATE:" + digesturi;
-            md.reset();
-            String ha1 = HexDec.convertBytesToHexString(md.digest(a1));
-            md.reset();
-            String ha2 = HexDec.convertBytesToHexString(md.digest(a2.getBytes()));
-            md.reset();
-            StringBuffer buf = new StringBuffer();
+            // H(username:realm:password)
+            md.update(getSecretBytes(callback.getUsername()));
+            md.update(COLON);
+            md.update(getSecretBytes(realm));
+            md.update(COLON);
+            md.update(getSecretBytes(new String(callback.getPassword())));
+            byte[] secret = md.digest();
+            // A1 = H(username:realm:password):nonce:cnonce
+            md.update(secret);
+            md.update(COLON);
+            md.update(getBytes(challengeCtx.getNonce()));
+            md.update(COLON);
+            md.update(getBytes(cnonce));
+            String ha1 = HexDec.convertBytesToHexString(md.digest());
+            // A2 = AUTHENTICATE:digest-uri
+            md.update(getBytes("AUTHENTICATE:"));
+            md.update(getBytes(digesturi));
+            String ha2 = HexDec.convertBytesToHexString(md.digest());
+            StringBuffer buf = new StringBuffer(128);
             buf.append(ha1).append(":").append(challengeCtx.getNonce());
             buf.append(":00000001:").append(cnonce).append(":auth:");
             buf.append(ha2);
-            String resp = HexDec.convertBytesToHexString(md.digest(buf.toString().getBytes()));
-            return resp;
+            return HexDec.convertBytesToHexString(md.digest(getBytes(buf.toString())));
         } catch (NoSuchAlgorithmException ex) {
             throw new IllegalStateException("Specified message digest algorithm not supported");
-        } catch (IOException ex) {
-            throw new IllegalArgumentException("IOException during hashing");
         }
     }
 
     /**
-     * Generate our own nonce to return. Used to prevent replay attacks. Our
-     * generation is rather simple. Current implementation simply uses random
-     * bytes
-     * 
-     * @return
+     * Encodes the username, realm or password for hashing. As the response
+     * declares charset=utf-8, RFC 2831 requires a value whose characters are
+     * all in ISO 8859-1 to be converted to ISO 8859-1, and any other value to
+     * be hashed as UTF-8.
      */
-    private String generateCNonce() {
-        SecureRandom rand = new SecureRandom();
-        byte[] randBytes = new byte[1024];
-        rand.nextBytes(randBytes);
+    static byte[] getSecretBytes(String str) {
+        for (int i = 0; i < str.length(); i++) {
+            if (str.charAt(i) > 0xff)
+                return getBytes(str, "UTF-8");
+        }
+        return getBytes(str, "ISO-8859-1");
+    }
+
+    /**
+     * The other values hashed are plain ASCII, the same in either encoding
+     */
+    private static byte[] getBytes(String str) {
+        return getBytes(str, "UTF-8");
+    }
+
+    private static byte[] getBytes(String str, String encoding) {
         try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            return Base64.encodeBytes(md.digest(randBytes));
-        } catch (NoSuchAlgorithmException ex) {
-            throw new IllegalStateException("Specified message digest algorithm not supported");
+            return str.getBytes(encoding);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(encoding + " encoding not supported");
         }
     }
+
+    /**
+     * Generate our own nonce to return. Used to prevent replay attacks. The
+     * nonce is made of random bytes from the random generator shared by all
+     * SASL clients.
+     * 
+     * @return the client nonce
+     */
+    private String generateCNonce() {
+        return SaslRandom.generateNonce();
+    }
 }
@@ -0,0 +1,40 @@
+package com.echomine.xmpp.auth.sasl;
+
+import java.security.SecureRandom;
+
+import com.echomine.util.Base64;
+
+/**
+ * The source of randomness shared by all SASL clients. Seeding a SecureRandom
+ * is expensive, thus a single instance is created lazily and reused by every
+ * authentication. SecureRandom is thread-safe, so no further synchronization
+ * is needed.
+ */
+public class SaslRandom {
+    private static final int NONCE_BYTES = 18;
+
+    private static class Holder {
+        static final SecureRandom random = new SecureRandom();
+    }
+
+    /**
+     * Fills the buffer with random bytes
+     * 
+     * @param bytes the buffer to fill
+     */
+    public static void nextBytes(byte[] bytes) {
+        Holder.random.nextBytes(bytes);
+    }
+
+    /**
+     * Generates a random printable nonce. The nonce is base64 encoded and thus
+     * never contains a comma or a quote.
+     * 
+     * @return the nonce
+     */
+    public static String generateNonce() {
+        byte[] bytes = new byte[NONCE_BYTES];
+        nextBytes(bytes);
+        return Base64.encodeBytes(bytes);
+    }
+}
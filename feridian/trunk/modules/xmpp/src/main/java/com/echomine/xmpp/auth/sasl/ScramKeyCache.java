@@ -0,0 +1,212 @@
+package com.echomine.xmpp.auth.sasl;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.echomine.util.Base64;
+
+/**
+ * Remembers the SCRAM client and server keys derived from account passwords.
+ * Deriving the keys runs PBKDF2 with the iteration count chosen by the server
+ * (4096 or more), which makes it by far the most expensive part of a SCRAM
+ * login. The salt and iteration count of an account do not change between
+ * logins, thus reconnecting accounts can skip the derivation entirely.
+ * <p>
+ * Entries are keyed by mechanism, account, salt and iteration count. Every
+ * entry also carries a fingerprint of the password it was derived from, so a
+ * changed password is detected and the keys are derived again. The cache holds
+ * a bounded number of entries and evicts the least recently used ones. The
+ * salted password itself is never stored.
+ * </p>
+ */
+public class ScramKeyCache {
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+    private static final ScramKeyCache cache = new ScramKeyCache(DEFAULT_MAX_ENTRIES);
+    private static final byte[] CLIENT_KEY = { 'C', 'l', 'i', 'e', 'n', 't', ' ', 'K', 'e', 'y' };
+    private static final byte[] SERVER_KEY = { 'S', 'e', 'r', 'v', 'e', 'r', ' ', 'K', 'e', 'y' };
+
+    private final LinkedHashMap<String, ScramKeys> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Retrieves the cache shared by all connections
+     * 
+     * @return the shared cache
+     */
+    public static ScramKeyCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Creates a new cache. Normal users will use the shared cache instead.
+     * 
+     * @param maxEntries the maximum number of entries kept, 0 to disable
+     *            caching
+     */
+    public ScramKeyCache(final int maxEntries) {
+        entries = new LinkedHashMap<String, ScramKeys>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, ScramKeys> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Retrieves the keys for the account, deriving them if they are not cached
+     * or were derived from a different password.
+     * 
+     * @param macAlgorithm the HMAC algorithm of the mechanism (ie. HmacSHA1)
+     * @param account the account the password belongs to
+     * @param password the password encoded as UTF-8
+     * @param salt the salt sent by the server
+     * @param iterations the iteration count sent by the server
+     * @return the keys
+     * @throws GeneralSecurityException if the algorithm is not supported
+     */
+    public ScramKeys getKeys(String macAlgorithm, String account, byte[] password, byte[] salt, int iterations) throws GeneralSecurityException {
+        String key = macAlgorithm + '\0' + account + '\0' + Base64.encodeBytes(salt) + '\0' + iterations;
+        ScramKeys keys;
+        synchronized (entries) {
+            keys = entries.get(key);
+        }
+        if (keys != null && keys.matches(password)) {
+            hits.incrementAndGet();
+            return keys;
+        }
+        misses.incrementAndGet();
+        // derive outside the lock so other accounts are not held up
+        keys = deriveKeys(macAlgorithm, password, salt, iterations);
+        synchronized (entries) {
+            entries.put(key, keys);
+        }
+        return keys;
+    }
+
+    /**
+     * Forgets the keys of an account, ie. after the server rejected them
+     * 
+     * @param account the account
+     */
+    public void remove(String account) {
+        synchronized (entries) {
+            Iterator<String> iter = entries.keySet().iterator();
+            while (iter.hasNext()) {
+                String key = iter.next();
+                // the account is the second field of the key
+                int start = key.indexOf('\0') + 1;
+                if (key.startsWith(account + '\0', start))
+                    iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets all cached keys
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return the number of lookups served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that required deriving the keys
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Runs the SCRAM key derivation. SaltedPassword is Hi(password, salt, i)
+     * (PBKDF2 with HMAC as the pseudo random function and a single block of
+     * output), ClientKey is HMAC(SaltedPassword, "Client Key") and ServerKey
+     * is HMAC(SaltedPassword, "Server Key").
+     */
+    static ScramKeys deriveKeys(String macAlgorithm, byte[] password, byte[] salt, int iterations) throws GeneralSecurityException {
+        if (iterations < 1)
+            throw new GeneralSecurityException("Invalid iteration count: " + iterations);
+        Mac mac = Mac.getInstance(macAlgorithm);
+        mac.init(new SecretKeySpec(password, macAlgorithm));
+        mac.update(salt);
+        mac.update(new byte[] { 0, 0, 0, 1 });
+        byte[] u = mac.doFinal();
+        byte[] salted = u.clone();
+        for (int i = 1; i < iterations; i++) {
+            // reuse the buffer, the loop runs thousands of times
+            mac.update(u);
+            mac.doFinal(u, 0);
+            for (int j = 0; j < salted.length; j++)
+                salted[j] ^= u[j];
+        }
+        mac.init(new SecretKeySpec(salted, macAlgorithm));
+        byte[] clientKey = mac.doFinal(CLIENT_KEY);
+        byte[] serverKey = mac.doFinal(SERVER_KEY);
+        Arrays.fill(salted, (byte) 0);
+        return new ScramKeys(macAlgorithm, clientKey, serverKey, password);
+    }
+
+    /**
+     * The keys derived from a password
+     */
+    public static class ScramKeys {
+        private final String macAlgorithm;
+        private final byte[] clientKey;
+        private final byte[] serverKey;
+        private final byte[] fingerprint;
+
+        ScramKeys(String macAlgorithm, byte[] clientKey, byte[] serverKey, byte[] password) throws GeneralSecurityException {
+            this.macAlgorithm = macAlgorithm;
+            this.clientKey = clientKey;
+            this.serverKey = serverKey;
+            this.fingerprint = fingerprint(password);
+        }
+
+        /**
+         * @return the client key
+         */
+        public byte[] getClientKey() {
+            return clientKey;
+        }
+
+        /**
+         * @return the server key
+         */
+        public byte[] getServerKey() {
+            return serverKey;
+        }
+
+        /**
+         * Checks whether the keys were derived from the password
+         */
+        boolean matches(byte[] password) {
+            try {
+                return Arrays.equals(fingerprint, fingerprint(password));
+            } catch (GeneralSecurityException ex) {
+                return false;
+            }
+        }
+
+        private byte[] fingerprint(byte[] password) throws GeneralSecurityException {
+            Mac mac = Mac.getInstance(macAlgorithm);
+            mac.init(new SecretKeySpec(serverKey, macAlgorithm));
+            return mac.doFinal(password);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.echomine.xmpp.auth.sasl;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.util.Base64;
+import com.echomine.xmpp.XMPPException;
+
+/**
+ * Works through the client side of a SCRAM authentication (RFC 5802). Channel
+ * binding is not supported. The keys derived from the password are looked up
+ * in a key cache, so repeated logins of the same account avoid the expensive
+ * PBKDF2 derivation.
+ * <p>
+ * The password is used as UTF-8 without SASLprep normalization, which is
+ * identical for all passwords made of printable ASCII characters.
+ * </p>
+ */
+public class ScramSaslClient {
+    private static final Log log = LogFactory.getLog(ScramSaslClient.class);
+    private static final String GS2_HEADER = "n,,";
+    private static final String GS2_HEADER_BASE64 = "biws";
+    private String hashAlgorithm;
+    private String macAlgorithm;
+    private ScramKeyCache cache;
+    private String clientFirstBare;
+    private String clientNonce;
+    private byte[] expectedServerSignature;
+    private String account;
+
+    /**
+     * @param hashAlgorithm the hash function of the mechanism (ie. SHA-1)
+     * @param macAlgorithm the HMAC of the hash function (ie. HmacSHA1)
+     * @param cache the cache of derived keys
+     */
+    public ScramSaslClient(String hashAlgorithm, String macAlgorithm, ScramKeyCache cache) {
+        this.hashAlgorithm = hashAlgorithm;
+        this.macAlgorithm = macAlgorithm;
+        this.cache = cache;
+    }
+
+    /**
+     * Creates the client-first-message that is sent along with the auth
+     * element.
+     * 
+     * @param username the username to authenticate as
+     * @param account the account the username belongs to (ie. the bare JID),
+     *            used to key the cached keys
+     * @return the base64-encoded message
+     */
+    public String getInitialResponse(String username, String account) {
+        this.account = account;
+        clientNonce = generateClientNonce();
+        clientFirstBare = "n=" + escapeUsername(username) + ",r=" + clientNonce;
+        return encode(GS2_HEADER + clientFirstBare);
+    }
+
+    /**
+     * Processes the server-first-message and creates the
+     * client-final-message with the client proof.
+     * 
+     * @param challenge the base64-encoded server-first-message
+     * @param password the password
+     * @return the base64-encoded client-final-message
+     * @throws XMPPException if the challenge is invalid
+     */
+    public String getFinalResponse(String challenge, char[] password) throws XMPPException {
+        if (clientFirstBare == null)
+            throw new IllegalStateException("Initial response must be created first");
+        String serverFirst = decode(challenge);
+        if (log.isDebugEnabled())
+            log.debug("Server first message: " + serverFirst);
+        String nonce = getAttribute(serverFirst, 'r');
+        String salt = getAttribute(serverFirst, 's');
+        String iterations = getAttribute(serverFirst, 'i');
+        if (nonce == null || salt == null || iterations == null)
+            throw new XMPPException("Invalid SCRAM challenge: " + serverFirst);
+        if (!nonce.startsWith(clientNonce) || nonce.length() == clientNonce.length())
+            throw new XMPPException("SCRAM server nonce does not extend the client nonce");
+        int iterationCount;
+        try {
+            iterationCount = Integer.parseInt(iterations);
+        } catch (NumberFormatException ex) {
+            throw new XMPPException("Invalid SCRAM iteration count: " + iterations);
+        }
+        String clientFinalWithoutProof = "c=" + GS2_HEADER_BASE64 + ",r=" + nonce;
+        byte[] authMessage = getBytes(clientFirstBare + "," + serverFirst + "," + clientFinalWithoutProof);
+        byte[] passwordBytes = getBytes(new String(password));
+        try {
+            ScramKeyCache.ScramKeys keys = cache.getKeys(macAlgorithm, account, passwordBytes, Base64.decode(salt), iterationCount);
+            byte[] storedKey = MessageDigest.getInstance(hashAlgorithm).digest(keys.getClientKey());
+            byte[] proof = hmac(storedKey, authMessage);
+            byte[] clientKey = keys.getClientKey();
+            for (int i = 0; i < proof.length; i++)
+                proof[i] ^= clientKey[i];
+            expectedServerSignature = hmac(keys.getServerKey(), authMessage);
+            return encode(clientFinalWithoutProof + ",p=" + Base64.encodeBytes(proof));
+        } catch (GeneralSecurityException ex) {
+            throw new XMPPException(ex);
+        }
+    }
+
+    /**
+     * Verifies the server-final-message. The server proves that it knows the
+     * password as well by sending its signature.
+     * 
+     * @param data the base64-encoded server-final-message
+     * @throws XMPPException if the server reported an error or its signature
+     *             is wrong
+     */
+    public void verifyServerFinal(String data) throws XMPPException {
+        if (expectedServerSignature == null)
+            throw new IllegalStateException("Final response must be created first");
+        String serverFinal = decode(data);
+        String error = getAttribute(serverFinal, 'e');
+        if (error != null)
+            throw new XMPPException("SCRAM authentication failed with error: " + error);
+        String verifier = getAttribute(serverFinal, 'v');
+        if (verifier == null || !MessageDigest.isEqual(expectedServerSignature, Base64.decode(verifier)))
+            throw new XMPPException("SCRAM server signature is invalid");
+    }
+
+    /**
+     * Forgets the cached keys of the account, ie. after the server rejected
+     * the proof
+     */
+    public void invalidateKeys() {
+        if (account != null)
+            cache.remove(account);
+    }
+
+    /**
+     * Generates the client nonce. Subclasses may override this for testing.
+     * 
+     * @return a random printable nonce without commas
+     */
+    protected String generateClientNonce() {
+        return SaslRandom.generateNonce();
+    }
+
+    private byte[] hmac(byte[] key, byte[] data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(macAlgorithm);
+        mac.init(new SecretKeySpec(key, macAlgorithm));
+        return mac.doFinal(data);
+    }
+
+    /**
+     * Retrieves the value of a single letter attribute from a SCRAM message
+     * 
+     * @return the value, or null if the attribute is not present
+     */
+    static String getAttribute(String message, char name) {
+        int start = 0;
+        while (start < message.length()) {
+            int end = message.indexOf(',', start);
+            if (end == -1)
+                end = message.length();
+            if (end - start >= 2 && message.charAt(start) == name && message.charAt(start + 1) == '=')
+                return message.substring(start + 2, end);
+            start = end + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Escapes the characters that are special in a SCRAM username
+     */
+    static String escapeUsername(String username) {
+        if (username.indexOf('=') == -1 && username.indexOf(',') == -1)
+            return username;
+        StringBuffer buf = new StringBuffer(username.length() + 8);
+        for (int i = 0; i < username.length(); i++) {
+            char c = username.charAt(i);
+            if (c == '=')
+                buf.append("=3D");
+            else if (c == ',')
+                buf.append("=2C");
+            else
+                buf.append(c);
+        }
+        return buf.toString();
+    }
+
+    private static String encode(String str) {
+        // strip the line breaks the encoder inserts into long output
+        return Base64.encodeBytes(getBytes(str)).replaceAll("\n", "");
+    }
+
+    private static String decode(String str) {
+        try {
+            return new String(Base64.decode(str.trim()), "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 encoding not supported");
+        }
+    }
+
+    private static byte[] getBytes(String str) {
+        try {
+            return str.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException("UTF-8 encoding not supported");
+        }
+    }
+}
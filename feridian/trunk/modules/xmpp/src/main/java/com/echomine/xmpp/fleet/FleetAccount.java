@@ -0,0 +1,92 @@
+package com.echomine.xmpp.fleet;
+
+/**
+ * The connection information and credentials of a single account to bring up
+ * with a fleet login.
+ * 
+ * @see FleetLogin
+ */
+public class FleetAccount {
+    private String host;
+    private int port;
+    private String domain;
+    private String username;
+    private char[] password;
+    private String resource;
+
+    /**
+     * Creates an account that connects to the server of the given domain.
+     * 
+     * @param host the host to connect to, also used as the domain
+     * @param port the port to connect to
+     * @param username the username to log in with
+     * @param password the password to log in with
+     * @param resource the resource to bind
+     */
+    public FleetAccount(String host, int port, String username, char[] password, String resource) {
+        this(host, port, host, username, password, resource);
+    }
+
+    /**
+     * @param host the host to connect to
+     * @param port the port to connect to
+     * @param domain the domain the account belongs to
+     * @param username the username to log in with
+     * @param password the password to log in with
+     * @param resource the resource to bind
+     */
+    public FleetAccount(String host, int port, String domain, String username, char[] password, String resource) {
+        this.host = host;
+        this.port = port;
+        this.domain = domain;
+        this.username = username;
+        this.password = password;
+        this.resource = resource;
+    }
+
+    /**
+     * @return the host to connect to
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the port to connect to
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the domain the account belongs to
+     */
+    public String getDomain() {
+        return domain;
+    }
+
+    /**
+     * @return the username to log in with
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return the password to log in with
+     */
+    public char[] getPassword() {
+        return password;
+    }
+
+    /**
+     * @return the resource to bind
+     */
+    public String getResource() {
+        return resource;
+    }
+
+    public String toString() {
+        return username + "@" + domain + "/" + resource;
+    }
+}
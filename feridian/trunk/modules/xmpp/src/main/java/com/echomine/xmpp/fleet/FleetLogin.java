@@ -0,0 +1,232 @@
+package com.echomine.xmpp.fleet;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.util.LatencyHistogram;
+import com.echomine.util.RateLimiter;
+import com.echomine.xmpp.ILoginStageListener;
+import com.echomine.xmpp.IXMPPConnection;
+import com.echomine.xmpp.XMPPConnectionFactory;
+import com.echomine.xmpp.XMPPException;
+import com.echomine.xmpp.ILoginStageListener.Stage;
+
+/**
+ * Brings up a large number of accounts from a single JVM. Starting thousands of
+ * logins at once overwhelms the server's TLS and SASL processing, while logging
+ * in one account at a time takes far too long. The fleet login works through
+ * the accounts with a bounded number of logins in progress at any time (the
+ * concurrency window), and optionally limits the rate at which each stage
+ * (connect, STARTTLS, SASL, resource binding) is started across the fleet.
+ * <p>
+ * The connections benefit from state shared within the JVM: the SSL context
+ * used for STARTTLS is created once and reused, and the stream features the
+ * server advertises after authentication are cached per host so that all but
+ * the first login pipeline their resource binding and session requests.
+ * </p>
+ * <p>
+ * The time spent in each stage is recorded in a histogram per stage (in
+ * microseconds). Time spent waiting for a rate limit is not included.
+ * </p>
+ * 
+ * <pre>
+ * FleetLogin fleet = new FleetLogin(XMPPConnectionFactory.getFactory());
+ * fleet.setConcurrency(200);
+ * fleet.setRateLimit(ILoginStageListener.Stage.TLS, 100);
+ * FleetLoginResult result = fleet.login(accounts);
+ * System.out.println(fleet.getReport());
+ * </pre>
+ */
+public class FleetLogin {
+    private static final Log log = LogFactory.getLog(FleetLogin.class);
+    private static final int DEFAULT_CONCURRENCY = 50;
+
+    private XMPPConnectionFactory factory;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private EnumMap<Stage, RateLimiter> rateLimits = new EnumMap<Stage, RateLimiter>(Stage.class);
+    private EnumMap<Stage, LatencyHistogram> histograms = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+
+    /**
+     * Creates a fleet login using the default connection factory
+     * 
+     * @throws XMPPException if the default factory cannot be created
+     */
+    public FleetLogin() throws XMPPException {
+        this(XMPPConnectionFactory.getFactory());
+    }
+
+    /**
+     * @param factory the factory to create connections with
+     */
+    public FleetLogin(XMPPConnectionFactory factory) {
+        this.factory = factory;
+        for (Stage stage : Stage.values())
+            histograms.put(stage, new LatencyHistogram());
+    }
+
+    /**
+     * Sets the maximum number of logins in progress at any time. The default
+     * is 50.
+     * 
+     * @param concurrency the size of the concurrency window
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @return the maximum number of logins in progress at any time
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * Limits the rate at which a stage is started across all the logins. No
+     * stage is limited by default.
+     * 
+     * @param stage the stage to limit
+     * @param perSecond the number of stages that may start each second, or 0
+     *            to remove the limit
+     */
+    public void setRateLimit(Stage stage, double perSecond) {
+        if (perSecond <= 0)
+            rateLimits.remove(stage);
+        else
+            rateLimits.put(stage, new RateLimiter(perSecond, 1));
+    }
+
+    /**
+     * Retrieves the histogram of the time spent in a stage, in microseconds.
+     * The histograms accumulate across calls to login() until reset.
+     * 
+     * @param stage the stage
+     * @return the histogram of the stage
+     */
+    public LatencyHistogram getStageHistogram(Stage stage) {
+        return histograms.get(stage);
+    }
+
+    /**
+     * Clears the stage histograms
+     */
+    public void resetHistograms() {
+        for (LatencyHistogram histogram : histograms.values())
+            histogram.reset();
+    }
+
+    /**
+     * @return a one line summary per stage of the stage histograms
+     */
+    public String getReport() {
+        StringBuffer buf = new StringBuffer(256);
+        for (Stage stage : Stage.values()) {
+            buf.append(stage).append(" (us): ");
+            buf.append(histograms.get(stage)).append('\n');
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Connects and logs in all the accounts. The method returns when every
+     * account either logged in or failed.
+     * 
+     * @param accounts the accounts to log in
+     * @return the connections and failures
+     * @throws InterruptedException if interrupted while waiting for the logins
+     *             to finish. Logins in progress are abandoned.
+     */
+    public FleetLoginResult login(List<FleetAccount> accounts) throws InterruptedException {
+        final FleetLoginResult result = new FleetLoginResult(accounts);
+        final CountDownLatch done = new CountDownLatch(accounts.size());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, Math.max(1, accounts.size())), new FleetThreadFactory());
+        try {
+            for (final FleetAccount account : accounts) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            login(account, result);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            executor.shutdownNow();
+        }
+        if (log.isInfoEnabled())
+            log.info("Fleet login finished: " + result.getConnectedCount() + " connected, " + result.getFailedCount() + " failed\n" + getReport());
+        return result;
+    }
+
+    /**
+     * Connects and logs in a single account
+     */
+    private void login(FleetAccount account, FleetLoginResult result) {
+        IXMPPConnection conn = factory.createXMPPConnection();
+        conn.setLoginStageListener(new StageRecorder());
+        try {
+            conn.connect(account.getHost(), account.getPort(), account.getDomain(), true);
+            conn.login(account.getUsername(), account.getPassword(), account.getResource());
+            conn.setLoginStageListener(null);
+            result.addConnection(account, conn);
+        } catch (Exception ex) {
+            if (log.isDebugEnabled())
+                log.debug("Login failed for " + account, ex);
+            conn.disconnect();
+            result.addFailure(account, ex);
+        }
+    }
+
+    /**
+     * Applies the rate limits and records the stage timings of one connection
+     */
+    class StageRecorder implements ILoginStageListener {
+        private long[] startTimes = new long[Stage.values().length];
+
+        public void stageStarted(Stage stage) {
+            RateLimiter limiter = rateLimits.get(stage);
+            if (limiter != null) {
+                try {
+                    limiter.acquire();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            startTimes[stage.ordinal()] = System.nanoTime();
+        }
+
+        public void stageCompleted(Stage stage) {
+            long start = startTimes[stage.ordinal()];
+            if (start != 0)
+                histograms.get(stage).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Creates daemon threads so an abandoned fleet login does not keep the JVM
+     * alive
+     */
+    static class FleetThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Feridian Fleet Login " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
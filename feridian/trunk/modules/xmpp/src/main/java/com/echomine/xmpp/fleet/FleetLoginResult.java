@@ -0,0 +1,131 @@
+package com.echomine.xmpp.fleet;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jibx.runtime.JiBXException;
+
+import com.echomine.jibx.StanzaTemplate;
+import com.echomine.xmpp.IDGenerator;
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.IXMPPConnection;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.SendPacketFailedException;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.XMPPException;
+import com.echomine.xmpp.packet.StanzaPacketBase;
+
+/**
+ * The outcome of a fleet login. Accounts that logged in successfully have their
+ * connections listed in the same order as the accounts were given. Accounts
+ * that failed are mapped to the exception that caused the failure. The
+ * connections of failed accounts are already disconnected.
+ */
+public class FleetLoginResult {
+    private Map<FleetAccount, IXMPPConnection> connections = new LinkedHashMap<FleetAccount, IXMPPConnection>();
+    private Map<FleetAccount, Exception> failures = new LinkedHashMap<FleetAccount, Exception>();
+
+    FleetLoginResult(List<FleetAccount> accounts) {
+        // reserve the order of the accounts
+        for (FleetAccount account : accounts)
+            connections.put(account, null);
+    }
+
+    synchronized void addConnection(FleetAccount account, IXMPPConnection conn) {
+        connections.put(account, conn);
+    }
+
+    synchronized void addFailure(FleetAccount account, Exception ex) {
+        connections.remove(account);
+        failures.put(account, ex);
+    }
+
+    /**
+     * @return the connections that are logged in
+     */
+    public synchronized List<IXMPPConnection> getConnections() {
+        List<IXMPPConnection> list = new ArrayList<IXMPPConnection>(connections.size());
+        for (IXMPPConnection conn : connections.values()) {
+            if (conn != null)
+                list.add(conn);
+        }
+        return list;
+    }
+
+    /**
+     * @param account the account to look up
+     * @return the connection of the account, or null if it is not logged in
+     */
+    public synchronized IXMPPConnection getConnection(FleetAccount account) {
+        return connections.get(account);
+    }
+
+    /**
+     * @return the accounts that failed to log in, mapped to the cause of the
+     *         failure
+     */
+    public synchronized Map<FleetAccount, Exception> getFailures() {
+        return new LinkedHashMap<FleetAccount, Exception>(failures);
+    }
+
+    /**
+     * @return the number of accounts logged in
+     */
+    public int getConnectedCount() {
+        return getConnections().size();
+    }
+
+    /**
+     * @return the number of accounts that failed to log in
+     */
+    public synchronized int getFailedCount() {
+        return failures.size();
+    }
+
+    /**
+     * Sends a copy of the packet to each of the recipients, spreading the
+     * recipients evenly over the connections that are logged in. The packet is
+     * marshalled only once for all the connections. If the packet has no id,
+     * each copy is given a unique id.
+     * 
+     * @param packet the packet to send
+     * @param recipients the recipients of the copies
+     * @throws SendPacketFailedException if no connection is logged in, the
+     *             packet cannot be marshalled or the copies cannot be queued
+     * @see IXMPPConnection#broadcastPacket(IStanzaPacket, java.util.Collection)
+     */
+    public void broadcastPacket(IStanzaPacket packet, List<JID> recipients) throws SendPacketFailedException {
+        if (!(packet instanceof StanzaPacketBase))
+            throw new IllegalArgumentException("Only packets extending StanzaPacketBase can be broadcast");
+        List<IXMPPConnection> conns = getConnections();
+        if (conns.isEmpty())
+            throw new SendPacketFailedException("No connections are logged in");
+        StanzaTemplate template;
+        try {
+            String idPrefix = packet.getId() == null ? IDGenerator.nextID() : null;
+            template = StanzaTemplate.compile((StanzaPacketBase) packet, XMPPConstants.NS_XMPP_CLIENT, idPrefix);
+        } catch (JiBXException ex) {
+            throw new SendPacketFailedException(ex);
+        } catch (XMPPException ex) {
+            throw new SendPacketFailedException(ex);
+        }
+        int size = recipients.size();
+        int count = conns.size();
+        for (int i = 0; i < count; i++) {
+            int from = (int) ((long) size * i / count);
+            int to = (int) ((long) size * (i + 1) / count);
+            if (from < to)
+                conns.get(i).broadcastPacket(template, recipients.subList(from, to));
+        }
+    }
+
+    /**
+     * Disconnects all the connections that are logged in
+     */
+    public void disconnectAll() {
+        for (IXMPPConnection conn : getConnections())
+            conn.disconnect();
+    }
+}
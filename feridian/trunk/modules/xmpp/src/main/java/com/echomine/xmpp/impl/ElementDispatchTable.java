@@ -0,0 +1,166 @@
+package com.echomine.xmpp.impl;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.packet.ErrorPacket;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PresencePacket;
+
+/**
+ * Maps the top-level elements read from the stream to the handlers that
+ * process them. Elements are looked up by namespace and local name with two
+ * hash lookups, instead of comparing the element against every known stanza in
+ * turn. Extensions can register handlers for additional top-level elements
+ * (ie. stream management &lt;r/&gt; and &lt;a/&gt;, or component namespace
+ * stanzas) without changes to the connection handler.
+ * <p>
+ * Lookups do not lock. Registration copies the table, thus it is meant to be
+ * done at startup rather than while stanzas are being dispatched.
+ * </p>
+ */
+public class ElementDispatchTable {
+    private static final Log log = LogFactory.getLog(ElementDispatchTable.class);
+    private static ElementDispatchTable table;
+
+    private volatile HashMap<String, HashMap<String, IElementHandler>> handlers = new HashMap<String, HashMap<String, IElementHandler>>();
+
+    /**
+     * Retrieves the table shared by all connections. It contains the handlers
+     * for presence, message and iq stanzas and for stream errors.
+     * 
+     * @return the shared table
+     */
+    public static synchronized ElementDispatchTable getTable() {
+        if (table == null) {
+            table = new ElementDispatchTable();
+            table.registerDefaults();
+        }
+        return table;
+    }
+
+    /**
+     * Creates an empty table. Normal users will register handlers with the
+     * shared table instead.
+     */
+    public ElementDispatchTable() {
+        super();
+    }
+
+    /**
+     * Registers a handler for the element. Any handler already registered for
+     * the element is replaced.
+     * 
+     * @param ns the namespace of the element
+     * @param name the local name of the element
+     * @param handler the handler to process the element
+     */
+    public synchronized void register(String ns, String name, IElementHandler handler) {
+        if (ns == null || name == null || handler == null)
+            throw new IllegalArgumentException("Namespace, name and handler cannot be null");
+        HashMap<String, HashMap<String, IElementHandler>> copy = new HashMap<String, HashMap<String, IElementHandler>>(handlers);
+        HashMap<String, IElementHandler> names = copy.get(ns);
+        names = names == null ? new HashMap<String, IElementHandler>() : new HashMap<String, IElementHandler>(names);
+        names.put(name.intern(), handler);
+        copy.put(ns.intern(), names);
+        handlers = copy;
+    }
+
+    /**
+     * Removes the handler for the element
+     * 
+     * @param ns the namespace of the element
+     * @param name the local name of the element
+     */
+    public synchronized void unregister(String ns, String name) {
+        HashMap<String, IElementHandler> names = handlers.get(ns);
+        if (names == null || !names.containsKey(name))
+            return;
+        HashMap<String, HashMap<String, IElementHandler>> copy = new HashMap<String, HashMap<String, IElementHandler>>(handlers);
+        names = new HashMap<String, IElementHandler>(names);
+        names.remove(name);
+        if (names.isEmpty())
+            copy.remove(ns);
+        else
+            copy.put(ns, names);
+        handlers = copy;
+    }
+
+    /**
+     * Looks up the handler for the element
+     * 
+     * @param ns the namespace of the element
+     * @param name the local name of the element
+     * @return the handler, or null if the element is unknown
+     */
+    public IElementHandler lookup(String ns, String name) {
+        HashMap<String, IElementHandler> names = handlers.get(ns);
+        if (names == null)
+            return null;
+        return names.get(name);
+    }
+
+    /**
+     * Registers the handlers for the elements of the client stream
+     */
+    private void registerDefaults() {
+        try {
+            register(XMPPConstants.NS_XMPP_CLIENT, "presence", new PresenceHandler());
+            register(XMPPConstants.NS_XMPP_CLIENT, "message", new MessageHandler());
+            register(XMPPConstants.NS_XMPP_CLIENT, "iq", new IQHandler());
+            register(XMPPConstants.NS_JABBER_STREAM, "error", new StreamErrorHandler());
+        } catch (JiBXException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unable to find bindings for the core stanzas.  Check to make sure binding files exist.", ex);
+        }
+    }
+
+    static class PresenceHandler extends UnmarshallingElementHandler {
+        PresenceHandler() throws JiBXException {
+            super(PresencePacket.class);
+        }
+
+        public IStanzaPacket handleElement(XMPPConnectionHandler handler, UnmarshallingContext uctx) throws JiBXException {
+            return handler.handlePresence((PresencePacket) unmarshall(uctx));
+        }
+    }
+
+    static class MessageHandler extends UnmarshallingElementHandler {
+        MessageHandler() throws JiBXException {
+            super(MessagePacket.class);
+        }
+
+        public IStanzaPacket handleElement(XMPPConnectionHandler handler, UnmarshallingContext uctx) throws JiBXException {
+            return handler.handleMessage((MessagePacket) unmarshall(uctx));
+        }
+    }
+
+    static class IQHandler extends UnmarshallingElementHandler {
+        IQHandler() throws JiBXException {
+            super(IQPacket.class);
+        }
+
+        public IStanzaPacket handleElement(XMPPConnectionHandler handler, UnmarshallingContext uctx) throws JiBXException {
+            return handler.handleIQ((IQPacket) unmarshall(uctx));
+        }
+    }
+
+    static class StreamErrorHandler extends UnmarshallingElementHandler {
+        StreamErrorHandler() throws JiBXException {
+            super(ErrorPacket.class);
+        }
+
+        public IStanzaPacket handleElement(XMPPConnectionHandler handler, UnmarshallingContext uctx) throws JiBXException, IOException {
+            handler.handleStreamError((ErrorPacket) unmarshall(uctx));
+            return null;
+        }
+    }
+}
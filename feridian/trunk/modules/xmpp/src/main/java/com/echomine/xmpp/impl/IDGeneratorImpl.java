@@ -1,5 +1,8 @@
 package com.echomine.xmpp.impl;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 import com.echomine.xmpp.IDGenerator;
 
 /**
@@ -8,17 +11,127 @@ import com.echomine.xmpp.IDGenerator;
  * number. This is to make the ID attribute conform to the XML Specification.
  * The XML standard states that the unique ID attribute in an XML document must
  * begin with an alphabet(a-z), underscore(_), or colon(:).
+ * <p>
+ * The sequence is split into stripes of atomic counters. Each thread takes
+ * numbers from the stripe chosen by its thread id, and the stripe index is
+ * stored in the low bits of the number, thus numbers are unique without any
+ * locking and threads rarely contend on the same counter. Sequence numbers
+ * are written in base 62 to keep the ids short. Each connection generator
+ * has a prefix of its own (ie. frdn3_), so ids are also unique across
+ * connections.
+ * </p>
  */
 public class IDGeneratorImpl extends IDGenerator {
     private static final String ID_HEADER = "frdn_";
-    private int id;
+    private static final char[] DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+    private static final int MAX_DIGITS = 11;
+    private static final int STRIPE_BITS = 4;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+    // counters are spaced apart so they do not share a cache line
+    private static final int STRIPE_SPACING = 8;
+    private static final AtomicInteger connectionCount = new AtomicInteger();
+
+    private final String header;
+    private final AtomicLongArray counters = new AtomicLongArray(STRIPES * STRIPE_SPACING);
+
+    public IDGeneratorImpl() {
+        this(ID_HEADER);
+    }
+
+    /**
+     * @param header the prefix of the ids, which must begin with a letter or
+     *            underscore
+     */
+    protected IDGeneratorImpl(String header) {
+        this.header = header;
+    }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.echomine.xmpp.IDGenerator#generateID()
+     */
     protected String generateID() {
-        return String.valueOf(ID_HEADER + increment());
+        long value = nextSequence();
+        int len = header.length();
+        char[] buf = new char[len + MAX_DIGITS];
+        header.getChars(0, len, buf, 0);
+        int pos = buf.length;
+        do {
+            buf[--pos] = DIGITS[(int) (value % 62)];
+            value /= 62;
+        } while (value != 0);
+        System.arraycopy(buf, pos, buf, len, buf.length - pos);
+        return new String(buf, 0, len + buf.length - pos);
     }
 
+    /**
+     * Retrieves the next sequence number, truncated to an int.
+     *
+     * @return the low 32 bits of the next sequence number
+     * @deprecated sequence numbers no longer fit in an int, use
+     *             {@link #nextSequence()} instead
+     */
     public int increment() {
-        // this is an atomic operation, no need for synchronization
-        return id++;
+        return (int) nextSequence();
+    }
+
+    /**
+     * Retrieves the next sequence number from the stripe of the current
+     * thread.
+     *
+     * @return the next sequence number
+     */
+    public long nextSequence() {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        return (counters.getAndIncrement(stripe * STRIPE_SPACING) << STRIPE_BITS) | stripe;
+    }
+
+    /*
+     * Each connection generator has a distinct prefix based on a counter.
+     *
+     * @see com.echomine.xmpp.IDGenerator#createConnectionGenerator()
+     */
+    protected IDGenerator createConnectionGenerator() {
+        int count = connectionCount.incrementAndGet();
+        StringBuffer buf = new StringBuffer(8);
+        buf.append(ID_HEADER, 0, ID_HEADER.length() - 1);
+        do {
+            buf.append(DIGITS[count % 62]);
+            count /= 62;
+        } while (count != 0);
+        buf.append('_');
+        return new IDGeneratorImpl(buf.toString());
+    }
+
+    /*
+     * Decodes the base 62 digits following the header without allocating.
+     *
+     * @see com.echomine.xmpp.IDGenerator#toNumericID(java.lang.String)
+     */
+    public long toNumericID(String id) {
+        int len = header.length();
+        if (id == null || id.length() <= len || id.length() > len + MAX_DIGITS || !id.startsWith(header))
+            return -1;
+        // leading zeros are never generated
+        if (id.charAt(len) == '0' && id.length() > len + 1)
+            return -1;
+        long value = 0;
+        for (int i = len; i < id.length(); i++) {
+            char ch = id.charAt(i);
+            int digit;
+            if (ch >= '0' && ch <= '9')
+                digit = ch - '0';
+            else if (ch >= 'A' && ch <= 'Z')
+                digit = ch - 'A' + 10;
+            else if (ch >= 'a' && ch <= 'z')
+                digit = ch - 'a' + 36;
+            else
+                return -1;
+            if (value > (Long.MAX_VALUE - digit) / 62)
+                return -1;
+            value = value * 62 + digit;
+        }
+        return value;
     }
 }
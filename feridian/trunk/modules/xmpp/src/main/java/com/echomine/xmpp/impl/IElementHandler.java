@@ -0,0 +1,31 @@
+package com.echomine.xmpp.impl;
+
+import java.io.IOException;
+
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.xmpp.IStanzaPacket;
+
+/**
+ * Processes a top-level element read from the stream (ie. a stanza, a stream
+ * error or a stream management request). Handlers are registered in an
+ * ElementDispatchTable under the namespace and local name of the element they
+ * process.
+ */
+public interface IElementHandler {
+    /**
+     * Processes the element the context is positioned at. The handler must
+     * consume the entire element, ie. by unmarshalling it or skipping it. The
+     * context is left either at the end tag of the element (as the packet
+     * unmarshallers do) or at the event following it.
+     * 
+     * @param handler the connection the element was read from
+     * @param uctx the context positioned at the start tag of the element
+     * @return the packet to deliver to listeners and waiting requests, or null
+     *         if the element is consumed without producing a packet
+     * @throws JiBXException if the element cannot be unmarshalled
+     * @throws IOException if the stream should be closed
+     */
+    IStanzaPacket handleElement(XMPPConnectionHandler handler, UnmarshallingContext uctx) throws JiBXException, IOException;
+}
@@ -0,0 +1,207 @@
+package com.echomine.xmpp.impl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of stanzas each sender can push through a connection. Each
+ * bare JID has a token bucket, kept as a single timestamp: the time at which
+ * the sender's next stanza is admitted (a generic cell rate algorithm). A
+ * sender whose bucket is full again is indistinguishable from a sender that
+ * was never seen, thus idle senders are evicted from the map without losing
+ * anything, and the map is bounded by evicting them once it grows too large.
+ * Evicting is done in batches, down to three quarters of the bound, so that
+ * it is rare even when no sender is idle.
+ * <p>
+ * The guard only needs the sender's address, so the decision is made on the
+ * start tag of a stanza and rejected stanzas are skipped without being
+ * unmarshalled. Stanzas over the limit are dropped or only counted; they are
+ * never delayed, as holding up the connection's single reading thread would
+ * hold up every other sender as well.
+ * </p>
+ * <p>
+ * The error replies to dropped requests are limited by a second bucket per
+ * sender at the same rate, so that a flood of requests is not answered by a
+ * flood of errors.
+ * </p>
+ */
+public class InboundFloodGuard {
+    /** What is done with stanzas over the limit */
+    public enum Action {
+        /** the stanza is skipped */
+        DROP,
+        /** the stanza is processed and only counted */
+        COUNT
+    }
+
+    private static final int DEFAULT_MAX_SENDERS = 10000;
+
+    private final ConcurrentHashMap<String, AtomicLong> senders = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, AtomicLong> replies = new ConcurrentHashMap<String, AtomicLong>();
+    private final int maxSenders;
+    private final AtomicLong overLimit = new AtomicLong();
+    private volatile long interval;
+    private volatile long burstAllowance;
+    private volatile Action action = Action.DROP;
+    private volatile boolean enabled;
+
+    public InboundFloodGuard() {
+        this(DEFAULT_MAX_SENDERS);
+    }
+
+    /**
+     * @param maxSenders the number of senders above which idle senders are
+     *            evicted
+     */
+    public InboundFloodGuard(int maxSenders) {
+        this.maxSenders = maxSenders;
+    }
+
+    /**
+     * Sets the limit of each sender. Senders already tracked are forgotten.
+     *
+     * @param rate the stanzas per second each sender may send, 0 for no limit
+     * @param burst the stanzas a sender may send at once
+     * @param action what is done with stanzas over the limit
+     */
+    public void setLimits(double rate, int burst, Action action) {
+        if (rate > 0) {
+            interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            burstAllowance = interval * (Math.max(burst, 1) - 1);
+        }
+        this.action = action == null ? Action.DROP : action;
+        senders.clear();
+        replies.clear();
+        enabled = rate > 0;
+    }
+
+    /**
+     * @return true if senders are limited
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return what is done with stanzas over the limit
+     */
+    public Action getAction() {
+        return action;
+    }
+
+    /**
+     * @return the number of stanzas that were over the limit of their sender
+     */
+    public long getOverLimitCount() {
+        return overLimit.get();
+    }
+
+    /**
+     * @return the number of senders currently tracked
+     */
+    public int getSenderCount() {
+        return senders.size();
+    }
+
+    /**
+     * Checks a stanza against the limit of its sender.
+     *
+     * @param from the from attribute of the stanza, may be null
+     * @return 0 if the stanza is within the limit, otherwise the time in ns
+     *         until it would be
+     */
+    public long admit(String from) {
+        if (!enabled || from == null)
+            return 0;
+        long wait = take(senders, from);
+        if (wait > 0)
+            overLimit.incrementAndGet();
+        return wait;
+    }
+
+    /**
+     * Checks whether an error reply may be sent to a sender whose request was
+     * dropped. The replies to each sender are limited to the same rate as its
+     * stanzas.
+     *
+     * @param from the from attribute of the dropped request, may be null
+     * @return true if the reply may be sent
+     */
+    public boolean admitReply(String from) {
+        if (!enabled || from == null)
+            return true;
+        return take(replies, from) == 0;
+    }
+
+    /**
+     * Takes a permit from the sender's bucket if it has one.
+     *
+     * @return 0 if a permit was taken, otherwise the time in ns until one is
+     *         available
+     */
+    private long take(ConcurrentHashMap<String, AtomicLong> buckets, String from) {
+        String sender = bareJID(from);
+        long now = System.nanoTime();
+        AtomicLong next = buckets.get(sender);
+        if (next == null) {
+            if (buckets.size() >= maxSenders)
+                evict(buckets, now);
+            next = new AtomicLong(now - burstAllowance);
+            AtomicLong existing = buckets.putIfAbsent(sender, next);
+            if (existing != null)
+                next = existing;
+        }
+        while (true) {
+            long current = next.get();
+            // permits do not accumulate beyond the burst
+            long start = Math.max(current, now - burstAllowance);
+            long wait = start - now;
+            if (wait > 0)
+                return wait;
+            if (next.compareAndSet(current, start + interval))
+                return 0;
+        }
+    }
+
+    /**
+     * Removes the senders whose buckets are full again. If that does not
+     * bring the map down to three quarters of its bound, the senders whose
+     * buckets are the closest to full are removed as well: forgetting them
+     * gives them the fewest extra permits, while the senders that used up
+     * their burst are the last to be forgotten.
+     */
+    private void evict(ConcurrentHashMap<String, AtomicLong> buckets, long now) {
+        int target = maxSenders * 3 / 4;
+        long idle = now - burstAllowance;
+        Iterator<AtomicLong> iter = buckets.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().get() <= idle)
+                iter.remove();
+        }
+        int excess = buckets.size() - target;
+        if (excess <= 0)
+            return;
+        long[] times = new long[buckets.size()];
+        int count = 0;
+        iter = buckets.values().iterator();
+        while (count < times.length && iter.hasNext())
+            times[count++] = iter.next().get();
+        Arrays.sort(times, 0, count);
+        long fullest = times[Math.min(excess, count) - 1];
+        iter = buckets.values().iterator();
+        while (excess > 0 && iter.hasNext()) {
+            if (iter.next().get() <= fullest) {
+                iter.remove();
+                excess--;
+            }
+        }
+    }
+
+    private static String bareJID(String jid) {
+        int slash = jid.indexOf('/');
+        return slash < 0 ? jid : jid.substring(0, slash);
+    }
+}
@@ -0,0 +1,308 @@
+package com.echomine.xmpp.impl;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.xmpp.SendPacketFailedException;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.PingIQPacket;
+import com.echomine.xmpp.packet.XMLTextPacket;
+
+/**
+ * Keeps idle connections alive and detects dead ones. All connections share a
+ * single daemon timer thread that drives a hashed timer wheel, thus the cost of
+ * keepalive support does not grow with the number of connections (there is no
+ * thread or java.util.Timer per connection).
+ * <p>
+ * Each registered connection is given a task. The connection handler calls
+ * {@link Task#touch()} whenever data is read from the remote entity. This only
+ * copies the coarse clock maintained by the timer thread into a volatile field,
+ * thus recording inbound activity is practically free. When the connection has
+ * not received anything for the configured idle time, a keepalive is queued:
+ * <ul>
+ * <li>WHITESPACE mode sends a single space between stanzas. This keeps NAT
+ * and firewall mappings open and detects write failures.</li>
+ * <li>PING mode sends a urn:xmpp:ping IQ (XEP-0199). If nothing at all is
+ * received from the remote entity within the ping timeout, the connection is
+ * considered dead and is forcibly shut down.</li>
+ * </ul>
+ * Keepalives are only sent after the session is authenticated. Packets are
+ * queued through the connection's packet queue rather than written by the timer
+ * thread, so a blocked connection can never stall the keepalives of other
+ * connections.
+ * </p>
+ */
+public class KeepAliveScheduler implements Runnable {
+    private static final Log log = LogFactory.getLog(KeepAliveScheduler.class);
+    private static final String THREAD_NAME = "Feridian KeepAlive Timer";
+    private static final long DEFAULT_TICK_DURATION = 500;
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+    private static KeepAliveScheduler scheduler;
+
+    /** The type of keepalive to send */
+    public enum Mode {
+        NONE, WHITESPACE, PING
+    }
+
+    private final long tickDuration;
+    private final Task[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Task> pendingTasks = new ConcurrentLinkedQueue<Task>();
+    private volatile long currentTime = System.currentTimeMillis();
+    private long tick;
+    private Thread timerThread;
+
+    /**
+     * Retrieves the scheduler shared by all connections. The scheduler's timer
+     * thread is started lazily when the first connection is registered.
+     *
+     * @return the shared scheduler
+     */
+    public static synchronized KeepAliveScheduler getScheduler() {
+        if (scheduler == null)
+            scheduler = new KeepAliveScheduler(DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+        return scheduler;
+    }
+
+    /**
+     * Creates a new scheduler. Normal users will use the shared scheduler
+     * instead of creating their own.
+     *
+     * @param tickDuration the resolution of the timer in milliseconds
+     * @param wheelSize the number of buckets in the wheel (rounded up to a
+     *            power of 2)
+     */
+    public KeepAliveScheduler(long tickDuration, int wheelSize) {
+        if (tickDuration <= 0)
+            throw new IllegalArgumentException("Tick duration must be positive");
+        int size = 1;
+        while (size < wheelSize)
+            size <<= 1;
+        this.tickDuration = tickDuration;
+        this.wheel = new Task[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Registers a connection for keepalive processing.
+     *
+     * @param handler the connection handler to keep alive
+     * @param mode the type of keepalive to send
+     * @param idleTime the time in ms without inbound data before a keepalive
+     *            is sent
+     * @param pingTimeout the time in ms to wait for any inbound data after a
+     *            ping is sent before the connection is shut down
+     * @return the task for the connection, or null if mode is NONE
+     */
+    public Task register(XMPPConnectionHandler handler, Mode mode, long idleTime, long pingTimeout) {
+        if (mode == null || mode == Mode.NONE || idleTime <= 0)
+            return null;
+        Task task = new Task(handler, mode, idleTime, pingTimeout);
+        task.deadline = currentTime + idleTime;
+        pendingTasks.add(task);
+        startTimer();
+        return task;
+    }
+
+    /**
+     * The coarse clock maintained by the timer thread. It is updated once per
+     * tick and is cheaper to read than the system clock.
+     *
+     * @return the current time in ms, accurate to within one tick
+     */
+    public long currentTime() {
+        return currentTime;
+    }
+
+    /**
+     * Starts the timer thread if it is not started already
+     */
+    private synchronized void startTimer() {
+        if (timerThread != null && timerThread.isAlive())
+            return;
+        timerThread = new Thread(this);
+        timerThread.setName(THREAD_NAME);
+        timerThread.setDaemon(true);
+        timerThread.start();
+    }
+
+    /*
+     * Advances the wheel by one bucket every tick, expiring any tasks whose
+     * deadlines are reached.
+     *
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        long nextTick = System.currentTimeMillis() + tickDuration;
+        while (true) {
+            long sleepTime = nextTick - System.currentTimeMillis();
+            if (sleepTime > 0) {
+                try {
+                    Thread.sleep(sleepTime);
+                } catch (InterruptedException ex) {
+                    // intentionally left empty
+                }
+                continue;
+            }
+            nextTick += tickDuration;
+            currentTime = System.currentTimeMillis();
+            tick++;
+            Task task;
+            while ((task = pendingTasks.poll()) != null)
+                schedule(task);
+            expireBucket((int) (tick & mask));
+        }
+    }
+
+    /**
+     * Places the task into the bucket for its deadline. Called only by the
+     * timer thread.
+     */
+    private void schedule(Task task) {
+        if (task.cancelled)
+            return;
+        long ticks = (task.deadline - currentTime + tickDuration - 1) / tickDuration;
+        if (ticks < 1)
+            ticks = 1;
+        task.remainingRounds = (ticks - 1) / wheel.length;
+        int idx = (int) ((tick + ticks) & mask);
+        task.next = wheel[idx];
+        wheel[idx] = task;
+    }
+
+    /**
+     * Expires the tasks in the bucket that are due in the current round. The
+     * bucket is detached first so that tasks rescheduled during expiration are
+     * never visited twice in the same tick.
+     */
+    private void expireBucket(int idx) {
+        Task task = wheel[idx];
+        wheel[idx] = null;
+        Task next;
+        while (task != null) {
+            next = task.next;
+            task.next = null;
+            if (task.cancelled) {
+                // drop it
+            } else if (task.remainingRounds > 0) {
+                task.remainingRounds--;
+                task.next = wheel[idx];
+                wheel[idx] = task;
+            } else {
+                try {
+                    if (task.expire(currentTime))
+                        schedule(task);
+                } catch (RuntimeException ex) {
+                    if (log.isWarnEnabled())
+                        log.warn("Unexpected error while processing keepalive. Keepalive is cancelled for connection", ex);
+                }
+            }
+            task = next;
+        }
+    }
+
+    /**
+     * The keepalive state of a single connection.
+     */
+    public class Task {
+        private final XMPPConnectionHandler handler;
+        private final Mode mode;
+        private final long idleTime;
+        private final long pingTimeout;
+        private volatile long lastReceived = currentTime;
+        private volatile boolean cancelled;
+        private long pingSentTime;
+        private boolean awaitingPing;
+        // wheel bookkeeping, accessed only by the timer thread
+        private long deadline;
+        private long remainingRounds;
+        private Task next;
+
+        Task(XMPPConnectionHandler handler, Mode mode, long idleTime, long pingTimeout) {
+            this.handler = handler;
+            this.mode = mode;
+            this.idleTime = idleTime;
+            this.pingTimeout = pingTimeout;
+        }
+
+        /**
+         * Records that data was received from the remote entity.
+         */
+        public void touch() {
+            lastReceived = currentTime;
+        }
+
+        /**
+         * Cancels keepalive processing for the connection. The task is removed
+         * from the wheel lazily.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * @return true if the task is cancelled
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Checks the connection when its deadline is reached.
+         *
+         * @param now the current coarse time
+         * @return true if the task should be scheduled again
+         */
+        boolean expire(long now) {
+            if (cancelled)
+                return false;
+            if (!handler.isKeepAliveActive()) {
+                // not logged in yet or paused for stream processing
+                awaitingPing = false;
+                deadline = now + idleTime;
+                return true;
+            }
+            if (awaitingPing) {
+                awaitingPing = false;
+                if (lastReceived < pingSentTime) {
+                    if (log.isWarnEnabled())
+                        log.warn("No data received within " + pingTimeout + "ms of sending ping.  Connection is considered dead, shutting down...");
+                    cancelled = true;
+                    handler.keepAliveTimedOut();
+                    return false;
+                }
+            }
+            long idle = now - lastReceived;
+            if (idle < idleTime) {
+                deadline = lastReceived + idleTime;
+                return true;
+            }
+            try {
+                // keepalives are control packets, thus a full outgoing queue
+                // does not hold up the timer thread
+                if (mode == Mode.PING && pingTimeout > 0) {
+                    if (handler.offerControlPacket(new PingIQPacket(IQPacket.TYPE_GET))) {
+                        pingSentTime = now;
+                        awaitingPing = true;
+                        deadline = now + pingTimeout;
+                    } else {
+                        deadline = now + idleTime;
+                    }
+                } else {
+                    XMLTextPacket whitespace = new XMLTextPacket();
+                    whitespace.setText(" ");
+                    handler.offerControlPacket(whitespace);
+                    deadline = now + idleTime;
+                }
+            } catch (SendPacketFailedException ex) {
+                if (log.isInfoEnabled())
+                    log.info("Unable to queue keepalive.  Connection is likely closed.", ex);
+                cancelled = true;
+                return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package com.echomine.xmpp.impl;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.LaneStatistics;
+import com.echomine.xmpp.PacketLane;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.packet.IMPacket;
+import com.echomine.xmpp.packet.BroadcastPacket;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PresencePacket;
+import com.echomine.xmpp.packet.StanzaPacketBase;
+
+/**
+ * The queue of outgoing packets, with one lane per packet lane. Packets are
+ * taken in weighted round robin: each lane may send as many packets as its
+ * weight before the lanes below it get their turn, and the weights are
+ * renewed once every lane with packets waiting used up its share. A control
+ * packet thus waits for at most the shares of the other lanes, however many
+ * bulk packets are queued before it, and no lane is starved. Packets within a
+ * lane are sent in the order they were queued.
+ * <p>
+ * Packets queued with a coalescing key can be superseded while they wait: the
+ * queued packet is then never sent, and the newer packet with the same key is
+ * queued at the end of its lane like any other, so that it is not sent ahead
+ * of stanzas queued before it. Superseded entries are left in their lane and
+ * skipped when they reach its head.
+ * </p>
+ */
+class LaneQueue {
+    private static final PacketLane[] LANES = PacketLane.values();
+    private static final int[] DEFAULT_WEIGHTS = { 8, 4, 2, 1 };
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final LinkedList<Entry>[] lanes;
+    private final int[] weights = new int[LANES.length];
+    private final int[] credits = new int[LANES.length];
+    private final long[] sent = new long[LANES.length];
+    private final long[] totalWait = new long[LANES.length];
+    private final long[] maxWait = new long[LANES.length];
+    private final long[] coalesced = new long[LANES.length];
+    private final int[] superseded = new int[LANES.length];
+    private final HashMap<String, Entry> pending = new HashMap<String, Entry>();
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    LaneQueue() {
+        lanes = new LinkedList[LANES.length];
+        for (int i = 0; i < LANES.length; i++) {
+            lanes[i] = new LinkedList<Entry>();
+            weights[i] = DEFAULT_WEIGHTS[i];
+            credits[i] = DEFAULT_WEIGHTS[i];
+        }
+    }
+
+    /**
+     * Sets how many packets each lane may send in turn.
+     * 
+     * @param weights the weights in the order of the lanes, each at least 1
+     */
+    void setWeights(int[] weights) {
+        if (weights.length != LANES.length)
+            throw new IllegalArgumentException("A weight is needed for each of the " + LANES.length + " lanes");
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] < 1)
+                throw new IllegalArgumentException("Lane weights must be at least 1");
+        }
+        lock.lock();
+        try {
+            for (int i = 0; i < weights.length; i++) {
+                this.weights[i] = weights[i];
+                credits[i] = weights[i];
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the packet to the end of its lane.
+     * 
+     * @param packet the packet to queue
+     * @param lane the lane of the packet
+     * @param key the key under which a newer packet supersedes this one, or
+     *            null if the packet is never superseded
+     * @param control true if the packet is generated by the connection itself
+     */
+    void put(IStanzaPacket packet, PacketLane lane, String key, boolean control) {
+        Entry entry = new Entry(packet, lane, key, control, System.nanoTime());
+        lock.lock();
+        try {
+            lanes[lane.ordinal()].addLast(entry);
+            if (key != null)
+                pending.put(key, entry);
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the packet still waiting under the key, if there is one. The
+     * superseded packet is dropped and the newer one is added to the end of
+     * its lane.
+     * 
+     * @param key the coalescing key of the packet
+     * @param packet the newer packet
+     * @param lane the lane of the packet
+     * @return the superseded packet, or null if no packet waits under the key
+     *         and the packet must be queued
+     */
+    IStanzaPacket replace(String key, IStanzaPacket packet, PacketLane lane) {
+        lock.lock();
+        try {
+            Entry entry = pending.get(key);
+            if (entry == null)
+                return null;
+            IStanzaPacket packetSuperseded = entry.packet;
+            entry.packet = null;
+            superseded[entry.lane.ordinal()]++;
+            Entry newer = new Entry(packet, lane, key, false, System.nanoTime());
+            lanes[lane.ordinal()].addLast(newer);
+            pending.put(key, newer);
+            coalesced[lane.ordinal()]++;
+            notEmpty.signal();
+            return packetSuperseded;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next packet, waiting until there is one.
+     * 
+     * @return the next packet to send
+     * @throws InterruptedException if interrupted while waiting
+     */
+    IStanzaPacket take() throws InterruptedException {
+        return takeEntry().packet;
+    }
+
+    /**
+     * @return the next packet to send, or null if the queue is empty
+     */
+    IStanzaPacket poll() {
+        Entry entry = pollEntry();
+        return entry == null ? null : entry.packet;
+    }
+
+    /**
+     * Takes the next packet along with the time it was queued, waiting until
+     * there is one.
+     * 
+     * @return the entry of the next packet to send
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Entry takeEntry() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0)
+                notEmpty.await();
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next packet along with the time it was queued, waiting up to
+     * the timeout for one.
+     * 
+     * @param timeout the time in ns to wait
+     * @return the entry of the next packet to send, or null if there was none
+     *         in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Entry pollEntry(long timeout) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (timeout <= 0)
+                    return null;
+                timeout = notEmpty.awaitNanos(timeout);
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the entry of the next packet to send, or null if the queue is
+     *         empty
+     */
+    Entry pollEntry() {
+        lock.lock();
+        try {
+            return size == 0 ? null : next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of packets queued in all lanes
+     */
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if no packets are queued
+     */
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Removes all queued packets. The statistics are kept.
+     */
+    void clear() {
+        lock.lock();
+        try {
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i].clear();
+                superseded[i] = 0;
+                credits[i] = weights[i];
+            }
+            pending.clear();
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lane the lane
+     * @return the current statistics of the lane
+     */
+    LaneStatistics getStatistics(PacketLane lane) {
+        int i = lane.ordinal();
+        lock.lock();
+        try {
+            return new LaneStatistics(lane, lanes[i].size() - superseded[i], sent[i], coalesced[i], totalWait[i], maxWait[i]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the head of the first lane, in order of priority, that still has
+     * its share left. Must be called with the lock held and the queue not
+     * empty.
+     */
+    private Entry next() {
+        while (true) {
+            for (int i = 0; i < lanes.length; i++) {
+                if (credits[i] > 0 && skipSuperseded(i)) {
+                    credits[i]--;
+                    size--;
+                    Entry entry = lanes[i].removeFirst();
+                    if (entry.key != null && pending.get(entry.key) == entry)
+                        pending.remove(entry.key);
+                    long wait = System.nanoTime() - entry.queued;
+                    sent[i]++;
+                    totalWait[i] += wait;
+                    if (wait > maxWait[i])
+                        maxWait[i] = wait;
+                    return entry;
+                }
+            }
+            // every lane with packets waiting used up its share
+            for (int i = 0; i < credits.length; i++)
+                credits[i] = weights[i];
+        }
+    }
+
+    /**
+     * Drops the superseded entries at the head of the lane. Must be called
+     * with the lock held.
+     * 
+     * @return true if a packet to send is left at the head of the lane
+     */
+    private boolean skipSuperseded(int i) {
+        LinkedList<Entry> lane = lanes[i];
+        while (!lane.isEmpty()) {
+            if (lane.getFirst().packet != null)
+                return true;
+            lane.removeFirst();
+            superseded[i]--;
+        }
+        return false;
+    }
+
+    /**
+     * Works out the lane of a packet that was not given one explicitly.
+     * 
+     * @param packet the packet to send
+     * @return the lane the packet is queued in
+     */
+    static PacketLane laneOf(IStanzaPacket packet) {
+        if (packet instanceof RenderedPacket)
+            packet = ((RenderedPacket) packet).getPacket();
+        if (packet instanceof StanzaPacketBase) {
+            PacketLane lane = ((StanzaPacketBase) packet).getLane();
+            if (lane != null)
+                return lane;
+        }
+        if (packet instanceof PresencePacket)
+            return PacketLane.PRESENCE;
+        if (packet instanceof BroadcastPacket)
+            return PacketLane.BULK;
+        if (packet instanceof MessagePacket && MessagePacket.TYPE_HEADLINE.equals(packet.getType()))
+            return PacketLane.BULK;
+        return PacketLane.INTERACTIVE;
+    }
+
+    /**
+     * Works out the key under which a newer packet supersedes the packet
+     * while it waits. Only stanzas where the latest one carries the whole
+     * state are keyed: presence updates of availability without extensions,
+     * and messages with a chat state and nothing else. They are keyed by the
+     * recipient and the kind of state.
+     * 
+     * @param packet the packet to send
+     * @return the coalescing key, or null if the packet is always sent
+     */
+    static String coalesceKey(IStanzaPacket packet) {
+        if (packet instanceof RenderedPacket)
+            packet = ((RenderedPacket) packet).getPacket();
+        String kind = null;
+        if (packet instanceof PresencePacket) {
+            String type = packet.getType();
+            if ((type == null || PresencePacket.TYPE_UNAVAILABLE.equals(type)) && ((IMPacket) packet).getExtensions().isEmpty())
+                kind = "presence";
+        } else if (packet instanceof MessagePacket) {
+            MessagePacket msg = (MessagePacket) packet;
+            if (msg.getBody() == null && msg.getSubject() == null && msg.getExtensions().size() == 1
+                    && msg.getExtension(XMPPConstants.NS_CHAT_STATES) != null)
+                kind = "chatstate";
+        }
+        if (kind == null)
+            return null;
+        return packet.getTo() == null ? kind : kind + ' ' + packet.getTo();
+    }
+
+    /**
+     * A queued packet, with the System.nanoTime() at which it was queued. The
+     * packet is null once it is superseded. Control packets generated by the
+     * connection itself are flagged, as they are never paced.
+     */
+    static class Entry {
+        IStanzaPacket packet;
+        final PacketLane lane;
+        final String key;
+        final boolean control;
+        final long queued;
+
+        Entry(IStanzaPacket packet, PacketLane lane, String key, boolean control, long queued) {
+            this.packet = packet;
+            this.lane = lane;
+            this.key = key;
+            this.control = control;
+            this.queued = queued;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.echomine.xmpp.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.util.RateLimiter;
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.JID;
+
+/**
+ * Paces the packets written out on a connection so that the traffic stays
+ * within the shaping of the server. There is a token bucket for the whole
+ * connection and one for each recipient, keyed by domain or by full JID. A
+ * packet is written once both of its buckets have a permit; until then it is
+ * held, thus nothing is dropped. When the server complains about the traffic,
+ * the rates are halved, and they are doubled back towards the configured
+ * rates for every quiet recovery interval. A rate of 0 means no limit.
+ * <p>
+ * Packets taken off the queue by the queue thread are held by the pacer
+ * itself, in one queue per recipient bucket, so that the queue thread goes on
+ * with the packets to other recipients instead of waiting. Packets queued
+ * after a held one to the same recipient are held behind it, thus packets to
+ * a recipient are still written in order.
+ * </p>
+ */
+class OutboundPacer {
+    private static final Log log = LogFactory.getLog(OutboundPacer.class);
+    // the buckets of the least recently used recipients are dropped
+    private static final int MAX_DESTINATIONS = 1024;
+    private static final double MIN_FACTOR = 1.0 / 16;
+    private static final long RECOVERY_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    private double rate;
+    private double destinationRate;
+    private int destinationBurst;
+    private boolean perJID;
+    private RateLimiter connectionLimiter;
+    private final LinkedHashMap<String, Held> held = new LinkedHashMap<String, Held>();
+    private final Destinations destinations = new Destinations(held);
+    private int heldCount;
+    private double factor = 1;
+    private long lastChange;
+    private volatile boolean enabled;
+    private volatile boolean holding;
+
+    /**
+     * Sets the rates of the buckets. This resets any back off.
+     *
+     * @param rate the stanzas per second on the connection, 0 for no limit
+     * @param burst the stanzas that can be sent at once on the connection
+     * @param destinationRate the stanzas per second to each recipient, 0 for
+     *            no limit
+     * @param destinationBurst the stanzas that can be sent at once to each
+     *            recipient
+     * @param perJID true to key recipients by full JID, false by domain
+     */
+    synchronized void setLimits(double rate, int burst, double destinationRate, int destinationBurst, boolean perJID) {
+        this.rate = rate;
+        this.destinationRate = destinationRate;
+        this.destinationBurst = destinationBurst;
+        this.perJID = perJID;
+        factor = 1;
+        connectionLimiter = rate > 0 ? new RateLimiter(rate, burst) : null;
+        destinations.clear();
+        enabled = rate > 0 || destinationRate > 0;
+    }
+
+    /**
+     * @return true if any rate is limited
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Takes the permits for a packet about to be written out.
+     *
+     * @param packet the packet
+     * @return the time in ns to hold the packet before writing it out, 0 to
+     *         write it now
+     */
+    synchronized long reserve(IStanzaPacket packet) {
+        checkRecovery();
+        long wait = 0;
+        if (connectionLimiter != null)
+            wait = connectionLimiter.reserve();
+        if (destinationRate > 0) {
+            RateLimiter limiter = destinationLimiter(packet);
+            if (limiter != null)
+                wait = Math.max(wait, limiter.reserve());
+        }
+        return wait;
+    }
+
+    /**
+     * @return true if any rate is limited or packets are held
+     */
+    boolean isActive() {
+        return enabled || holding;
+    }
+
+    /**
+     * Takes the permits for a packet taken off the queue if it can be written
+     * now, or else holds it until its permits are available.
+     * 
+     * @param entry the queued packet
+     * @return true if the packet can be written now, false if it is held
+     */
+    synchronized boolean admit(LaneQueue.Entry entry) {
+        String key = holdKey(entry.packet);
+        Held h = held.get(key);
+        if (h != null) {
+            // packets to the recipient are written in order
+            h.entries.addLast(entry);
+            heldCount++;
+            return false;
+        }
+        long wait = tryReserve(entry.packet);
+        if (wait == 0)
+            return true;
+        h = new Held(System.nanoTime() + wait);
+        h.entries.addLast(entry);
+        held.put(key, h);
+        heldCount++;
+        holding = true;
+        return false;
+    }
+
+    /**
+     * Takes the next held packet whose permits are available, along with its
+     * permits.
+     * 
+     * @return the held packet that can be written now, or null if there is
+     *         none
+     */
+    synchronized LaneQueue.Entry release() {
+        if (heldCount == 0)
+            return null;
+        long now = System.nanoTime();
+        Iterator<Held> iter = held.values().iterator();
+        while (iter.hasNext()) {
+            Held h = iter.next();
+            if (h.notBefore > now)
+                continue;
+            long wait = tryReserve(h.entries.getFirst().packet);
+            if (wait > 0) {
+                h.notBefore = now + wait;
+                continue;
+            }
+            LaneQueue.Entry entry = h.entries.removeFirst();
+            if (h.entries.isEmpty())
+                iter.remove();
+            else
+                h.notBefore = now;
+            if (--heldCount == 0)
+                holding = false;
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * @return the time in ns until a held packet may be written, or -1 if no
+     *         packet is held
+     */
+    synchronized long nextRelease() {
+        if (heldCount == 0)
+            return -1;
+        long now = System.nanoTime();
+        long next = Long.MAX_VALUE;
+        Iterator<Held> iter = held.values().iterator();
+        while (iter.hasNext())
+            next = Math.min(next, iter.next().notBefore - now);
+        return Math.max(next, 0);
+    }
+
+    /**
+     * @return the number of packets held
+     */
+    synchronized int getHeldCount() {
+        return heldCount;
+    }
+
+    /**
+     * Takes all the held packets without waiting for their permits.
+     * 
+     * @return the held packets, in the order they were queued for each
+     *         recipient
+     */
+    synchronized List<LaneQueue.Entry> drain() {
+        List<LaneQueue.Entry> entries = new ArrayList<LaneQueue.Entry>(heldCount);
+        Iterator<Held> iter = held.values().iterator();
+        while (iter.hasNext())
+            entries.addAll(iter.next().entries);
+        held.clear();
+        heldCount = 0;
+        holding = false;
+        return entries;
+    }
+
+    /**
+     * Takes the permits of a packet only if both of its buckets have one.
+     * 
+     * @return 0 if the permits are taken, or else the time in ns until they
+     *         may be available
+     */
+    private long tryReserve(IStanzaPacket packet) {
+        if (!enabled)
+            return 0;
+        checkRecovery();
+        RateLimiter destination = null;
+        long wait = connectionLimiter == null ? 0 : connectionLimiter.peek();
+        if (destinationRate > 0) {
+            destination = destinationLimiter(packet);
+            if (destination != null)
+                wait = Math.max(wait, destination.peek());
+        }
+        if (wait > 0)
+            return wait;
+        if (connectionLimiter != null)
+            connectionLimiter.reserve();
+        if (destination != null)
+            destination.reserve();
+        return 0;
+    }
+
+    /**
+     * Halves the rates after the server signalled that we are sending too
+     * much.
+     */
+    synchronized void backOff() {
+        if (!enabled)
+            return;
+        setFactor(Math.max(factor / 2, MIN_FACTOR));
+        if (log.isInfoEnabled())
+            log.info("Server is shaping our traffic.  Outbound rates are cut to " + (int) (factor * 100) + "% of their limits");
+    }
+
+    /**
+     * @return the fraction of the configured rates currently in effect
+     */
+    synchronized double getFactor() {
+        return factor;
+    }
+
+    private void setFactor(double factor) {
+        this.factor = factor;
+        lastChange = System.nanoTime();
+        if (connectionLimiter != null)
+            connectionLimiter.setRate(rate * factor);
+        Iterator<RateLimiter> iter = destinations.values().iterator();
+        while (iter.hasNext())
+            iter.next().setRate(destinationRate * factor);
+    }
+
+    private void checkRecovery() {
+        if (factor < 1 && System.nanoTime() - lastChange >= RECOVERY_INTERVAL)
+            setFactor(Math.min(factor * 2, 1));
+    }
+
+    /**
+     * @return the bucket of the packet's recipient, or null if it has no
+     *         recipient
+     */
+    private RateLimiter destinationLimiter(IStanzaPacket packet) {
+        if (packet instanceof RenderedPacket)
+            packet = ((RenderedPacket) packet).getPacket();
+        String key = destinationOf(packet.getTo());
+        if (key == null)
+            return null;
+        RateLimiter limiter = destinations.get(key);
+        if (limiter == null) {
+            limiter = new RateLimiter(destinationRate * factor, destinationBurst);
+            destinations.put(key, limiter);
+        }
+        return limiter;
+    }
+
+    /**
+     * The key packets are held under. Packets sharing a recipient bucket are
+     * held together, and all packets are held together when only the
+     * connection is limited.
+     */
+    private String holdKey(IStanzaPacket packet) {
+        if (destinationRate <= 0)
+            return "";
+        if (packet instanceof RenderedPacket)
+            packet = ((RenderedPacket) packet).getPacket();
+        String key = destinationOf(packet.getTo());
+        return key == null ? "" : key;
+    }
+
+    private String destinationOf(JID to) {
+        if (to == null)
+            return null;
+        return perJID ? to.toString() : to.getHost();
+    }
+
+    /**
+     * The buckets of the recipients, from the least to the most recently used.
+     * The least recently used bucket is dropped when there are too many of
+     * them, except for the buckets packets are held for: a new bucket would
+     * let them out in a burst.
+     */
+    private static class Destinations extends LinkedHashMap<String, RateLimiter> {
+        private static final long serialVersionUID = 3188218466093471725L;
+        private final transient Map<String, Held> held;
+
+        Destinations(Map<String, Held> held) {
+            super(64, 0.75f, true);
+            this.held = held;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, RateLimiter> eldest) {
+            if (size() <= MAX_DESTINATIONS)
+                return false;
+            if (!held.containsKey(eldest.getKey()))
+                return true;
+            Iterator<String> iter = keySet().iterator();
+            while (iter.hasNext()) {
+                if (!held.containsKey(iter.next())) {
+                    iter.remove();
+                    break;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The packets held for a recipient bucket, with the System.nanoTime() at
+     * which the first of them may be written
+     */
+    private static class Held {
+        final LinkedList<LaneQueue.Entry> entries = new LinkedList<LaneQueue.Entry>();
+        long notBefore;
+
+        Held(long notBefore) {
+            this.notBefore = notBefore;
+        }
+    }
+}
@@ -2,16 +2,27 @@ package com.echomine.xmpp.impl;
 
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.echomine.feridian.FeridianConfiguration;
 import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.IWatermarkListener;
+import com.echomine.xmpp.LaneStatistics;
+import com.echomine.xmpp.PacketLane;
 import com.echomine.xmpp.SendPacketFailedException;
+import com.echomine.xmpp.XMPPException;
+import com.echomine.xmpp.metrics.ConnectionMetrics;
+import com.echomine.xmpp.packet.BroadcastPacket;
 import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.IQPacketFactory;
+import com.echomine.xmpp.packet.StanzaPacketBase;
+import com.echomine.xmpp.packet.XMLTextPacket;
 
 /**
  * An internally used queue that will perform multiple functions. First, it runs
@@ -20,6 +31,45 @@ import com.echomine.xmpp.packet.IQPacket;
  * packets will be checked against any outgoing packet to see if any outgoing
  * packets match with any incoming packets. This second function allows
  * synchronicity in the API.
+ * <p>
+ * In direct write mode, packets are written out by the thread queuing them
+ * while the queue is running, which saves handing each of them over to the
+ * queue thread. The queue then has no thread of its own: packets queued while
+ * it is paused are held until it is resumed, and are written out by the
+ * resuming thread before any packet queued afterwards.
+ * </p>
+ * <p>
+ * The packets waiting in the queue can be limited in number and in bytes.
+ * Queuing a packet blocks while the queue is full, and offering one fails
+ * instead. When a byte limit is set, packets are marshalled by the thread
+ * queuing them so that their size is known.
+ * </p>
+ * <p>
+ * Packets waiting in the queue are sent lane by lane (see {@link PacketLane}),
+ * so that control traffic is not held up behind bulk messages. The control
+ * packets the connection generates itself (pings, keepalives and error
+ * replies) are also let into a full queue instead of waiting for room, up to
+ * twice its limits, as they are what keeps the connection alive. Packets sent
+ * by the application always wait for room, whatever their lane. In direct
+ * write mode, control packets are written by the thread generating them (the
+ * keepalive timer or the reader) only if no other thread is writing, and are
+ * otherwise left to the thread writing, so that a stalled write never holds
+ * up these threads.
+ * </p>
+ * <p>
+ * With coalescing on, a presence or chat state update still waiting in the
+ * queue is replaced by a newer update of the same kind to the same recipient,
+ * as only the latest one matters to the recipient.
+ * </p>
+ * <p>
+ * Packets can be paced to stay within the traffic shaping of the server. A
+ * packet is held until the rate limits of the connection and of its
+ * recipient allow it to be written, and the rates back off when the server
+ * complains. The queue thread does not wait for a held packet: it goes on
+ * with the packets to other recipients, while the packets to the same
+ * recipient are held behind it. In direct write mode, the thread sending the
+ * packet waits instead. The connection's own control packets are never held.
+ * </p>
  */
 public class PacketQueue implements Runnable {
     private static Log log = LogFactory.getLog(PacketQueue.class);
@@ -30,22 +80,152 @@ public class PacketQueue implements Runnable {
         RUNNING, PAUSED, STOPPING, STOPPED
     }
 
-    protected LinkedBlockingQueue<IStanzaPacket> queue;
-    protected HashMap<String, IStanzaPacket> packetReplyTable;
-    protected HashMap<String, IStanzaPacket> replyPackets;
-    protected RunningState state = RunningState.STOPPED;
+    protected LaneQueue queue;
+    protected HashMap<Object, IStanzaPacket> packetReplyTable;
+    protected HashMap<Object, IStanzaPacket> replyPackets;
+    protected volatile RunningState state = RunningState.STOPPED;
     private XMPPConnectionHandler handler;
     private ReentrantLock lock;
     private Semaphore pauseLock;
     private Thread queueThread;
+    private boolean directWrite;
+    private boolean coalescing;
+    private QueueCapacity capacity = new QueueCapacity();
+    private OutboundPacer pacer = new OutboundPacer();
+    // control packets waiting for the writer in direct write mode
+    private ConcurrentLinkedQueue<IStanzaPacket> controlPackets = new ConcurrentLinkedQueue<IStanzaPacket>();
 
     public PacketQueue(XMPPConnectionHandler handler) {
         this.handler = handler;
-        queue = new LinkedBlockingQueue<IStanzaPacket>();
+        queue = new LaneQueue();
         lock = new ReentrantLock();
         pauseLock = new Semaphore(1);
-        packetReplyTable = new HashMap<String, IStanzaPacket>(25);
-        replyPackets = new HashMap<String, IStanzaPacket>(25);
+        packetReplyTable = new HashMap<Object, IStanzaPacket>(25);
+        replyPackets = new HashMap<Object, IStanzaPacket>(25);
+    }
+
+    /**
+     * Sets whether packets are written out directly by the thread queuing
+     * them while the queue is running, instead of by the queue thread. Sending
+     * then blocks the caller until the packet is written out. This must be set
+     * before the queue is started.
+     * 
+     * @param directWrite true to write packets on the caller's thread
+     */
+    public void setDirectWrite(boolean directWrite) {
+        this.directWrite = directWrite;
+    }
+
+    /**
+     * @return true if packets are written on the caller's thread
+     */
+    public boolean isDirectWrite() {
+        return directWrite;
+    }
+
+    /**
+     * Sets whether presence and chat state updates waiting in the queue are
+     * replaced by newer updates of the same kind to the same recipient.
+     * Packets written out directly are never coalesced, nor are packets sent
+     * with a wait for their reply.
+     * 
+     * @param coalescing true to coalesce superseded updates
+     */
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    /**
+     * @return true if superseded updates are coalesced
+     */
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    /**
+     * Limits the rate packets are written out at, on the whole connection and
+     * to each recipient. Packets over the rate are held, not dropped. This
+     * resets any back off.
+     * 
+     * @param rate the packets per second on the connection, 0 for no limit
+     * @param burst the packets that can be written at once on the connection
+     * @param destinationRate the packets per second to each recipient, 0 for
+     *            no limit
+     * @param destinationBurst the packets that can be written at once to each
+     *            recipient
+     * @param perJID true to limit the rate per full JID, false per domain
+     */
+    public void setRateLimits(double rate, int burst, double destinationRate, int destinationBurst, boolean perJID) {
+        pacer.setLimits(rate, burst, destinationRate, destinationBurst, perJID);
+    }
+
+    /**
+     * Halves the rate limits for a while. Used when the server signals that
+     * it is receiving too much traffic.
+     */
+    public void backOff() {
+        pacer.backOff();
+    }
+
+    /**
+     * @return the fraction of the rate limits currently in effect, below 1
+     *         while backing off
+     */
+    double getRateFactor() {
+        return pacer.getFactor();
+    }
+
+    /**
+     * Limits the packets waiting to be sent. The watermarks are percentages
+     * of the limits: the queue stops being writable when either the number or
+     * the size of the packets reaches the high watermark, and is writable
+     * again once both drained down to the low watermark.
+     * 
+     * @param maxStanzas the maximum number of packets waiting, 0 for no limit
+     * @param maxBytes the maximum size of the packets waiting, 0 for no limit
+     * @param highWatermark the high watermark, in percent of the limits
+     * @param lowWatermark the low watermark, in percent of the limits
+     */
+    public void setLimits(int maxStanzas, long maxBytes, int highWatermark, int lowWatermark) {
+        capacity.setLimits(maxStanzas, maxBytes, highWatermark, lowWatermark);
+    }
+
+    /**
+     * Sets the listener notified when the packets waiting to be sent cross
+     * the watermarks.
+     * 
+     * @param listener the listener, null to remove
+     */
+    public void setWatermarkListener(IWatermarkListener listener) {
+        capacity.setListener(listener);
+    }
+
+    /**
+     * @return false while the packets waiting to be sent are above the
+     *         watermarks
+     */
+    public boolean isWritable() {
+        return capacity.isWritable();
+    }
+
+    /**
+     * Sets how many packets each lane may send in turn before the lanes below
+     * it get to send. The default weights are 8, 4, 2 and 1.
+     * 
+     * @param weights the weights in the order of {@link PacketLane}, each at
+     *            least 1
+     */
+    public void setLaneWeights(int[] weights) {
+        queue.setWeights(weights);
+    }
+
+    /**
+     * @param lane the lane
+     * @return the number of packets waiting in the lane and how long packets
+     *         waited in it
+     */
+    public LaneStatistics getLaneStatistics(PacketLane lane) {
+        return queue.getStatistics(lane);
     }
 
     /**
@@ -55,6 +235,9 @@ public class PacketQueue implements Runnable {
         lock.lock();
         try {
             queue.clear();
+            controlPackets.clear();
+            pacer.drain();
+            capacity.reset();
             packetReplyTable.clear();
             replyPackets.clear();
         } finally {
@@ -84,9 +267,13 @@ public class PacketQueue implements Runnable {
             else
                 state = RunningState.RUNNING;
             clear();
-            queueThread = new Thread(this);
-            queueThread.setName(QUEUE_RUNNING);
-            queueThread.start();
+            if (directWrite) {
+                queueThread = null;
+            } else {
+                queueThread = new Thread(this);
+                queueThread.setName(QUEUE_RUNNING);
+                queueThread.start();
+            }
         } finally {
             lock.unlock();
         }
@@ -103,16 +290,22 @@ public class PacketQueue implements Runnable {
         lock.lock();
         try {
             state = RunningState.STOPPING;
-            queueThread.interrupt();
-            if (!queue.isEmpty()) {
-                // finish sending off all the remaining packets
-                Iterator<IStanzaPacket> iter = queue.iterator();
-                IStanzaPacket packet;
-                while (iter.hasNext()) {
-                    packet = iter.next();
-                    handler.sendPacket(packet);
-                }
+            capacity.close();
+            if (queueThread != null)
+                queueThread.interrupt();
+            // finish sending off all the remaining packets, starting with the
+            // held ones as they were queued first
+            Iterator<LaneQueue.Entry> held = pacer.drain().iterator();
+            while (held.hasNext()) {
+                LaneQueue.Entry entry = held.next();
+                handler.sendPacket(entry.packet, entry.queued);
             }
+            IStanzaPacket control;
+            while ((control = controlPackets.poll()) != null)
+                handler.sendPacket(control);
+            LaneQueue.Entry remaining;
+            while ((remaining = queue.pollEntry()) != null)
+                handler.sendPacket(remaining.packet, remaining.queued);
             // iterate through all the msgs waiting for a reply and interrupt
             // them
             synchronized (packetReplyTable) {
@@ -159,9 +352,36 @@ public class PacketQueue implements Runnable {
         try {
             if (state != RunningState.PAUSED)
                 return;
+            if (directWrite) {
+                // nothing can be written directly until the held packets are
+                // out, as the state is only changed afterwards
+                try {
+                    LaneQueue.Entry entry;
+                    while ((entry = queue.pollEntry()) != null) {
+                        try {
+                            pace(entry.packet, entry.control);
+                        } catch (InterruptedException ex) {
+                            // the packet is written out regardless
+                            Thread.currentThread().interrupt();
+                        }
+                        sendQueued(entry);
+                    }
+                } catch (SendPacketFailedException ex) {
+                    if (log.isInfoEnabled())
+                        log.info("Packet cannot be sent.  Likely an IO Exception occurred.", ex);
+                    stop();
+                    return;
+                }
+            }
             state = RunningState.RUNNING;
             while (pauseLock.hasQueuedThreads())
                 pauseLock.release();
+            if (directWrite)
+                writeControlPackets();
+        } catch (SendPacketFailedException ex) {
+            if (log.isInfoEnabled())
+                log.info("Packet cannot be sent.  Likely an IO Exception occurred.", ex);
+            stop();
         } finally {
             lock.unlock();
         }
@@ -193,21 +413,25 @@ public class PacketQueue implements Runnable {
             return replyPkt;
         IStanzaPacket oldPacket = null;
         synchronized (packetReplyTable) {
-            oldPacket = packetReplyTable.remove(replyPkt.getId());
+            oldPacket = packetReplyTable.remove(replyKey(replyPkt.getId()));
         }
         IStanzaPacket newPkt = replyPkt;
         if (oldPacket != null) {
-            // if reply packet is IQPacket, then we need to recast
-            if (IQPacket.class.getName().equals(replyPkt.getClass().getName())) {
-                try {
-                    newPkt = oldPacket.getClass().newInstance();
-                    newPkt.copyFrom(replyPkt);
-                } catch (Exception ex) {
-                    if (log.isWarnEnabled())
-                        log.warn("Unable to instantiate new packet for casting.. returning current reply packet instead...", ex);
+            if (oldPacket instanceof IQPacket)
+                recordRoundTrip((IQPacket) oldPacket);
+            // replies read from the stream are already decoded into the class
+            // of the request, only replies passed in otherwise are recast
+            if (replyPkt.getClass() == IQPacket.class && oldPacket.getClass() != IQPacket.class && oldPacket instanceof IQPacket) {
+                IQPacketFactory factory = IQPacketFactory.getFactory(((IQPacket) oldPacket).getClass());
+                IQPacket recast = factory == null ? null : factory.newPacket();
+                if (recast != null) {
+                    recast.copyFrom(replyPkt);
+                    newPkt = recast;
                 }
             }
-            replyPackets.put(newPkt.getId(), newPkt);
+            synchronized (replyPackets) {
+                replyPackets.put(replyKey(newPkt.getId()), newPkt);
+            }
             synchronized (oldPacket) {
                 oldPacket.notifyAll();
             }
@@ -216,7 +440,96 @@ public class PacketQueue implements Runnable {
     }
 
     /**
-     * Queues the packet for delivery
+     * Records the time from writing the request to the socket until its reply
+     * was matched, under the namespace of the request's payload. Requests not
+     * stamped when they were written are left out. The stamp is cleared, so
+     * that it is not taken for the time of a later send of the same packet.
+     */
+    private void recordRoundTrip(IQPacket request) {
+        ConnectionMetrics metrics = handler.getMetrics();
+        long sent = request.getSentTime();
+        request.setSentTime(0);
+        if (metrics == null || sent == 0)
+            return;
+        String ns = FeridianConfiguration.getConfig().getUriForClass(request.getClass());
+        metrics.iqReplied(ns, System.nanoTime() - sent);
+    }
+
+    /**
+     * @return the number of packets waiting to be sent, including the ones
+     *         held by the rate limits
+     */
+    int getDepth() {
+        return queue.size() + pacer.getHeldCount();
+    }
+
+    /**
+     * @return the number of requests waiting for their replies
+     */
+    int getPendingReplies() {
+        synchronized (packetReplyTable) {
+            return packetReplyTable.size();
+        }
+    }
+
+    /**
+     * Tells whether a request sent with a wait for its reply is still waiting
+     * for the reply with the id.
+     * 
+     * @param id the id of the reply, may be null
+     * @return true if a request waits for the reply
+     */
+    boolean isAwaitingReply(String id) {
+        if (id == null)
+            return false;
+        synchronized (packetReplyTable) {
+            return !packetReplyTable.isEmpty() && packetReplyTable.containsKey(replyKey(id));
+        }
+    }
+
+    /**
+     * Looks up the factory of the packet that a reply is decoded into. This is
+     * called by the reader at the start tag of iq results and errors, thus the
+     * reply is decoded directly into the class of the request it answers.
+     * 
+     * @param id the id of the reply
+     * @return the factory of the request's class, or null if no one waits for
+     *         the reply or the request is a plain iq packet
+     */
+    IQPacketFactory getReplyFactory(String id) {
+        IStanzaPacket request;
+        synchronized (packetReplyTable) {
+            if (packetReplyTable.isEmpty())
+                return null;
+            request = packetReplyTable.get(replyKey(id));
+        }
+        if (!(request instanceof IQPacket) || request.getClass() == IQPacket.class)
+            return null;
+        return IQPacketFactory.getFactory(((IQPacket) request).getClass());
+    }
+
+    /**
+     * Creates the key the packet id is stored under in the reply tables. Ids
+     * created by the connection's id generator are keyed by their sequence
+     * number, which is cheaper to hash and compare than the id string.
+     * 
+     * @param id the packet id
+     * @return the key for the id
+     */
+    private Object replyKey(String id) {
+        try {
+            long numericId = handler.getIDGenerator().toNumericID(id);
+            if (numericId >= 0)
+                return Long.valueOf(numericId);
+        } catch (XMPPException ex) {
+            // fall back to the id string
+        }
+        return id;
+    }
+
+    /**
+     * Queues the packet for delivery. If the queue is full, this waits until
+     * there is room in the queue.
      * 
      * @param packet the packet to send
      * @param wait whether to wait for a reply
@@ -228,18 +541,41 @@ public class PacketQueue implements Runnable {
     public IStanzaPacket queuePacket(IStanzaPacket packet, boolean wait) throws SendPacketFailedException {
         if (state == RunningState.STOPPED)
             throw new SendPacketFailedException("The Queue is STOPPED, unable to queue packet for sending.");
+        IStanzaPacket outPacket = handler.preparePacket(packet, capacity.isByteBounded());
+        Object key = replyKey(packet.getId());
         if (wait) {
             synchronized (packetReplyTable) {
-                packetReplyTable.put(packet.getId(), packet);
+                packetReplyTable.put(key, packet);
             }
         }
         try {
-            queue.put(packet);
+            boolean queued = false;
+            try {
+                queued = enqueue(outPacket, -1, !wait, false);
+            } finally {
+                if (!queued && wait) {
+                    synchronized (packetReplyTable) {
+                        packetReplyTable.remove(key);
+                    }
+                }
+            }
+            if (!queued)
+                throw new SendPacketFailedException("The Queue is STOPPED, unable to queue packet for sending.");
             if (wait) {
                 synchronized (packet) {
+                    // the reply may already be in when the packet was written
+                    // directly
+                    IStanzaPacket reply;
+                    synchronized (replyPackets) {
+                        reply = replyPackets.remove(key);
+                    }
+                    if (reply != null)
+                        return reply;
                     packet.wait(packet.getTimeout());
                     // retrieve reply packet
-                    return replyPackets.remove(packet.getId());
+                    synchronized (replyPackets) {
+                        return replyPackets.remove(key);
+                    }
                 }
             }
         } catch (InterruptedException ex1) {
@@ -248,6 +584,225 @@ public class PacketQueue implements Runnable {
         return null;
     }
 
+    /**
+     * Queues the packet for delivery if there is room in the queue within the
+     * timeout. Replies to offered packets are not waited for.
+     * 
+     * @param packet the packet to send
+     * @param timeout the time in ms to wait for room in the queue, 0 to not
+     *            wait at all
+     * @return true if the packet is queued, false if the queue stayed full
+     * @throws SendPacketFailedException if the queue is stopped or the packet
+     *             cannot be sent
+     */
+    public boolean offerPacket(IStanzaPacket packet, long timeout) throws SendPacketFailedException {
+        if (state == RunningState.STOPPED)
+            throw new SendPacketFailedException("The Queue is STOPPED, unable to queue packet for sending.");
+        IStanzaPacket outPacket = handler.preparePacket(packet, capacity.isByteBounded());
+        try {
+            if (enqueue(outPacket, Math.max(timeout, 0), true, false))
+                return true;
+        } catch (InterruptedException ex) {
+            throw new SendPacketFailedException("Wait interrupted");
+        }
+        if (state == RunningState.STOPPED || state == RunningState.STOPPING)
+            throw new SendPacketFailedException("The Queue is STOPPED, unable to queue packet for sending.");
+        return false;
+    }
+
+    /**
+     * Queues a control packet generated by the connection itself, such as a
+     * ping, a keepalive or an error reply. The packet goes into the control
+     * lane and is let in even if the queue is full, up to twice its limits.
+     * 
+     * @param packet the packet to send
+     * @return true if the packet is queued, false if there is no headroom left
+     *         or the queue is stopping
+     * @throws SendPacketFailedException if the queue is stopped or the packet
+     *             cannot be sent
+     */
+    boolean offerControlPacket(IStanzaPacket packet) throws SendPacketFailedException {
+        if (state == RunningState.STOPPED)
+            throw new SendPacketFailedException("The Queue is STOPPED, unable to queue packet for sending.");
+        if (packet instanceof StanzaPacketBase)
+            ((StanzaPacketBase) packet).setLane(PacketLane.CONTROL);
+        IStanzaPacket outPacket = handler.preparePacket(packet, capacity.isByteBounded());
+        try {
+            return enqueue(outPacket, 0, false, true);
+        } catch (InterruptedException ex) {
+            throw new SendPacketFailedException("Wait interrupted");
+        }
+    }
+
+    /**
+     * Writes the packet out directly or puts it in its lane, waiting for room
+     * in the queue if it is full. The connection's own control packets do not
+     * wait for room.
+     * 
+     * @param packet the packet to send
+     * @param timeout the time in ms to wait for room, or a negative value to
+     *            wait for as long as it takes
+     * @param coalesce whether the packet may supersede a queued one
+     * @param control true if the packet is generated by the connection itself
+     * @return true if the packet is written or queued, false if there was no
+     *         room in time or the queue was stopped while waiting
+     */
+    private boolean enqueue(IStanzaPacket packet, long timeout, boolean coalesce, boolean control) throws SendPacketFailedException, InterruptedException {
+        if (directWrite && state == RunningState.RUNNING && !control) {
+            pace(packet, control);
+            handler.sendPacket(packet);
+            writeControlPackets();
+            return true;
+        }
+        int size = sizeOf(packet);
+        PacketLane lane = LaneQueue.laneOf(packet);
+        String key = coalesce && coalescing ? LaneQueue.coalesceKey(packet) : null;
+        if (key != null) {
+            IStanzaPacket superseded = queue.replace(key, packet, lane);
+            if (superseded != null) {
+                capacity.resize(sizeOf(superseded), size);
+                if (superseded instanceof RenderedPacket)
+                    ((RenderedPacket) superseded).discard();
+                return true;
+            }
+        }
+        if (!capacity.reserve(size, timeout, control))
+            return false;
+        if (!directWrite) {
+            queue.put(packet, lane, key, control);
+        } else if (holdIfPaused(packet, lane, key, control)) {
+            return true;
+        } else if (control) {
+            controlPackets.add(packet);
+            writeControlPackets();
+        } else {
+            capacity.release(size);
+            pace(packet, control);
+            handler.sendPacket(packet);
+            writeControlPackets();
+        }
+        return true;
+    }
+
+    /**
+     * Writes out the control packets waiting for the writer in direct write
+     * mode, unless another thread is writing. That thread then writes them
+     * once it is done, as it checks for them after releasing the writer.
+     * Used in direct write mode only.
+     * 
+     * @throws SendPacketFailedException if a packet cannot be sent
+     */
+    private void writeControlPackets() throws SendPacketFailedException {
+        while (!controlPackets.isEmpty() && state == RunningState.RUNNING && handler.tryLockWriter()) {
+            try {
+                IStanzaPacket packet;
+                while (state == RunningState.RUNNING && (packet = controlPackets.poll()) != null) {
+                    try {
+                        handler.sendPacket(packet);
+                    } finally {
+                        capacity.release(sizeOf(packet));
+                    }
+                }
+            } finally {
+                handler.unlockWriter();
+            }
+        }
+    }
+
+    /**
+     * Sends a packet taken off the queue, making room for another.
+     */
+    private void sendQueued(LaneQueue.Entry entry) throws SendPacketFailedException {
+        int size = sizeOf(entry.packet);
+        try {
+            handler.sendPacket(entry.packet, entry.queued);
+        } finally {
+            capacity.release(size);
+        }
+    }
+
+    /**
+     * Takes the next packet that can be written out now. A packet over its
+     * rate limits is handed to the pacer to hold, so that the queue thread is
+     * not held up by it.
+     * 
+     * @return the packet to send, or null if no packet can be sent yet
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private LaneQueue.Entry nextEntry() throws InterruptedException {
+        if (!pacer.isActive())
+            return queue.takeEntry();
+        LaneQueue.Entry entry = pacer.release();
+        if (entry != null)
+            return entry;
+        long wait = pacer.nextRelease();
+        entry = wait < 0 ? queue.takeEntry() : queue.pollEntry(wait);
+        if (entry == null || entry.control || pacer.admit(entry))
+            return entry;
+        return null;
+    }
+
+    /**
+     * Holds the packet until the rate limits allow it to be written out, on
+     * the thread writing it. Used in direct write mode only. The connection's
+     * own control packets are not held.
+     */
+    private void pace(IStanzaPacket packet, boolean control) throws InterruptedException {
+        if (control || !pacer.isEnabled())
+            return;
+        long wait = pacer.reserve(packet);
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * The size of the packet in bytes, where it is known before the packet is
+     * written out.
+     * 
+     * @param packet the packet
+     * @return the size of the packet, or 0 if unknown
+     */
+    private int sizeOf(IStanzaPacket packet) {
+        if (packet instanceof RenderedPacket)
+            return ((RenderedPacket) packet).getSize();
+        if (packet instanceof XMLTextPacket) {
+            String text = ((XMLTextPacket) packet).getText();
+            return text == null ? 0 : text.length();
+        }
+        if (packet instanceof BroadcastPacket) {
+            BroadcastPacket broadcast = (BroadcastPacket) packet;
+            return broadcast.getTemplate().getSize() * broadcast.getRecipients().size();
+        }
+        return 0;
+    }
+
+    /**
+     * Holds the packet in the queue until the queue is resumed if it is not
+     * running. Used in direct write mode only.
+     * 
+     * @param packet the packet to send
+     * @param lane the lane of the packet
+     * @param key the coalescing key of the packet, or null
+     * @param control true if the packet is generated by the connection itself
+     * @return true if the packet is held, false if it can be written now
+     * @throws SendPacketFailedException if the queue is stopped
+     */
+    private boolean holdIfPaused(IStanzaPacket packet, PacketLane lane, String key, boolean control) throws SendPacketFailedException {
+        if (state == RunningState.RUNNING)
+            return false;
+        lock.lock();
+        try {
+            if (state == RunningState.RUNNING)
+                return false;
+            if (state == RunningState.STOPPED)
+                throw new SendPacketFailedException("The Queue is STOPPED, unable to queue packet for sending.");
+            queue.put(packet, lane, key, control);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /*
      * This will process the data packets inside the queue. If any exist, it
      * will send them out immediately.
@@ -255,7 +810,7 @@ public class PacketQueue implements Runnable {
      * @see java.lang.Runnable#run()
      */
     public void run() {
-        IStanzaPacket packet;
+        LaneQueue.Entry entry;
         try {
             while (state != RunningState.STOPPED && state != RunningState.STOPPING) {
                 while (state == RunningState.PAUSED) {
@@ -271,8 +826,9 @@ public class PacketQueue implements Runnable {
                     }
                 }
                 if (state == RunningState.RUNNING) {
-                    packet = queue.take();
-                    handler.sendPacket(packet);
+                    entry = nextEntry();
+                    if (entry != null)
+                        sendQueued(entry);
                 }
             }
         } catch (InterruptedException ex) {
@@ -0,0 +1,231 @@
+package com.echomine.xmpp.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.echomine.xmpp.IWatermarkListener;
+
+/**
+ * Keeps count of the packets waiting in the packet queue, in number of packets
+ * and in bytes, and makes senders wait while the queue is full. The
+ * watermarks are percentages of the limits: the queue stops being writable
+ * when either count reaches its high watermark, and is writable again once
+ * both counts drained down to their low watermark. A limit of 0 means no
+ * limit.
+ * <p>
+ * The control packets the connection generates itself have headroom above
+ * the limits: they are let into a full queue until it holds twice its limits,
+ * so that they are not lost while the queue is full, but a flood of requests
+ * that are answered automatically cannot grow the queue without bound.
+ * </p>
+ */
+class QueueCapacity {
+    // the percentage of the limits up to which control packets are let in
+    private static final int CONTROL_LIMIT = 200;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private int maxStanzas;
+    private long maxBytes;
+    private int highWatermark = 80;
+    private int lowWatermark = 40;
+    private int stanzas;
+    private long bytes;
+    private boolean closed;
+    private volatile boolean writable = true;
+    private volatile IWatermarkListener listener;
+
+    /**
+     * Sets the limits of the queue. This takes effect for packets queued
+     * afterwards.
+     *
+     * @param maxStanzas the maximum number of packets queued, 0 for no limit
+     * @param maxBytes the maximum size of the packets queued, 0 for no limit
+     * @param highWatermark the percentage of the limits at which the queue
+     *            stops being writable
+     * @param lowWatermark the percentage of the limits at which the queue is
+     *            writable again
+     */
+    void setLimits(int maxStanzas, long maxBytes, int highWatermark, int lowWatermark) {
+        if (lowWatermark > highWatermark)
+            throw new IllegalArgumentException("Low watermark cannot be above the high watermark");
+        lock.lock();
+        try {
+            this.maxStanzas = maxStanzas;
+            this.maxBytes = maxBytes;
+            this.highWatermark = highWatermark;
+            this.lowWatermark = lowWatermark;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the size of the packets is limited, in which case the
+     *         size must be known before packets are queued
+     */
+    boolean isByteBounded() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @param listener the listener notified of watermarks, null to remove
+     */
+    void setListener(IWatermarkListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return false from when the high watermark is reached until the queue
+     *         drains down to the low watermark
+     */
+    boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * Counts a packet about to be queued, waiting for room in the queue if it
+     * is full. A packet larger than the byte limit is let in once the queue is
+     * empty.
+     *
+     * @param size the size of the packet, 0 if unknown
+     * @param timeout the time in ms to wait for room, 0 to not wait, or a
+     *            negative value to wait for as long as it takes
+     * @param control true to count a control packet within the headroom above
+     *            the limits
+     * @return true if the packet is counted and can be queued, false if there
+     *         was no room in time or the queue is closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean reserve(int size, long timeout, boolean control) throws InterruptedException {
+        boolean fire = false;
+        int queuedStanzas;
+        long queuedBytes;
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            int limit = control ? CONTROL_LIMIT : 100;
+            while (!closed && isFull(size, limit)) {
+                if (timeout < 0)
+                    notFull.await();
+                else if (nanos <= 0)
+                    return false;
+                else
+                    nanos = notFull.awaitNanos(nanos);
+            }
+            if (closed)
+                return false;
+            stanzas++;
+            bytes += size;
+            queuedStanzas = stanzas;
+            queuedBytes = bytes;
+            if (writable && reached(highWatermark)) {
+                writable = false;
+                fire = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        IWatermarkListener l = listener;
+        if (fire && l != null)
+            l.highWatermarkReached(queuedStanzas, queuedBytes);
+        return true;
+    }
+
+    /**
+     * Uncounts a packet that is written out or was not queued after all.
+     *
+     * @param size the size of the packet, as it was reserved
+     */
+    void release(int size) {
+        boolean fire = false;
+        int queuedStanzas;
+        long queuedBytes;
+        lock.lock();
+        try {
+            if (stanzas == 0)
+                return;
+            stanzas--;
+            bytes -= size;
+            queuedStanzas = stanzas;
+            queuedBytes = bytes;
+            notFull.signalAll();
+            if (!writable && !exceeds(lowWatermark)) {
+                writable = true;
+                fire = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        IWatermarkListener l = listener;
+        if (fire && l != null)
+            l.lowWatermarkReached(queuedStanzas, queuedBytes);
+    }
+
+    /**
+     * Recounts the size of a queued packet that was replaced by another. The
+     * number of packets is unchanged, and the watermarks are checked again
+     * when the next packet is counted or uncounted.
+     *
+     * @param oldSize the size of the packet replaced, as it was reserved
+     * @param newSize the size of the packet replacing it
+     */
+    void resize(int oldSize, int newSize) {
+        lock.lock();
+        try {
+            bytes += newSize - oldSize;
+            if (newSize < oldSize)
+                notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Empties and opens the queue.
+     */
+    void reset() {
+        lock.lock();
+        try {
+            stanzas = 0;
+            bytes = 0;
+            closed = false;
+            writable = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the queue, releasing any senders waiting for room.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isFull(int size, int percent) {
+        if (maxStanzas > 0 && stanzas * 100L >= (long) maxStanzas * percent)
+            return true;
+        return maxBytes > 0 && stanzas > 0 && (bytes + size) * 100 > maxBytes * percent;
+    }
+
+    private boolean reached(int percent) {
+        if (maxStanzas > 0 && stanzas * 100L >= (long) maxStanzas * percent)
+            return true;
+        return maxBytes > 0 && bytes * 100 >= maxBytes * percent;
+    }
+
+    private boolean exceeds(int percent) {
+        if (maxStanzas > 0 && stanzas * 100L > (long) maxStanzas * percent)
+            return true;
+        return maxBytes > 0 && bytes * 100 > maxBytes * percent;
+    }
+}
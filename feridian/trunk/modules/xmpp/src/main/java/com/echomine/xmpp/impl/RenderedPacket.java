@@ -0,0 +1,133 @@
+package com.echomine.xmpp.impl;
+
+import java.io.IOException;
+
+import com.echomine.jibx.StanzaBuffer;
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.packet.StanzaPacketBase;
+
+/**
+ * Carries a packet that was already marshalled by the sending thread. It is
+ * queued in place of the packet, and only its bytes are copied to the
+ * connection's writer when it is sent. The buffer is released once the bytes
+ * are written out (or failed to be).
+ */
+class RenderedPacket extends StanzaPacketBase {
+    private final IStanzaPacket packet;
+    private StanzaBuffer buffer;
+    private final int size;
+    private long renderStart;
+    private long renderedAt;
+    private long queuedAt;
+    // written and failure are guarded by the connection's writer lock
+    private boolean written;
+    private IOException failure;
+
+    /**
+     * @param packet the packet that was rendered
+     * @param buffer the rendered packet
+     */
+    RenderedPacket(IStanzaPacket packet, StanzaBuffer buffer) {
+        this.packet = packet;
+        this.buffer = buffer;
+        size = buffer.size();
+        setId(packet.getId());
+    }
+
+    /**
+     * @return the packet that was rendered
+     */
+    IStanzaPacket getPacket() {
+        return packet;
+    }
+
+    /**
+     * @return the rendered packet, or null after it is written out
+     */
+    StanzaBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return the size of the rendered packet in bytes
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the time in ns it took to render the packet, 0 if it was not
+     *         timed
+     */
+    long getRenderTime() {
+        return renderedAt - renderStart;
+    }
+
+    /**
+     * @return the System.nanoTime() at which rendering completed, 0 if it was
+     *         not timed
+     */
+    long getRenderedAt() {
+        return renderedAt;
+    }
+
+    /**
+     * @param start the System.nanoTime() at which rendering started
+     * @param end the System.nanoTime() at which rendering completed
+     */
+    void setRenderTimes(long start, long end) {
+        renderStart = start;
+        renderedAt = end;
+    }
+
+    /**
+     * @return the System.nanoTime() at which the packet was queued, 0 if it
+     *         was not timed
+     */
+    long getQueuedAt() {
+        return queuedAt;
+    }
+
+    /**
+     * @param queuedAt the System.nanoTime() at which the packet was queued
+     */
+    void setQueuedAt(long queuedAt) {
+        this.queuedAt = queuedAt;
+    }
+
+    /**
+     * Marks the packet as written out and releases its buffer.
+     *
+     * @param failure the error writing the packet, or null if it was written
+     */
+    void setWritten(IOException failure) {
+        written = true;
+        this.failure = failure;
+        buffer.release();
+        buffer = null;
+    }
+
+    /**
+     * Releases the buffer of a packet that is never to be written out.
+     */
+    void discard() {
+        if (buffer != null) {
+            buffer.release();
+            buffer = null;
+        }
+    }
+
+    /**
+     * @return true if the packet was written out, or failed to be
+     */
+    boolean isWritten() {
+        return written;
+    }
+
+    /**
+     * @return the error writing the packet, or null if it was written
+     */
+    IOException getFailure() {
+        return failure;
+    }
+}
@@ -0,0 +1,78 @@
+package com.echomine.xmpp.impl;
+
+import com.echomine.xmpp.IStanzaInterceptor;
+import com.echomine.xmpp.IStanzaPacket;
+
+/**
+ * The ordered interceptors of a connection. The interceptors are kept in an
+ * array that is replaced whenever one is added or removed, thus calling the
+ * chain takes no lock and allocates nothing. Callers check isEmpty() first to
+ * skip taking the times when there are no interceptors.
+ */
+class StanzaInterceptorChain {
+    private static final IStanzaInterceptor[] NONE = new IStanzaInterceptor[0];
+
+    private volatile IStanzaInterceptor[] interceptors = NONE;
+
+    /**
+     * Adds the interceptor to the end of the chain.
+     * 
+     * @param interceptor the interceptor to add
+     */
+    synchronized void add(IStanzaInterceptor interceptor) {
+        IStanzaInterceptor[] chain = new IStanzaInterceptor[interceptors.length + 1];
+        System.arraycopy(interceptors, 0, chain, 0, interceptors.length);
+        chain[interceptors.length] = interceptor;
+        interceptors = chain;
+    }
+
+    /**
+     * Removes the first occurrence of the interceptor from the chain.
+     * 
+     * @param interceptor the interceptor to remove
+     */
+    synchronized void remove(IStanzaInterceptor interceptor) {
+        for (int i = 0; i < interceptors.length; i++) {
+            if (interceptors[i] == interceptor) {
+                IStanzaInterceptor[] chain = new IStanzaInterceptor[interceptors.length - 1];
+                System.arraycopy(interceptors, 0, chain, 0, i);
+                System.arraycopy(interceptors, i + 1, chain, i, chain.length - i);
+                interceptors = chain.length == 0 ? NONE : chain;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if there are no interceptors
+     */
+    boolean isEmpty() {
+        return interceptors.length == 0;
+    }
+
+    IStanzaPacket received(IStanzaPacket packet, long readTime, long parsedTime) {
+        IStanzaInterceptor[] chain = interceptors;
+        for (int i = 0; i < chain.length && packet != null; i++)
+            packet = chain[i].received(packet, readTime, parsedTime);
+        return packet;
+    }
+
+    void dispatched(IStanzaPacket packet, long dispatchedTime) {
+        IStanzaInterceptor[] chain = interceptors;
+        for (int i = 0; i < chain.length; i++)
+            chain[i].dispatched(packet, dispatchedTime);
+    }
+
+    IStanzaPacket sending(IStanzaPacket packet, long queuedTime) {
+        IStanzaInterceptor[] chain = interceptors;
+        for (int i = 0; i < chain.length && packet != null; i++)
+            packet = chain[i].sending(packet, queuedTime);
+        return packet;
+    }
+
+    void sent(IStanzaPacket packet, long queuedTime, long marshalledTime, long flushedTime) {
+        IStanzaInterceptor[] chain = interceptors;
+        for (int i = 0; i < chain.length; i++)
+            chain[i].sent(packet, queuedTime, marshalledTime, flushedTime);
+    }
+}
@@ -0,0 +1,53 @@
+package com.echomine.xmpp.impl;
+
+import java.io.IOException;
+
+import org.jibx.runtime.IBindingFactory;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.jibx.JiBXUtil;
+import com.echomine.xmpp.IStanzaPacket;
+
+/**
+ * An element handler that unmarshalls the element into a bound packet class
+ * and delivers it. The binding factory is looked up once when the handler is
+ * created rather than for every element.
+ */
+public class UnmarshallingElementHandler implements IElementHandler {
+    private final IBindingFactory factory;
+
+    /**
+     * @param cls the class the element is bound to
+     * @throws JiBXException if the class has no binding
+     */
+    public UnmarshallingElementHandler(Class cls) throws JiBXException {
+        factory = JiBXUtil.getFactory(cls);
+        if (factory == null)
+            throw new JiBXException("No binding found for " + cls.getName());
+    }
+
+    /**
+     * Unmarshalls the element at which the context is positioned.
+     * 
+     * @param uctx the context positioned at the start tag of the element
+     * @return the unmarshalled object
+     * @throws JiBXException if the element cannot be unmarshalled
+     */
+    protected Object unmarshall(UnmarshallingContext uctx) throws JiBXException {
+        UnmarshallingContext fctx = (UnmarshallingContext) factory.createUnmarshallingContext();
+        fctx.setFromContext(uctx);
+        fctx.setUserContext(uctx.getUserContext());
+        return fctx.unmarshalElement();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.impl.IElementHandler#handleElement(com.echomine.xmpp.impl.XMPPConnectionHandler,
+     *      org.jibx.runtime.impl.UnmarshallingContext)
+     */
+    public IStanzaPacket handleElement(XMPPConnectionHandler handler, UnmarshallingContext uctx) throws JiBXException, IOException {
+        return (IStanzaPacket) unmarshall(uctx);
+    }
+}
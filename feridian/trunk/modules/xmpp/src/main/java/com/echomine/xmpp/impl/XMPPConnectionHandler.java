@@ -2,6 +2,9 @@ package com.echomine.xmpp.impl;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -11,8 +14,14 @@ import org.jibx.runtime.IXMLReader;
 import org.jibx.runtime.JiBXException;
 import org.jibx.runtime.impl.UnmarshallingContext;
 
+import com.echomine.feridian.FeridianConfiguration;
 import com.echomine.jibx.JiBXUtil;
+import com.echomine.jibx.StanzaBuffer;
+import com.echomine.jibx.StanzaRenderer;
+import com.echomine.jibx.StanzaTemplate;
 import com.echomine.jibx.XMPPLoggableReader;
+import com.echomine.jibx.XMPPPullReader;
+import com.echomine.jibx.XMPPStreamWriter;
 import com.echomine.net.ConnectionContext;
 import com.echomine.net.HandshakeFailedException;
 import com.echomine.net.HandshakeableSocketHandler;
@@ -20,8 +29,17 @@ import com.echomine.net.XMPPConnectionContext;
 import com.echomine.util.IOUtil;
 import com.echomine.xmpp.ErrorCode;
 import com.echomine.xmpp.IDGenerator;
+import com.echomine.xmpp.ILoginStageListener;
+import com.echomine.xmpp.ExtensionProfile;
+import com.echomine.xmpp.IStanzaFilter;
+import com.echomine.xmpp.IStanzaInterceptor;
 import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.IWatermarkListener;
 import com.echomine.xmpp.IXMPPStream;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.JIDFormatException;
+import com.echomine.xmpp.LaneStatistics;
+import com.echomine.xmpp.PacketLane;
 import com.echomine.xmpp.SendPacketFailedException;
 import com.echomine.xmpp.XMPPConstants;
 import com.echomine.xmpp.XMPPException;
@@ -29,9 +47,16 @@ import com.echomine.xmpp.XMPPSessionContext;
 import com.echomine.xmpp.XMPPStanzaErrorException;
 import com.echomine.xmpp.XMPPStreamContext;
 import com.echomine.xmpp.XMPPStreamFactory;
+import com.echomine.xmpp.metrics.ConnectionMetrics;
+import com.echomine.xmpp.metrics.IConnectionTracer;
+import com.echomine.xmpp.metrics.IQueueGauge;
+import com.echomine.xmpp.metrics.Metrics;
+import com.echomine.xmpp.packet.BroadcastPacket;
 import com.echomine.xmpp.packet.ErrorPacket;
 import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.IQPacketFactory;
 import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PingIQPacket;
 import com.echomine.xmpp.packet.PresencePacket;
 import com.echomine.xmpp.packet.StanzaErrorPacket;
 import com.echomine.xmpp.packet.StanzaPacketBase;
@@ -69,10 +94,6 @@ import com.echomine.xmpp.packet.XMLTextPacket;
 public class XMPPConnectionHandler implements HandshakeableSocketHandler,
         XMPPConstants {
     private static final Log log = LogFactory.getLog(XMPPConnectionHandler.class);
-    private static final String PRESENCE_ELEMENT_NAME = "presence";
-    private static final String IQ_ELEMENT_NAME = "iq";
-    private static final String MESSAGE_ELEMENT_NAME = "message";
-    private static final String ERROR_ELEMENT_NAME = "error";
 
     protected enum RunningState {
         HANDSHAKING, RUNNING, PAUSED, STOPPED
@@ -88,6 +109,18 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
     private Socket mainSocket;
     private ReentrantLock lock;
     private Semaphore pauseLock = new Semaphore(1);
+    private KeepAliveScheduler.Mode keepAliveMode;
+    private long keepAliveIdleTime;
+    private long keepAlivePingTimeout;
+    private volatile IDGenerator idGenerator;
+    private ElementDispatchTable dispatchTable = ElementDispatchTable.getTable();
+    private InboundFloodGuard floodGuard = new InboundFloodGuard();
+    private volatile IStanzaFilter stanzaFilter;
+    private final StanzaInterceptorChain interceptors = new StanzaInterceptorChain();
+    private boolean parallelMarshalling;
+    private ConcurrentLinkedQueue<RenderedPacket> renderedPackets = new ConcurrentLinkedQueue<RenderedPacket>();
+    private ArrayList<RenderedPacket> renderedBatch = new ArrayList<RenderedPacket>();
+    private final ConnectionMetrics metrics;
 
     /**
      * The constructor for the handler. It accepts a connection context to use
@@ -115,6 +148,30 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
         this.streamCtx = streamCtx;
         this.queue = new PacketQueue(this);
         lock = new ReentrantLock();
+        FeridianConfiguration config = FeridianConfiguration.getConfig();
+        keepAliveMode = config.getKeepAliveMode();
+        keepAliveIdleTime = config.getKeepAliveIdleTime();
+        keepAlivePingTimeout = config.getKeepAlivePingTimeout();
+        queue.setDirectWrite(config.isDirectWrite());
+        parallelMarshalling = config.isParallelMarshalling();
+        queue.setLimits(config.getOutboundMaxStanzas(), config.getOutboundMaxBytes(), config.getOutboundHighWatermark(), config.getOutboundLowWatermark());
+        queue.setCoalescing(config.isOutboundCoalescing());
+        floodGuard.setLimits(config.getInboundRateLimit(), config.getInboundRateLimitBurst(), config.getInboundRateLimitAction());
+        queue.setRateLimits(config.getRateLimit(), config.getRateLimitBurst(), config.getDestinationRateLimit(), config.getDestinationRateLimitBurst(), config.isDestinationRateLimitPerJID());
+        metrics = Metrics.createConnectionMetrics();
+        if (metrics != null) {
+            metrics.setQueueGauge(new IQueueGauge() {
+                public int getQueueDepth() {
+                    return queue.getDepth();
+                }
+
+                public int getPendingReplies() {
+                    return queue.getPendingReplies();
+                }
+            });
+            streamCtx.setMetrics(metrics);
+        }
+        streamCtx.setTracer(Metrics.getTracer());
         try {
             handshakeStream = XMPPStreamFactory.getFactory().createStream(XMPPConstants.NS_STREAM_HANDSHAKE);
             if (handshakeStream == null)
@@ -141,23 +198,26 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
         try {
             this.mainSocket = socket;
             socket.setKeepAlive(true);
-            streamCtx.getWriter().setOutput(socket.getOutputStream());
-            XMPPLoggableReader reader = new XMPPLoggableReader(socket.getInputStream(), "UTF-8");
-            streamCtx.getUnmarshallingContext().setDocument(reader);
             streamCtx.setSocket(socket);
+            streamCtx.getWriter().setOutput(streamCtx.getOutputStream());
+            XMPPLoggableReader reader = new XMPPLoggableReader(streamCtx.getInputStream(), "UTF-8");
+            XMPPPullReader.setDocument(streamCtx.getUnmarshallingContext(), reader);
             streamCtx.setReader(reader);
             sessCtx.setHostName(((XMPPConnectionContext) connCtx).getDomain());
             if (log.isDebugEnabled())
                 log.debug("Starting Handshake with " + sessCtx.getHostName());
             handshakeStream.process(sessCtx, streamCtx);
+            streamCtx.fireStageCompleted(ILoginStageListener.Stage.CONNECT);
             // tls stream negotiation if a stream supports it
             if (tlsStream != null && streamCtx.getFeatures().isTLSSupported()) {
                 if (log.isDebugEnabled())
                     log.debug("Found TLS Feature support and stream processor.  Trying to negotiate TLS...");
+                streamCtx.fireStageStarted(ILoginStageListener.Stage.TLS);
                 tlsStream.process(sessCtx, streamCtx);
                 if (log.isDebugEnabled())
                     log.debug("TLS negotiation successful! Redoing handshaking in TLS mode...");
                 handshakeStream.process(sessCtx, streamCtx);
+                streamCtx.fireStageCompleted(ILoginStageListener.Stage.TLS);
             }
             if (log.isDebugEnabled())
                 log.debug("Handshake completed... Ready for XMPP Stanza processing...");
@@ -191,7 +251,9 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
         UnmarshallingContext uctx = streamCtx.getUnmarshallingContext();
         // sets the stream context as user context for unmarshallers to use
         uctx.setUserContext(streamCtx);
+        KeepAliveScheduler.Task keepAlive = KeepAliveScheduler.getScheduler().register(this, keepAliveMode, keepAliveIdleTime, keepAlivePingTimeout);
         // start incoming data packet reading and outgoing packet queue sending
+        boolean atNextElement = false;
         try {
             while (state != RunningState.STOPPED) {
                 while (state == RunningState.PAUSED)
@@ -207,83 +269,72 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
                 streamCtx.getReader().startLogging();
                 // purposely synchronize because of possible multithread
                 // accessing issue
-                synchronized (uctx) {
-                    uctx.next();
-                }
+                // skipping an element leaves the context at the event after its
+                // end tag, which may already be the next element
+                if (atNextElement)
+                    atNextElement = false;
+                else
+                    synchronized (uctx) {
+                        uctx.next();
+                    }
+                if (keepAlive != null)
+                    keepAlive.touch();
                 IStanzaPacket packet = null;
+                boolean intercepted = !interceptors.isEmpty();
+                long readTime = intercepted ? System.nanoTime() : 0;
+                long parsedTime = 0;
+                boolean sampled = false;
                 if (state == RunningState.RUNNING) {
                     // parse incoming data
                     if (uctx.currentEvent() == IXMLReader.END_DOCUMENT) {
                         break;
                     } else if (uctx.isEnd()) {
                         continue;
-                    } else if (uctx.isAt(NS_XMPP_CLIENT, PRESENCE_ELEMENT_NAME)) {
-                        packet = (IStanzaPacket) JiBXUtil.unmarshallObject(uctx, PresencePacket.class);
-                    } else if (uctx.isAt(NS_XMPP_CLIENT, MESSAGE_ELEMENT_NAME)) {
-                        MessagePacket msgPkt = (MessagePacket) JiBXUtil.unmarshallObject(uctx, MessagePacket.class);
-                        // according to XMPP, message stanza with no child
-                        // element or unknown namespace extensions should be
-                        // ignored. This translates to this API ignoring message
-                        // stanzas with no child elements and no extensions in
-                        // this API.
-                        if (msgPkt.getBodies().isEmpty()
-                                && msgPkt.getExtensions().isEmpty()
-                                && msgPkt.getSubjects().isEmpty()
-                                && msgPkt.getThreadID() == null)
-                            streamCtx.getReader().flushIgnoredDataToLog();
-                        else
-                            packet = msgPkt;
-                    } else if (uctx.isAt(NS_XMPP_CLIENT, IQ_ELEMENT_NAME)) {
-                        IQPacket iqpkt = (IQPacket) JiBXUtil.unmarshallObject(uctx, IQPacket.class);
-                        // according to XMPP, if an entity receives an IQ stanza
-                        // of type "get" or "set" containing a child element
-                        // qualified by a namespace it does not understand, the
-                        // entity SHOULD return an IQ stanza of type "error"
-                        // with an error condition of <service-unavailable/>.
-                        // Here, it is ignored as well. In addition, an
-                        // error packet is also sent back to the user, as
-                        // specified by the specs.
-                        if (IQPacket.class.getName().equals(iqpkt.getClass().getName())
-                                && (IQPacket.TYPE_SET.equals(iqpkt.getType()) || IQPacket.TYPE_GET.equals(iqpkt.getType()))) {
-                            if (log.isDebugEnabled())
-                                log.debug("Found IQ packet with unknown extension inside.  Ignoring and sending unavailable error packet reply...");
-                            streamCtx.getReader().flushIgnoredDataToLog();
-                            IQPacket errpkt = new IQPacket();
-                            errpkt.setTo(iqpkt.getFrom());
-                            errpkt.setId(iqpkt.getId());
-                            // TODO: For now, the return result does not include
-                            // the original packet request data. XMPP specs
-                            // RECOMMENDS includes the original packet request
-                            // data.
-                            StanzaErrorPacket error = new StanzaErrorPacket();
-                            error.setCondition(ErrorCode.C_SERVICE_UNAVAILABLE);
-                            error.setErrorType(StanzaErrorPacket.CANCEL);
-                            errpkt.setError(error);
+                    } else {
+                        IElementHandler elementHandler = dispatchTable.lookup(uctx.getNamespace(), uctx.getName());
+                        if (elementHandler != null && !skipStanza(uctx)) {
+                            streamCtx.setReplyFactory(replyFactory(uctx));
+                            IConnectionTracer tracer = streamCtx.getTracer();
+                            sampled = metrics != null && metrics.sampleReceived();
+                            boolean timed = sampled || tracer != null || intercepted;
+                            long start = timed ? System.nanoTime() : 0;
                             try {
-                                queuePacket(errpkt, false);
-                            } catch (SendPacketFailedException ex) {
-                                // intentionally empty (will never get thrown)
+                                packet = elementHandler.handleElement(this, uctx);
+                            } finally {
+                                streamCtx.setReplyFactory(null);
+                            }
+                            if (metrics != null && packet != null)
+                                metrics.stanzaReceived(kindOf(packet));
+                            if (timed && packet != null) {
+                                parsedTime = System.nanoTime();
+                                long parsed = parsedTime - start;
+                                if (metrics != null)
+                                    metrics.stanzaParsed(parsed);
+                                if (tracer != null)
+                                    tracer.stanzaReceived(sessCtx, kindOf(packet), parsed);
                             }
                         } else {
-                            packet = iqpkt;
+                            uctx.skipElement();
+                            streamCtx.getReader().flushIgnoredDataToLog();
                         }
-                    } else if (uctx.isAt(NS_JABBER_STREAM, ERROR_ELEMENT_NAME)) {
-                        // stream level error received = close stream
-                        ErrorPacket errorPkt = (ErrorPacket) JiBXUtil.unmarshallObject(uctx, ErrorPacket.class);
-                        XMPPStanzaErrorException ex = new XMPPStanzaErrorException("Stream error", errorPkt);
-                        IOException ioex = new IOException();
-                        ioex.initCause(ex);
-                        throw ioex;
-                    } else {
-                        uctx.skipElement();
-                        streamCtx.getReader().flushIgnoredDataToLog();
+                        atNextElement = uctx.currentEvent() == IXMLReader.START_TAG;
                     }
                     // match packets with those in queue in case any packets are
                     // waiting for replies
                     if (packet != null) {
+                        if (IStanzaPacket.TYPE_ERROR.equals(packet.getType()) && isFromServer(packet.getFrom()))
+                            checkTrafficShaping(packet.getError());
                         packet = queue.packetReceived(packet);
-                        if (listenerManager != null)
+                        if (intercepted)
+                            packet = interceptors.received(packet, readTime, parsedTime);
+                        if (listenerManager != null && packet != null) {
+                            long start = sampled ? System.nanoTime() : 0;
                             listenerManager.firePacketReceived(packet);
+                            if (sampled)
+                                metrics.stanzaDispatched(System.nanoTime() - start);
+                        }
+                        if (intercepted && packet != null)
+                            interceptors.dispatched(packet, System.nanoTime());
                         streamCtx.getReader().flushLog();
                     }
                 }
@@ -293,6 +344,8 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
             if (log.isInfoEnabled())
                 log.info("Error while reading incoming data. Likely stream is closed due to shutdown or error", ex);
         } finally {
+            if (keepAlive != null)
+                keepAlive.cancel();
             // error reading incoming data (maybe connection closed)
             shutdown();
             endStream();
@@ -300,11 +353,265 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
         }
     }
 
+    /**
+     * Finds from the start tag of an iq result or error which request it
+     * answers, so the reply is decoded directly into the class of the request
+     * instead of being decoded as a plain iq packet and recast.
+     * 
+     * @param uctx the context positioned at the start tag of a stanza
+     * @return the factory of the request's class, or null if the stanza is
+     *         not a reply anyone waits for
+     */
+    private IQPacketFactory replyFactory(UnmarshallingContext uctx) throws JiBXException {
+        if (!"iq".equals(uctx.getName()) || !XMPPConstants.NS_XMPP_CLIENT.equals(uctx.getNamespace()))
+            return null;
+        String type = uctx.attributeText(null, "type", null);
+        if (!IQPacket.TYPE_RESULT.equals(type) && !IQPacket.TYPE_ERROR.equals(type))
+            return null;
+        String id = uctx.attributeText(null, "id", null);
+        return id == null ? null : queue.getReplyFactory(id);
+    }
+
+    /**
+     * Decides from the start tag of a stanza whether it is skipped, before
+     * anything is unmarshalled. Stanzas are skipped when the stanza filter
+     * rejects them or when they are over the rate limit of their sender.
+     * Skipped iq requests are answered with an error, and replies to our own
+     * pending iq requests are never skipped.
+     * 
+     * @param uctx the context positioned at the start tag of a stanza
+     * @return true if the stanza is to be skipped
+     */
+    private boolean skipStanza(UnmarshallingContext uctx) throws JiBXException {
+        IStanzaFilter filter = stanzaFilter;
+        if ((filter == null && !floodGuard.isEnabled()) || !XMPPConstants.NS_XMPP_CLIENT.equals(uctx.getNamespace()))
+            return false;
+        String name = uctx.getName();
+        String type = uctx.attributeText(null, "type", null);
+        boolean iq = "iq".equals(name);
+        boolean request = iq && (IQPacket.TYPE_GET.equals(type) || IQPacket.TYPE_SET.equals(type));
+        String from = uctx.attributeText(null, "from", null);
+        String id = uctx.attributeText(null, "id", null);
+        if (filter != null && (request || !iq)) {
+            if (!filter.accept(name, from, uctx.attributeText(null, "to", null), type, id)) {
+                if (request)
+                    replyError(from, id, ErrorCode.C_SERVICE_UNAVAILABLE, StanzaErrorPacket.CANCEL);
+                return true;
+            }
+        }
+        if (!floodGuard.isEnabled())
+            return false;
+        // replies to our own requests are not limited, as we are waiting for
+        // them, but any other reply is
+        if (iq && !request && queue.isAwaitingReply(id))
+            return false;
+        if (floodGuard.admit(from) == 0 || floodGuard.getAction() == InboundFloodGuard.Action.COUNT)
+            return false;
+        if (log.isDebugEnabled())
+            log.debug("Dropping stanza over the rate limit of its sender " + from);
+        // dropped requests are answered, at most at the rate of the sender
+        if (request && floodGuard.admitReply(from))
+            replyError(from, id, ErrorCode.C_RESOURCE_CONSTRAINT, StanzaErrorPacket.WAIT);
+        return true;
+    }
+
+    /**
+     * Processes an incoming presence stanza.
+     * 
+     * @param presPkt the unmarshalled presence
+     * @return the packet to deliver, or null to drop it
+     */
+    protected IStanzaPacket handlePresence(PresencePacket presPkt) {
+        return presPkt;
+    }
+
+    /**
+     * Processes an incoming message stanza.
+     * 
+     * @param msgPkt the unmarshalled message
+     * @return the packet to deliver, or null to drop it
+     */
+    protected IStanzaPacket handleMessage(MessagePacket msgPkt) {
+        // according to XMPP, message stanza with no child
+        // element or unknown namespace extensions should be
+        // ignored. This translates to this API ignoring message
+        // stanzas with no child elements and no extensions in
+        // this API. Lazily unmarshalled messages with any child
+        // element are passed on without inspecting the content.
+        if (msgPkt.getRawContent() == null
+                && msgPkt.getBodies().isEmpty()
+                && msgPkt.getExtensions().isEmpty()
+                && msgPkt.getSubjects().isEmpty()
+                && msgPkt.getThreadID() == null) {
+            streamCtx.getReader().flushIgnoredDataToLog();
+            return null;
+        }
+        return msgPkt;
+    }
+
+    /**
+     * Processes an incoming iq stanza. Requests with unknown extensions are
+     * answered with an error and pings are answered with a result.
+     * 
+     * @param iqpkt the unmarshalled iq
+     * @return the packet to deliver, or null to drop it
+     */
+    protected IStanzaPacket handleIQ(IQPacket iqpkt) {
+        // according to XMPP, if an entity receives an IQ stanza
+        // of type "get" or "set" containing a child element
+        // qualified by a namespace it does not understand, the
+        // entity SHOULD return an IQ stanza of type "error"
+        // with an error condition of <service-unavailable/>.
+        // Here, it is ignored as well. In addition, an
+        // error packet is also sent back to the user, as
+        // specified by the specs.
+        if (IQPacket.class.getName().equals(iqpkt.getClass().getName())
+                && (IQPacket.TYPE_SET.equals(iqpkt.getType()) || IQPacket.TYPE_GET.equals(iqpkt.getType()))) {
+            if (log.isDebugEnabled())
+                log.debug("Found IQ packet with unknown extension inside.  Ignoring and sending unavailable error packet reply...");
+            streamCtx.getReader().flushIgnoredDataToLog();
+            replyServiceUnavailable(iqpkt.getFrom(), iqpkt.getId());
+            return null;
+        } else if (iqpkt instanceof PingIQPacket && IQPacket.TYPE_GET.equals(iqpkt.getType())) {
+            // XEP-0199: answer pings from the remote entity
+            // with an empty result
+            IQPacket result = new IQPacket(IQPacket.TYPE_RESULT);
+            result.setTo(iqpkt.getFrom());
+            result.setId(iqpkt.getId());
+            try {
+                offerControlPacket(result);
+            } catch (SendPacketFailedException ex) {
+                // the connection is closed, the drop is already counted
+            }
+            streamCtx.getReader().flushLog();
+            return null;
+        }
+        return iqpkt;
+    }
+
+    /**
+     * Answers an iq request that is not processed with a service-unavailable
+     * error. The reply is a control packet, thus it is not held up by a full
+     * outgoing queue.
+     * 
+     * @param to the sender of the request
+     * @param id the id of the request
+     */
+    private void replyServiceUnavailable(JID to, String id) {
+        replyError(to, id, ErrorCode.C_SERVICE_UNAVAILABLE, StanzaErrorPacket.CANCEL);
+    }
+
+    /**
+     * Answers an iq request skipped on its start tag with an error.
+     * 
+     * @param from the from attribute of the request, null if there is none
+     * @param id the id of the request
+     * @param condition the error condition
+     * @param type the error type
+     */
+    private void replyError(String from, String id, String condition, String type) {
+        try {
+            replyError(from == null ? null : JID.parseJID(from), id, condition, type);
+        } catch (JIDFormatException ex) {
+            // intentionally left empty (nowhere to reply to)
+        }
+    }
+
+    /**
+     * Answers an iq request that is not processed with an error. The reply is
+     * a control packet, thus it is not held up by a full outgoing queue.
+     * 
+     * @param to the sender of the request
+     * @param id the id of the request
+     * @param condition the error condition
+     * @param type the error type
+     */
+    private void replyError(JID to, String id, String condition, String type) {
+        IQPacket errpkt = new IQPacket();
+        errpkt.setTo(to);
+        errpkt.setId(id);
+        // TODO: For now, the return result does not include
+        // the original packet request data. XMPP specs
+        // RECOMMENDS includes the original packet request
+        // data.
+        StanzaErrorPacket error = new StanzaErrorPacket();
+        error.setCondition(condition);
+        error.setErrorType(type);
+        errpkt.setError(error);
+        try {
+            offerControlPacket(errpkt);
+        } catch (SendPacketFailedException ex) {
+            // the connection is closed, the drop is already counted
+        }
+    }
+
+    /**
+     * Processes a stream level error, which closes the stream.
+     * 
+     * @param errorPkt the unmarshalled stream error
+     * @throws IOException always, to end reading from the stream
+     */
+    protected void handleStreamError(ErrorPacket errorPkt) throws IOException {
+        if (metrics != null)
+            metrics.streamError();
+        IConnectionTracer tracer = streamCtx.getTracer();
+        if (tracer != null)
+            tracer.streamError(sessCtx, errorPkt == null ? null : errorPkt.getCondition());
+        checkTrafficShaping(errorPkt);
+        XMPPStanzaErrorException ex = new XMPPStanzaErrorException("Stream error", errorPkt);
+        IOException ioex = new IOException();
+        ioex.initCause(ex);
+        throw ioex;
+    }
+
+    /**
+     * Tells whether a stanza is sent by our server itself rather than relayed
+     * from another entity. Only the server's complaints about our traffic are
+     * taken into account for the outbound rates, as any entity can send an
+     * error with any condition.
+     * 
+     * @param from the sender of the stanza
+     * @return true if the sender is absent or the domain of our server
+     */
+    private boolean isFromServer(JID from) {
+        if (from == null)
+            return true;
+        return from.getNode() == null && from.getResource() == null && from.getHost() != null
+                && from.getHost().equalsIgnoreCase(sessCtx.getHostName());
+    }
+
+    /**
+     * Backs off the outbound rate limits if the error tells that the server
+     * is receiving too much traffic from us. The back off is kept when the
+     * connection is made again.
+     * 
+     * @param error the stream or stanza error received, may be null
+     */
+    private void checkTrafficShaping(ErrorPacket error) {
+        if (error == null)
+            return;
+        String condition = error.getCondition();
+        if (ErrorCode.S_POLICY_VIOLATION.equals(condition) || ErrorCode.S_RESOURCE_CONSTRAINT.equals(condition))
+            queue.backOff();
+    }
+
+    /**
+     * Sets the table used to dispatch the top-level elements read from the
+     * stream. By default, the table shared by all connections is used.
+     * 
+     * @param dispatchTable the dispatch table
+     */
+    public void setDispatchTable(ElementDispatchTable dispatchTable) {
+        this.dispatchTable = dispatchTable;
+    }
+
     /**
      * This will queue a packet for later delivery. This should be the method of
      * choice when sending ALL packets. The sendPacket() is used by the queue.
      * If the packet extends from StanzaPacketBase, it will also set the ID of
-     * the packet if one doesn't already exist.
+     * the packet if one doesn't already exist. In direct write mode, the packet
+     * is written out before this method returns unless the connection is
+     * paused.
      * 
      * @param packet the packet to send
      * @param wait whether to wait for a reply
@@ -314,15 +621,168 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
      *             shutdown
      */
     public IStanzaPacket queuePacket(IStanzaPacket packet, boolean wait) throws SendPacketFailedException {
-        // set default ID if one isn't set
+        setDefaultID(packet);
+        if (!interceptors.isEmpty()) {
+            packet = interceptors.sending(packet, System.nanoTime());
+            if (packet == null)
+                return null;
+        }
+        return queue.queuePacket(packet, wait);
+    }
+
+    /**
+     * Queues a packet for later delivery if there is room in the outgoing
+     * queue within the timeout. Like queuePacket(), it sets the ID of the
+     * packet if one doesn't already exist. Replies are not waited for.
+     * 
+     * @param packet the packet to send
+     * @param timeout the time in ms to wait for room in the queue, 0 to not
+     *            wait at all
+     * @return true if the packet is queued, false if the queue stayed full
+     * @throws SendPacketFailedException if the connection is closed
+     */
+    public boolean offerPacket(IStanzaPacket packet, long timeout) throws SendPacketFailedException {
+        setDefaultID(packet);
+        if (!interceptors.isEmpty()) {
+            packet = interceptors.sending(packet, System.nanoTime());
+            if (packet == null)
+                return true;
+        }
+        return queue.offerPacket(packet, timeout);
+    }
+
+    /**
+     * Queues a control packet generated by the connection itself, such as a
+     * ping, a keepalive or an automatic error reply. Control packets go into
+     * the control lane and are let into the outgoing queue even if it is full,
+     * up to twice its limits. A packet that cannot be queued is logged and
+     * counted in the metrics.
+     * 
+     * @param packet the packet to send
+     * @return true if the packet is queued
+     * @throws SendPacketFailedException if the connection is closed
+     */
+    boolean offerControlPacket(IStanzaPacket packet) throws SendPacketFailedException {
+        setDefaultID(packet);
+        if (!interceptors.isEmpty()) {
+            packet = interceptors.sending(packet, System.nanoTime());
+            if (packet == null)
+                return true;
+        }
+        boolean queued = false;
+        try {
+            queued = queue.offerControlPacket(packet);
+        } finally {
+            if (!queued) {
+                if (metrics != null)
+                    metrics.controlPacketDropped();
+                if (log.isDebugEnabled())
+                    log.debug("Control packet " + packet.getClass().getName() + " with id " + packet.getId() + " dropped, the outgoing queue is full or closing");
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Checks whether the outgoing queue is below its watermarks, in which case
+     * packets can be sent without being held up.
+     * 
+     * @return true if the connection is running and writable
+     */
+    public boolean isWritable() {
+        return state == RunningState.RUNNING && queue.isWritable();
+    }
+
+    /**
+     * Sets the listener notified when the outgoing queue crosses its
+     * watermarks.
+     * 
+     * @param listener the listener, null to remove
+     */
+    public void setWatermarkListener(IWatermarkListener listener) {
+        queue.setWatermarkListener(listener);
+    }
+
+    /**
+     * Sets how many packets each lane of the outgoing queue may send in turn.
+     * 
+     * @param weights the weights in the order of {@link PacketLane}, each at
+     *            least 1
+     */
+    public void setLaneWeights(int[] weights) {
+        queue.setLaneWeights(weights);
+    }
+
+    /**
+     * @param lane the lane of the outgoing queue
+     * @return the depth of the lane and how long packets waited in it
+     */
+    public LaneStatistics getLaneStatistics(PacketLane lane) {
+        return queue.getLaneStatistics(lane);
+    }
+
+    /**
+     * Sets the ID of the packet if it extends from StanzaPacketBase and
+     * doesn't already have one.
+     */
+    private void setDefaultID(IStanzaPacket packet) {
         if (packet.getId() == null && packet instanceof StanzaPacketBase)
             try {
-                ((StanzaPacketBase) packet).setId(IDGenerator.nextID());
+                ((StanzaPacketBase) packet).setId(getIDGenerator().next());
             } catch (XMPPException ex) {
                 if (log.isWarnEnabled())
                     log.warn("Unable to generate packet ID.  Will not auto-set ID. You should check into cause", ex);
             }
-        return queue.queuePacket(packet, wait);
+    }
+
+    /**
+     * Retrieves the id generator of this connection. The generator is obtained
+     * on first use, thus a generator set through IDGenerator.setIDGenerator()
+     * before the first packet is queued is honored.
+     * 
+     * @return the connection's id generator
+     * @throws XMPPException if the generator cannot be initialized
+     */
+    IDGenerator getIDGenerator() throws XMPPException {
+        IDGenerator gen = idGenerator;
+        if (gen == null) {
+            synchronized (this) {
+                gen = idGenerator;
+                if (gen == null) {
+                    gen = IDGenerator.forConnection();
+                    idGenerator = gen;
+                }
+            }
+        }
+        return gen;
+    }
+
+    /**
+     * Prepares a packet for sending. When marshalling in parallel (or when the
+     * size of the packet must be known), the packet is marshalled right away
+     * by the calling thread, and the packet to queue in its place only holds
+     * the bytes to write out. Otherwise, the packet is queued as it is.
+     * 
+     * @param packet the packet to send
+     * @param sizeNeeded true if the size of the packet must be known
+     * @return the packet to queue
+     * @throws SendPacketFailedException if the packet cannot be marshalled
+     */
+    IStanzaPacket preparePacket(IStanzaPacket packet, boolean sizeNeeded) throws SendPacketFailedException {
+        if (!(parallelMarshalling || sizeNeeded) || packet instanceof XMLTextPacket || packet instanceof BroadcastPacket)
+            return packet;
+        try {
+            if (!isSendTimed() && (metrics == null || !metrics.sampleSent()))
+                return new RenderedPacket(packet, StanzaRenderer.render(packet, XMPPConstants.NS_XMPP_CLIENT));
+            long start = System.nanoTime();
+            RenderedPacket rendered = new RenderedPacket(packet, StanzaRenderer.render(packet, XMPPConstants.NS_XMPP_CLIENT));
+            rendered.setRenderTimes(start, System.nanoTime());
+            if (metrics != null)
+                metrics.stanzaMarshalled(rendered.getRenderTime());
+            return rendered;
+        } catch (JiBXException ex) {
+            throw new SendPacketFailedException(ex);
+        }
     }
 
     /**
@@ -339,18 +799,75 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
      *             closed, IO error, etc)
      */
     void sendPacket(IStanzaPacket packet) throws SendPacketFailedException {
+        sendPacket(packet, 0);
+    }
+
+    /**
+     * Takes the lock writing packets out if no other thread holds it. The
+     * queue uses this to write the connection's control packets without
+     * waiting behind a thread that is writing.
+     * 
+     * @return true if the lock is taken, false if another thread holds it
+     */
+    boolean tryLockWriter() {
+        return lock.tryLock();
+    }
+
+    /**
+     * Releases the lock taken by tryLockWriter().
+     */
+    void unlockWriter() {
+        lock.unlock();
+    }
+
+    /**
+     * Sends a packet taken off the queue.
+     * 
+     * @param packet the packet to send
+     * @param queuedAt the System.nanoTime() at which the packet was queued, 0
+     *            if it is written directly
+     * @throws SendPacketFailedException if packet cannot be sent
+     * @see #sendPacket(IStanzaPacket)
+     */
+    void sendPacket(IStanzaPacket packet, long queuedAt) throws SendPacketFailedException {
         if (packet == null)
             return;
+        if (packet instanceof RenderedPacket) {
+            sendRendered((RenderedPacket) packet, queuedAt);
+            return;
+        }
         lock.lock();
         try {
+            IConnectionTracer tracer = streamCtx.getTracer();
+            boolean intercepted = !interceptors.isEmpty();
+            boolean sampled = metrics != null && metrics.sampleSent();
+            boolean timed = sampled || tracer != null || intercepted;
+            long start = timed ? System.nanoTime() : 0;
+            if (queuedAt == 0)
+                queuedAt = start;
+            if (metrics != null)
+                markSent(packet);
             // IQ Packets are marshalled differently
             if (packet instanceof IQPacket)
                 JiBXUtil.marshallIQPacket(streamCtx.getWriter(), (IQPacket) packet);
             else if (packet instanceof XMLTextPacket)
                 streamCtx.getWriter().writeMarkup(((XMLTextPacket) packet).getText());
+            else if (packet instanceof BroadcastPacket)
+                writeBroadcast((BroadcastPacket) packet);
             else
                 JiBXUtil.marshallObject(streamCtx.getWriter(), packet);
+            long marshalled = timed ? System.nanoTime() : 0;
+            if (metrics != null) {
+                recordSent(packet);
+                if (timed && !(packet instanceof XMLTextPacket))
+                    metrics.stanzaMarshalled(marshalled - start);
+            }
             streamCtx.getWriter().flush();
+            long flushed = tracer != null || intercepted ? System.nanoTime() : 0;
+            if (tracer != null)
+                tracer.stanzaSent(sessCtx, kindOf(packet), start - queuedAt, marshalled - start, flushed - marshalled);
+            if (intercepted)
+                interceptors.sent(packet, queuedAt, marshalled, flushed);
         } catch (JiBXException ex) {
             throw new SendPacketFailedException(ex);
         } catch (IOException ex) {
@@ -360,6 +877,128 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
         }
     }
 
+    /**
+     * Writes out an already marshalled packet. Packets of threads waiting for
+     * the lock are written along with it, and the writer is flushed once for
+     * all of them, thus threads sending at the same time share a socket write.
+     * A thread finding its packet already written only checks the result.
+     */
+    private void sendRendered(RenderedPacket packet, long queuedAt) throws SendPacketFailedException {
+        if (queuedAt == 0 && isSendTimed())
+            queuedAt = System.nanoTime();
+        packet.setQueuedAt(queuedAt);
+        renderedPackets.add(packet);
+        lock.lock();
+        try {
+            if (!packet.isWritten()) {
+                XMPPStreamWriter writer = streamCtx.getWriter();
+                IConnectionTracer tracer = streamCtx.getTracer();
+                boolean intercepted = !interceptors.isEmpty();
+                IOException failure = null;
+                RenderedPacket pending;
+                try {
+                    while ((pending = renderedPackets.poll()) != null) {
+                        renderedBatch.add(pending);
+                        StanzaBuffer buf = pending.getBuffer();
+                        if (metrics != null)
+                            markSent(pending.getPacket());
+                        writer.writeStanzaBytes(buf.getData(), 0, buf.size());
+                        if (metrics != null)
+                            metrics.stanzaSent(kindOf(pending.getPacket()));
+                    }
+                    long start = tracer == null && !intercepted ? 0 : System.nanoTime();
+                    writer.flush();
+                    if (tracer != null || intercepted)
+                        batchSent(tracer, intercepted, start, System.nanoTime());
+                } catch (IOException ex) {
+                    // the packets still waiting fail along with the batch
+                    failure = ex;
+                    while ((pending = renderedPackets.poll()) != null)
+                        renderedBatch.add(pending);
+                } finally {
+                    for (int i = 0; i < renderedBatch.size(); i++)
+                        renderedBatch.get(i).setWritten(failure);
+                    renderedBatch.clear();
+                }
+            }
+            if (packet.getFailure() != null)
+                throw new SendPacketFailedException(packet.getFailure());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts a packet written out by sendPacket(). Broadcasts count a stanza
+     * for each recipient; as their kind is lost once the template is compiled,
+     * they are counted as OTHER.
+     */
+    private void recordSent(IStanzaPacket packet) {
+        if (packet instanceof BroadcastPacket) {
+            int recipients = ((BroadcastPacket) packet).getRecipients().size();
+            for (int i = 0; i < recipients; i++)
+                metrics.stanzaSent(ConnectionMetrics.Kind.OTHER);
+        } else {
+            metrics.stanzaSent(kindOf(packet));
+        }
+    }
+
+    /**
+     * Passes each packet of the batch just written to the tracer and the
+     * interceptors. The time to flush the batch is reported for each of them.
+     */
+    private void batchSent(IConnectionTracer tracer, boolean intercepted, long flushStart, long flushed) {
+        for (int i = 0; i < renderedBatch.size(); i++) {
+            RenderedPacket p = renderedBatch.get(i);
+            if (tracer != null)
+                tracer.stanzaSent(sessCtx, kindOf(p.getPacket()), flushStart - p.getQueuedAt(), p.getRenderTime(), flushed - flushStart);
+            if (intercepted)
+                interceptors.sent(p.getPacket(), p.getQueuedAt(), p.getRenderedAt(), flushed);
+        }
+    }
+
+    /**
+     * @return true if the times of sending are needed by the tracer or the
+     *         interceptors. The metrics only time a sample of the packets.
+     */
+    private boolean isSendTimed() {
+        return streamCtx.getTracer() != null || !interceptors.isEmpty();
+    }
+
+    /**
+     * Stamps iq packets with the time they are written to the socket, which
+     * their round trips are measured from. The stamp is set before the packet
+     * is written out, as marshalling may already flush it, so that a quick
+     * reply never finds the stamp missing or left over from an earlier send.
+     */
+    private static void markSent(IStanzaPacket packet) {
+        if (packet instanceof IQPacket)
+            ((IQPacket) packet).setSentTime(System.nanoTime());
+    }
+
+    private static ConnectionMetrics.Kind kindOf(IStanzaPacket packet) {
+        if (packet instanceof MessagePacket)
+            return ConnectionMetrics.Kind.MESSAGE;
+        if (packet instanceof PresencePacket)
+            return ConnectionMetrics.Kind.PRESENCE;
+        if (packet instanceof IQPacket)
+            return ConnectionMetrics.Kind.IQ;
+        return ConnectionMetrics.Kind.OTHER;
+    }
+
+    /**
+     * Writes a copy of the broadcast template for each of its recipients.
+     * The copies go straight into the writer's buffer, which is flushed to the
+     * socket whenever it fills up.
+     */
+    private void writeBroadcast(BroadcastPacket packet) throws IOException {
+        XMPPStreamWriter writer = streamCtx.getWriter();
+        StanzaTemplate template = packet.getTemplate();
+        Iterator<JID> iter = packet.getRecipients().iterator();
+        while (iter.hasNext())
+            template.write(writer, iter.next());
+    }
+
     /**
      * This will put the current packet processing on hold and begin stream
      * processing. After stream processing, packet processing will be resumed.
@@ -391,6 +1030,10 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
             state = RunningState.STOPPED;
             streamCtx.reset();
             sessCtx.reset();
+            if (metrics != null) {
+                metrics.open();
+                metrics.connectionStarted();
+            }
             // start queue paused
             queue.start(true);
         } finally {
@@ -421,6 +1064,8 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
                 // intentionally left empty
             }
             queue.stop();
+            if (metrics != null)
+                metrics.close();
         } finally {
             lock.unlock();
         }
@@ -453,6 +1098,14 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
         return streamCtx;
     }
 
+    /**
+     * @return the metrics of this connection, or null if metrics are not
+     *         collected
+     */
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Retrieves the packet listener manager associated with this handler.
      * 
@@ -471,6 +1124,196 @@ public class XMPPConnectionHandler implements HandshakeableSocketHandler,
         this.listenerManager = lmanager;
     }
 
+    /**
+     * Sets the keepalive behavior of this connection. This overrides the
+     * settings in the configuration file and takes effect on the next
+     * connection.
+     * 
+     * @param mode the type of keepalive to send, NONE to disable keepalive
+     * @param idleTime the time in ms without inbound data before a keepalive
+     *            is sent
+     * @param pingTimeout the time in ms to wait for any inbound data after a
+     *            ping is sent before the connection is considered dead
+     */
+    public void setKeepAlive(KeepAliveScheduler.Mode mode, long idleTime, long pingTimeout) {
+        this.keepAliveMode = mode;
+        this.keepAliveIdleTime = idleTime;
+        this.keepAlivePingTimeout = pingTimeout;
+    }
+
+    /**
+     * Sets whether packets are written out by the thread sending them instead
+     * of by the queue thread. This saves a thread hand-off for every packet,
+     * but sending blocks until the packet is written out. Packets sent while
+     * the connection is paused (ie. during authentication) are held until it
+     * is resumed. This overrides the setting in the configuration file and
+     * takes effect on the next connection.
+     * 
+     * @param directWrite true to write packets on the sending thread
+     */
+    public void setDirectWrite(boolean directWrite) {
+        queue.setDirectWrite(directWrite);
+    }
+
+    /**
+     * Limits the packets waiting in the outgoing queue. Queuing a packet blocks
+     * while the queue is full. When the size is limited, packets are
+     * marshalled by the threads sending them so that their size is known. This
+     * overrides the settings in the configuration file.
+     * 
+     * @param maxStanzas the maximum number of packets waiting, 0 for no limit
+     * @param maxBytes the maximum size of the packets waiting, 0 for no limit
+     * @param highWatermark the percentage of the limits at which the
+     *            connection stops being writable
+     * @param lowWatermark the percentage of the limits at which the
+     *            connection is writable again
+     */
+    public void setOutboundLimits(int maxStanzas, long maxBytes, int highWatermark, int lowWatermark) {
+        queue.setLimits(maxStanzas, maxBytes, highWatermark, lowWatermark);
+    }
+
+    /**
+     * Sets whether presence and chat state updates waiting in the outgoing
+     * queue are replaced by newer updates of the same kind to the same
+     * recipient. The number of updates coalesced is counted in the lane
+     * statistics. This overrides the setting in the configuration file.
+     * 
+     * @param coalescing true to coalesce superseded updates
+     */
+    public void setOutboundCoalescing(boolean coalescing) {
+        queue.setCoalescing(coalescing);
+    }
+
+    /**
+     * Limits the rate packets are written out at, on the whole connection and
+     * to each recipient domain or JID. Packets over the rate are held in the
+     * outgoing queue. The rates are cut back when the server answers with a
+     * policy-violation or resource-constraint error. This overrides the
+     * settings in the configuration file.
+     * 
+     * @param rate the stanzas per second on the connection, 0 for no limit
+     * @param burst the stanzas that can be sent at once on the connection
+     * @param destinationRate the stanzas per second to each recipient, 0 for
+     *            no limit
+     * @param destinationBurst the stanzas that can be sent at once to each
+     *            recipient
+     * @param perJID true to limit the rate per full JID, false per domain
+     */
+    public void setRateLimits(double rate, int burst, double destinationRate, int destinationBurst, boolean perJID) {
+        queue.setRateLimits(rate, burst, destinationRate, destinationBurst, perJID);
+    }
+
+    /**
+     * @return the fraction of the outbound rate limits currently in effect,
+     *         below 1 while backing off
+     */
+    double getRateFactor() {
+        return queue.getRateFactor();
+    }
+
+    /**
+     * Sets the filter that decides from their start tags which incoming
+     * stanzas are processed. Rejected stanzas are skipped without being
+     * unmarshalled.
+     * 
+     * @param filter the filter, null to process all stanzas
+     */
+    public void setStanzaFilter(IStanzaFilter filter) {
+        this.stanzaFilter = filter;
+    }
+
+    /**
+     * Adds an interceptor to the end of the chain that incoming and outgoing
+     * stanzas pass through.
+     * 
+     * @param interceptor the interceptor to add
+     */
+    public void addStanzaInterceptor(IStanzaInterceptor interceptor) {
+        interceptors.add(interceptor);
+    }
+
+    /**
+     * Removes an interceptor from the chain.
+     * 
+     * @param interceptor the interceptor to remove
+     */
+    public void removeStanzaInterceptor(IStanzaInterceptor interceptor) {
+        interceptors.remove(interceptor);
+    }
+
+    /**
+     * Restricts the extensions decoded on this connection. The mappers read
+     * the profile from the stream context.
+     * 
+     * @param profile the profile, null to decode all registered extensions
+     */
+    public void setExtensionProfile(ExtensionProfile profile) {
+        streamCtx.setExtensionProfile(profile);
+    }
+
+    /**
+     * Limits the rate of stanzas each sender (by bare JID) can push through
+     * the connection. Whether a stanza is over the limit is decided on its
+     * start tag, thus dropped stanzas are never unmarshalled. Replies to our
+     * own pending iq requests are not limited. Dropped iq requests are
+     * answered with a resource-constraint error, at most at the same rate.
+     * This overrides the settings in the configuration file.
+     * 
+     * @param rate the stanzas per second each sender may send, 0 for no limit
+     * @param burst the stanzas a sender may send at once
+     * @param action what is done with stanzas over the limit
+     */
+    public void setInboundRateLimit(double rate, int burst, InboundFloodGuard.Action action) {
+        floodGuard.setLimits(rate, burst, action);
+    }
+
+    /**
+     * @return the number of stanzas received over the rate limit of their
+     *         sender, whether they were dropped or only counted
+     */
+    public long getInboundOverLimitCount() {
+        return floodGuard.getOverLimitCount();
+    }
+
+    /**
+     * Sets whether packets are marshalled by the threads sending them. The
+     * connection's writer then only copies the marshalled bytes, thus threads
+     * sending at the same time marshall their packets in parallel. This
+     * overrides the setting in the configuration file.
+     * 
+     * @param parallelMarshalling true to marshall packets on the sending
+     *            threads
+     */
+    public void setParallelMarshalling(boolean parallelMarshalling) {
+        this.parallelMarshalling = parallelMarshalling;
+    }
+
+    /**
+     * Checks whether keepalives should be sent. They are only sent while
+     * stanzas are processed in an authenticated session.
+     * 
+     * @return true if keepalives can be sent
+     */
+    boolean isKeepAliveActive() {
+        return state == RunningState.RUNNING && sessCtx.isAuthenticated();
+    }
+
+    /**
+     * Called by the keepalive scheduler when a ping is not answered in time.
+     * Shutdown is done off the timer thread since it may block until the
+     * remaining packets are written out.
+     */
+    void keepAliveTimedOut() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                shutdown();
+            }
+        });
+        thread.setName("Feridian KeepAlive Shutdown");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
     /**
      * pauses all processing of incoming packets. This is normally used to
      * indicate that some stream wishes to take over the stream processing for
@@ -1,22 +1,35 @@
 package com.echomine.xmpp.impl;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.jibx.runtime.JiBXException;
 
 import com.echomine.feridian.FeridianConfiguration;
+import com.echomine.jibx.StanzaTemplate;
 import com.echomine.net.ConnectionException;
 import com.echomine.net.ConnectionListener;
 import com.echomine.net.ConnectionVetoException;
 import com.echomine.net.HandshakeableSocketConnector;
 import com.echomine.net.XMPPConnectionContext;
+import com.echomine.xmpp.IDGenerator;
+import com.echomine.xmpp.ILoginStageListener;
+import com.echomine.xmpp.IWatermarkListener;
 import com.echomine.xmpp.IPacketListener;
+import com.echomine.xmpp.ExtensionProfile;
+import com.echomine.xmpp.IStanzaFilter;
+import com.echomine.xmpp.IStanzaInterceptor;
 import com.echomine.xmpp.IStanzaPacket;
 import com.echomine.xmpp.IXMPPAuthenticator;
 import com.echomine.xmpp.IXMPPConnection;
 import com.echomine.xmpp.IXMPPStream;
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.LaneStatistics;
+import com.echomine.xmpp.PacketLane;
 import com.echomine.xmpp.SendPacketFailedException;
 import com.echomine.xmpp.XMPPAuthCallback;
 import com.echomine.xmpp.XMPPConstants;
@@ -24,6 +37,11 @@ import com.echomine.xmpp.XMPPException;
 import com.echomine.xmpp.XMPPSessionContext;
 import com.echomine.xmpp.XMPPStreamContext;
 import com.echomine.xmpp.XMPPStreamFactory;
+import com.echomine.xmpp.metrics.ConnectionMetrics;
+import com.echomine.xmpp.metrics.IConnectionTracer;
+import com.echomine.xmpp.packet.BroadcastPacket;
+import com.echomine.xmpp.packet.StanzaPacketBase;
+import com.echomine.xmpp.stream.XMPPPipelinedLoginStream;
 
 /**
  * The primary default implementation for the API. It allows the user to
@@ -33,6 +51,8 @@ import com.echomine.xmpp.XMPPStreamFactory;
  */
 public class XMPPConnectionImpl implements IXMPPConnection {
     private static final Log log = LogFactory.getLog(XMPPConnectionImpl.class);
+    /** the number of copies written per queued broadcast packet */
+    private static final int BROADCAST_BATCH_SIZE = 256;
 
     private HandshakeableSocketConnector conn;
 
@@ -105,6 +125,7 @@ public class XMPPConnectionImpl implements IXMPPConnection {
         try {
             XMPPConnectionContext context = new XMPPConnectionContext(host, port);
             context.setDomain(domain);
+            handler.getStreamContext().fireStageStarted(ILoginStageListener.Stage.CONNECT);
             if (wait) {
                 conn.connectWithSynchStart(handler, context, "Feridian - "
                         + host);
@@ -155,6 +176,7 @@ public class XMPPConnectionImpl implements IXMPPConnection {
         callback.setResource(resource);
         XMPPStreamContext streamCtx = handler.getStreamContext();
         streamCtx.setAuthCallback(callback);
+        streamCtx.fireStageStarted(ILoginStageListener.Stage.SASL);
         Iterator<IXMPPAuthenticator> iter = FeridianConfiguration.getConfig().getAuthenticators().iterator();
         IXMPPAuthenticator auth = null;
         while (iter.hasNext()) {
@@ -170,18 +192,37 @@ public class XMPPConnectionImpl implements IXMPPConnection {
         if (log.isDebugEnabled())
             log.debug("Authenticating using the following authenticator: "
                     + auth.getClass().getName());
-        handler.processStream(auth, auth.redoHandshake());
-        // now check if binding and session features are supported
-        // if so, binding and session negotiation must be done
-        IXMPPStream stream;
-        if (streamCtx.getFeatures().isBindingSupported()) {
-            stream = XMPPStreamFactory.getFactory().createStream(XMPPConstants.NS_STREAM_BINDING);
-            handler.processStream(stream, false);
-        }
-        if (streamCtx.getFeatures().isSessionSupported()) {
-            stream = XMPPStreamFactory.getFactory().createStream(XMPPConstants.NS_STREAM_SESSION);
-            handler.processStream(stream, false);
+        if (FeridianConfiguration.getConfig().isPipelinedLogin()) {
+            // authentication, binding and session negotiation are done in
+            // one go, saving round trips where possible
+            handler.processStream(new XMPPPipelinedLoginStream(auth), false);
+        } else {
+            handler.processStream(auth, auth.redoHandshake());
+            streamCtx.fireStageCompleted(ILoginStageListener.Stage.SASL);
+            streamCtx.fireStageStarted(ILoginStageListener.Stage.BIND);
+            IConnectionTracer tracer = streamCtx.getTracer();
+            long start = tracer == null ? 0 : System.nanoTime();
+            boolean success = false;
+            try {
+                // now check if binding and session features are supported
+                // if so, binding and session negotiation must be done
+                IXMPPStream stream;
+                if (streamCtx.getFeatures().isBindingSupported()) {
+                    stream = XMPPStreamFactory.getFactory().createStream(XMPPConstants.NS_STREAM_BINDING);
+                    handler.processStream(stream, false);
+                }
+                if (streamCtx.getFeatures().isSessionSupported()) {
+                    stream = XMPPStreamFactory.getFactory().createStream(XMPPConstants.NS_STREAM_SESSION);
+                    handler.processStream(stream, false);
+                }
+                success = true;
+            } finally {
+                if (tracer != null)
+                    tracer.resourceBound(handler.getSessionContext(), System.nanoTime() - start, success);
+            }
+            streamCtx.fireStageCompleted(ILoginStageListener.Stage.BIND);
         }
+        handler.getSessionContext().setAuthenticated(true);
     }
 
     /*
@@ -194,6 +235,137 @@ public class XMPPConnectionImpl implements IXMPPConnection {
         return handler.queuePacket(packet, wait);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#offerPacket(com.echomine.xmpp.IStanzaPacket)
+     */
+    public boolean offerPacket(IStanzaPacket packet) throws SendPacketFailedException {
+        return handler.offerPacket(packet, 0);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#offerPacket(com.echomine.xmpp.IStanzaPacket,
+     *      long)
+     */
+    public boolean offerPacket(IStanzaPacket packet, long timeout) throws SendPacketFailedException {
+        return handler.offerPacket(packet, timeout);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#isWritable()
+     */
+    public boolean isWritable() {
+        return handler.isWritable();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#setWatermarkListener(com.echomine.xmpp.IWatermarkListener)
+     */
+    public void setWatermarkListener(IWatermarkListener listener) {
+        handler.setWatermarkListener(listener);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#setStanzaFilter(com.echomine.xmpp.IStanzaFilter)
+     */
+    public void setStanzaFilter(IStanzaFilter filter) {
+        handler.setStanzaFilter(filter);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#addStanzaInterceptor(com.echomine.xmpp.IStanzaInterceptor)
+     */
+    public void addStanzaInterceptor(IStanzaInterceptor interceptor) {
+        handler.addStanzaInterceptor(interceptor);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#removeStanzaInterceptor(com.echomine.xmpp.IStanzaInterceptor)
+     */
+    public void removeStanzaInterceptor(IStanzaInterceptor interceptor) {
+        handler.removeStanzaInterceptor(interceptor);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#setExtensionProfile(com.echomine.xmpp.ExtensionProfile)
+     */
+    public void setExtensionProfile(ExtensionProfile profile) {
+        handler.setExtensionProfile(profile);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#getMetrics()
+     */
+    public ConnectionMetrics getMetrics() {
+        return handler.getMetrics();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#getLaneStatistics(com.echomine.xmpp.PacketLane)
+     */
+    public LaneStatistics getLaneStatistics(PacketLane lane) {
+        return handler.getLaneStatistics(lane);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#broadcastPacket(com.echomine.xmpp.IStanzaPacket,
+     *      java.util.Collection)
+     */
+    public void broadcastPacket(IStanzaPacket packet, Collection<JID> recipients)
+            throws SendPacketFailedException {
+        if (!(packet instanceof StanzaPacketBase))
+            throw new IllegalArgumentException("Only packets extending StanzaPacketBase can be broadcast");
+        try {
+            String idPrefix = packet.getId() == null ? IDGenerator.nextID() : null;
+            broadcastPacket(StanzaTemplate.compile((StanzaPacketBase) packet, XMPPConstants.NS_XMPP_CLIENT, idPrefix), recipients);
+        } catch (JiBXException ex) {
+            throw new SendPacketFailedException(ex);
+        } catch (XMPPException ex) {
+            throw new SendPacketFailedException(ex);
+        }
+    }
+
+    /*
+     * Copies are queued in batches so that other outgoing packets are not
+     * held up for the entire broadcast.
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#broadcastPacket(com.echomine.jibx.StanzaTemplate,
+     *      java.util.Collection)
+     */
+    public void broadcastPacket(StanzaTemplate template, Collection<JID> recipients)
+            throws SendPacketFailedException {
+        ArrayList<JID> batch = new ArrayList<JID>(Math.min(BROADCAST_BATCH_SIZE, recipients.size()));
+        Iterator<JID> iter = recipients.iterator();
+        while (iter.hasNext()) {
+            batch.add(iter.next());
+            if (batch.size() == BROADCAST_BATCH_SIZE || !iter.hasNext()) {
+                handler.queuePacket(new BroadcastPacket(template, batch), false);
+                batch = new ArrayList<JID>(BROADCAST_BATCH_SIZE);
+            }
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -230,4 +402,13 @@ public class XMPPConnectionImpl implements IXMPPConnection {
         listenerManager.removePacketListener(listener);
     }
 
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPConnection#setLoginStageListener(com.echomine.xmpp.ILoginStageListener)
+     */
+    public void setLoginStageListener(ILoginStageListener listener) {
+        handler.getStreamContext().setLoginStageListener(listener);
+    }
 }
@@ -0,0 +1,652 @@
+package com.echomine.xmpp.metrics;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.echomine.util.LatencyHistogram;
+import com.echomine.util.StripedCounter;
+import com.echomine.xmpp.ILoginStageListener.Stage;
+
+/**
+ * The metrics of a connection: the stanzas and bytes going in and out, the
+ * state of the outgoing queue, the time spent unmarshalling, marshalling and
+ * in listeners, how long each stage of logging in takes, and how often the
+ * connection was started and failed with a stream error. The round trips of
+ * iq requests are kept in histograms per namespace of the request payload.
+ * <p>
+ * Everything recorded on a connection is also recorded on its parent, which
+ * holds the totals of all connections (see {@link Metrics#getTotal()}). The
+ * counts of a connection are plain atomic counters, while the counts of the
+ * totals, which every connection records on, are striped so that recording
+ * from many threads at once does not contend. Nothing is allocated when
+ * recording, and a connection's metrics take a few hundred bytes until round
+ * trips are recorded. The queue values of the total are summed over the
+ * connections currently open.
+ * </p>
+ * <p>
+ * Every stanza is counted, but reading the clock costs more than counting, so
+ * only one stanza out of {@link #SAMPLE_INTERVAL} in each direction is timed.
+ * The average times are taken over the stanzas timed.
+ * </p>
+ */
+public class ConnectionMetrics implements ConnectionMetricsMBean {
+    /** The kinds of stanzas counted */
+    public enum Kind {
+        MESSAGE, PRESENCE, IQ, OTHER
+    }
+
+    /** The namespace round trips of requests without a payload namespace are kept under */
+    public static final String NO_NAMESPACE = "none";
+
+    /** One stanza out of this many is timed (a power of two) */
+    public static final int SAMPLE_INTERVAL = 64;
+
+    private static final int KINDS = Kind.values().length;
+    private static final int STAGES = Stage.values().length;
+    // longs per cache line
+    private static final int LINE = 8;
+
+    // indexes of the counts; those written by the reader and those written by
+    // the senders are a cache line apart
+    private static final int STANZAS_IN = 0;
+    private static final int BYTES_IN = STANZAS_IN + KINDS;
+    private static final int PARSE_TIME = BYTES_IN + 1;
+    private static final int PARSE_COUNT = PARSE_TIME + 1;
+    private static final int DISPATCH_TIME = PARSE_COUNT + 1;
+    private static final int DISPATCH_COUNT = DISPATCH_TIME + 1;
+    private static final int STANZAS_OUT = DISPATCH_COUNT + LINE;
+    private static final int BYTES_OUT = STANZAS_OUT + KINDS;
+    private static final int MARSHAL_TIME = BYTES_OUT + 1;
+    private static final int MARSHAL_COUNT = MARSHAL_TIME + 1;
+    private static final int STAGE_TIME = MARSHAL_COUNT + LINE;
+    private static final int STAGE_COUNT = STAGE_TIME + STAGES;
+    private static final int CONNECTS = STAGE_COUNT + STAGES;
+    private static final int RECONNECTS = CONNECTS + 1;
+    private static final int STREAM_ERRORS = RECONNECTS + 1;
+    private static final int CONTROL_DROPPED = STREAM_ERRORS + 1;
+    private static final int COUNTS = CONTROL_DROPPED + 1;
+
+    private final String name;
+    private final ConnectionMetrics parent;
+    private final CopyOnWriteArrayList<ConnectionMetrics> children = new CopyOnWriteArrayList<ConnectionMetrics>();
+    // the counts of a connection, or null for totals
+    private final AtomicLongArray counts;
+    // the counts of totals, or null for a connection
+    private final StripedCounter[] totals;
+    private final AtomicLongArray stageStart = new AtomicLongArray(STAGES);
+    private final ConcurrentHashMap<String, RoundTrips> roundTrips = new ConcurrentHashMap<String, RoundTrips>();
+    private final LatencyHistogram allRoundTrips = new LatencyHistogram();
+    private final AtomicBoolean open = new AtomicBoolean();
+    private boolean started;
+    // not synchronized, threads racing only change which stanzas are timed
+    private int receivedTicks;
+    private int sentTicks;
+    private volatile IQueueGauge gauge;
+
+    /**
+     * @param name the name the metrics are registered under
+     * @param parent the metrics everything is also recorded on, null for the
+     *            totals
+     */
+    public ConnectionMetrics(String name, ConnectionMetrics parent) {
+        this.name = name;
+        this.parent = parent;
+        if (parent == null) {
+            counts = null;
+            totals = new StripedCounter[COUNTS];
+            for (int i = 0; i < COUNTS; i++)
+                totals[i] = new StripedCounter();
+        } else {
+            counts = new AtomicLongArray(COUNTS);
+            totals = null;
+        }
+    }
+
+    /**
+     * Sets where the state of the connection's outgoing queue is read from.
+     *
+     * @param gauge the gauge, null if the connection has no queue
+     */
+    public void setQueueGauge(IQueueGauge gauge) {
+        this.gauge = gauge;
+    }
+
+    /**
+     * Publishes the metrics through the registry and adds them to the queue
+     * values of the parent. Nothing is done if they are already open.
+     */
+    public void open() {
+        if (!open.compareAndSet(false, true))
+            return;
+        if (parent != null)
+            parent.children.add(this);
+        IMetricsRegistry registry = Metrics.getRegistry();
+        if (registry != null)
+            registry.register(this);
+    }
+
+    /**
+     * Stops publishing the metrics. The counts already recorded on the parent
+     * are kept. Nothing is done if they are not open.
+     */
+    public void close() {
+        if (!open.compareAndSet(true, false))
+            return;
+        if (parent != null)
+            parent.children.remove(this);
+        IMetricsRegistry registry = Metrics.getRegistry();
+        if (registry != null)
+            registry.unregister(this);
+    }
+
+    /**
+     * @return true if the stanza being received is to be timed
+     */
+    public boolean sampleReceived() {
+        return (++receivedTicks & (SAMPLE_INTERVAL - 1)) == 0;
+    }
+
+    /**
+     * @return true if the stanza being sent is to be timed
+     */
+    public boolean sampleSent() {
+        return (++sentTicks & (SAMPLE_INTERVAL - 1)) == 0;
+    }
+
+    /**
+     * Records a stanza received.
+     *
+     * @param kind the kind of stanza
+     */
+    public void stanzaReceived(Kind kind) {
+        int i = kind.ordinal();
+        for (ConnectionMetrics m = this; m != null; m = m.parent)
+            m.add(STANZAS_IN + i, 1);
+    }
+
+    /**
+     * Records the unmarshalling of a stanza received.
+     *
+     * @param nanos the time in ns it took to unmarshal
+     */
+    public void stanzaParsed(long nanos) {
+        for (ConnectionMetrics m = this; m != null; m = m.parent) {
+            m.add(PARSE_TIME, nanos);
+            m.add(PARSE_COUNT, 1);
+        }
+    }
+
+    /**
+     * Records a stanza received along with the time it took to unmarshal.
+     *
+     * @param kind the kind of stanza
+     * @param parseNanos the time in ns it took to unmarshal
+     */
+    public void stanzaReceived(Kind kind, long parseNanos) {
+        stanzaReceived(kind);
+        stanzaParsed(parseNanos);
+    }
+
+    /**
+     * Records a stanza sent.
+     *
+     * @param kind the kind of stanza
+     */
+    public void stanzaSent(Kind kind) {
+        int i = kind.ordinal();
+        for (ConnectionMetrics m = this; m != null; m = m.parent)
+            m.add(STANZAS_OUT + i, 1);
+    }
+
+    /**
+     * Records the marshalling of a stanza.
+     *
+     * @param nanos the time in ns it took to marshal
+     */
+    public void stanzaMarshalled(long nanos) {
+        for (ConnectionMetrics m = this; m != null; m = m.parent) {
+            m.add(MARSHAL_TIME, nanos);
+            m.add(MARSHAL_COUNT, 1);
+        }
+    }
+
+    /**
+     * Records the passing of a stanza to the listeners.
+     *
+     * @param nanos the time in ns the listeners took
+     */
+    public void stanzaDispatched(long nanos) {
+        for (ConnectionMetrics m = this; m != null; m = m.parent) {
+            m.add(DISPATCH_TIME, nanos);
+            m.add(DISPATCH_COUNT, 1);
+        }
+    }
+
+    /**
+     * Records the start of a login stage.
+     *
+     * @param stage the stage
+     */
+    public void stageStarted(Stage stage) {
+        stageStart.set(stage.ordinal(), System.nanoTime());
+    }
+
+    /**
+     * Records the completion of a login stage, if its start was recorded.
+     *
+     * @param stage the stage
+     */
+    public void stageCompleted(Stage stage) {
+        int i = stage.ordinal();
+        long start = stageStart.getAndSet(i, 0);
+        if (start == 0)
+            return;
+        long nanos = System.nanoTime() - start;
+        for (ConnectionMetrics m = this; m != null; m = m.parent) {
+            m.add(STAGE_TIME + i, nanos);
+            m.add(STAGE_COUNT + i, 1);
+        }
+    }
+
+    /**
+     * Records the start of the connection. Every start after the first is a
+     * reconnect.
+     */
+    public void connectionStarted() {
+        boolean again;
+        synchronized (this) {
+            again = started;
+            started = true;
+        }
+        for (ConnectionMetrics m = this; m != null; m = m.parent) {
+            m.add(CONNECTS, 1);
+            if (again)
+                m.add(RECONNECTS, 1);
+        }
+    }
+
+    /**
+     * Records a stream error received.
+     */
+    public void streamError() {
+        for (ConnectionMetrics m = this; m != null; m = m.parent)
+            m.add(STREAM_ERRORS, 1);
+    }
+
+    /**
+     * Records a packet the connection generated by itself, such as a ping or
+     * an error reply, that could not be queued.
+     */
+    public void controlPacketDropped() {
+        for (ConnectionMetrics m = this; m != null; m = m.parent)
+            m.add(CONTROL_DROPPED, 1);
+    }
+
+    /**
+     * Records the round trip of an iq request, from the time it was written to
+     * the socket until its reply was matched. Nothing is allocated except the
+     * first time a namespace or a range of round trips is seen.
+     *
+     * @param ns the namespace of the request payload, null if it has none
+     * @param nanos the time in ns until the reply came in
+     */
+    public void iqReplied(String ns, long nanos) {
+        if (ns == null)
+            ns = NO_NAMESPACE;
+        long micros = nanos / 1000;
+        for (ConnectionMetrics m = this; m != null; m = m.parent) {
+            m.roundTrips(ns).record(micros);
+            m.allRoundTrips.record(micros);
+        }
+    }
+
+    /**
+     * @param ns the namespace of the request payload, or NO_NAMESPACE
+     * @return the round trips in microseconds of requests in the namespace
+     *         since the metrics were created or reset, null if there are none
+     */
+    public LatencyHistogram getRoundTripHistogram(String ns) {
+        RoundTrips rt = roundTrips.get(ns);
+        return rt == null ? null : rt.cumulative;
+    }
+
+    /**
+     * @return the round trips in microseconds of all requests since the
+     *         metrics were created or reset
+     */
+    public LatencyHistogram getRoundTripHistogram() {
+        return allRoundTrips;
+    }
+
+    /**
+     * @return the namespaces of the requests that round trips were recorded for
+     */
+    public Set<String> getRoundTripNamespaces() {
+        return roundTrips.keySet();
+    }
+
+    /**
+     * Takes the round trips recorded per namespace since the previous
+     * snapshot. The cumulative histograms are not affected. Namespaces without
+     * round trips in the interval are left out.
+     *
+     * @return the histograms of the interval keyed by namespace
+     */
+    public Map<String, LatencyHistogram> snapshotRoundTrips() {
+        Map<String, LatencyHistogram> snapshot = new HashMap<String, LatencyHistogram>();
+        Iterator<Map.Entry<String, RoundTrips>> iter = roundTrips.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, RoundTrips> entry = iter.next();
+            LatencyHistogram interval = entry.getValue().interval.getAndReset();
+            if (interval.getCount() > 0)
+                snapshot.put(entry.getKey(), interval);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Takes a snapshot of the round trips and passes it to the exporter.
+     *
+     * @param exporter the exporter
+     * @see #snapshotRoundTrips()
+     */
+    public void exportRoundTrips(IRoundTripExporter exporter) {
+        exporter.export(this, snapshotRoundTrips());
+    }
+
+    /**
+     * @return the open connections whose counts are summed into these
+     */
+    List<ConnectionMetrics> getChildren() {
+        return children;
+    }
+
+    private RoundTrips roundTrips(String ns) {
+        RoundTrips rt = roundTrips.get(ns);
+        if (rt == null) {
+            RoundTrips created = new RoundTrips();
+            rt = roundTrips.putIfAbsent(ns, created);
+            if (rt == null)
+                rt = created;
+        }
+        return rt;
+    }
+
+    /**
+     * Wraps the input of the connection so that the bytes read are counted.
+     *
+     * @param in the input stream
+     * @return the counting stream
+     */
+    public InputStream meter(InputStream in) {
+        return new FilterInputStream(in) {
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0)
+                    bytesRead(1);
+                return b;
+            }
+
+            public int read(byte[] buf, int off, int len) throws IOException {
+                int n = super.read(buf, off, len);
+                if (n > 0)
+                    bytesRead(n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Wraps the output of the connection so that the bytes written are
+     * counted.
+     *
+     * @param out the output stream
+     * @return the counting stream
+     */
+    public OutputStream meter(OutputStream out) {
+        return new FilterOutputStream(out) {
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesWritten(1);
+            }
+
+            public void write(byte[] buf, int off, int len) throws IOException {
+                out.write(buf, off, len);
+                bytesWritten(len);
+            }
+        };
+    }
+
+    private void bytesRead(long n) {
+        for (ConnectionMetrics m = this; m != null; m = m.parent)
+            m.add(BYTES_IN, n);
+    }
+
+    private void bytesWritten(long n) {
+        for (ConnectionMetrics m = this; m != null; m = m.parent)
+            m.add(BYTES_OUT, n);
+    }
+
+    private void add(int index, long value) {
+        if (counts != null)
+            counts.addAndGet(index, value);
+        else
+            totals[index].add(value);
+    }
+
+    private long get(int index) {
+        return counts != null ? counts.get(index) : totals[index].sum();
+    }
+
+    private long sum(int index, int length) {
+        long sum = 0;
+        for (int i = index; i < index + length; i++)
+            sum += get(i);
+        return sum;
+    }
+
+    private double average(int total, int count, double divisor) {
+        long n = get(count);
+        return n == 0 ? 0 : get(total) / divisor / n;
+    }
+
+    // the attributes below are documented in ConnectionMetricsMBean
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param kind the kind of stanza
+     * @return the stanzas of the kind received
+     */
+    public long getStanzasIn(Kind kind) {
+        return get(STANZAS_IN + kind.ordinal());
+    }
+
+    /**
+     * @param kind the kind of stanza
+     * @return the stanzas of the kind sent
+     */
+    public long getStanzasOut(Kind kind) {
+        return get(STANZAS_OUT + kind.ordinal());
+    }
+
+    public long getMessagesIn() {
+        return getStanzasIn(Kind.MESSAGE);
+    }
+
+    public long getPresencesIn() {
+        return getStanzasIn(Kind.PRESENCE);
+    }
+
+    public long getIQsIn() {
+        return getStanzasIn(Kind.IQ);
+    }
+
+    public long getStanzasIn() {
+        return sum(STANZAS_IN, KINDS);
+    }
+
+    public long getMessagesOut() {
+        return getStanzasOut(Kind.MESSAGE);
+    }
+
+    public long getPresencesOut() {
+        return getStanzasOut(Kind.PRESENCE);
+    }
+
+    public long getIQsOut() {
+        return getStanzasOut(Kind.IQ);
+    }
+
+    public long getStanzasOut() {
+        return sum(STANZAS_OUT, KINDS);
+    }
+
+    public long getBytesIn() {
+        return get(BYTES_IN);
+    }
+
+    public long getBytesOut() {
+        return get(BYTES_OUT);
+    }
+
+    public int getQueueDepth() {
+        IQueueGauge g = gauge;
+        int depth = g == null ? 0 : g.getQueueDepth();
+        Iterator<ConnectionMetrics> iter = children.iterator();
+        while (iter.hasNext())
+            depth += iter.next().getQueueDepth();
+        return depth;
+    }
+
+    public int getPendingReplies() {
+        IQueueGauge g = gauge;
+        int pending = g == null ? 0 : g.getPendingReplies();
+        Iterator<ConnectionMetrics> iter = children.iterator();
+        while (iter.hasNext())
+            pending += iter.next().getPendingReplies();
+        return pending;
+    }
+
+    public double getAverageParseTime() {
+        return average(PARSE_TIME, PARSE_COUNT, 1000);
+    }
+
+    public double getAverageMarshalTime() {
+        return average(MARSHAL_TIME, MARSHAL_COUNT, 1000);
+    }
+
+    public double getAverageDispatchTime() {
+        return average(DISPATCH_TIME, DISPATCH_COUNT, 1000);
+    }
+
+    /**
+     * @param stage the login stage
+     * @return the average time in ms the stage took
+     */
+    public double getAverageStageTime(Stage stage) {
+        return average(STAGE_TIME + stage.ordinal(), STAGE_COUNT + stage.ordinal(), 1000000);
+    }
+
+    public double getAverageConnectTime() {
+        return getAverageStageTime(Stage.CONNECT);
+    }
+
+    public double getAverageTLSTime() {
+        return getAverageStageTime(Stage.TLS);
+    }
+
+    public double getAverageSASLTime() {
+        return getAverageStageTime(Stage.SASL);
+    }
+
+    public double getAverageBindTime() {
+        return getAverageStageTime(Stage.BIND);
+    }
+
+    public long getConnects() {
+        return get(CONNECTS);
+    }
+
+    public long getReconnects() {
+        return get(RECONNECTS);
+    }
+
+    public long getStreamErrors() {
+        return get(STREAM_ERRORS);
+    }
+
+    public long getControlPacketsDropped() {
+        return get(CONTROL_DROPPED);
+    }
+
+    public long getIQRoundTrips() {
+        return allRoundTrips.getCount();
+    }
+
+    public long getIQRoundTripMedian() {
+        return allRoundTrips.getValueAtPercentile(50);
+    }
+
+    public long getIQRoundTrip99thPercentile() {
+        return allRoundTrips.getValueAtPercentile(99);
+    }
+
+    public long getIQRoundTrip999thPercentile() {
+        return allRoundTrips.getValueAtPercentile(99.9);
+    }
+
+    public String[] getIQRoundTripsByNamespace() {
+        Map<String, RoundTrips> sorted = new TreeMap<String, RoundTrips>(roundTrips);
+        String[] summaries = new String[sorted.size()];
+        int i = 0;
+        Iterator<Map.Entry<String, RoundTrips>> iter = sorted.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, RoundTrips> entry = iter.next();
+            LatencyHistogram h = entry.getValue().cumulative;
+            summaries[i++] = entry.getKey() + " count=" + h.getCount() + " p50=" + h.getValueAtPercentile(50) + " p99="
+                    + h.getValueAtPercentile(99) + " p999=" + h.getValueAtPercentile(99.9);
+        }
+        return summaries;
+    }
+
+    public void reset() {
+        for (int i = 0; i < COUNTS; i++) {
+            if (counts != null)
+                counts.set(i, 0);
+            else
+                totals[i].reset();
+        }
+        roundTrips.clear();
+        allRoundTrips.reset();
+    }
+
+    /**
+     * The round trips of a namespace since the start and since the last
+     * snapshot
+     */
+    private static class RoundTrips {
+        final LatencyHistogram cumulative = new LatencyHistogram();
+        final LatencyHistogram interval = new LatencyHistogram();
+
+        void record(long micros) {
+            cumulative.record(micros);
+            interval.record(micros);
+        }
+    }
+}
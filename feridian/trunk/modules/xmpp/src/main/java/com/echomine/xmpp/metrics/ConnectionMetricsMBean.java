@@ -0,0 +1,104 @@
+package com.echomine.xmpp.metrics;
+
+/**
+ * The management interface of connection metrics. Counts accumulate from the
+ * creation of the metrics or from the last reset. Times are averages over the
+ * events counted.
+ */
+public interface ConnectionMetricsMBean {
+    /** @return the name the metrics are registered under */
+    String getName();
+
+    /** @return the message stanzas received */
+    long getMessagesIn();
+
+    /** @return the presence stanzas received */
+    long getPresencesIn();
+
+    /** @return the iq stanzas received */
+    long getIQsIn();
+
+    /** @return all stanzas received */
+    long getStanzasIn();
+
+    /** @return the message stanzas sent */
+    long getMessagesOut();
+
+    /** @return the presence stanzas sent */
+    long getPresencesOut();
+
+    /** @return the iq stanzas sent */
+    long getIQsOut();
+
+    /** @return all stanzas sent, including raw xml */
+    long getStanzasOut();
+
+    /** @return the bytes read from the stream */
+    long getBytesIn();
+
+    /** @return the bytes written to the stream */
+    long getBytesOut();
+
+    /** @return the packets waiting in the outgoing queue */
+    int getQueueDepth();
+
+    /** @return the iq requests waiting for their replies */
+    int getPendingReplies();
+
+    /** @return the average time in microseconds to unmarshal a stanza */
+    double getAverageParseTime();
+
+    /** @return the average time in microseconds to marshal a stanza */
+    double getAverageMarshalTime();
+
+    /** @return the average time in microseconds the listeners took per stanza */
+    double getAverageDispatchTime();
+
+    /** @return the average time in ms to connect and negotiate the stream */
+    double getAverageConnectTime();
+
+    /** @return the average time in ms to negotiate TLS */
+    double getAverageTLSTime();
+
+    /** @return the average time in ms to authenticate */
+    double getAverageSASLTime();
+
+    /** @return the average time in ms to bind a resource and start a session */
+    double getAverageBindTime();
+
+    /** @return the times a connection was started */
+    long getConnects();
+
+    /** @return the times a connection was started again after the first */
+    long getReconnects();
+
+    /** @return the stream errors received */
+    long getStreamErrors();
+
+    /** @return the pings, keepalives and error replies that could not be queued */
+    long getControlPacketsDropped();
+
+    /** @return the iq requests whose replies came in */
+    long getIQRoundTrips();
+
+    /** @return the median time in microseconds from sending an iq request to its reply */
+    long getIQRoundTripMedian();
+
+    /** @return the 99th percentile of the iq round trips in microseconds */
+    long getIQRoundTrip99thPercentile();
+
+    /** @return the 99.9th percentile of the iq round trips in microseconds */
+    long getIQRoundTrip999thPercentile();
+
+    /**
+     * @return a summary of the round trips for each namespace of the request
+     *         payload: the count and the 50th, 99th and 99.9th percentiles in
+     *         microseconds
+     */
+    String[] getIQRoundTripsByNamespace();
+
+    /**
+     * Sets all counts back to 0
+     */
+    void reset();
+}
@@ -0,0 +1,66 @@
+package com.echomine.xmpp.metrics;
+
+import com.echomine.xmpp.XMPPSessionContext;
+import com.echomine.xmpp.metrics.ConnectionMetrics.Kind;
+
+/**
+ * Receives an event for each stanza read and written and for each phase of
+ * logging in, with its timings, so that they can be passed on to a profiler or
+ * a tracing system and lined up with what else the process was doing. Events
+ * are made on the thread doing the work (the reading thread, the sending
+ * thread or the one logging in) and must return quickly.
+ * <p>
+ * No tracer is used unless one is configured, in which case the connection
+ * does no more than a null check per event. Times are in nanoseconds.
+ * </p>
+ *
+ * @see Metrics#setTracer(IConnectionTracer)
+ */
+public interface IConnectionTracer {
+    /**
+     * @param session the session of the connection
+     * @param kind the kind of stanza
+     * @param parseNanos the time it took to unmarshal
+     */
+    void stanzaReceived(XMPPSessionContext session, Kind kind, long parseNanos);
+
+    /**
+     * @param session the session of the connection
+     * @param kind the kind of stanza
+     * @param queueNanos the time the stanza waited in the outgoing queue, 0 if
+     *            it was written directly
+     * @param marshalNanos the time it took to marshal
+     * @param flushNanos the time it took to write it to the socket, shared by
+     *            the stanzas written together
+     */
+    void stanzaSent(XMPPSessionContext session, Kind kind, long queueNanos, long marshalNanos, long flushNanos);
+
+    /**
+     * @param session the session of the connection
+     * @param nanos the time the STARTTLS negotiation and the handshake took
+     * @param success false if the negotiation failed
+     */
+    void tlsNegotiated(XMPPSessionContext session, long nanos, boolean success);
+
+    /**
+     * @param session the session of the connection
+     * @param mechanism the SASL mechanism, or null if it is not known
+     * @param nanos the time authentication took
+     * @param success false if authentication failed
+     */
+    void saslAuthenticated(XMPPSessionContext session, String mechanism, long nanos, boolean success);
+
+    /**
+     * @param session the session of the connection
+     * @param nanos the time resource binding and session establishment took
+     * @param success false if either failed
+     */
+    void resourceBound(XMPPSessionContext session, long nanos, boolean success);
+
+    /**
+     * @param session the session of the connection
+     * @param condition the condition of the stream error, or null if there is
+     *            none
+     */
+    void streamError(XMPPSessionContext session, String condition);
+}
@@ -0,0 +1,34 @@
+package com.echomine.xmpp.metrics;
+
+/**
+ * Publishes the metrics of connections. Connections register their metrics
+ * when they start and unregister them when they shut down. The default
+ * registry publishes them as JMX MBeans; another registry can be configured
+ * to feed them into a different monitoring system. Implementations must be
+ * thread safe and must have a public no-argument constructor.
+ * 
+ * @see Metrics#setRegistry(IMetricsRegistry)
+ */
+public interface IMetricsRegistry {
+    /**
+     * Publishes the metrics of all connections together. This is called once,
+     * before any connection is registered.
+     * 
+     * @param total the metrics summed over all connections
+     */
+    void registerTotal(ConnectionMetrics total);
+
+    /**
+     * Publishes the metrics of a connection.
+     * 
+     * @param metrics the metrics of the connection
+     */
+    void register(ConnectionMetrics metrics);
+
+    /**
+     * Stops publishing the metrics of a connection.
+     * 
+     * @param metrics the metrics of the connection
+     */
+    void unregister(ConnectionMetrics metrics);
+}
@@ -0,0 +1,17 @@
+package com.echomine.xmpp.metrics;
+
+/**
+ * Reads the current state of a connection's outgoing queue for its metrics.
+ * The values are read only when the metrics are looked at.
+ */
+public interface IQueueGauge {
+    /**
+     * @return the number of packets waiting to be sent
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the number of iq requests waiting for their replies
+     */
+    int getPendingReplies();
+}
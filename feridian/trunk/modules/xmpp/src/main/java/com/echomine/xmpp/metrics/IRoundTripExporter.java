@@ -0,0 +1,22 @@
+package com.echomine.xmpp.metrics;
+
+import java.util.Map;
+
+import com.echomine.util.LatencyHistogram;
+
+/**
+ * Receives snapshots of the iq round trips to pass them on to a monitoring
+ * system. A snapshot holds the round trips recorded since the previous one,
+ * thus the exporter sees each round trip once.
+ *
+ * @see Metrics#exportRoundTrips(IRoundTripExporter)
+ * @see ConnectionMetrics#exportRoundTrips(IRoundTripExporter)
+ */
+public interface IRoundTripExporter {
+    /**
+     * @param metrics the metrics the round trips were recorded on
+     * @param intervals the round trips in microseconds since the previous
+     *            snapshot, keyed by the namespace of the request payload
+     */
+    void export(ConnectionMetrics metrics, Map<String, LatencyHistogram> intervals);
+}
@@ -0,0 +1,85 @@
+package com.echomine.xmpp.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Publishes connection metrics as MBeans in the platform MBean server. The
+ * totals are registered as com.echomine.feridian:type=Connections and each
+ * connection as com.echomine.feridian:type=Connection,name=&lt;name&gt;.
+ * Failures to register are logged and otherwise ignored, so monitoring never
+ * gets in the way of a connection.
+ */
+public class JMXMetricsRegistry implements IMetricsRegistry {
+    private static final Log log = LogFactory.getLog(JMXMetricsRegistry.class);
+    private static final String DOMAIN = "com.echomine.feridian";
+
+    private MBeanServer server;
+
+    public JMXMetricsRegistry() {
+        this(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * @param server the server to register the MBeans with
+     */
+    public JMXMetricsRegistry(MBeanServer server) {
+        this.server = server;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.metrics.IMetricsRegistry#registerTotal(com.echomine.xmpp.metrics.ConnectionMetrics)
+     */
+    public void registerTotal(ConnectionMetrics total) {
+        register(DOMAIN + ":type=Connections", total);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.metrics.IMetricsRegistry#register(com.echomine.xmpp.metrics.ConnectionMetrics)
+     */
+    public void register(ConnectionMetrics metrics) {
+        register(nameOf(metrics), metrics);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.metrics.IMetricsRegistry#unregister(com.echomine.xmpp.metrics.ConnectionMetrics)
+     */
+    public void unregister(ConnectionMetrics metrics) {
+        try {
+            ObjectName name = new ObjectName(nameOf(metrics));
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        } catch (JMException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unable to unregister the metrics of " + metrics.getName(), ex);
+        }
+    }
+
+    private void register(String objectName, ConnectionMetrics metrics) {
+        try {
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(metrics, name);
+        } catch (JMException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unable to register the metrics of " + metrics.getName(), ex);
+        }
+    }
+
+    private static String nameOf(ConnectionMetrics metrics) {
+        return DOMAIN + ":type=Connection,name=" + ObjectName.quote(metrics.getName());
+    }
+}
@@ -0,0 +1,149 @@
+package com.echomine.xmpp.metrics;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.echomine.feridian.FeridianConfiguration;
+import com.echomine.util.ClassUtil;
+
+/**
+ * Holds the registry that connection metrics are published through, the
+ * totals of all connections and the tracer connection events are passed to.
+ * Metrics are only collected when they are enabled in the configuration; the
+ * registry is then created from the configured class on first use, unless one
+ * was set before. The tracer is likewise created from the configured class.
+ */
+public final class Metrics {
+    private static final Log log = LogFactory.getLog(Metrics.class);
+    private static final ConnectionMetrics total = new ConnectionMetrics("total", null);
+    private static final AtomicInteger sequence = new AtomicInteger();
+    private static volatile IMetricsRegistry registry;
+    private static boolean registryCreated;
+    private static IConnectionTracer tracer;
+    private static boolean tracerCreated;
+
+    private Metrics() {
+    }
+
+    /**
+     * @return the metrics summed over all connections
+     */
+    public static ConnectionMetrics getTotal() {
+        return total;
+    }
+
+    /**
+     * Creates the metrics of a new connection, if metrics are enabled.
+     * 
+     * @return the metrics, or null if metrics are disabled
+     */
+    public static ConnectionMetrics createConnectionMetrics() {
+        if (!FeridianConfiguration.getConfig().isMetricsEnabled())
+            return null;
+        return new ConnectionMetrics("connection-" + sequence.incrementAndGet(), total);
+    }
+
+    /**
+     * Retrieves the registry metrics are published through. The configured
+     * registry is created on the first call.
+     * 
+     * @return the registry, or null if none could be created
+     */
+    public static IMetricsRegistry getRegistry() {
+        IMetricsRegistry reg = registry;
+        if (reg == null) {
+            synchronized (Metrics.class) {
+                if (!registryCreated) {
+                    registryCreated = true;
+                    setRegistry(createRegistry());
+                }
+                reg = registry;
+            }
+        }
+        return reg;
+    }
+
+    /**
+     * Sets the registry that metrics are published through. This overrides
+     * the registry in the configuration file. Connections already open stay
+     * published through the previous registry.
+     * 
+     * @param registry the registry, null to not publish metrics
+     */
+    public static synchronized void setRegistry(IMetricsRegistry registry) {
+        registryCreated = true;
+        if (registry != null)
+            registry.registerTotal(total);
+        Metrics.registry = registry;
+    }
+
+    /**
+     * Takes a snapshot of the iq round trips of the total and of each open
+     * connection, and passes them to the exporter. Calling this periodically
+     * exports the round trips of successive intervals.
+     * 
+     * @param exporter the exporter
+     */
+    public static void exportRoundTrips(IRoundTripExporter exporter) {
+        total.exportRoundTrips(exporter);
+        Iterator<ConnectionMetrics> iter = total.getChildren().iterator();
+        while (iter.hasNext())
+            iter.next().exportRoundTrips(exporter);
+    }
+
+    /**
+     * Retrieves the tracer that connections pass their events to. The
+     * configured tracer is created on the first call. Connections take the
+     * tracer when they are created.
+     * 
+     * @return the tracer, or null if none is configured
+     */
+    public static synchronized IConnectionTracer getTracer() {
+        if (!tracerCreated) {
+            tracerCreated = true;
+            tracer = createTracer();
+        }
+        return tracer;
+    }
+
+    /**
+     * Sets the tracer that connections pass their events to. This overrides
+     * the tracer in the configuration file and affects connections created
+     * after the change.
+     * 
+     * @param tracer the tracer, null to not trace connections
+     */
+    public static synchronized void setTracer(IConnectionTracer tracer) {
+        tracerCreated = true;
+        Metrics.tracer = tracer;
+    }
+
+    private static IMetricsRegistry createRegistry() {
+        String className = FeridianConfiguration.getConfig().getMetricsRegistryClassName();
+        if (className == null)
+            return null;
+        try {
+            return (IMetricsRegistry) ClassUtil.newInstance(ClassUtil.loadClass(className), IMetricsRegistry.class);
+        } catch (Exception ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unable to create metrics registry " + className + ".  Metrics will not be published.", ex);
+            return null;
+        }
+    }
+
+    private static IConnectionTracer createTracer() {
+        String className = FeridianConfiguration.getConfig().getTracerClassName();
+        if (className == null || className.length() == 0)
+            return null;
+        try {
+            return (IConnectionTracer) ClassUtil.newInstance(ClassUtil.loadClass(className), IConnectionTracer.class);
+        } catch (Exception ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unable to create tracer " + className + ".  Connections will not be traced.", ex);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.echomine.xmpp.packet;
+
+import java.util.List;
+
+import com.echomine.jibx.StanzaTemplate;
+import com.echomine.xmpp.JID;
+
+/**
+ * This packet carries a precompiled stanza template and the list of recipients
+ * to send a copy of the stanza to. It is queued like any other packet, thus
+ * copies are written in order with the rest of the outgoing traffic and
+ * respect paused stream processing, but the stanza itself is never marshalled
+ * again. This packet is used internally by the broadcast methods of the
+ * connection. It is not registered with the extensions configuration and
+ * cannot be used to unmarshall any incoming data.
+ */
+public class BroadcastPacket extends StanzaPacketBase {
+    private StanzaTemplate template;
+    private List<JID> recipients;
+
+    /**
+     * @param template the compiled stanza
+     * @param recipients the recipients to send copies to
+     */
+    public BroadcastPacket(StanzaTemplate template, List<JID> recipients) {
+        this.template = template;
+        this.recipients = recipients;
+    }
+
+    /**
+     * @return the compiled stanza
+     */
+    public StanzaTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * @return the recipients to send copies to
+     */
+    public List<JID> getRecipients() {
+        return recipients;
+    }
+}
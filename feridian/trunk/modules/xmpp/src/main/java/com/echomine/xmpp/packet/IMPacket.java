@@ -18,6 +18,28 @@ import com.echomine.xmpp.IPacket;
 public abstract class IMPacket extends StanzaPacketBase {
     private HashMap<String,IPacket> extensions;
     private Locale locale;
+    private String rawContent;
+    private ContentParser contentParser;
+    private Object contentContext;
+
+    /**
+     * Parses the child elements of a lazily unmarshalled packet. This is
+     * implemented by the packet mappers.
+     */
+    public interface ContentParser {
+        /**
+         * Parses the raw child markup into the packet. Markup that cannot be
+         * parsed is logged rather than thrown to the caller of the packet's
+         * accessors.
+         * 
+         * @param packet the packet to fill in
+         * @param rawContent the markup of the child elements
+         * @param userContext the user context of the unmarshalling context the
+         *            markup was captured from, may be null
+         * @return true if the markup was parsed, false if it is malformed
+         */
+        boolean parseContent(IMPacket packet, String rawContent, Object userContext);
+    }
 
     public IMPacket() {
         super();
@@ -64,6 +86,7 @@ public abstract class IMPacket extends StanzaPacketBase {
      * @param packet the extension packet
      */
     public void addExtension(String ns, IPacket packet) {
+        materialize();
         if (extensions == null)
             extensions = new HashMap<String, IPacket>();
         extensions.put(ns, packet);
@@ -79,6 +102,7 @@ public abstract class IMPacket extends StanzaPacketBase {
      *         not found.
      */
     public IPacket removeExtension(String ns) {
+        materialize();
         if (extensions == null)
             return null;
         return extensions.remove(ns);
@@ -91,6 +115,7 @@ public abstract class IMPacket extends StanzaPacketBase {
      * @return the packet if found, or null if no packet found
      */
     public IPacket getExtension(String ns) {
+        materialize();
         if (extensions == null)
             return null;
         return extensions.get(ns);
@@ -102,8 +127,89 @@ public abstract class IMPacket extends StanzaPacketBase {
      * @return a list of extensions
      */
     public Collection<IPacket> getExtensions() {
+        materialize();
         if (extensions == null)
             extensions = new HashMap<String, IPacket>();
         return Collections.unmodifiableCollection(extensions.values());
     }
+
+    /*
+     * Errors are only parsed if the packet is of type error.
+     * 
+     * @see com.echomine.xmpp.packet.StanzaPacketBase#getError()
+     */
+    public StanzaErrorPacket getError() {
+        if (TYPE_ERROR.equals(getType()))
+            materialize();
+        return super.getError();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.packet.StanzaPacketBase#isError()
+     */
+    public boolean isError() {
+        return getError() != null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.packet.StanzaPacketBase#setError(com.echomine.xmpp.packet.StanzaErrorPacket)
+     */
+    public void setError(StanzaErrorPacket error) {
+        materialize();
+        super.setError(error);
+    }
+
+    /**
+     * Stores the child elements of the packet unparsed. This is done by the
+     * mappers when lazy unmarshalling is enabled. The children are parsed the
+     * first time any of them is accessed or changed. Until then, the packet
+     * is marshalled with the raw markup as its content, thus a packet that is
+     * only inspected for its stanza attributes (to, from, id, type) can be
+     * forwarded without ever parsing its content.
+     * 
+     * @param rawContent the markup of the child elements
+     * @param parser the parser that will parse the markup on demand
+     * @param userContext the user context of the unmarshalling context, which
+     *            is handed back to the parser so that the markup is parsed
+     *            the same way it would have been right away
+     */
+    public synchronized void setRawContent(String rawContent, ContentParser parser, Object userContext) {
+        this.rawContent = rawContent;
+        this.contentParser = parser;
+        this.contentContext = userContext;
+    }
+
+    /**
+     * Retrieves the unparsed child markup of a lazily unmarshalled packet.
+     * 
+     * @return the raw markup, or null if the content is parsed or was never
+     *         lazy
+     */
+    public synchronized String getRawContent() {
+        return rawContent;
+    }
+
+    /**
+     * Parses the raw child markup, if any. Subclasses must call this before
+     * accessing any field that is derived from child elements. Unknown
+     * extensions are dropped during parsing just as they are when unmarshalling
+     * eagerly. The markup is parsed only once, and other threads see the
+     * packet either before or after it is parsed. If the markup is malformed,
+     * the packet keeps it and is still marshalled with it as its content,
+     * while its accessors return whatever was parsed before the error.
+     */
+    protected synchronized void materialize() {
+        if (contentParser == null)
+            return;
+        ContentParser parser = contentParser;
+        // cleared first, as parsing fills in the packet through its setters
+        contentParser = null;
+        if (parser.parseContent(this, rawContent, contentContext))
+            rawContent = null;
+        contentContext = null;
+    }
 }
@@ -25,6 +25,9 @@ public class IQPacket extends StanzaPacketBase {
     public static final String TYPE_RESULT = "result";
     public static final String TYPE_ERROR = "error";
 
+    // written by the thread sending the request, read by the reader thread
+    private volatile long sentTime;
+
     /**
      * Constructs a default iq packet with a default type of "get".
      */
@@ -40,4 +43,25 @@ public class IQPacket extends StanzaPacketBase {
     public IQPacket(String type) {
         super(type);
     }
+
+    /**
+     * @return the System.nanoTime() at which the request was written to the
+     *         socket, 0 if it was not written, its reply was already matched
+     *         or the time was not recorded
+     */
+    public long getSentTime() {
+        return sentTime;
+    }
+
+    /**
+     * Records when the request was written to the socket. The connection sets
+     * this for requests waiting for a reply when metrics are collected, so
+     * that the round trip excludes the time spent in the outgoing queue, and
+     * clears it once the reply is matched.
+     * 
+     * @param sentTime the System.nanoTime() of the write
+     */
+    public void setSentTime(long sentTime) {
+        this.sentTime = sentTime;
+    }
 }
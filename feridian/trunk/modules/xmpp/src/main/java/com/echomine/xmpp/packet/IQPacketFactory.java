@@ -0,0 +1,59 @@
+package com.echomine.xmpp.packet;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Creates iq packets of a given class. Replies to iq requests are decoded into
+ * the class of the request, thus a factory is looked up for every reply a
+ * caller waits for. The constructor of each class is resolved only once and
+ * the factories are cached per class.
+ */
+public final class IQPacketFactory {
+    private static final Log log = LogFactory.getLog(IQPacketFactory.class);
+    private static final ConcurrentHashMap<Class, IQPacketFactory> factories = new ConcurrentHashMap<Class, IQPacketFactory>();
+
+    private final Constructor<? extends IQPacket> constructor;
+
+    private IQPacketFactory(Constructor<? extends IQPacket> constructor) {
+        this.constructor = constructor;
+    }
+
+    /**
+     * Retrieves the factory of a packet class.
+     * 
+     * @param cls the packet class
+     * @return the factory, or null if the class has no public no-argument
+     *         constructor
+     */
+    public static IQPacketFactory getFactory(Class<? extends IQPacket> cls) {
+        IQPacketFactory factory = factories.get(cls);
+        if (factory == null) {
+            try {
+                factory = new IQPacketFactory(cls.getConstructor());
+            } catch (NoSuchMethodException ex) {
+                if (log.isWarnEnabled())
+                    log.warn("Replies cannot be decoded into " + cls.getName() + " as it has no public no-argument constructor");
+                return null;
+            }
+            factories.putIfAbsent(cls, factory);
+        }
+        return factory;
+    }
+
+    /**
+     * @return a new packet, or null if the constructor failed
+     */
+    public IQPacket newPacket() {
+        try {
+            return constructor.newInstance();
+        } catch (Exception ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unable to instantiate " + constructor.getDeclaringClass().getName(), ex);
+            return null;
+        }
+    }
+}
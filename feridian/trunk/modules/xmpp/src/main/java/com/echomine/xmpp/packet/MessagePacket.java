@@ -49,8 +49,8 @@ public class MessagePacket extends IMPacket {
     public static final String TYPE_GROUPCHAT = "groupchat";
     public static final String TYPE_HEADLINE = "headline";
     public static final String TYPE_NORMAL = "normal";
-    private LinkedHashMap<Locale, String> subjects = new LinkedHashMap<Locale, String>();
-    private LinkedHashMap<Locale, String> bodies = new LinkedHashMap<Locale, String>();
+    private LinkedHashMap<Locale, String> subjects;
+    private LinkedHashMap<Locale, String> bodies;
     private String threadID;
 
     public MessagePacket() {
@@ -80,6 +80,9 @@ public class MessagePacket extends IMPacket {
      * @return Returns the body or null if none exists
      */
     public String getBody(Locale locale) {
+        materialize();
+        if (bodies == null)
+            return null;
         return bodies.get(locale);
     }
 
@@ -100,6 +103,9 @@ public class MessagePacket extends IMPacket {
      * @param locale optional locale. null to specify default (ie. no xml:lang)
      */
     public void setBody(String body, Locale locale) {
+        materialize();
+        if (bodies == null)
+            bodies = new LinkedHashMap<Locale, String>();
         bodies.put(locale, body);
     }
 
@@ -111,6 +117,9 @@ public class MessagePacket extends IMPacket {
      * @return an unmodifiable hash map of subjects
      */
     public Map getBodies() {
+        materialize();
+        if (bodies == null)
+            return Collections.EMPTY_MAP;
         return Collections.unmodifiableMap(bodies);
     }
 
@@ -136,6 +145,9 @@ public class MessagePacket extends IMPacket {
      * @return Returns the body or null if none exists
      */
     public String getSubject(Locale locale) {
+        materialize();
+        if (subjects == null)
+            return null;
         return subjects.get(locale);
     }
 
@@ -156,6 +168,9 @@ public class MessagePacket extends IMPacket {
      * @param locale optional locale. null to specify default (ie. no xml:lang)
      */
     public void setSubject(String subject, Locale locale) {
+        materialize();
+        if (subjects == null)
+            subjects = new LinkedHashMap<Locale, String>();
         subjects.put(locale, subject);
     }
 
@@ -167,6 +182,9 @@ public class MessagePacket extends IMPacket {
      * @return an unmodifiable hash map of subjects
      */
     public Map getSubjects() {
+        materialize();
+        if (subjects == null)
+            return Collections.EMPTY_MAP;
         return Collections.unmodifiableMap(subjects);
     }
 
@@ -174,6 +192,7 @@ public class MessagePacket extends IMPacket {
      * @return Returns the threadID.
      */
     public String getThreadID() {
+        materialize();
         return threadID;
     }
 
@@ -181,6 +200,7 @@ public class MessagePacket extends IMPacket {
      * @param threadID The threadID to set.
      */
     public void setThreadID(String threadID) {
+        materialize();
         this.threadID = threadID;
     }
 }
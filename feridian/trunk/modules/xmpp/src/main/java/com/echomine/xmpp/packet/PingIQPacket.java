@@ -0,0 +1,23 @@
+package com.echomine.xmpp.packet;
+
+/**
+ * Represents the XMPP ping packet (XEP-0199). The ping element is an empty
+ * element, thus this class contains no data and exists purely for binding
+ * purposes. It is used by the keepalive support to check whether the remote
+ * entity is still reachable, and any ping request received from the remote
+ * entity is answered automatically by the connection.
+ */
+public class PingIQPacket extends IQPacket {
+    public PingIQPacket() {
+        super();
+    }
+
+    /**
+     * Creates a ping packet of the specified type
+     * 
+     * @param type the iq type
+     */
+    public PingIQPacket(String type) {
+        super(type);
+    }
+}
@@ -66,7 +66,7 @@ public class PresencePacket extends IMPacket {
     public static final String SHOW_XA = "xa";
 
     private String show;
-    private LinkedHashMap<Locale, String> statuses = new LinkedHashMap<Locale, String>();
+    private LinkedHashMap<Locale, String> statuses;
     private int priority;
 
     public PresencePacket() {
@@ -77,6 +77,7 @@ public class PresencePacket extends IMPacket {
      * @return Returns the priority.
      */
     public int getPriority() {
+        materialize();
         return priority;
     }
 
@@ -89,6 +90,7 @@ public class PresencePacket extends IMPacket {
     public void setPriority(int priority) {
         if (priority < -127 || priority > 127)
             throw new IllegalArgumentException("Priority must be between -127 and +127");
+        materialize();
         this.priority = priority;
     }
 
@@ -96,6 +98,7 @@ public class PresencePacket extends IMPacket {
      * @return Returns the show.
      */
     public String getShow() {
+        materialize();
         return show;
     }
 
@@ -103,6 +106,7 @@ public class PresencePacket extends IMPacket {
      * @param show The show to set.
      */
     public void setShow(String show) {
+        materialize();
         this.show = show;
     }
 
@@ -128,6 +132,9 @@ public class PresencePacket extends IMPacket {
      * @return Returns the status or null if none exists
      */
     public String getStatus(Locale locale) {
+        materialize();
+        if (statuses == null)
+            return null;
         return statuses.get(locale);
     }
 
@@ -148,6 +155,9 @@ public class PresencePacket extends IMPacket {
      * @param locale optional locale. null to specify default (ie. no xml:lang)
      */
     public void setStatus(String status, Locale locale) {
+        materialize();
+        if (statuses == null)
+            statuses = new LinkedHashMap<Locale, String>();
         statuses.put(locale, status);
     }
 
@@ -159,6 +169,9 @@ public class PresencePacket extends IMPacket {
      * @return an unmodifiable hash map of statuses
      */
     public Map getStatuses() {
+        materialize();
+        if (statuses == null)
+            return Collections.EMPTY_MAP;
         return Collections.unmodifiableMap(statuses);
     }
 }
@@ -0,0 +1,38 @@
+package com.echomine.xmpp.packet;
+
+import com.echomine.xmpp.IPacket;
+
+/**
+ * An extension that was received but not decoded, as its namespace is not in
+ * the connection's extension profile. It keeps the markup of the extension
+ * element, which is written out as is when the packet is sent again.
+ * 
+ * @see com.echomine.xmpp.ExtensionProfile
+ */
+public class RawExtensionPacket implements IPacket {
+    private final String namespace;
+    private final String markup;
+
+    /**
+     * @param namespace the namespace of the extension element
+     * @param markup the markup of the extension element
+     */
+    public RawExtensionPacket(String namespace, String markup) {
+        this.namespace = namespace;
+        this.markup = markup;
+    }
+
+    /**
+     * @return the namespace of the extension element
+     */
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * @return the markup of the extension element
+     */
+    public String getMarkup() {
+        return markup;
+    }
+}
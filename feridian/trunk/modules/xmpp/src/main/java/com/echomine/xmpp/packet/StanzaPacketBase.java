@@ -2,6 +2,7 @@ package com.echomine.xmpp.packet;
 
 import com.echomine.xmpp.IStanzaPacket;
 import com.echomine.xmpp.JID;
+import com.echomine.xmpp.PacketLane;
 
 /**
  * This is the base packet for the main stanzas -- message, presence, and iq.
@@ -20,6 +21,7 @@ public class StanzaPacketBase implements IStanzaPacket {
     private String id;
     private String type;
     private long timeout = 5000;
+    private PacketLane lane;
     private StanzaErrorPacket error;
 
     public StanzaPacketBase() {
@@ -105,6 +107,25 @@ public class StanzaPacketBase implements IStanzaPacket {
         this.timeout = timeout;
     }
 
+    /**
+     * @return the lane the packet is queued in, or null if the lane is
+     *         inferred from the stanza
+     */
+    public PacketLane getLane() {
+        return lane;
+    }
+
+    /**
+     * Sets the lane of the outgoing queue the packet waits in, overriding the
+     * lane inferred from the stanza (ie. to send a chat message as bulk
+     * traffic).
+     * 
+     * @param lane the lane, or null to infer the lane from the stanza
+     */
+    public void setLane(PacketLane lane) {
+        this.lane = lane;
+    }
+
     /**
      * Checks whether this packet contains an error or not.
      * 
@@ -28,6 +28,18 @@ public class StreamFeatures implements IPacket {
         features.clear();
     }
 
+    /**
+     * Copies all features from the specified features packet, replacing any
+     * features currently held. The feature values themselves are shared.
+     * 
+     * @param other the features to copy from
+     */
+    public void copyFrom(StreamFeatures other) {
+        features.clear();
+        features.putAll(other.features);
+        tlsRequired = other.tlsRequired;
+    }
+
     /**
      * checks if TLS is required.
      * 
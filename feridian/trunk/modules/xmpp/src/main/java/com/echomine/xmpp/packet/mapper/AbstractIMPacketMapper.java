@@ -1,11 +1,15 @@
 package com.echomine.xmpp.packet.mapper;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jibx.runtime.IXMLReader;
 import org.jibx.runtime.JiBXException;
 import org.jibx.runtime.impl.MarshallingContext;
 import org.jibx.runtime.impl.UnmarshallingContext;
@@ -14,9 +18,11 @@ import com.echomine.feridian.FeridianConfiguration;
 import com.echomine.jibx.JiBXUtil;
 import com.echomine.jibx.XMPPStreamWriter;
 import com.echomine.util.LocaleUtil;
+import com.echomine.xmpp.ExtensionProfile;
 import com.echomine.xmpp.IPacket;
 import com.echomine.xmpp.XMPPConstants;
 import com.echomine.xmpp.packet.IMPacket;
+import com.echomine.xmpp.packet.RawExtensionPacket;
 import com.echomine.xmpp.packet.StanzaPacketBase;
 
 /**
@@ -24,7 +30,8 @@ import com.echomine.xmpp.packet.StanzaPacketBase;
  * the IMPacket. It provides convenience methods to marshall/unmarshall the
  * locale and extension packets.
  */
-public abstract class AbstractIMPacketMapper extends AbstractStanzaPacketMapper {
+public abstract class AbstractIMPacketMapper extends AbstractStanzaPacketMapper implements IMPacket.ContentParser {
+    private static final Log log = LogFactory.getLog(AbstractIMPacketMapper.class);
     protected static final String LANG_ATTRIBUTE_NAME = "lang";
 
     /**
@@ -111,7 +118,8 @@ public abstract class AbstractIMPacketMapper extends AbstractStanzaPacketMapper
      * This will marshall all extensions contained within the packet. It will
      * try to find the marshaller for each packet and marshall the extension.
      * Failing that, it will simply skip the extension. The extensions are
-     * marshalled in no particular order.
+     * marshalled in no particular order. Extensions kept as raw markup are
+     * written out as they were received.
      * 
      * @param ctx the marshalling context
      * @param packet packet containing the extensions
@@ -125,6 +133,10 @@ public abstract class AbstractIMPacketMapper extends AbstractStanzaPacketMapper
         try {
             while (iter.hasNext()) {
                 ext = (IPacket) iter.next();
+                if (ext instanceof RawExtensionPacket) {
+                    writer.writeMarkup(((RawExtensionPacket) ext).getMarkup());
+                    continue;
+                }
                 JiBXUtil.marshallObject(strWriter, ext);
                 writer.writeMarkup(strWriter.toString());
             }
@@ -137,6 +149,8 @@ public abstract class AbstractIMPacketMapper extends AbstractStanzaPacketMapper
      * This will unmarshall unknown extension data. It will try to find an
      * unmarshaller that recognizes the extension data. Failing that, it will
      * simply skip the extension data and move on to the next extension segment.
+     * Extensions outside of the stream's extension profile are skipped or kept
+     * as raw markup even when an unmarshaller is registered for them.
      * 
      * @param ctx the unmarshalling context
      * @param packet the stanza packet to add the extension to
@@ -145,6 +159,17 @@ public abstract class AbstractIMPacketMapper extends AbstractStanzaPacketMapper
     protected void unmarshallExtension(UnmarshallingContext ctx, IMPacket packet) throws JiBXException {
         // extension/unknown stanzas
         String ns = ctx.getNamespace();
+        ExtensionProfile profile = getExtensionProfile(ctx);
+        if (profile != null && !profile.isDecoded(ns)) {
+            if (profile.getMode() == ExtensionProfile.Mode.RAW) {
+                StringBuffer buf = new StringBuffer(128);
+                JiBXUtil.captureElement(ctx, uri, buf);
+                packet.addExtension(ns, new RawExtensionPacket(ns, buf.toString()));
+            } else {
+                ctx.skipElement();
+            }
+            return;
+        }
         Class extClass = FeridianConfiguration.getConfig().getClassForUri(ns);
         IPacket extPacket;
         if (extClass != null) {
@@ -156,4 +181,87 @@ public abstract class AbstractIMPacketMapper extends AbstractStanzaPacketMapper
             ctx.skipElement();
         }
     }
+
+    /**
+     * Unmarshalls the child elements of the packet. The context is positioned
+     * at the start tag of the packet, and must be positioned at the end tag of
+     * the packet when the method returns.
+     * 
+     * @param packet the packet to fill in
+     * @param ctx the context
+     * @throws JiBXException
+     */
+    protected abstract void unmarshallContent(IMPacket packet, UnmarshallingContext ctx) throws JiBXException;
+
+    /**
+     * Unmarshalls the child elements of the packet, either right away or
+     * lazily if lazy unmarshalling is enabled in the configuration.
+     * 
+     * @param packet the packet to fill in
+     * @param ctx the context positioned at the start tag of the packet
+     * @throws JiBXException
+     * @see FeridianConfiguration#isLazyUnmarshalling()
+     */
+    protected void unmarshallContentOrCapture(IMPacket packet, UnmarshallingContext ctx) throws JiBXException {
+        if (FeridianConfiguration.getConfig().isLazyUnmarshalling())
+            captureContent(packet, ctx);
+        else
+            unmarshallContent(packet, ctx);
+    }
+
+    /**
+     * Captures the markup of all child elements without unmarshalling them.
+     * The markup is stored with the packet, which parses it on first access.
+     * The context is positioned at the start tag of the packet and will be
+     * positioned at the end tag of the packet when the method returns.
+     * 
+     * @param packet the packet to store the markup with
+     * @param ctx the context
+     * @throws JiBXException
+     */
+    protected void captureContent(IMPacket packet, UnmarshallingContext ctx) throws JiBXException {
+        StringBuffer buf = null;
+        ctx.next();
+        while (ctx.currentEvent() != IXMLReader.END_DOCUMENT
+                && ctx.currentEvent() != IXMLReader.END_TAG) {
+            if (ctx.currentEvent() == IXMLReader.START_TAG) {
+                if (buf == null)
+                    buf = new StringBuffer(256);
+                JiBXUtil.captureElement(ctx, uri, buf);
+            } else {
+                // whitespace between children
+                ctx.next();
+            }
+        }
+        if (buf != null)
+            packet.setRawContent(buf.toString(), this, ctx.getUserContext());
+    }
+
+    /*
+     * Parses the captured markup by wrapping it into an empty stanza element
+     * and unmarshalling the content as usual, with the user context of the
+     * stream it was captured from so that its extension profile applies.
+     * 
+     * @see com.echomine.xmpp.packet.IMPacket.ContentParser#parseContent(com.echomine.xmpp.packet.IMPacket,
+     *      java.lang.String, java.lang.Object)
+     */
+    public boolean parseContent(IMPacket packet, String rawContent, Object userContext) {
+        StringBuffer buf = new StringBuffer(rawContent.length() + 64);
+        buf.append('<').append(name).append(" xmlns=\"").append(uri).append("\">");
+        buf.append(rawContent);
+        buf.append("</").append(name).append('>');
+        try {
+            UnmarshallingContext ctx = new UnmarshallingContext();
+            ctx.setDocument(new StringReader(buf.toString()));
+            // set after the document, which clears it
+            ctx.setUserContext(userContext);
+            ctx.toStart();
+            unmarshallContent(packet, ctx);
+            return true;
+        } catch (JiBXException ex) {
+            if (log.isWarnEnabled())
+                log.warn("Unable to parse lazily unmarshalled content: " + rawContent, ex);
+            return false;
+        }
+    }
 }
@@ -4,8 +4,10 @@ import org.jibx.runtime.JiBXException;
 import org.jibx.runtime.impl.MarshallingContext;
 import org.jibx.runtime.impl.UnmarshallingContext;
 
+import com.echomine.xmpp.ExtensionProfile;
 import com.echomine.xmpp.JID;
 import com.echomine.xmpp.JIDFormatException;
+import com.echomine.xmpp.XMPPStreamContext;
 import com.echomine.xmpp.packet.StanzaErrorPacket;
 import com.echomine.xmpp.packet.StanzaPacketBase;
 
@@ -99,4 +101,18 @@ public abstract class AbstractStanzaPacketMapper extends AbstractPacketMapper {
     protected StanzaErrorPacket unmarshallStanzaError(UnmarshallingContext ctx) throws JiBXException {
         return (StanzaErrorPacket) errorMapper.unmarshal(null, ctx);
     }
+
+    /**
+     * Retrieves the extension profile of the stream being read, which the
+     * connection passes as the user context of the unmarshalling context.
+     * 
+     * @param ctx the unmarshalling context
+     * @return the profile, or null if all registered extensions are decoded
+     */
+    protected ExtensionProfile getExtensionProfile(UnmarshallingContext ctx) {
+        Object userCtx = ctx.getUserContext();
+        if (userCtx instanceof XMPPStreamContext)
+            return ((XMPPStreamContext) userCtx).getExtensionProfile();
+        return null;
+    }
 }
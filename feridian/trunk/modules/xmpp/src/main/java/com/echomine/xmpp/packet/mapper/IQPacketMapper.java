@@ -2,6 +2,8 @@ package com.echomine.xmpp.packet.mapper;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashSet;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -15,7 +17,11 @@ import org.jibx.runtime.impl.UnmarshallingContext;
 import com.echomine.feridian.FeridianConfiguration;
 import com.echomine.jibx.JiBXUtil;
 import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.xmpp.ExtensionProfile;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.XMPPStreamContext;
 import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.IQPacketFactory;
 import com.echomine.xmpp.packet.StanzaErrorPacket;
 
 /**
@@ -27,6 +33,9 @@ import com.echomine.xmpp.packet.StanzaErrorPacket;
  */
 public class IQPacketMapper extends AbstractStanzaPacketMapper {
     private final static Log log = LogFactory.getLog(IQPacketMapper.class);
+    /** request namespaces decoded whatever the extension profile */
+    private final static HashSet<String> LOGIN_NAMESPACES = new HashSet<String>(Arrays.asList(new String[] {
+            XMPPConstants.NS_STREAM_BINDING, XMPPConstants.NS_STREAM_SESSION, XMPPConstants.NS_JABBER_ROSTER }));
 
     /**
      * @param uri the uri of the element working with
@@ -79,16 +88,16 @@ public class IQPacketMapper extends AbstractStanzaPacketMapper {
     /**
      * Unmarshalls the iq packet. It will unmarshall the iq header attributes,
      * and then subsequently call the binding directory to separately unmarshall
-     * the inner stanza.
+     * the inner stanza. A reply to a request that a caller waits for is
+     * returned as a packet of the request's class even when it has no child;
+     * the packet is then created through the reply factory.
      */
     public Object unmarshal(Object obj, IUnmarshallingContext ictx) throws JiBXException {
         // make sure we're at the right start tag
         UnmarshallingContext ctx = (UnmarshallingContext) ictx;
         if (!ctx.isAt(uri, name))
             ctx.throwStartTagNameError(uri, name);
-        if (obj == null)
-            obj = new IQPacket();
-        IQPacket tpkt = (IQPacket) obj;
+        IQPacket tpkt = obj == null ? new IQPacket() : (IQPacket) obj;
         IQPacket packet = null;
         unmarshallStanzaAttributes(tpkt, ctx);
         do {
@@ -100,7 +109,12 @@ public class IQPacketMapper extends AbstractStanzaPacketMapper {
             if (ctx.isAt(uri, "error")) {
                 tpkt.setError((StanzaErrorPacket) JiBXUtil.unmarshallObject(ctx, StanzaErrorPacket.class));
             } else {
-                Class iqClass = FeridianConfiguration.getConfig().getClassForUri(ctx.getNamespace());
+                // children of requests outside of the stream's extension
+                // profile are not decoded, leaving a plain iq packet
+                ExtensionProfile profile = isRequest(tpkt) ? getExtensionProfile(ctx) : null;
+                Class iqClass = null;
+                if (profile == null || profile.isDecoded(ctx.getNamespace()) || LOGIN_NAMESPACES.contains(ctx.getNamespace()))
+                    iqClass = FeridianConfiguration.getConfig().getClassForUri(ctx.getNamespace());
                 if (packet != null) {
                     if (log.isWarnEnabled())
                         log.warn("Invalid IQ Packet.  Already unmarshalled one child element, but found more than one.  This does not conform to XMPP specs.  Ignoring this child element");
@@ -115,10 +129,36 @@ public class IQPacketMapper extends AbstractStanzaPacketMapper {
                     ctx.next();
             }
         }
+        // a reply without a decoded child still takes the request's class
+        if (packet == null && obj == null)
+            packet = newReply(ctx);
         if (packet != null) {
             packet.copyFrom(tpkt);
             return packet;
         }
         return tpkt;
     }
+
+    /**
+     * @return true if the packet is a get or set request
+     */
+    private boolean isRequest(IQPacket packet) {
+        return IQPacket.TYPE_GET.equals(packet.getType()) || IQPacket.TYPE_SET.equals(packet.getType());
+    }
+
+    /**
+     * Creates a packet of the request's class if the connection is expecting
+     * this reply.
+     * 
+     * @return the packet, or null if no one waits for the reply
+     */
+    private IQPacket newReply(UnmarshallingContext ctx) {
+        Object userCtx = ctx.getUserContext();
+        if (userCtx instanceof XMPPStreamContext) {
+            IQPacketFactory factory = ((XMPPStreamContext) userCtx).getReplyFactory();
+            if (factory != null)
+                return factory.newPacket();
+        }
+        return null;
+    }
 }
@@ -13,6 +13,7 @@ import org.jibx.runtime.impl.UnmarshallingContext;
 import com.echomine.jibx.XMPPStreamWriter;
 import com.echomine.util.LocaleUtil;
 import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.packet.IMPacket;
 import com.echomine.xmpp.packet.MessagePacket;
 
 /**
@@ -54,15 +55,20 @@ public class MessagePacketMapper extends AbstractIMPacketMapper implements
                 // marshall attributes
                 marshallStanzaAttributes(packet, ctx);
                 writer.closeStartTag();
-                // marshall out the message
-                marshallMapWithLocale(index, SUBJECT_ELEMENT_NAME, packet.getSubjects(), ctx);
-                marshallMapWithLocale(index, BODY_ELEMENT_NAME, packet.getBodies(), ctx);
-                if (packet.getThreadID() != null)
-                    ctx.element(index, THREAD_ELEMENT_NAME, packet.getThreadID());
-                if (packet.getError() != null)
-                    marshallStanzaError(packet.getError(), ctx);
-                // marshall extensions
-                marshallExtensions(ctx, packet);
+                if (packet.getRawContent() != null) {
+                    // content was never parsed, send it as received
+                    writer.writeContentMarkup(packet.getRawContent());
+                } else {
+                    // marshall out the message
+                    marshallMapWithLocale(index, SUBJECT_ELEMENT_NAME, packet.getSubjects(), ctx);
+                    marshallMapWithLocale(index, BODY_ELEMENT_NAME, packet.getBodies(), ctx);
+                    if (packet.getThreadID() != null)
+                        ctx.element(index, THREAD_ELEMENT_NAME, packet.getThreadID());
+                    if (packet.getError() != null)
+                        marshallStanzaError(packet.getError(), ctx);
+                    // marshall extensions
+                    marshallExtensions(ctx, packet);
+                }
                 writer.endStanzaTag(name);
                 writer.flush();
             } catch (IOException ex) {
@@ -88,6 +94,18 @@ public class MessagePacketMapper extends AbstractIMPacketMapper implements
             packet = new MessagePacket();
         // unmarshall base packet attributes
         unmarshallStanzaAttributes(packet, ctx);
+        unmarshallContentOrCapture(packet, ctx);
+        return packet;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.packet.mapper.AbstractIMPacketMapper#unmarshallContent(com.echomine.xmpp.packet.IMPacket,
+     *      org.jibx.runtime.impl.UnmarshallingContext)
+     */
+    protected void unmarshallContent(IMPacket impkt, UnmarshallingContext ctx) throws JiBXException {
+        MessagePacket packet = (MessagePacket) impkt;
         do {
             ctx.next();
         } while (ctx.currentEvent() == IXMLReader.TEXT);
@@ -118,6 +136,5 @@ public class MessagePacketMapper extends AbstractIMPacketMapper implements
             while (ctx.currentEvent() == IXMLReader.TEXT)
                 ctx.next();
         }
-        return packet;
     }
 }
@@ -13,6 +13,7 @@ import org.jibx.runtime.impl.UnmarshallingContext;
 import com.echomine.jibx.XMPPStreamWriter;
 import com.echomine.util.LocaleUtil;
 import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.packet.IMPacket;
 import com.echomine.xmpp.packet.PresencePacket;
 
 /**
@@ -58,15 +59,20 @@ public class PresencePacketMapper extends AbstractIMPacketMapper implements
                 marshallStanzaAttributes(packet, ctx);
                 // if packet has no show, status, etc, then close tag
                 writer.closeStartTag();
-                if (packet.getShow() != null)
-                    ctx.element(index, SHOW_ELEMENT_NAME, packet.getShow());
-                marshallMapWithLocale(index, STATUS_ELEMENT_NAME, packet.getStatuses(), ctx);
-                if (packet.getPriority() != 0)
-                    ctx.element(index, PRIORITY_ELEMENT_NAME, packet.getPriority());
-                if (packet.getError() != null)
-                    marshallStanzaError(packet.getError(), ctx);
-                // marshall extensions
-                marshallExtensions(ctx, packet);
+                if (packet.getRawContent() != null) {
+                    // content was never parsed, send it as received
+                    writer.writeContentMarkup(packet.getRawContent());
+                } else {
+                    if (packet.getShow() != null)
+                        ctx.element(index, SHOW_ELEMENT_NAME, packet.getShow());
+                    marshallMapWithLocale(index, STATUS_ELEMENT_NAME, packet.getStatuses(), ctx);
+                    if (packet.getPriority() != 0)
+                        ctx.element(index, PRIORITY_ELEMENT_NAME, packet.getPriority());
+                    if (packet.getError() != null)
+                        marshallStanzaError(packet.getError(), ctx);
+                    // marshall extensions
+                    marshallExtensions(ctx, packet);
+                }
                 writer.endStanzaTag(name);
                 writer.flush();
             } catch (IOException ex) {
@@ -92,6 +98,18 @@ public class PresencePacketMapper extends AbstractIMPacketMapper implements
             packet = new PresencePacket();
         // unmarshall base packet attributes
         unmarshallStanzaAttributes(packet, ctx);
+        unmarshallContentOrCapture(packet, ctx);
+        return packet;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.packet.mapper.AbstractIMPacketMapper#unmarshallContent(com.echomine.xmpp.packet.IMPacket,
+     *      org.jibx.runtime.impl.UnmarshallingContext)
+     */
+    protected void unmarshallContent(IMPacket impkt, UnmarshallingContext ctx) throws JiBXException {
+        PresencePacket packet = (PresencePacket) impkt;
         do {
             ctx.next();
         } while (ctx.currentEvent() == IXMLReader.TEXT);
@@ -118,6 +136,5 @@ public class PresencePacketMapper extends AbstractIMPacketMapper implements
             while (ctx.currentEvent() == IXMLReader.TEXT)
                 ctx.next();
         }
-        return packet;
     }
 }
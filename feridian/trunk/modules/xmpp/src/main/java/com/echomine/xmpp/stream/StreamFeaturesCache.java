@@ -0,0 +1,70 @@
+package com.echomine.xmpp.stream;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.echomine.xmpp.packet.StreamFeatures;
+
+/**
+ * Remembers the stream features that hosts advertise once a session is
+ * authenticated. Servers advertise the same post-authentication features to
+ * every client, so knowing them ahead of time lets the login send resource
+ * binding and session requests without first waiting for the features to
+ * arrive. The cache only ever guides what is sent early; the features actually
+ * received are always used to decide the outcome of the login and to refresh
+ * the cache.
+ * <p>
+ * The cache stores copies, thus the features held by stream contexts can be
+ * cleared and reused freely.
+ * </p>
+ */
+public class StreamFeaturesCache {
+    private static final StreamFeaturesCache cache = new StreamFeaturesCache();
+    private ConcurrentHashMap<String, StreamFeatures> authenticatedFeatures = new ConcurrentHashMap<String, StreamFeatures>();
+
+    /**
+     * Retrieves the cache shared by all connections
+     * 
+     * @return the shared cache
+     */
+    public static StreamFeaturesCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Retrieves the features the host advertised after authentication.
+     * 
+     * @param host the host name
+     * @return a copy of the cached features, or null if none is cached
+     */
+    public StreamFeatures getAuthenticatedFeatures(String host) {
+        if (host == null)
+            return null;
+        StreamFeatures features = authenticatedFeatures.get(host);
+        if (features == null)
+            return null;
+        StreamFeatures copy = new StreamFeatures();
+        copy.copyFrom(features);
+        return copy;
+    }
+
+    /**
+     * Remembers the features the host advertised after authentication
+     * 
+     * @param host the host name
+     * @param features the features received
+     */
+    public void putAuthenticatedFeatures(String host, StreamFeatures features) {
+        if (host == null || features == null)
+            return;
+        StreamFeatures copy = new StreamFeatures();
+        copy.copyFrom(features);
+        authenticatedFeatures.put(host, copy);
+    }
+
+    /**
+     * Forgets all cached features
+     */
+    public void clear() {
+        authenticatedFeatures.clear();
+    }
+}
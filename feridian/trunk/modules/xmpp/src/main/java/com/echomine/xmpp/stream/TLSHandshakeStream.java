@@ -18,6 +18,7 @@ import javax.net.ssl.TrustManagerFactory;
 import org.jibx.runtime.impl.UnmarshallingContext;
 
 import com.echomine.jibx.XMPPLoggableReader;
+import com.echomine.jibx.XMPPPullReader;
 import com.echomine.jibx.XMPPStreamWriter;
 import com.echomine.util.SimpleTrustManager;
 import com.echomine.xmpp.IXMPPStream;
@@ -25,6 +26,7 @@ import com.echomine.xmpp.XMPPConstants;
 import com.echomine.xmpp.XMPPException;
 import com.echomine.xmpp.XMPPSessionContext;
 import com.echomine.xmpp.XMPPStreamContext;
+import com.echomine.xmpp.metrics.IConnectionTracer;
 
 /**
  * This stream will handle all the TLS handshaking. It will first determine if
@@ -47,6 +49,7 @@ import com.echomine.xmpp.XMPPStreamContext;
 public class TLSHandshakeStream implements IXMPPStream, XMPPConstants {
     private static final String STARTTLS_ELEMENT_NAME = "starttls";
     protected final static int SOCKETBUF = 8192;
+    private static SSLContext sslContext;
 
     /*
      * (non-Javadoc)
@@ -57,6 +60,9 @@ public class TLSHandshakeStream implements IXMPPStream, XMPPConstants {
     public void process(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws XMPPException {
         if (!streamCtx.getFeatures().isTLSSupported())
             return;
+        IConnectionTracer tracer = streamCtx.getTracer();
+        long start = tracer == null ? 0 : System.nanoTime();
+        boolean success = false;
         XMPPStreamWriter writer = streamCtx.getWriter();
         UnmarshallingContext uctx = streamCtx.getUnmarshallingContext();
         int idx = writer.getNamespaceCount();
@@ -85,12 +91,12 @@ public class TLSHandshakeStream implements IXMPPStream, XMPPConstants {
             streamCtx.setSocket(tlsSocket);
             // Workaround for JiBX's reset() not resetting prefix
             // Thus, a new stream writer must be created
-            XMPPLoggableReader bis = new XMPPLoggableReader(tlsSocket.getInputStream(), "UTF-8");
-            BufferedOutputStream bos = new BufferedOutputStream(tlsSocket.getOutputStream(), SOCKETBUF);
+            XMPPLoggableReader bis = new XMPPLoggableReader(streamCtx.getInputStream(), "UTF-8");
+            BufferedOutputStream bos = new BufferedOutputStream(streamCtx.getOutputStream(), SOCKETBUF);
             writer.flush();
             writer = new XMPPStreamWriter();
             writer.setOutput(bos);
-            uctx.setDocument(bis);
+            XMPPPullReader.setDocument(uctx, bis);
             streamCtx.setSocket(tlsSocket);
             streamCtx.setWriter(writer);
             streamCtx.setUnmarshallingContext(uctx);
@@ -100,10 +106,14 @@ public class TLSHandshakeStream implements IXMPPStream, XMPPConstants {
             sessCtx.reset();
             sessCtx.setHostName(hostname);
             streamCtx.clearFeatures();
+            success = true;
         } catch (Exception ex) {
             if (ex instanceof XMPPException)
                 throw (XMPPException) ex;
             throw new XMPPException(ex);
+        } finally {
+            if (tracer != null)
+                tracer.tlsNegotiated(sessCtx, System.nanoTime() - start, success);
         }
     }
 
@@ -122,22 +132,36 @@ public class TLSHandshakeStream implements IXMPPStream, XMPPConstants {
     }
 
     /**
-     * sets up the SSL socket for use and does any key management, trust
-     * manager, etc initialization.
+     * Retrieves the SSL context shared by all connections, creating it the
+     * first time. Initializing a context (key stores, trust managers and
+     * random number generator seeding) is expensive, and sharing one context
+     * also lets connections to the same server resume TLS sessions from its
+     * session cache instead of doing full handshakes.
      * 
-     * @param socket the socket to do TLS over
-     * @throws IOException
+     * @return the shared SSL context
      */
-    protected SSLSocket setupSSLSocket(Socket socket) throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException, UnrecoverableKeyException, IOException {
-        // Create an SSL context
-        SSLContext context = null;
-        context = SSLContext.getInstance("TLS");
+    protected static synchronized SSLContext getSSLContext() throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException {
+        if (sslContext != null)
+            return sslContext;
+        SSLContext context = SSLContext.getInstance("TLS");
         KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
         TrustManagerFactory tfactory = TrustManagerFactory.getInstance("SunPKIX");
         tfactory.init(keyStore);
         SimpleTrustManager tmanager = new SimpleTrustManager(keyStore, System.getProperty("user.home") + System.getProperty("file.separator") + ".keystore", null);
         context.init(null, new TrustManager[] { tmanager }, null);
-        SSLSocketFactory factory = context.getSocketFactory();
+        sslContext = context;
+        return sslContext;
+    }
+
+    /**
+     * sets up the SSL socket for use and does any key management, trust
+     * manager, etc initialization.
+     * 
+     * @param socket the socket to do TLS over
+     * @throws IOException
+     */
+    protected SSLSocket setupSSLSocket(Socket socket) throws NoSuchAlgorithmException, KeyManagementException, KeyStoreException, UnrecoverableKeyException, IOException {
+        SSLSocketFactory factory = getSSLContext().getSocketFactory();
         SSLSocket sslsocket = (SSLSocket) factory.createSocket(socket, socket.getInetAddress().getHostAddress(), socket.getPort(), true);
         sslsocket.setUseClientMode(true);
         return sslsocket;
@@ -8,7 +8,6 @@ import org.jibx.runtime.JiBXException;
 import org.jibx.runtime.impl.UnmarshallingContext;
 
 import com.echomine.jibx.JiBXUtil;
-import com.echomine.jibx.XMPPStreamWriter;
 import com.echomine.util.LocaleUtil;
 import com.echomine.xmpp.IXMPPStream;
 import com.echomine.xmpp.NonCompliantXMPPServerException;
@@ -43,10 +42,39 @@ public class XMPPClientHandshakeStream implements IXMPPStream {
      *      com.echomine.xmpp.XMPPStreamContext)
      */
     public void process(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws XMPPException {
+        sendHandshake(sessCtx, streamCtx);
+        receiveHandshake(sessCtx, streamCtx);
+    }
+
+    /**
+     * Sends the initiating stream tag only. This is used along with
+     * receiveHandshake() by streams that wish to send further requests before
+     * the remote entity replies with its own stream header.
+     * 
+     * @param sessCtx the session context
+     * @param streamCtx the stream context
+     * @throws XMPPException if the stream tag cannot be written
+     */
+    public void sendHandshake(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws XMPPException {
+        try {
+            streamCtx.getWriter().startHandshakeStream(XMPPConstants.NS_XMPP_CLIENT, sessCtx.getHostName(), sessCtx.getLocale());
+        } catch (IOException ex) {
+            throw new XMPPException(ex);
+        }
+    }
+
+    /**
+     * Receives the incoming stream header up to and including the stream
+     * features.
+     * 
+     * @param sessCtx the session context
+     * @param streamCtx the stream context
+     * @throws XMPPException if the incoming handshake is invalid or an error
+     *             is received
+     */
+    public void receiveHandshake(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws XMPPException {
         try {
-            XMPPStreamWriter writer = streamCtx.getWriter();
             UnmarshallingContext uctx = streamCtx.getUnmarshallingContext();
-            writer.startHandshakeStream(XMPPConstants.NS_XMPP_CLIENT, sessCtx.getHostName(), sessCtx.getLocale());
             // start logging
             streamCtx.getReader().startLogging();
             // no need to sync on first read from unmarshalling context
@@ -88,8 +116,6 @@ public class XMPPClientHandshakeStream implements IXMPPStream {
                 streamCtx.setFeatures(features);
             }
             streamCtx.getReader().stopLogging();
-        } catch (IOException ex) {
-            throw new XMPPException(ex);
         } catch (JiBXException ex) {
             throw new XMPPException(ex);
         }
@@ -0,0 +1,250 @@
+package com.echomine.xmpp.stream;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.jibx.JiBXUtil;
+import com.echomine.jibx.XMPPStreamWriter;
+import com.echomine.util.CorkableOutputStream;
+import com.echomine.xmpp.ILoginStageListener;
+import com.echomine.xmpp.IXMPPAuthenticator;
+import com.echomine.xmpp.IXMPPStream;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.XMPPException;
+import com.echomine.xmpp.XMPPSessionContext;
+import com.echomine.xmpp.XMPPStanzaErrorException;
+import com.echomine.xmpp.XMPPStreamContext;
+import com.echomine.xmpp.metrics.IConnectionTracer;
+import com.echomine.xmpp.packet.ErrorPacket;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.StreamFeatures;
+
+/**
+ * Runs the entire login (authentication, stream restart, resource binding and
+ * session establishment) as a single stream, cutting the round trips it costs.
+ * <p>
+ * The authenticator runs as usual. If it requires the stream to be restarted
+ * (ie. SASL) and the features that the host advertises after authentication
+ * are known from a previous login, then the new stream header, the resource
+ * binding request and the session request are written out together without
+ * waiting for any replies in between. The replies are then read in whatever
+ * order they arrive and matched to the requests by ID. This turns the three
+ * round trips following authentication into one.
+ * </p>
+ * <p>
+ * The features actually received always have the final say. A request sent
+ * early for a feature that is no longer advertised is allowed to fail, and a
+ * feature that is newly advertised is negotiated in the usual manner
+ * afterwards. Without cached features, the login proceeds one step at a time
+ * and remembers the features for next time.
+ * </p>
+ */
+public class XMPPPipelinedLoginStream implements IXMPPStream, XMPPConstants {
+    private static final Log log = LogFactory.getLog(XMPPPipelinedLoginStream.class);
+    private static final int SOCKETBUF = 8192;
+    private IXMPPAuthenticator authenticator;
+    private StreamFeaturesCache cache;
+    private XMPPClientHandshakeStream handshakeStream = new XMPPClientHandshakeStream();
+    private XMPPResourceBindingStream bindingStream = new XMPPResourceBindingStream();
+    private XMPPSessionStream sessionStream = new XMPPSessionStream();
+
+    /**
+     * Creates the login stream using the shared features cache
+     * 
+     * @param authenticator the authenticator to log in with
+     */
+    public XMPPPipelinedLoginStream(IXMPPAuthenticator authenticator) {
+        this(authenticator, StreamFeaturesCache.getCache());
+    }
+
+    /**
+     * @param authenticator the authenticator to log in with
+     * @param cache the cache of features advertised by hosts
+     */
+    public XMPPPipelinedLoginStream(IXMPPAuthenticator authenticator, StreamFeaturesCache cache) {
+        if (authenticator == null)
+            throw new IllegalArgumentException("Authenticator cannot be null");
+        this.authenticator = authenticator;
+        this.cache = cache;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see com.echomine.xmpp.IXMPPStream#process(com.echomine.xmpp.XMPPSessionContext,
+     *      com.echomine.xmpp.XMPPStreamContext)
+     */
+    public void process(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws XMPPException {
+        authenticator.process(sessCtx, streamCtx);
+        streamCtx.fireStageCompleted(ILoginStageListener.Stage.SASL);
+        streamCtx.fireStageStarted(ILoginStageListener.Stage.BIND);
+        IConnectionTracer tracer = streamCtx.getTracer();
+        long start = tracer == null ? 0 : System.nanoTime();
+        boolean success = false;
+        try {
+            negotiateBinding(sessCtx, streamCtx);
+            success = true;
+        } finally {
+            if (tracer != null)
+                tracer.resourceBound(sessCtx, System.nanoTime() - start, success);
+        }
+        streamCtx.fireStageCompleted(ILoginStageListener.Stage.BIND);
+    }
+
+    /**
+     * Negotiates everything that follows authentication, pipelining the
+     * requests when possible.
+     */
+    private void negotiateBinding(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws XMPPException {
+        if (!authenticator.redoHandshake()) {
+            negotiateSequentially(sessCtx, streamCtx);
+            return;
+        }
+        String host = sessCtx.getHostName();
+        StreamFeatures expected = cache.getAuthenticatedFeatures(host);
+        if (expected == null) {
+            if (log.isDebugEnabled())
+                log.debug("No cached features for " + host + ".  Negotiating login one step at a time...");
+            handshakeStream.process(sessCtx, streamCtx);
+            cache.putAuthenticatedFeatures(host, streamCtx.getFeatures());
+            negotiateSequentially(sessCtx, streamCtx);
+            return;
+        }
+        if (log.isDebugEnabled())
+            log.debug("Pipelining stream restart, resource binding and session requests to " + host);
+        LinkedList<PendingRequest> pending = new LinkedList<PendingRequest>();
+        try {
+            // corking the output lets all requests leave together
+            CorkableOutputStream out = new CorkableOutputStream(streamCtx.getOutputStream(), SOCKETBUF);
+            XMPPStreamWriter writer = new XMPPStreamWriter();
+            writer.setOutput(out);
+            streamCtx.setWriter(writer);
+            out.setCorked(true);
+            handshakeStream.sendHandshake(sessCtx, streamCtx);
+            if (expected.isBindingSupported()) {
+                IQPacket request = bindingStream.createRequest(sessCtx);
+                JiBXUtil.marshallIQPacket(writer, request);
+                pending.add(new PendingRequest(request.getId(), NS_STREAM_BINDING));
+            }
+            if (expected.isSessionSupported()) {
+                IQPacket request = sessionStream.createRequest();
+                JiBXUtil.marshallIQPacket(writer, request);
+                pending.add(new PendingRequest(request.getId(), NS_STREAM_SESSION));
+            }
+            out.setCorked(false);
+        } catch (IOException ex) {
+            throw new XMPPException(ex);
+        } catch (JiBXException ex) {
+            throw new XMPPException(ex);
+        }
+        handshakeStream.receiveHandshake(sessCtx, streamCtx);
+        StreamFeatures features = streamCtx.getFeatures();
+        cache.putAuthenticatedFeatures(host, features);
+        receiveReplies(pending, sessCtx, streamCtx);
+        // negotiate any features that were not expected
+        if (features.isBindingSupported() && !expected.isBindingSupported())
+            bindingStream.process(sessCtx, streamCtx);
+        if (features.isSessionSupported() && !expected.isSessionSupported())
+            sessionStream.process(sessCtx, streamCtx);
+    }
+
+    /**
+     * Negotiates resource binding and session establishment one after the
+     * other. Each stream does nothing if its feature is not advertised.
+     */
+    private void negotiateSequentially(XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws XMPPException {
+        bindingStream.process(sessCtx, streamCtx);
+        sessionStream.process(sessCtx, streamCtx);
+    }
+
+    /**
+     * Reads in the replies to the pipelined requests in whatever order they
+     * arrive. Replies to requests for features the host did not advertise this
+     * time are not considered errors.
+     */
+    private void receiveReplies(LinkedList<PendingRequest> pending, XMPPSessionContext sessCtx, XMPPStreamContext streamCtx) throws XMPPException {
+        if (pending.isEmpty())
+            return;
+        UnmarshallingContext uctx = streamCtx.getUnmarshallingContext();
+        StreamFeatures features = streamCtx.getFeatures();
+        try {
+            streamCtx.getReader().startLogging();
+            while (!pending.isEmpty()) {
+                // synchronized for first access is required to prevent
+                // thread racing issue
+                synchronized (uctx) {
+                    uctx.toStart();
+                }
+                if (uctx.isAt(NS_JABBER_STREAM, "error")) {
+                    ErrorPacket packet = (ErrorPacket) JiBXUtil.unmarshallObject(uctx, ErrorPacket.class);
+                    throw new XMPPStanzaErrorException("Stream error during login", packet);
+                }
+                if (!uctx.isAt(NS_XMPP_CLIENT, "iq")) {
+                    uctx.skipElement();
+                    streamCtx.getReader().flushIgnoredDataToLog();
+                    continue;
+                }
+                IQPacket result = (IQPacket) JiBXUtil.unmarshallObject(uctx, IQPacket.class);
+                PendingRequest request = removePending(pending, result.getId());
+                if (request == null) {
+                    if (log.isWarnEnabled())
+                        log.warn("Ignoring unexpected IQ packet received during login: id=" + result.getId());
+                    continue;
+                }
+                boolean advertised = features.isFeatureSupported(request.feature);
+                try {
+                    if (NS_STREAM_BINDING.equals(request.feature))
+                        bindingStream.processResult(result, sessCtx);
+                    else
+                        sessionStream.processResult(result);
+                } catch (XMPPException ex) {
+                    if (advertised)
+                        throw ex;
+                    if (log.isDebugEnabled())
+                        log.debug("Ignoring failed reply to " + request.feature + " which is no longer advertised by the host");
+                }
+            }
+        } catch (JiBXException ex) {
+            throw new XMPPException(ex);
+        } finally {
+            streamCtx.getReader().stopLogging();
+        }
+    }
+
+    /**
+     * Removes the first pending request with the specified id
+     * 
+     * @return the request, or null if none matches
+     */
+    private PendingRequest removePending(LinkedList<PendingRequest> pending, String id) {
+        Iterator<PendingRequest> iter = pending.iterator();
+        PendingRequest request;
+        while (iter.hasNext()) {
+            request = iter.next();
+            if (request.id == null ? id == null : request.id.equals(id)) {
+                iter.remove();
+                return request;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A request that was sent early and is awaiting its reply
+     */
+    private static class PendingRequest {
+        String id;
+        String feature;
+
+        PendingRequest(String id, String feature) {
+            this.id = id;
+            this.feature = feature;
+        }
+    }
+}
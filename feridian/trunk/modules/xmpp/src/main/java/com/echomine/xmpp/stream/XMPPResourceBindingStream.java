@@ -42,29 +42,51 @@ public class XMPPResourceBindingStream implements IXMPPStream {
             // start logging
             streamCtx.getReader().startLogging();
             // send bind request
-            ResourceBindIQPacket request = new ResourceBindIQPacket();
-            request.setId(IDGenerator.nextID());
-            request.setType(IQPacket.TYPE_SET);
-            request.setResourceName(sessCtx.getResource());
-            JiBXUtil.marshallIQPacket(writer, request);
+            JiBXUtil.marshallIQPacket(writer, createRequest(sessCtx));
             //synchronized for first access is required to prevent thread racing issue
             synchronized (uctx) {
                 if (!uctx.isAt(XMPPConstants.NS_XMPP_CLIENT, "iq"))
                     uctx.next();
             }
             // process result
-            ResourceBindIQPacket result = (ResourceBindIQPacket) JiBXUtil.unmarshallObject(uctx, IQPacket.class);
-            if (result == null)
-                throw new XMPPException("No Valid Result Packet received");
-            if (result.isError())
-                throw new XMPPStanzaErrorException(result.getError());
-            if (result.getJid() == null)
-                throw new XMPPException("Resource Binding result does not include a JID.  Possibly bad server implementation");
-            sessCtx.setResource(result.getJid().getResource());
+            processResult((IQPacket) JiBXUtil.unmarshallObject(uctx, IQPacket.class), sessCtx);
         } catch (JiBXException ex) {
             throw new XMPPException(ex);
         } finally {
             streamCtx.getReader().stopLogging();
         }
     }
+
+    /**
+     * Creates the resource binding request for the session's resource
+     * 
+     * @param sessCtx the session context
+     * @return the bind request packet
+     * @throws XMPPException if an ID cannot be generated
+     */
+    public ResourceBindIQPacket createRequest(XMPPSessionContext sessCtx) throws XMPPException {
+        ResourceBindIQPacket request = new ResourceBindIQPacket();
+        request.setId(IDGenerator.nextID());
+        request.setType(IQPacket.TYPE_SET);
+        request.setResourceName(sessCtx.getResource());
+        return request;
+    }
+
+    /**
+     * Processes the reply to a resource binding request, saving the bound
+     * resource into the session context.
+     * 
+     * @param result the reply packet
+     * @param sessCtx the session context
+     * @throws XMPPException if the reply is an error or is invalid
+     */
+    public void processResult(IQPacket result, XMPPSessionContext sessCtx) throws XMPPException {
+        if (result == null)
+            throw new XMPPException("No Valid Result Packet received");
+        if (result.isError())
+            throw new XMPPStanzaErrorException(result.getError());
+        if (!(result instanceof ResourceBindIQPacket) || ((ResourceBindIQPacket) result).getJid() == null)
+            throw new XMPPException("Resource Binding result does not include a JID.  Possibly bad server implementation");
+        sessCtx.setResource(((ResourceBindIQPacket) result).getJid().getResource());
+    }
 }
@@ -39,25 +39,44 @@ public class XMPPSessionStream implements IXMPPStream, XMPPConstants {
             // start logging
             streamCtx.getReader().startLogging();
             // send request
-            SessionIQPacket request = new SessionIQPacket();
-            request.setId(IDGenerator.nextID());
-            request.setType(IQPacket.TYPE_SET);
-            JiBXUtil.marshallIQPacket(writer, request);
+            JiBXUtil.marshallIQPacket(writer, createRequest());
             // synchronized for first access is required to prevent thread
             // racing issue
             synchronized (uctx) {
                 if (!uctx.isAt(XMPPConstants.NS_XMPP_CLIENT, "iq"))
                     uctx.next();
             }
-            IQPacket result = (IQPacket) JiBXUtil.unmarshallObject(uctx, IQPacket.class);
-            if (result == null)
-                throw new XMPPException("No Valid Result Packet received");
-            if (result.isError())
-                throw new XMPPStanzaErrorException(result.getError());
+            processResult((IQPacket) JiBXUtil.unmarshallObject(uctx, IQPacket.class));
         } catch (JiBXException ex) {
             throw new XMPPException(ex);
         } finally {
             streamCtx.getReader().stopLogging();
         }
     }
+
+    /**
+     * Creates the session establishment request
+     * 
+     * @return the session request packet
+     * @throws XMPPException if an ID cannot be generated
+     */
+    public SessionIQPacket createRequest() throws XMPPException {
+        SessionIQPacket request = new SessionIQPacket();
+        request.setId(IDGenerator.nextID());
+        request.setType(IQPacket.TYPE_SET);
+        return request;
+    }
+
+    /**
+     * Processes the reply to a session establishment request
+     * 
+     * @param result the reply packet
+     * @throws XMPPException if the reply is an error or is invalid
+     */
+    public void processResult(IQPacket result) throws XMPPException {
+        if (result == null)
+            throw new XMPPException("No Valid Result Packet received");
+        if (result.isError())
+            throw new XMPPStanzaErrorException(result.getError());
+    }
 }
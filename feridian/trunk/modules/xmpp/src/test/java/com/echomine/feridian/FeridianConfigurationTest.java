@@ -1,8 +1,17 @@
 package com.echomine.feridian;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
 import junit.framework.TestCase;
 
+import com.echomine.xmpp.auth.PlainSaslAuthenticator;
+import com.echomine.xmpp.auth.ScramSha256SaslAuthenticator;
 import com.echomine.xmpp.packet.ResourceBindIQPacket;
+import com.echomine.xmpp.stream.TLSHandshakeStream;
 
 /**
  * Tests the feridian configuration.
@@ -21,4 +30,31 @@ public class FeridianConfigurationTest extends TestCase {
             fail("getClassForURI should not throw NPE when default config is used");
         }
     }
+
+    public void testExtensionsLoaded() throws Exception {
+        FeridianConfiguration config = FeridianConfiguration.getConfig();
+        assertEquals(TLSHandshakeStream.class, config.getStreamForFeature("urn:ietf:params:xml:ns:xmpp-tls"));
+        assertEquals(ScramSha256SaslAuthenticator.class, config.getAuthenticators().get(0).getClass());
+        assertEquals(PlainSaslAuthenticator.class, config.getAuthenticators().get(3).getClass());
+    }
+
+    public void testGenerateExtensionIndex() throws Exception {
+        File xml = new File(Thread.currentThread().getContextClassLoader().getResource("META-INF/feridian-extensions-default.xml").getFile());
+        File index = File.createTempFile("feridian-extensions", ".idx");
+        try {
+            ExtensionIndexGenerator.generate(xml, index);
+            List<String> lines = new ArrayList<String>();
+            BufferedReader rdr = new BufferedReader(new FileReader(index));
+            String line;
+            while ((line = rdr.readLine()) != null)
+                lines.add(line);
+            rdr.close();
+            assertTrue(lines.get(0).startsWith("#"));
+            assertEquals("authenticator com.echomine.xmpp.auth.ScramSha256SaslAuthenticator", lines.get(1));
+            assertTrue(lines.contains("stream urn:ietf:params:xml:ns:xmpp-tls com.echomine.xmpp.stream.TLSHandshakeStream"));
+            assertTrue(lines.contains("packet urn:ietf:params:xml:ns:xmpp-bind com.echomine.xmpp.packet.ResourceBindIQPacket"));
+        } finally {
+            index.delete();
+        }
+    }
 }
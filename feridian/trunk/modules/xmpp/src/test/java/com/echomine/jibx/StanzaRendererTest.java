@@ -0,0 +1,64 @@
+package com.echomine.jibx;
+
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.MessagePacket;
+
+/**
+ * Tests that rendered stanzas are identical to the stanzas marshalled by a
+ * connection's writer
+ */
+public class StanzaRendererTest extends TestCase {
+    private XMPPStreamWriter writer;
+    private ByteArrayOutputStream os;
+
+    protected void setUp() throws Exception {
+        writer = new XMPPStreamWriter();
+        os = new ByteArrayOutputStream();
+        writer.setOutput(os);
+        writer.startHandshakeStream("jabber:client", "localhost", null);
+        os.reset();
+    }
+
+    public void testRenderedMatchesMarshalled() throws Exception {
+        MessagePacket msg = new MessagePacket();
+        msg.setTo(new JID("romeo", "example.net", null));
+        msg.setBody("Wherefore <art> thou & été");
+        IQPacket iq = new IQPacket(IQPacket.TYPE_GET);
+        iq.setId("iq1");
+        StanzaBuffer renderedMsg = StanzaRenderer.render(msg, "jabber:client");
+        StanzaBuffer renderedIq = StanzaRenderer.render(iq, "jabber:client");
+        writer.writeStanzaBytes(renderedMsg.getData(), 0, renderedMsg.size());
+        writer.writeStanzaBytes(renderedIq.getData(), 0, renderedIq.size());
+        writer.flush();
+        String rendered = os.toString("UTF-8");
+        renderedMsg.release();
+        renderedIq.release();
+        os.reset();
+        JiBXUtil.marshallObject(writer, msg);
+        JiBXUtil.marshallIQPacket(writer, iq);
+        writer.flush();
+        assertEquals(os.toString("UTF-8"), rendered);
+    }
+
+    public void testLargeStanzaWrittenWhole() throws Exception {
+        StringBuffer body = new StringBuffer();
+        for (int i = 0; i < 5000; i++)
+            body.append("line ").append(i).append('\n');
+        MessagePacket msg = new MessagePacket();
+        msg.setBody(body.toString());
+        StanzaBuffer small = StanzaRenderer.render(new IQPacket(IQPacket.TYPE_GET), "jabber:client");
+        StanzaBuffer large = StanzaRenderer.render(msg, "jabber:client");
+        writer.writeStanzaBytes(small.getData(), 0, small.size());
+        writer.writeStanzaBytes(large.getData(), 0, large.size());
+        writer.flush();
+        assertEquals(small.size() + large.size(), os.size());
+        assertTrue(os.toString("UTF-8").endsWith(new String(large.getData(), 0, large.size(), "UTF-8")));
+        small.release();
+        large.release();
+    }
+}
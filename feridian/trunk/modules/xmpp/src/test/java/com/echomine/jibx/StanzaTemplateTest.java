@@ -0,0 +1,72 @@
+package com.echomine.jibx;
+
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+import com.echomine.xmpp.JID;
+import com.echomine.xmpp.packet.MessagePacket;
+
+/**
+ * Tests that copies written from a stanza template are identical to the
+ * stanza marshalled separately for each recipient
+ */
+public class StanzaTemplateTest extends TestCase {
+    private XMPPStreamWriter writer;
+    private ByteArrayOutputStream os;
+
+    protected void setUp() throws Exception {
+        writer = new XMPPStreamWriter();
+        os = new ByteArrayOutputStream();
+        writer.setOutput(os);
+        writer.startHandshakeStream("jabber:client", "localhost", null);
+        os.reset();
+    }
+
+    private MessagePacket createMessage() {
+        MessagePacket msg = new MessagePacket();
+        msg.setType(MessagePacket.TYPE_HEADLINE);
+        msg.setFrom(new JID("news", "example.com", null));
+        msg.setBody("Markets <up> & \"rising\" été");
+        return msg;
+    }
+
+    public void testCopiesMatchMarshalledPackets() throws Exception {
+        MessagePacket msg = createMessage();
+        StanzaTemplate template = StanzaTemplate.compile(msg, null);
+        JID[] recipients = new JID[] { new JID("romeo", "example.net", null),
+                new JID("juliet", "example.com", "balcony & \"garden\"") };
+        for (int i = 0; i < recipients.length; i++)
+            template.write(writer, recipients[i]);
+        writer.flush();
+        String copies = os.toString("UTF-8");
+        os.reset();
+        for (int i = 0; i < recipients.length; i++) {
+            msg.setTo(recipients[i]);
+            JiBXUtil.marshallObject(writer, msg);
+        }
+        writer.flush();
+        assertEquals(os.toString("UTF-8"), copies);
+    }
+
+    public void testGeneratedIdsAreUnique() throws Exception {
+        StanzaTemplate template = StanzaTemplate.compile(createMessage(), "bc1");
+        JID to = new JID("romeo", "example.net", null);
+        template.write(writer, to);
+        template.write(writer, to);
+        writer.flush();
+        String copies = os.toString("UTF-8");
+        assertTrue(copies.indexOf("id=\"bc1-1\"") != -1);
+        assertTrue(copies.indexOf("id=\"bc1-2\"") != -1);
+    }
+
+    public void testPacketRestoredAfterCompile() throws Exception {
+        MessagePacket msg = createMessage();
+        JID to = new JID("romeo", "example.net", null);
+        msg.setTo(to);
+        StanzaTemplate template = StanzaTemplate.compile(msg, "bc1");
+        assertEquals(to, msg.getTo());
+        assertNull(msg.getId());
+        assertTrue(template.getSize() > 0);
+    }
+}
@@ -0,0 +1,62 @@
+package com.echomine.jibx;
+
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.packet.MessagePacket;
+
+/**
+ * Tests the symbol table and the parser that uses it
+ */
+public class SymbolTableTest extends TestCase {
+
+    public void testSymbolsAreConstants() throws Exception {
+        SymbolTable table = new SymbolTable();
+        char[] buf = "xxjabber:clientxx".toCharArray();
+        assertSame(XMPPConstants.NS_XMPP_CLIENT, table.lookupName(buf, 2, 13));
+        assertSame(MessagePacket.TYPE_CHAT, table.lookupValue("chat".toCharArray(), 0, 4));
+        assertSame(MessagePacket.TYPE_CHAT, table.lookupValue(new String("chat")));
+    }
+
+    public void testRecentStringsAreCached() throws Exception {
+        SymbolTable table = new SymbolTable();
+        char[] buf = "thread-0042".toCharArray();
+        String thread = table.lookupValue(buf, 0, buf.length);
+        assertEquals("thread-0042", thread);
+        assertSame(thread, table.lookupValue(buf, 0, buf.length));
+        assertSame(thread, table.lookupValue(new String(buf)));
+        // names are interned
+        buf = "unknown-element".toCharArray();
+        assertSame("unknown-element", table.lookupName(buf, 0, buf.length));
+        // strings that are too long are always created
+        buf = new char[SymbolTable.MAX_VALUE_LENGTH + 1];
+        assertNotSame(table.lookupValue(buf, 0, buf.length), table.lookupValue(buf, 0, buf.length));
+    }
+
+    public void testAddSymbol() throws Exception {
+        String ns = new String("urn:example:symbol-test");
+        String symbol = SymbolTable.addSymbol(ns);
+        assertSame("urn:example:symbol-test", symbol);
+        assertSame(symbol, new SymbolTable().lookupName(ns.toCharArray(), 0, ns.length()));
+    }
+
+    public void testReaderReturnsSymbols() throws Exception {
+        String xml = "<message xmlns='jabber:client' type='chat' xml:lang='en'><body>hi</body></message>";
+        UnmarshallingContext uctx = new UnmarshallingContext();
+        XMPPPullReader.setDocument(uctx, new StringReader(xml));
+        uctx.toStart();
+        assertSame(XMPPConstants.NS_XMPP_CLIENT, uctx.getNamespace());
+        assertSame("message", uctx.getName());
+        assertSame(MessagePacket.TYPE_CHAT, uctx.attributeText(null, "type"));
+        assertSame("en", uctx.attributeText(XMPPConstants.NS_XML, "lang"));
+        UnmarshallingContext fctx = (UnmarshallingContext) JiBXUtil.getFactory(MessagePacket.class).createUnmarshallingContext();
+        fctx.setFromContext(uctx);
+        MessagePacket msg = (MessagePacket) fctx.unmarshalElement();
+        assertSame(MessagePacket.TYPE_CHAT, msg.getType());
+        assertEquals("hi", msg.getBody());
+    }
+}
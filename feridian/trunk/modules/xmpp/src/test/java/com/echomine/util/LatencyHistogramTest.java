@@ -0,0 +1,80 @@
+package com.echomine.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the latency histogram
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    public void testSmallValuesAreExact() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 50; i++)
+            histogram.record(i);
+        assertEquals(50, histogram.getCount());
+        assertEquals(50, histogram.getMax());
+        assertEquals(25.5, histogram.getMean(), 0.001);
+        assertEquals(25, histogram.getValueAtPercentile(50));
+        assertEquals(45, histogram.getValueAtPercentile(90));
+        assertEquals(50, histogram.getValueAtPercentile(100));
+    }
+
+    public void testLargeValuesWithinRelativeError() throws Exception {
+        long[] values = { 100, 1000, 12345, 999999, 123456789L };
+        for (int i = 0; i < values.length; i++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(values[i]);
+            histogram.record(1);
+            long reported = histogram.getValueAtPercentile(100);
+            assertEquals(values[i], reported);
+            reported = histogram.getValueAtPercentile(99);
+            assertTrue("reported " + reported + " for " + values[i], reported >= values[i]);
+            long bucketTop = LatencyHistogram.highestValueInBucket(LatencyHistogram.bucketIndex(values[i]));
+            assertTrue(bucketTop >= values[i]);
+            assertTrue(bucketTop - values[i] <= values[i] / 32);
+        }
+    }
+
+    public void testBucketsAreContiguous() throws Exception {
+        int last = LatencyHistogram.bucketIndex(0);
+        for (long value = 1; value < 1 << 20; value++) {
+            int idx = LatencyHistogram.bucketIndex(value);
+            assertTrue(idx == last || idx == last + 1);
+            if (idx != last)
+                assertEquals(value - 1, LatencyHistogram.highestValueInBucket(last));
+            last = idx;
+        }
+    }
+
+    public void testAddAndReset() throws Exception {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(10);
+        b.record(20);
+        b.record(-5);
+        a.add(b);
+        assertEquals(3, a.getCount());
+        assertEquals(20, a.getMax());
+        assertEquals(10, a.getValueAtPercentile(50));
+        assertEquals(0, a.getValueAtPercentile(0));
+        a.reset();
+        assertEquals(0, a.getCount());
+        assertEquals(0, a.getValueAtPercentile(99));
+    }
+
+    public void testGetAndReset() throws Exception {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(40);
+        h.record(3000);
+        LatencyHistogram interval = h.getAndReset();
+        assertEquals(2, interval.getCount());
+        assertEquals(3000, interval.getMax());
+        assertEquals(40, interval.getValueAtPercentile(50));
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getValueAtPercentile(99));
+        h.record(7);
+        interval = h.getAndReset();
+        assertEquals(1, interval.getCount());
+        assertEquals(7, interval.getMax());
+    }
+}
@@ -19,6 +19,13 @@ public class LocaleUtilTest extends TestCase {
         assertEquals("en", locale.getLanguage());
         assertEquals("US", locale.getCountry());
         assertNull(LocaleUtil.parseLocale("2blah3-3323-blah"));
+        assertNull(LocaleUtil.parseLocale("2blah3-3323-blah"));
+    }
+
+    public void testParsedLocalesAreCached() throws Exception {
+        Locale locale = LocaleUtil.parseLocale("fr-ca");
+        assertSame(locale, LocaleUtil.parseLocale(new String("fr-ca")));
+        assertEquals("CA", locale.getCountry());
     }
     
     public void testFormatLocale() throws Exception {
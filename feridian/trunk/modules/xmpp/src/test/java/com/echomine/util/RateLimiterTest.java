@@ -0,0 +1,49 @@
+package com.echomine.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the token bucket rate limiter
+ */
+public class RateLimiterTest extends TestCase {
+
+    public void testBurstIsAvailableImmediately() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, 3);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+    }
+
+    public void testAcquireWaitsForRate() throws Exception {
+        RateLimiter limiter = new RateLimiter(50, 1);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 6; i++)
+            limiter.acquire();
+        long elapsed = System.currentTimeMillis() - start;
+        // first permit is free, the next five take 20ms each
+        assertTrue("elapsed " + elapsed, elapsed >= 90);
+    }
+
+    public void testReserveReportsWait() throws Exception {
+        RateLimiter limiter = new RateLimiter(10, 1);
+        assertEquals(0, limiter.reserve());
+        assertTrue(limiter.reserve() > 0);
+    }
+
+    public void testPeekTakesNoPermit() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, 1);
+        assertEquals(0, limiter.peek());
+        assertEquals(0, limiter.peek());
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.peek() > 500000000L);
+        assertFalse(limiter.tryAcquire());
+    }
+
+    public void testSetRate() throws Exception {
+        RateLimiter limiter = new RateLimiter(1000, 1);
+        limiter.setRate(1);
+        assertEquals(0, limiter.reserve());
+        assertTrue(limiter.reserve() > 500000000L);
+    }
+}
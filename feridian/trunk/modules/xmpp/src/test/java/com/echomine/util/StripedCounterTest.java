@@ -0,0 +1,37 @@
+package com.echomine.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the striped counter
+ */
+public class StripedCounterTest extends TestCase {
+
+    public void testAddAndReset() throws Exception {
+        StripedCounter counter = new StripedCounter();
+        assertEquals(0, counter.sum());
+        counter.increment();
+        counter.add(41);
+        counter.add(-2);
+        assertEquals(40, counter.sum());
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+
+    public void testConcurrentAddsAreNotLost() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 10000; j++)
+                        counter.increment();
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+        assertEquals(80000, counter.sum());
+    }
+}
@@ -0,0 +1,207 @@
+package com.echomine.xmpp;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.echomine.util.IOUtil;
+
+/**
+ * A minimal scripted XMPP server used for measuring client behavior over real
+ * sockets. It accepts any PLAIN authentication, binds any resource and accepts
+ * session requests. Every reply is held back by a configurable latency counted
+ * from the time the request was read, which simulates the round trip time of a
+ * remote link while still letting pipelined requests overlap.
+ */
+public class StubXMPPServer implements Runnable {
+    private static final Pattern ID_PATTERN = Pattern.compile("id=[\"']([^\"']*)[\"']");
+    private static final String STREAM_HEADER = "<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' version='1.0' from='";
+    private ServerSocket serverSocket;
+    private String host;
+    private long latency;
+    private volatile boolean running;
+    private int streamCount;
+
+    /**
+     * @param host the host name the server announces
+     * @param latency the delay in ms applied to every reply
+     * @throws IOException if the server socket cannot be opened
+     */
+    public StubXMPPServer(String host, long latency) throws IOException {
+        this.host = host;
+        this.latency = latency;
+        serverSocket = new ServerSocket(0);
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Starts accepting connections in a daemon thread
+     */
+    public void start() {
+        running = true;
+        Thread thread = new Thread(this, "Stub XMPP Server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops accepting connections
+     */
+    public void stop() {
+        running = false;
+        IOUtil.closeSocket(serverSocket);
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "Stub XMPP Connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ex) {
+                // server socket closed
+            }
+        }
+    }
+
+    /**
+     * Reads top-level elements off the connection and schedules a scripted
+     * reply for each of them.
+     */
+    private void serve(Socket socket) {
+        ScheduledExecutorService replies = Executors.newSingleThreadScheduledExecutor();
+        try {
+            socket.setTcpNoDelay(true);
+            Reader in = new InputStreamReader(socket.getInputStream(), "UTF-8");
+            OutputStream out = socket.getOutputStream();
+            StringBuilder buf = new StringBuilder();
+            char[] chars = new char[4096];
+            boolean authenticated = false;
+            int read;
+            while ((read = in.read(chars)) != -1) {
+                buf.append(chars, 0, read);
+                String element;
+                while ((element = nextElement(buf)) != null) {
+                    String reply;
+                    if (element.startsWith("<stream:stream")) {
+                        reply = STREAM_HEADER + host + "' id='stub_" + nextStreamId() + "'><stream:features>";
+                        if (authenticated)
+                            reply += "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/><session xmlns='urn:ietf:params:xml:ns:xmpp-session'/>";
+                        else
+                            reply += "<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><mechanism>PLAIN</mechanism></mechanisms>";
+                        reply += "</stream:features>";
+                    } else if (element.startsWith("</stream:stream")) {
+                        reply = "</stream:stream>";
+                    } else if (element.startsWith("<auth")) {
+                        authenticated = true;
+                        reply = "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>";
+                    } else if (element.startsWith("<iq")) {
+                        Matcher matcher = ID_PATTERN.matcher(element);
+                        String id = matcher.find() ? matcher.group(1) : "";
+                        if (element.indexOf("urn:ietf:params:xml:ns:xmpp-bind") != -1)
+                            reply = "<iq type='result' id='" + id + "'><bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'><jid>user@" + host + "/stub</jid></bind></iq>";
+                        else
+                            reply = "<iq type='result' id='" + id + "'/>";
+                    } else {
+                        continue;
+                    }
+                    scheduleReply(replies, out, reply);
+                }
+            }
+        } catch (IOException ex) {
+            // connection closed
+        } finally {
+            replies.shutdown();
+            try {
+                replies.awaitTermination(latency + 1000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                // intentionally left empty
+            }
+            IOUtil.closeSocket(socket);
+        }
+    }
+
+    private synchronized int nextStreamId() {
+        return ++streamCount;
+    }
+
+    private void scheduleReply(ScheduledExecutorService replies, final OutputStream out, final String reply) {
+        replies.schedule(new Runnable() {
+            public void run() {
+                try {
+                    out.write(reply.getBytes("UTF-8"));
+                    out.flush();
+                } catch (IOException ex) {
+                    // connection closed
+                }
+            }
+        }, latency, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes the next complete top-level element (or stream tag) from the
+     * buffer.
+     * 
+     * @return the element text, or null if no complete element is buffered
+     */
+    private String nextElement(StringBuilder buf) {
+        int start = 0;
+        while (start < buf.length() && Character.isWhitespace(buf.charAt(start)))
+            start++;
+        if (start == buf.length() || buf.charAt(start) != '<') {
+            buf.delete(0, start);
+            return null;
+        }
+        int end;
+        if (buf.indexOf("<?", start) == start) {
+            end = buf.indexOf("?>", start);
+            if (end == -1)
+                return null;
+            buf.delete(0, end + 2);
+            return nextElement(buf);
+        } else if (buf.indexOf("<stream:stream", start) == start || buf.indexOf("</", start) == start) {
+            end = buf.indexOf(">", start);
+            if (end == -1)
+                return null;
+            end++;
+        } else {
+            int tagEnd = buf.indexOf(">", start);
+            if (tagEnd == -1)
+                return null;
+            if (buf.charAt(tagEnd - 1) == '/') {
+                end = tagEnd + 1;
+            } else {
+                int nameEnd = start + 1;
+                while (nameEnd < tagEnd && !Character.isWhitespace(buf.charAt(nameEnd)) && buf.charAt(nameEnd) != '/')
+                    nameEnd++;
+                String closeTag = "</" + buf.substring(start + 1, nameEnd) + ">";
+                end = buf.indexOf(closeTag, tagEnd);
+                if (end == -1)
+                    return null;
+                end += closeTag.length();
+            }
+        }
+        String element = buf.substring(start, end);
+        buf.delete(0, end);
+        return element;
+    }
+}
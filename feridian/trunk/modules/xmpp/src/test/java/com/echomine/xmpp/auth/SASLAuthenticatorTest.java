@@ -6,6 +6,8 @@ import com.echomine.net.MockSocket;
 import com.echomine.xmpp.BaseStreamTestCase;
 import com.echomine.xmpp.XMPPAuthCallback;
 import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.auth.sasl.ScramKeyCache;
+import com.echomine.xmpp.auth.sasl.ScramSaslClient;
 
 /**
  * This tests the TLS handshaking feature. It will not test the TLS negotiation,
@@ -39,6 +41,27 @@ public class SASLAuthenticatorTest extends BaseStreamTestCase implements XMPPCon
         runAndCompare(inRes, outRes, auth, true, true);
     }
     
+    public void testSCRAMSHA1Authentication() throws Exception {
+        // test vector of RFC 5802
+        XMPPAuthCallback authCallback = streamCtx.getAuthCallback();
+        authCallback.setUsername("user");
+        authCallback.setPassword("pencil".toCharArray());
+        mechanisms.add("SCRAM-SHA-1");
+        ScramSha1SaslAuthenticator auth = new ScramSha1SaslAuthenticator() {
+            protected ScramSaslClient createClient() {
+                return new ScramSaslClient("SHA-1", "HmacSHA1", new ScramKeyCache(10)) {
+                    protected String generateClientNonce() {
+                        return "fyko+d2lbbFgONRv9qkxdawL";
+                    }
+                };
+            }
+        };
+        assertTrue(auth.canAuthenticate(sessCtx, streamCtx));
+        String inRes = "com/echomine/xmpp/data/SASLScramSha1_in.xml";
+        String outRes = "com/echomine/xmpp/data/SASLScramSha1_out.xml";
+        runAndCompare(inRes, outRes, auth, true, true);
+    }
+
     public void testRedoHandshakeAlwaysTrue() {
         PlainSaslAuthenticator auth = new PlainSaslAuthenticator();
         assertTrue(auth.redoHandshake());
@@ -0,0 +1,17 @@
+package com.echomine.xmpp.auth.sasl;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class DigestMD5SaslClientTest extends TestCase {
+    public void testLatin1ValueHashedAsLatin1() throws Exception {
+        String password = "p\u00e4ssw\u00f6rd";
+        assertTrue(Arrays.equals(password.getBytes("ISO-8859-1"), DigestMD5SaslClient.getSecretBytes(password)));
+    }
+
+    public void testOtherValueHashedAsUTF8() throws Exception {
+        String password = "p\u00e4ss\u20acw\u00f6rd";
+        assertTrue(Arrays.equals(password.getBytes("UTF-8"), DigestMD5SaslClient.getSecretBytes(password)));
+    }
+}
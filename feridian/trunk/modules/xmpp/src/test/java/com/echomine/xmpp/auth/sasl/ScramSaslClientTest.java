@@ -0,0 +1,100 @@
+package com.echomine.xmpp.auth.sasl;
+
+import junit.framework.TestCase;
+
+import com.echomine.util.Base64;
+import com.echomine.xmpp.XMPPException;
+
+/**
+ * Tests the SCRAM client against the test vectors of RFC 5802 and RFC 7677
+ */
+public class ScramSaslClientTest extends TestCase {
+    ScramKeyCache cache;
+
+    protected void setUp() throws Exception {
+        cache = new ScramKeyCache(10);
+    }
+
+    public void testScramSha1() throws Exception {
+        ScramSaslClient client = new FixedNonceClient("SHA-1", "HmacSHA1", cache, "fyko+d2lbbFgONRv9qkxdawL");
+        assertEquals("n,,n=user,r=fyko+d2lbbFgONRv9qkxdawL", decode(client.getInitialResponse("user", "user@example.com")));
+        String response = client.getFinalResponse(encode("r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j,s=QSXCR+Q6sek8bf92,i=4096"), "pencil".toCharArray());
+        assertEquals("c=biws,r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j,p=v0X8v3Bz2T0CJGbJQyF0X+HI4Ts=", decode(response));
+        client.verifyServerFinal(encode("v=rmF9pqV8S7suAoZWja4dJRkFsKQ="));
+    }
+
+    public void testScramSha256() throws Exception {
+        ScramSaslClient client = new FixedNonceClient("SHA-256", "HmacSHA256", cache, "rOprNGfwEbeRWgbNEkqO");
+        client.getInitialResponse("user", "user@example.com");
+        String response = client.getFinalResponse(encode("r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0,s=W22ZaJ0SNY7soEsUEjb6gQ==,i=4096"), "pencil".toCharArray());
+        assertEquals("c=biws,r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0,p=dHzbZapWIk4jUhN+Ute9ytag9zjfMHgsqmmiz7AndVQ=", decode(response));
+        client.verifyServerFinal(encode("v=6rriTRBi23WpRR/wtup+mMhUZUn/dB5nLTJRsjl95G4="));
+    }
+
+    public void testKeysAreCached() throws Exception {
+        String challenge = encode("r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j,s=QSXCR+Q6sek8bf92,i=4096");
+        for (int i = 0; i < 3; i++) {
+            ScramSaslClient client = new FixedNonceClient("SHA-1", "HmacSHA1", cache, "fyko+d2lbbFgONRv9qkxdawL");
+            client.getInitialResponse("user", "user@example.com");
+            client.getFinalResponse(challenge, "pencil".toCharArray());
+            client.verifyServerFinal(encode("v=rmF9pqV8S7suAoZWja4dJRkFsKQ="));
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+        // a changed password must not use the cached keys
+        ScramSaslClient client = new FixedNonceClient("SHA-1", "HmacSHA1", cache, "fyko+d2lbbFgONRv9qkxdawL");
+        client.getInitialResponse("user", "user@example.com");
+        String response = client.getFinalResponse(challenge, "pencil2".toCharArray());
+        assertFalse(decode(response).endsWith("p=v0X8v3Bz2T0CJGbJQyF0X+HI4Ts="));
+        assertEquals(2, cache.getMisses());
+    }
+
+    public void testInvalidServerSignature() throws Exception {
+        ScramSaslClient client = new FixedNonceClient("SHA-1", "HmacSHA1", cache, "fyko+d2lbbFgONRv9qkxdawL");
+        client.getInitialResponse("user", "user@example.com");
+        client.getFinalResponse(encode("r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j,s=QSXCR+Q6sek8bf92,i=4096"), "pencil".toCharArray());
+        try {
+            client.verifyServerFinal(encode("v=AAAApqV8S7suAoZWja4dJRkFsKQ="));
+            fail("Invalid server signature must be rejected");
+        } catch (XMPPException ex) {
+            // expected
+        }
+    }
+
+    public void testServerNonceMustExtendClientNonce() throws Exception {
+        ScramSaslClient client = new FixedNonceClient("SHA-1", "HmacSHA1", cache, "fyko+d2lbbFgONRv9qkxdawL");
+        client.getInitialResponse("user", "user@example.com");
+        try {
+            client.getFinalResponse(encode("r=somethingelse,s=QSXCR+Q6sek8bf92,i=4096"), "pencil".toCharArray());
+            fail("Foreign nonce must be rejected");
+        } catch (XMPPException ex) {
+            // expected
+        }
+    }
+
+    public void testEscapeUsername() throws Exception {
+        assertEquals("romeo", ScramSaslClient.escapeUsername("romeo"));
+        assertEquals("a=3Db=2Cc", ScramSaslClient.escapeUsername("a=b,c"));
+    }
+
+    private static String encode(String str) throws Exception {
+        return Base64.encodeBytes(str.getBytes("UTF-8"));
+    }
+
+    private static String decode(String str) throws Exception {
+        return new String(Base64.decode(str), "UTF-8");
+    }
+
+    static class FixedNonceClient extends ScramSaslClient {
+        private String nonce;
+
+        FixedNonceClient(String hashAlgorithm, String macAlgorithm, ScramKeyCache cache, String nonce) {
+            super(hashAlgorithm, macAlgorithm, cache);
+            this.nonce = nonce;
+        }
+
+        protected String generateClientNonce() {
+            return nonce;
+        }
+    }
+}
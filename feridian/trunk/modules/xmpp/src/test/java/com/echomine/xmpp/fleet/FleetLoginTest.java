@@ -0,0 +1,63 @@
+package com.echomine.xmpp.fleet;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import com.echomine.xmpp.IXMPPConnection;
+import com.echomine.xmpp.StubXMPPServer;
+import com.echomine.xmpp.XMPPConnectionFactory;
+import com.echomine.xmpp.ILoginStageListener.Stage;
+
+/**
+ * Tests bringing up a fleet of accounts against a local stub server
+ */
+public class FleetLoginTest extends TestCase {
+    private static final String HOST = "localhost";
+    StubXMPPServer server;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StubXMPPServer(HOST, 0);
+        server.start();
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    public void testLoginFleet() throws Exception {
+        ArrayList<FleetAccount> accounts = new ArrayList<FleetAccount>();
+        for (int i = 0; i < 12; i++)
+            accounts.add(new FleetAccount(HOST, server.getPort(), "user" + i, "password".toCharArray(), "fleet"));
+        FleetLogin fleet = new FleetLogin(XMPPConnectionFactory.getFactory());
+        fleet.setConcurrency(4);
+        fleet.setRateLimit(Stage.SASL, 100);
+        FleetLoginResult result = fleet.login(accounts);
+        try {
+            assertEquals(0, result.getFailedCount());
+            assertEquals(12, result.getConnectedCount());
+            for (IXMPPConnection conn : result.getConnections())
+                assertTrue(conn.isConnected());
+            assertEquals(12, fleet.getStageHistogram(Stage.CONNECT).getCount());
+            assertEquals(12, fleet.getStageHistogram(Stage.SASL).getCount());
+            assertEquals(12, fleet.getStageHistogram(Stage.BIND).getCount());
+            // the stub server does not offer STARTTLS
+            assertEquals(0, fleet.getStageHistogram(Stage.TLS).getCount());
+        } finally {
+            result.disconnectAll();
+        }
+    }
+
+    public void testFailuresAreReported() throws Exception {
+        ArrayList<FleetAccount> accounts = new ArrayList<FleetAccount>();
+        accounts.add(new FleetAccount(HOST, server.getPort(), "user", "password".toCharArray(), "fleet"));
+        server.stop();
+        FleetLogin fleet = new FleetLogin(XMPPConnectionFactory.getFactory());
+        FleetLoginResult result = fleet.login(accounts);
+        assertEquals(0, result.getConnectedCount());
+        assertEquals(1, result.getFailedCount());
+        assertNotNull(result.getFailures().get(accounts.get(0)));
+    }
+}
@@ -0,0 +1,86 @@
+package com.echomine.xmpp.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import com.echomine.xmpp.IDGenerator;
+
+/**
+ * Tests the uniqueness and encoding of the default id generator
+ */
+public class IDGeneratorImplTest extends TestCase {
+    private static final int THREADS = 64;
+    private static final int IDS_PER_THREAD = 5000;
+
+    public void testUniqueUnderConcurrency() throws Exception {
+        final IDGenerator gen = new IDGeneratorImpl();
+        final ConcurrentHashMap<String, String> ids = new ConcurrentHashMap<String, String>();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(THREADS);
+        final String[] duplicate = new String[1];
+        for (int i = 0; i < THREADS; i++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        startLatch.await();
+                        for (int j = 0; j < IDS_PER_THREAD; j++) {
+                            String id = gen.next();
+                            if (ids.putIfAbsent(id, id) != null)
+                                duplicate[0] = id;
+                        }
+                    } catch (InterruptedException ex) {
+                        // intentionally left empty
+                    } finally {
+                        doneLatch.countDown();
+                    }
+                }
+            }).start();
+        }
+        startLatch.countDown();
+        doneLatch.await();
+        assertNull("Duplicate id generated: " + duplicate[0], duplicate[0]);
+        assertEquals(THREADS * IDS_PER_THREAD, ids.size());
+    }
+
+    public void testNumericIDMatchesSequence() throws Exception {
+        IDGeneratorImpl gen = new IDGeneratorImpl();
+        for (int i = 0; i < 1000; i++) {
+            String id = gen.next();
+            assertTrue(id.startsWith("frdn_"));
+            long numericId = gen.toNumericID(id);
+            assertTrue(numericId >= 0);
+            assertEquals(id, "frdn_" + encode(numericId));
+        }
+        assertEquals(-1, gen.toNumericID("frdn_00"));
+        assertEquals(-1, gen.toNumericID("frdn_a-b"));
+        assertEquals(-1, gen.toNumericID("other_1"));
+        assertEquals(-1, gen.toNumericID(null));
+    }
+
+    public void testConnectionGeneratorsHaveDistinctPrefixes() throws Exception {
+        IDGenerator.setIDGenerator(new IDGeneratorImpl());
+        try {
+            IDGenerator gen1 = IDGenerator.forConnection();
+            IDGenerator gen2 = IDGenerator.forConnection();
+            String id1 = gen1.next();
+            String id2 = gen2.next();
+            assertFalse(id1.equals(id2));
+            assertTrue(gen1.toNumericID(id1) >= 0);
+            assertEquals(-1, gen1.toNumericID(id2));
+        } finally {
+            IDGenerator.setIDGenerator(null);
+        }
+    }
+
+    private static String encode(long value) {
+        String digits = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+        StringBuffer buf = new StringBuffer();
+        do {
+            buf.insert(0, digits.charAt((int) (value % 62)));
+            value /= 62;
+        } while (value != 0);
+        return buf.toString();
+    }
+}
@@ -0,0 +1,69 @@
+package com.echomine.xmpp.impl;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the per-sender rate limits of incoming stanzas
+ */
+public class InboundFloodGuardTest extends TestCase {
+
+    public void testSendersLimitedByBareJID() throws Exception {
+        InboundFloodGuard guard = new InboundFloodGuard();
+        guard.setLimits(1, 2, InboundFloodGuard.Action.DROP);
+        assertEquals(0, guard.admit("tybalt@example.org/one"));
+        assertEquals(0, guard.admit("tybalt@example.org/two"));
+        assertTrue(guard.admit("tybalt@example.org") > 0);
+        assertEquals(0, guard.admit("juliet@example.org/balcony"));
+        assertEquals(0, guard.admit(null));
+        assertEquals(1, guard.getOverLimitCount());
+    }
+
+    public void testRepliesLimitedLikeStanzas() throws Exception {
+        InboundFloodGuard guard = new InboundFloodGuard();
+        guard.setLimits(1, 1, InboundFloodGuard.Action.DROP);
+        assertEquals(0, guard.admit("tybalt@example.org/one"));
+        assertTrue(guard.admit("tybalt@example.org/one") > 0);
+        assertTrue(guard.admitReply("tybalt@example.org/one"));
+        assertTrue(guard.admit("tybalt@example.org/two") > 0);
+        assertFalse(guard.admitReply("tybalt@example.org/two"));
+        assertTrue(guard.admitReply("juliet@example.org/balcony"));
+        assertTrue(guard.admitReply(null));
+        assertEquals(2, guard.getOverLimitCount());
+    }
+
+    public void testIdleSendersEvicted() throws Exception {
+        InboundFloodGuard guard = new InboundFloodGuard(10);
+        guard.setLimits(1000, 1, InboundFloodGuard.Action.DROP);
+        for (int i = 0; i < 10; i++)
+            guard.admit("sender" + i + "@example.org");
+        assertEquals(10, guard.getSenderCount());
+        Thread.sleep(10);
+        guard.admit("another@example.org");
+        assertEquals(1, guard.getSenderCount());
+    }
+
+    public void testSendersOverLimitKeptWhenNoneIdle() throws Exception {
+        InboundFloodGuard guard = new InboundFloodGuard(8);
+        guard.setLimits(0.001, 3, InboundFloodGuard.Action.DROP);
+        for (int i = 0; i < 3; i++)
+            assertEquals(0, guard.admit("tybalt@example.org"));
+        assertTrue(guard.admit("tybalt@example.org") > 0);
+        for (int i = 0; i < 7; i++)
+            guard.admit("sender" + i + "@example.org");
+        assertEquals(8, guard.getSenderCount());
+        // evicted down to three quarters in one go
+        guard.admit("another@example.org");
+        assertEquals(7, guard.getSenderCount());
+        for (int i = 0; i < 5; i++)
+            guard.admit("more" + i + "@example.org");
+        assertEquals(8, guard.getSenderCount());
+        assertTrue(guard.admit("tybalt@example.org") > 0);
+    }
+
+    public void testNoLimit() throws Exception {
+        InboundFloodGuard guard = new InboundFloodGuard();
+        for (int i = 0; i < 100; i++)
+            assertEquals(0, guard.admit("tybalt@example.org"));
+        assertEquals(0, guard.getSenderCount());
+    }
+}
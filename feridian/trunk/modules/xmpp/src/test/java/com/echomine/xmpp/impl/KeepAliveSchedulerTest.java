@@ -0,0 +1,107 @@
+package com.echomine.xmpp.impl;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.echomine.net.ConnectionContext;
+import com.echomine.net.MockConnectionContext;
+import com.echomine.net.MockSocket;
+import com.echomine.xmpp.IXMPPConnection;
+import com.echomine.xmpp.XMPPTestCase;
+
+/**
+ * Tests the keepalive scheduler and dead connection detection
+ */
+public class KeepAliveSchedulerTest extends XMPPTestCase {
+    KeepAliveScheduler scheduler;
+
+    XMPPConnectionHandler handler;
+
+    MockSocket socket;
+
+    ConnectionContext connectionCtx;
+
+    /** counted down once the handler has shut down */
+    final CountDownLatch shutdown = new CountDownLatch(1);
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        scheduler = new KeepAliveScheduler(10, 8);
+        handler = new XMPPConnectionHandler() {
+            public void shutdown() {
+                super.shutdown();
+                shutdown.countDown();
+            }
+        };
+        handler.start();
+        sessCtx = handler.getSessionContext();
+        socket = new MockSocket(IXMPPConnection.DEFAULT_XMPP_PORT);
+        socket.setOutputStream(os);
+        String reply = "<stream:stream id='c2s_123' from='example.com' version='1.0' xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>"
+                + "<stream:features/>";
+        socket.setInputStream(new ByteArrayInputStream(reply.getBytes()));
+        connectionCtx = new MockConnectionContext("example.com", "127.0.0.1",
+                IXMPPConnection.DEFAULT_XMPP_PORT);
+        handler.handshake(socket, connectionCtx);
+    }
+
+    protected void tearDown() throws Exception {
+        handler.shutdown();
+    }
+
+    /**
+     * An unanswered ping should shut the connection down
+     */
+    public void testPingTimeoutShutsDownConnection() throws Exception {
+        sessCtx.setAuthenticated(true);
+        scheduler.register(handler, KeepAliveScheduler.Mode.PING, 30, 30);
+        // the timed out connection is shut down on a thread of its own
+        assertTrue(shutdown.await(10, TimeUnit.SECONDS));
+        assertFalse(handler.isConnected());
+        // the queued ping is flushed during shutdown
+        assertTrue(os.toString().indexOf("urn:xmpp:ping") != -1);
+    }
+
+    /**
+     * Inbound data should postpone keepalives, so the connection stays up
+     */
+    public void testInboundDataKeepsConnectionAlive() throws Exception {
+        sessCtx.setAuthenticated(true);
+        // the idle time leaves room for late touches on a loaded machine
+        KeepAliveScheduler.Task task = scheduler.register(handler, KeepAliveScheduler.Mode.PING, 1000, 30);
+        for (int i = 0; i < 30; i++) {
+            task.touch();
+            Thread.sleep(10);
+        }
+        assertTrue(handler.isConnected());
+        assertTrue(os.toString().indexOf("urn:xmpp:ping") == -1);
+        task.cancel();
+    }
+
+    /**
+     * Keepalives are not sent before the session is logged in
+     */
+    public void testNoKeepAliveBeforeLogin() throws Exception {
+        KeepAliveScheduler.Task task = scheduler.register(handler, KeepAliveScheduler.Mode.PING, 20, 20);
+        Thread.sleep(300);
+        assertTrue(handler.isConnected());
+        task.cancel();
+    }
+
+    /**
+     * Whitespace keepalives cannot detect unanswered pings and thus never
+     * shut down the connection on their own
+     */
+    public void testWhitespaceDoesNotShutdown() throws Exception {
+        sessCtx.setAuthenticated(true);
+        KeepAliveScheduler.Task task = scheduler.register(handler, KeepAliveScheduler.Mode.WHITESPACE, 20, 20);
+        Thread.sleep(300);
+        assertTrue(handler.isConnected());
+        task.cancel();
+    }
+
+    public void testDisabledModeDoesNotRegister() throws Exception {
+        assertNull(scheduler.register(handler, KeepAliveScheduler.Mode.NONE, 20, 20));
+    }
+}
@@ -1,16 +1,31 @@
 package com.echomine.xmpp.impl;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
+import com.echomine.feridian.FeridianConfiguration;
+import com.echomine.xmpp.IPacket;
 import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.IWatermarkListener;
+import com.echomine.xmpp.JID;
 import com.echomine.xmpp.MockXMPPConnectionHandler;
+import com.echomine.xmpp.PacketLane;
 import com.echomine.xmpp.SendPacketFailedException;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.metrics.ConnectionMetrics;
 import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.IQPacketFactory;
+import com.echomine.xmpp.packet.MessagePacket;
+import com.echomine.xmpp.packet.PingIQPacket;
 import com.echomine.xmpp.packet.PresencePacket;
 import com.echomine.xmpp.packet.RosterIQPacket;
+import com.echomine.xmpp.packet.XMLTextPacket;
 
 /**
  * Tests the packet queue and make sure it works properly
@@ -45,11 +60,13 @@ public class PacketQueueTest extends TestCase {
      * casting issue.
      */
     public void testReplyPacketClassTypeSameAsRequest() throws Exception {
+        ByteArrayOutputStream os = captureOutput();
         queue.start();
         QueuePacketRunnable runner = new QueuePacketRunnable();
         Thread thread = new Thread(runner);
         thread.start();
-        while (queue.getReplyTable().size() == 0)
+        // reply only once the request is sent out
+        while (os.size() == 0)
             Thread.yield();
         IQPacket packet = new IQPacket();
         packet.setId("id_001");
@@ -63,12 +80,99 @@ public class PacketQueueTest extends TestCase {
         assertEquals(IQPacket.TYPE_RESULT, runner.replyPacket.getType());
     }
 
+    /**
+     * The reader looks up the class of the request a reply answers, so the
+     * reply is decoded into it without being recast
+     */
+    public void testReplyFactoryOfPendingRequest() throws Exception {
+        assertNull(queue.getReplyFactory("id_001"));
+        queue.start();
+        QueuePacketRunnable runner = new QueuePacketRunnable();
+        Thread thread = new Thread(runner);
+        thread.start();
+        while (queue.getLaneStatistics(PacketLane.INTERACTIVE).getSentCount() == 0)
+            Thread.yield();
+        assertNull(queue.getReplyFactory("id_002"));
+        IQPacketFactory factory = queue.getReplyFactory("id_001");
+        assertNotNull(factory);
+        IQPacket reply = factory.newPacket();
+        assertEquals(RosterIQPacket.class, reply.getClass());
+        reply.setId("id_001");
+        reply.setType(IQPacket.TYPE_RESULT);
+        assertSame(reply, queue.packetReceived(reply));
+        runner.waitForResult();
+        assertSame(reply, runner.replyPacket);
+        assertNull(queue.getReplyFactory("id_001"));
+    }
+
+    public void testRoundTripRecordedByNamespace() throws Exception {
+        FeridianConfiguration.getConfig().setMetricsEnabled(true);
+        try {
+            handler = new MockXMPPConnectionHandler();
+            queue = new TestablePacketQueue(handler);
+        } finally {
+            FeridianConfiguration.getConfig().setMetricsEnabled(false);
+        }
+        handler.getStreamContext().getWriter().setOutput(new ByteArrayOutputStream());
+        handler.getStreamContext().getWriter().pushExtensionNamespaces(new String[] { "jabber:client" });
+        queue.start();
+        QueuePacketRunnable runner = new QueuePacketRunnable();
+        Thread thread = new Thread(runner);
+        thread.start();
+        while (queue.getLaneStatistics(PacketLane.INTERACTIVE).getSentCount() == 0)
+            Thread.yield();
+        IQPacket reply = new IQPacket();
+        reply.setId("id_001");
+        reply.setType(IQPacket.TYPE_RESULT);
+        queue.packetReceived(reply);
+        runner.waitForResult();
+        ConnectionMetrics metrics = handler.getMetrics();
+        assertEquals(1, metrics.getIQRoundTrips());
+        assertEquals(1, metrics.getRoundTripHistogram("jabber:iq:roster").getCount());
+    }
+
+    /**
+     * A reply read while the request is still being flushed is timed from
+     * the write, and the stamp is cleared once the reply is matched
+     */
+    public void testRoundTripOfReplyDuringWrite() throws Exception {
+        FeridianConfiguration.getConfig().setMetricsEnabled(true);
+        try {
+            handler = new MockXMPPConnectionHandler();
+            queue = new TestablePacketQueue(handler);
+        } finally {
+            FeridianConfiguration.getConfig().setMetricsEnabled(false);
+        }
+        final IQPacket reply = new IQPacket();
+        reply.setId("id_003");
+        reply.setType(IQPacket.TYPE_RESULT);
+        handler.getStreamContext().getWriter().setOutput(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+                queue.packetReceived(reply);
+            }
+        });
+        handler.getStreamContext().getWriter().pushExtensionNamespaces(new String[] { "jabber:client" });
+        queue.setDirectWrite(true);
+        queue.start();
+        RosterIQPacket packet = new RosterIQPacket();
+        packet.setId("id_003");
+        packet.setTimeout(60000);
+        assertNotNull(queue.queuePacket(packet, true));
+        assertEquals(1, handler.getMetrics().getIQRoundTrips());
+        assertEquals(0, packet.getSentTime());
+    }
+
     public void testQueuePacketWithWait() throws Exception {
+        ByteArrayOutputStream os = captureOutput();
         queue.start();
         QueuePacketRunnable runner = new QueuePacketRunnable();
         Thread thread = new Thread(runner);
         thread.start();
-        while (queue.getReplyTable().size() == 0)
+        // reply only once the request is sent out
+        while (os.size() == 0)
             Thread.yield();
         RosterIQPacket packet = new RosterIQPacket();
         packet.setId("id_001");
@@ -81,6 +185,16 @@ public class PacketQueueTest extends TestCase {
         assertEquals(IQPacket.TYPE_RESULT, runner.replyPacket.getType());
     }
 
+    /**
+     * Directs the packets written out to a stream the test can look at
+     */
+    private ByteArrayOutputStream captureOutput() {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        handler.getStreamContext().getWriter().setOutput(os);
+        handler.getStreamContext().getWriter().pushExtensionNamespaces(new String[] { "jabber:client" });
+        return os;
+    }
+
     public void testPacketReceived() throws Exception {
         assertNull(queue.packetReceived(null));
         assertNotNull(queue.packetReceived(new RosterIQPacket()));
@@ -114,6 +228,448 @@ public class PacketQueueTest extends TestCase {
         assertTrue(queue.isShutdown());
     }
 
+    /**
+     * In direct write mode, packets are written before queuePacket() returns
+     * while running, and held until resumed while paused.
+     */
+    public void testDirectWrite() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        handler.getStreamContext().getWriter().setOutput(os);
+        handler.getStreamContext().getWriter().pushExtensionNamespaces(new String[] { "jabber:client" });
+        queue.setDirectWrite(true);
+        queue.start(true);
+        PresencePacket held = new PresencePacket();
+        held.setStatus("held");
+        queue.queuePacket(held, false);
+        assertEquals(1, queue.getQueue().size());
+        assertEquals(0, os.size());
+        queue.resume();
+        assertEquals(0, queue.getQueue().size());
+        assertTrue(os.toString("UTF-8").indexOf("held") != -1);
+        PresencePacket direct = new PresencePacket();
+        direct.setStatus("direct");
+        queue.queuePacket(direct, false);
+        assertEquals(0, queue.getQueue().size());
+        assertTrue(os.toString("UTF-8").indexOf("held") < os.toString("UTF-8").indexOf("direct"));
+    }
+
+    /**
+     * Tests that in direct write mode, a control packet is not written by the
+     * thread offering it while another thread is stuck writing, and is
+     * written by that thread once its write goes through
+     */
+    public void testDirectWriteControlPacketNotWrittenInline() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        handler.getStreamContext().getWriter().setOutput(new OutputStream() {
+            public void write(int b) {
+                os.write(b);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                writing.countDown();
+                try {
+                    stalled.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException("Interrupted");
+                }
+                os.write(b, off, len);
+            }
+        });
+        handler.getStreamContext().getWriter().pushExtensionNamespaces(new String[] { "jabber:client" });
+        queue.setDirectWrite(true);
+        queue.start();
+        Thread sender = new Thread() {
+            public void run() {
+                try {
+                    PresencePacket presence = new PresencePacket();
+                    presence.setStatus("stalled");
+                    queue.queuePacket(presence, false);
+                } catch (SendPacketFailedException ex) {
+                    // fails the test below
+                }
+            }
+        };
+        sender.start();
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        final boolean[] offered = new boolean[1];
+        Thread keepalive = new Thread() {
+            public void run() {
+                try {
+                    PingIQPacket ping = new PingIQPacket(IQPacket.TYPE_GET);
+                    ping.setId("ping_1");
+                    offered[0] = queue.offerControlPacket(ping);
+                } catch (SendPacketFailedException ex) {
+                    // fails the test below
+                }
+            }
+        };
+        keepalive.start();
+        keepalive.join(1000);
+        boolean returned = !keepalive.isAlive();
+        stalled.countDown();
+        sender.join(5000);
+        keepalive.join(5000);
+        assertTrue(returned);
+        assertTrue(offered[0]);
+        String out = os.toString("UTF-8");
+        assertTrue(out.indexOf("stalled") != -1);
+        assertTrue(out.indexOf("stalled") < out.indexOf("ping_1"));
+    }
+
+    /**
+     * A reply received while the request is still being written must not be
+     * missed by the caller waiting for it.
+     */
+    public void testDirectWriteReplyBeforeWait() throws Exception {
+        handler = new MockXMPPConnectionHandler() {
+            void sendPacket(IStanzaPacket packet) {
+                IQPacket reply = new IQPacket();
+                reply.setId(packet.getId());
+                reply.setType(IQPacket.TYPE_RESULT);
+                queue.packetReceived(reply);
+            }
+        };
+        queue = new TestablePacketQueue(handler);
+        queue.setDirectWrite(true);
+        queue.start();
+        RosterIQPacket packet = new RosterIQPacket();
+        packet.setId("id_002");
+        packet.setTimeout(60000);
+        long start = System.currentTimeMillis();
+        IStanzaPacket reply = queue.queuePacket(packet, true);
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        assertTrue(reply instanceof RosterIQPacket);
+        assertEquals(0, queue.getReplyTable().size());
+    }
+
+    /**
+     * Packets marshalled in parallel by several threads are all written out
+     * whole
+     */
+    public void testParallelMarshalling() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        handler.getStreamContext().getWriter().setOutput(os);
+        handler.getStreamContext().getWriter().pushExtensionNamespaces(new String[] { "jabber:client" });
+        handler.setParallelMarshalling(true);
+        queue.setDirectWrite(true);
+        queue.start();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final String sender = "sender" + i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 50; j++) {
+                            MessagePacket msg = new MessagePacket();
+                            msg.setBody(sender + "-" + j);
+                            queue.queuePacket(msg, false);
+                        }
+                    } catch (SendPacketFailedException ex) {
+                        fail(ex.getMessage());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++)
+            threads[i].join();
+        String out = os.toString("UTF-8");
+        for (int i = 0; i < threads.length; i++)
+            for (int j = 0; j < 50; j++)
+                assertTrue(out.indexOf("<body>sender" + i + "-" + j + "</body></message>") != -1);
+    }
+
+    /**
+     * A full queue refuses offered packets, and the watermark events are
+     * fired as the queue fills up and drains
+     */
+    public void testBoundedQueueWatermarks() throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        handler.getStreamContext().getWriter().setOutput(os);
+        handler.getStreamContext().getWriter().pushExtensionNamespaces(new String[] { "jabber:client" });
+        final StringBuffer events = new StringBuffer();
+        queue.setWatermarkListener(new IWatermarkListener() {
+            public void highWatermarkReached(int stanzas, long bytes) {
+                events.append("high" + stanzas + " ");
+            }
+
+            public void lowWatermarkReached(int stanzas, long bytes) {
+                events.append("low" + stanzas + " ");
+            }
+        });
+        queue.setLimits(4, 0, 75, 25);
+        queue.start(true);
+        assertTrue(queue.isWritable());
+        for (int i = 0; i < 4; i++)
+            assertTrue(queue.offerPacket(new PresencePacket(), 0));
+        assertFalse(queue.isWritable());
+        assertEquals("high3 ", events.toString());
+        long start = System.currentTimeMillis();
+        assertFalse(queue.offerPacket(new PresencePacket(), 100));
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        assertEquals(4, queue.getQueue().size());
+        queue.resume();
+        for (int i = 0; i < 100 && !queue.isWritable(); i++)
+            Thread.sleep(10);
+        assertTrue(queue.isWritable());
+        assertEquals("high3 low1 ", events.toString());
+    }
+
+    /**
+     * A sender waiting for room in a full queue is released when the queue is
+     * stopped
+     */
+    public void testBlockedSenderReleasedOnStop() throws Exception {
+        queue.setLimits(1, 0, 100, 0);
+        queue.start(true);
+        queue.queuePacket(new PresencePacket(), false);
+        final Exception[] result = new Exception[1];
+        Thread sender = new Thread() {
+            public void run() {
+                try {
+                    queue.queuePacket(new PresencePacket(), false);
+                } catch (Exception ex) {
+                    result[0] = ex;
+                }
+            }
+        };
+        sender.start();
+        sender.join(200);
+        assertTrue(sender.isAlive());
+        queue.stop();
+        sender.join(1000);
+        assertFalse(sender.isAlive());
+        assertTrue(result[0] instanceof SendPacketFailedException);
+    }
+
+    /**
+     * Tests that control packets queued behind bulk messages are taken first,
+     * while the other lanes still get their share
+     */
+    public void testControlLaneNotStuckBehindBulk() throws Exception {
+        queue.start(true);
+        for (int i = 0; i < 20; i++) {
+            MessagePacket msg = new MessagePacket();
+            msg.setType(MessagePacket.TYPE_HEADLINE);
+            queue.queuePacket(msg, false);
+        }
+        queue.queuePacket(new PresencePacket(), false);
+        for (int i = 0; i < 12; i++) {
+            IQPacket iq = new IQPacket();
+            iq.setLane(PacketLane.CONTROL);
+            queue.queuePacket(iq, false);
+        }
+        MessagePacket chat = new MessagePacket();
+        chat.setLane(PacketLane.CONTROL);
+        queue.queuePacket(chat, false);
+        LaneQueue lanes = queue.getQueue();
+        assertEquals(34, lanes.size());
+        assertEquals(20, queue.getLaneStatistics(PacketLane.BULK).getDepth());
+        // the control lane sends its share, then presence and bulk get theirs
+        for (int i = 0; i < 8; i++)
+            assertEquals(PacketLane.CONTROL, LaneQueue.laneOf(lanes.poll()));
+        assertTrue(lanes.poll() instanceof PresencePacket);
+        assertEquals(PacketLane.BULK, LaneQueue.laneOf(lanes.poll()));
+        for (int i = 0; i < 4; i++)
+            assertTrue(lanes.poll() instanceof IQPacket);
+        assertSame(chat, lanes.poll());
+        assertEquals(PacketLane.BULK, LaneQueue.laneOf(lanes.poll()));
+        assertEquals(18, queue.getLaneStatistics(PacketLane.BULK).getDepth());
+        assertEquals(13, queue.getLaneStatistics(PacketLane.CONTROL).getSentCount());
+    }
+
+    /**
+     * Tests that the connection's own control packets are let into a full
+     * queue up to twice its limits, while application packets wait for room
+     * whatever their lane
+     */
+    public void testControlPacketsBypassLimits() throws Exception {
+        queue.setLimits(2, 0, 100, 50);
+        queue.start(true);
+        assertTrue(queue.offerPacket(new MessagePacket(), 0));
+        assertTrue(queue.offerPacket(new MessagePacket(), 0));
+        assertFalse(queue.offerPacket(new MessagePacket(), 0));
+        assertFalse(queue.offerPacket(new IQPacket(), 0));
+        IQPacket iq = new IQPacket();
+        iq.setLane(PacketLane.CONTROL);
+        assertFalse(queue.offerPacket(iq, 0));
+        PingIQPacket ping = new PingIQPacket(IQPacket.TYPE_GET);
+        assertTrue(queue.offerControlPacket(ping));
+        assertEquals(PacketLane.CONTROL, ping.getLane());
+        assertEquals(3, queue.getQueue().size());
+        assertEquals(1, queue.getLaneStatistics(PacketLane.CONTROL).getDepth());
+        assertTrue(queue.offerControlPacket(new PingIQPacket(IQPacket.TYPE_GET)));
+        assertFalse(queue.offerControlPacket(new PingIQPacket(IQPacket.TYPE_GET)));
+        assertEquals(2, queue.getLaneStatistics(PacketLane.CONTROL).getDepth());
+    }
+
+    /**
+     * Tests that application iq and raw xml packets are not taken for control
+     * traffic
+     */
+    public void testLaneOfApplicationPackets() throws Exception {
+        assertEquals(PacketLane.INTERACTIVE, LaneQueue.laneOf(new IQPacket()));
+        assertEquals(PacketLane.INTERACTIVE, LaneQueue.laneOf(new XMLTextPacket()));
+        assertEquals(PacketLane.PRESENCE, LaneQueue.laneOf(new PresencePacket()));
+        assertEquals(PacketLane.INTERACTIVE, LaneQueue.laneOf(new MessagePacket()));
+    }
+
+    /**
+     * Tests that queued presence and chat state updates are replaced by newer
+     * ones to the same recipient, and that other stanzas are left alone
+     */
+    public void testCoalescing() throws Exception {
+        JID romeo = new JID("romeo", "example.net", null);
+        JID mercutio = new JID("mercutio", "example.net", null);
+        queue.setCoalescing(true);
+        queue.start(true);
+        queue.queuePacket(createPresence(romeo, "one"), false);
+        queue.queuePacket(createPresence(mercutio, "one"), false);
+        queue.queuePacket(createPresence(romeo, "two"), false);
+        PresencePacket subscribe = createPresence(romeo, null);
+        subscribe.setType(PresencePacket.TYPE_SUBSCRIBE);
+        queue.queuePacket(subscribe, false);
+        PresencePacket last = createPresence(romeo, "three");
+        assertTrue(queue.offerPacket(last, 0));
+        queue.queuePacket(createChatState(romeo), false);
+        MessagePacket chatState = createChatState(romeo);
+        queue.queuePacket(chatState, false);
+        MessagePacket chat = createChatState(romeo);
+        chat.setBody("hello");
+        queue.queuePacket(chat, false);
+        LaneQueue lanes = queue.getQueue();
+        assertEquals(5, lanes.size());
+        assertEquals(2, queue.getLaneStatistics(PacketLane.PRESENCE).getCoalescedCount());
+        assertEquals(1, queue.getLaneStatistics(PacketLane.INTERACTIVE).getCoalescedCount());
+        assertEquals(3, queue.getLaneStatistics(PacketLane.PRESENCE).getDepth());
+        assertEquals("one", ((PresencePacket) lanes.poll()).getStatus());
+        assertSame(subscribe, lanes.poll());
+        assertSame(last, lanes.poll());
+        assertSame(chatState, lanes.poll());
+        assertSame(chat, lanes.poll());
+        // once sent, an update is not replaced anymore
+        queue.queuePacket(createPresence(romeo, "four"), false);
+        assertEquals(1, lanes.size());
+    }
+
+    /**
+     * Tests that a coalesced update is not sent ahead of the stanzas queued
+     * before it: a paused chat state superseding a composing one still
+     * follows the message sent in between
+     */
+    public void testCoalescingKeepsOrder() throws Exception {
+        JID romeo = new JID("romeo", "example.net", null);
+        queue.setCoalescing(true);
+        queue.start(true);
+        queue.queuePacket(createChatState(romeo), false);
+        MessagePacket chat = createChat(romeo);
+        queue.queuePacket(chat, false);
+        MessagePacket paused = createChatState(romeo);
+        queue.queuePacket(paused, false);
+        LaneQueue lanes = queue.getQueue();
+        assertEquals(2, lanes.size());
+        assertEquals(2, queue.getLaneStatistics(PacketLane.INTERACTIVE).getDepth());
+        assertSame(chat, lanes.poll());
+        assertSame(paused, lanes.poll());
+        assertNull(lanes.poll());
+        assertEquals(2, queue.getLaneStatistics(PacketLane.INTERACTIVE).getSentCount());
+        assertEquals(0, queue.getLaneStatistics(PacketLane.INTERACTIVE).getDepth());
+    }
+
+    /**
+     * Tests that packets over the rate of their recipient's domain are held,
+     * while packets to other domains and control packets are not
+     */
+    public void testRateLimitHoldsPackets() throws Exception {
+        handler.getStreamContext().getWriter().setOutput(new ByteArrayOutputStream());
+        handler.getStreamContext().getWriter().pushExtensionNamespaces(new String[] { "jabber:client" });
+        queue.setDirectWrite(true);
+        queue.setRateLimits(0, 1, 10, 1, false);
+        queue.start();
+        long start = System.currentTimeMillis();
+        queue.queuePacket(createChat(new JID("romeo", "example.net", null)), false);
+        queue.queuePacket(createChat(new JID("juliet", "example.com", null)), false);
+        PingIQPacket ping = new PingIQPacket(IQPacket.TYPE_GET);
+        ping.setTo(new JID(null, "example.net", null));
+        assertTrue(queue.offerControlPacket(ping));
+        assertTrue(System.currentTimeMillis() - start < 90);
+        queue.queuePacket(createChat(new JID("mercutio", "example.net", null)), false);
+        assertTrue(System.currentTimeMillis() - start >= 90);
+    }
+
+    /**
+     * Tests that the queue thread does not wait for a packet over the rate of
+     * its recipient: packets to other recipients are written in the meantime,
+     * and the held packet is still written before the later packets to its
+     * recipient
+     */
+    public void testRateLimitNoHeadOfLineBlocking() throws Exception {
+        ByteArrayOutputStream os = captureOutput();
+        queue.setRateLimits(0, 1, 0.1, 1, false);
+        queue.start(true);
+        queue.queuePacket(createChat(new JID("romeo", "example.net", null)), false);
+        queue.queuePacket(createChat(new JID("mercutio", "example.net", null)), false);
+        queue.queuePacket(createChat(new JID("benvolio", "example.net", null)), false);
+        queue.queuePacket(createChat(new JID("juliet", "example.com", null)), false);
+        queue.resume();
+        while (os.toString().indexOf("juliet") < 0)
+            Thread.yield();
+        String out = os.toString();
+        assertTrue(out.indexOf("romeo") >= 0);
+        assertTrue(out.indexOf("mercutio") < 0);
+        assertEquals(2, queue.getDepth());
+        // the held packets are written out in order on stop
+        queue.stop();
+        out = os.toString();
+        assertTrue(out.indexOf("mercutio") > out.indexOf("juliet"));
+        assertTrue(out.indexOf("benvolio") > out.indexOf("mercutio"));
+    }
+
+    /**
+     * Tests that the rates are cut back when the server complains
+     */
+    public void testRateLimitBackOff() throws Exception {
+        OutboundPacer pacer = new OutboundPacer();
+        pacer.backOff();
+        assertEquals(1.0, pacer.getFactor(), 0);
+        pacer.setLimits(100, 1, 0, 1, false);
+        pacer.backOff();
+        pacer.backOff();
+        assertEquals(0.25, pacer.getFactor(), 0);
+        MessagePacket msg = new MessagePacket();
+        assertEquals(0, pacer.reserve(msg));
+        // the next permit comes at a quarter of the rate
+        assertTrue(pacer.reserve(msg) > 30000000L);
+        pacer.setLimits(100, 1, 0, 1, false);
+        assertEquals(1.0, pacer.getFactor(), 0);
+    }
+
+    private PresencePacket createPresence(JID to, String status) {
+        PresencePacket presence = new PresencePacket();
+        presence.setTo(to);
+        presence.setStatus(status);
+        return presence;
+    }
+
+    private MessagePacket createChat(JID to) {
+        MessagePacket msg = new MessagePacket();
+        msg.setType(MessagePacket.TYPE_CHAT);
+        msg.setTo(to);
+        msg.setBody("hello");
+        return msg;
+    }
+
+    private MessagePacket createChatState(JID to) {
+        MessagePacket msg = new MessagePacket();
+        msg.setType(MessagePacket.TYPE_CHAT);
+        msg.setTo(to);
+        msg.addExtension(XMPPConstants.NS_CHAT_STATES, new IPacket() {
+        });
+        return msg;
+    }
+
     class QueuePacketRunnable implements Runnable {
         IStanzaPacket replyPacket;
         boolean resultReceived;
@@ -158,7 +714,7 @@ public class PacketQueueTest extends TestCase {
             return state == RunningState.PAUSED;
         }
 
-        public LinkedBlockingQueue getQueue() {
+        public LaneQueue getQueue() {
             return queue;
         }
 
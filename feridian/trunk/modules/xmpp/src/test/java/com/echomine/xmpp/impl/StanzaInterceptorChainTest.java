@@ -0,0 +1,94 @@
+package com.echomine.xmpp.impl;
+
+import junit.framework.TestCase;
+
+import com.echomine.xmpp.IStanzaInterceptor;
+import com.echomine.xmpp.IStanzaPacket;
+import com.echomine.xmpp.packet.MessagePacket;
+
+/**
+ * Tests the order, replacing and dropping of stanzas in the interceptor chain
+ */
+public class StanzaInterceptorChainTest extends TestCase {
+    StanzaInterceptorChain chain;
+
+    protected void setUp() throws Exception {
+        chain = new StanzaInterceptorChain();
+    }
+
+    public void testEmptyChainPassesPacket() throws Exception {
+        MessagePacket msg = new MessagePacket();
+        assertTrue(chain.isEmpty());
+        assertSame(msg, chain.received(msg, 1, 2));
+        assertSame(msg, chain.sending(msg, 1));
+    }
+
+    public void testInterceptorsCalledInOrder() throws Exception {
+        final MessagePacket replacement = new MessagePacket();
+        StringBuffer calls = new StringBuffer();
+        chain.add(new Recorder("a", calls, replacement));
+        chain.add(new Recorder("b", calls, null));
+        assertSame(replacement, chain.received(new MessagePacket(), 1, 2));
+        assertEquals("ab", calls.toString());
+        // a third interceptor drops what is sent
+        IStanzaInterceptor dropper = new Recorder("c", calls, null) {
+            public IStanzaPacket sending(IStanzaPacket packet, long queuedTime) {
+                super.sending(packet, queuedTime);
+                return null;
+            }
+        };
+        chain.add(dropper);
+        calls.setLength(0);
+        assertNull(chain.sending(new MessagePacket(), 1));
+        assertEquals("abc", calls.toString());
+        chain.remove(dropper);
+        calls.setLength(0);
+        assertNotNull(chain.sending(new MessagePacket(), 1));
+        assertEquals("ab", calls.toString());
+    }
+
+    public void testDroppedPacketStopsChain() throws Exception {
+        StringBuffer calls = new StringBuffer();
+        IStanzaInterceptor first = new Recorder("a", calls, null) {
+            public IStanzaPacket received(IStanzaPacket packet, long readTime, long parsedTime) {
+                super.received(packet, readTime, parsedTime);
+                return null;
+            }
+        };
+        chain.add(first);
+        chain.add(new Recorder("b", calls, null));
+        assertNull(chain.received(new MessagePacket(), 1, 2));
+        assertEquals("a", calls.toString());
+        chain.remove(first);
+        chain.remove(first);
+        assertFalse(chain.isEmpty());
+    }
+
+    static class Recorder implements IStanzaInterceptor {
+        String name;
+        StringBuffer calls;
+        IStanzaPacket replacement;
+
+        Recorder(String name, StringBuffer calls, IStanzaPacket replacement) {
+            this.name = name;
+            this.calls = calls;
+            this.replacement = replacement;
+        }
+
+        public IStanzaPacket received(IStanzaPacket packet, long readTime, long parsedTime) {
+            calls.append(name);
+            return replacement != null ? replacement : packet;
+        }
+
+        public void dispatched(IStanzaPacket packet, long dispatchedTime) {
+        }
+
+        public IStanzaPacket sending(IStanzaPacket packet, long queuedTime) {
+            calls.append(name);
+            return packet;
+        }
+
+        public void sent(IStanzaPacket packet, long queuedTime, long marshalledTime, long flushedTime) {
+        }
+    }
+}
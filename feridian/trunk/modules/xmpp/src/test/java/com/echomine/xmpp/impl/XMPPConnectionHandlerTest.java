@@ -3,7 +3,12 @@ package com.echomine.xmpp.impl;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
 
+import org.jibx.runtime.JiBXException;
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.feridian.FeridianConfiguration;
 import com.echomine.net.ConnectionContext;
 import com.echomine.net.HandshakeFailedException;
 import com.echomine.net.MockConnectionContext;
@@ -11,13 +16,20 @@ import com.echomine.net.MockSocket;
 import com.echomine.util.ClassUtil;
 import com.echomine.xmpp.ErrorCode;
 import com.echomine.xmpp.IPacketListener;
+import com.echomine.xmpp.IStanzaFilter;
+import com.echomine.xmpp.IStanzaInterceptor;
 import com.echomine.xmpp.IStanzaPacket;
 import com.echomine.xmpp.IXMPPConnection;
 import com.echomine.xmpp.PacketEvent;
+import com.echomine.xmpp.XMPPSessionContext;
 import com.echomine.xmpp.XMPPStanzaErrorException;
 import com.echomine.xmpp.XMPPStreamContext;
 import com.echomine.xmpp.XMPPTestCase;
+import com.echomine.xmpp.metrics.ConnectionMetrics;
+import com.echomine.xmpp.metrics.IConnectionTracer;
+import com.echomine.xmpp.metrics.Metrics;
 import com.echomine.xmpp.packet.IQPacket;
+import com.echomine.xmpp.packet.MessagePacket;
 import com.echomine.xmpp.packet.PresencePacket;
 import com.echomine.xmpp.packet.RosterIQPacket;
 
@@ -117,6 +129,20 @@ public class XMPPConnectionHandlerTest extends XMPPTestCase {
         compare(outRes);
     }
 
+    /**
+     * Pings (XEP-0199) from the remote entity should be answered with an empty
+     * result
+     */
+    public void testReceivePingRepliesWithResult() throws Exception {
+        String inRes = "com/echomine/xmpp/data/XMPPConnectionHandlerWithPing.xml";
+        String outRes = "com/echomine/xmpp/data/XMPPConnectionHandlerWithPingReply.xml";
+        socket.setOutputStream(os);
+        socket.setInputStream(ClassUtil.getResourceAsStream(inRes));
+        handler.handshake(socket, connectionCtx);
+        handler.handle(socket, connectionCtx);
+        compare(outRes);
+    }
+
     /**
      * This tests that message packets with no children and no known extensions
      * are ignored (and consequently no packet receive event is fire)
@@ -180,6 +206,303 @@ public class XMPPConnectionHandlerTest extends XMPPTestCase {
         assertTrue(reply instanceof RosterIQPacket);
     }
 
+    /**
+     * Top-level elements registered in the dispatch table are passed to their
+     * handler instead of the built-in processing
+     */
+    public void testRegisteredElementHandlerDispatched() throws Exception {
+        String inRes = "com/echomine/xmpp/data/XMPPConnectionHandler_in1.xml";
+        socket.setOutputStream(os);
+        socket.setInputStream(ClassUtil.getResourceAsStream(inRes));
+        PacketListenerManager listenerManager = new PacketListenerManager(
+                new XMPPConnectionImpl());
+        handler.setPacketListenerManager(listenerManager);
+        PacketReceiver rec = new PacketReceiver();
+        listenerManager.addPacketListener(rec);
+        final int[] count = new int[1];
+        ElementDispatchTable table = new ElementDispatchTable();
+        table.register("jabber:client", "iq", new IElementHandler() {
+            public IStanzaPacket handleElement(XMPPConnectionHandler handler, UnmarshallingContext uctx) throws JiBXException {
+                count[0]++;
+                uctx.skipElement();
+                return null;
+            }
+        });
+        handler.setDispatchTable(table);
+        handler.handshake(socket, connectionCtx);
+        handler.handle(socket, connectionCtx);
+        assertEquals(1, count[0]);
+        assertNull(rec.packet);
+    }
+
+    /**
+     * Stanzas over the rate limit of their sender are skipped, including
+     * replies no one waits for, while other senders get through
+     */
+    public void testInboundFloodDropped() throws Exception {
+        String inRes = "com/echomine/xmpp/data/XMPPConnectionHandlerFlood.xml";
+        socket.setOutputStream(os);
+        socket.setInputStream(ClassUtil.getResourceAsStream(inRes));
+        PacketListenerManager listenerManager = new PacketListenerManager(
+                new XMPPConnectionImpl());
+        handler.setPacketListenerManager(listenerManager);
+        final ArrayList<IStanzaPacket> received = new ArrayList<IStanzaPacket>();
+        listenerManager.addPacketListener(new IPacketListener() {
+            public void packetReceived(PacketEvent event) {
+                received.add(event.getPacket());
+            }
+        });
+        handler.setInboundRateLimit(0.01, 2, InboundFloodGuard.Action.DROP);
+        handler.handshake(socket, connectionCtx);
+        handler.handle(socket, connectionCtx);
+        assertEquals(3, received.size());
+        assertEquals("1", ((MessagePacket) received.get(0)).getBody());
+        assertEquals("2", ((MessagePacket) received.get(1)).getBody());
+        assertEquals("4", ((MessagePacket) received.get(2)).getBody());
+        assertEquals(4, handler.getInboundOverLimitCount());
+    }
+
+    /**
+     * Replies to our pending requests are not limited. Requests over the limit
+     * are answered with an error, but no faster than the limit itself.
+     */
+    public void testInboundFloodAnswersDroppedRequests() throws Exception {
+        String inRes = "com/echomine/xmpp/data/XMPPConnectionHandlerFloodRequests.xml";
+        socket.setOutputStream(os);
+        socket.setInputStream(ClassUtil.getResourceAsStream(inRes));
+        PacketListenerManager listenerManager = new PacketListenerManager(
+                new XMPPConnectionImpl());
+        handler.setPacketListenerManager(listenerManager);
+        final ArrayList<IStanzaPacket> received = new ArrayList<IStanzaPacket>();
+        listenerManager.addPacketListener(new IPacketListener() {
+            public void packetReceived(PacketEvent event) {
+                received.add(event.getPacket());
+            }
+        });
+        handler.setInboundRateLimit(0.01, 1, InboundFloodGuard.Action.DROP);
+        handler.handshake(socket, connectionCtx);
+        final IStanzaPacket[] reply = new IStanzaPacket[1];
+        final RosterIQPacket request = new RosterIQPacket();
+        request.setId("id_001");
+        Thread sender = new Thread() {
+            public void run() {
+                try {
+                    reply[0] = handler.queuePacket(request, true);
+                } catch (Exception ex) {
+                    // the reply stays null
+                }
+            }
+        };
+        sender.start();
+        // the request is registered before the sender waits for its reply
+        while (sender.getState() != Thread.State.WAITING && sender.getState() != Thread.State.TIMED_WAITING)
+            Thread.yield();
+        handler.handle(socket, connectionCtx);
+        sender.join(5000);
+        assertNotNull(reply[0]);
+        assertEquals("id_001", reply[0].getId());
+        assertEquals(2, received.size());
+        assertEquals("1", ((MessagePacket) received.get(0)).getBody());
+        assertEquals("id_001", received.get(1).getId());
+        assertEquals(3, handler.getInboundOverLimitCount());
+        String out = os.toString();
+        assertTrue(out.indexOf("tybalt_1") >= 0);
+        assertTrue(out.indexOf("resource-constraint") >= 0);
+        assertTrue(out.indexOf("tybalt_2") < 0);
+    }
+
+    /**
+     * Only the errors sent by our own server cut back the outbound rates,
+     * not the ones relayed from other entities
+     */
+    public void testTrafficShapingOnlyFromServer() throws Exception {
+        String inRes = "com/echomine/xmpp/data/XMPPConnectionHandlerTrafficShaping.xml";
+        socket.setOutputStream(os);
+        socket.setInputStream(ClassUtil.getResourceAsStream(inRes));
+        handler.setRateLimits(100, 1, 0, 1, false);
+        handler.handshake(socket, connectionCtx);
+        handler.handle(socket, connectionCtx);
+        assertEquals(0.5, handler.getRateFactor(), 0);
+    }
+
+    /**
+     * Stanzas and bytes received are recorded on the connection's metrics
+     */
+    public void testMetricsRecordReceivedStanzas() throws Exception {
+        String inRes = "com/echomine/xmpp/data/XMPPConnectionHandlerFlood.xml";
+        FeridianConfiguration.getConfig().setMetricsEnabled(true);
+        try {
+            handler.shutdown();
+            handler = new XMPPConnectionHandler();
+        } finally {
+            FeridianConfiguration.getConfig().setMetricsEnabled(false);
+        }
+        handler.start();
+        streamCtx = handler.getStreamContext();
+        streamCtx.setWriter(writer);
+        streamCtx.setUnmarshallingContext(uctx);
+        socket.setOutputStream(os);
+        socket.setInputStream(ClassUtil.getResourceAsStream(inRes));
+        handler.setPacketListenerManager(new PacketListenerManager(new XMPPConnectionImpl()));
+        ConnectionMetrics metrics = handler.getMetrics();
+        assertNotNull(metrics);
+        handler.handshake(socket, connectionCtx);
+        handler.handle(socket, connectionCtx);
+        assertEquals(5, metrics.getMessagesIn());
+        assertEquals(1, metrics.getPresencesIn());
+        assertEquals(1, metrics.getIQsIn());
+        assertEquals(1, metrics.getConnects());
+        assertTrue(metrics.getBytesIn() > 0);
+        assertTrue(Metrics.getTotal().getMessagesIn() >= 5);
+    }
+
+    /**
+     * The tracer of the stream context receives an event for each stanza read
+     * and written
+     */
+    public void testTracerReceivesStanzaEvents() throws Exception {
+        String inRes = "com/echomine/xmpp/data/XMPPConnectionHandlerFlood.xml";
+        socket.setOutputStream(os);
+        socket.setInputStream(ClassUtil.getResourceAsStream(inRes));
+        handler.setPacketListenerManager(new PacketListenerManager(new XMPPConnectionImpl()));
+        final ArrayList<ConnectionMetrics.Kind> received = new ArrayList<ConnectionMetrics.Kind>();
+        final ArrayList<ConnectionMetrics.Kind> sent = new ArrayList<ConnectionMetrics.Kind>();
+        streamCtx.setTracer(new IConnectionTracer() {
+            public void stanzaReceived(XMPPSessionContext session, ConnectionMetrics.Kind kind, long parseNanos) {
+                assertTrue(parseNanos >= 0);
+                received.add(kind);
+            }
+
+            public void stanzaSent(XMPPSessionContext session, ConnectionMetrics.Kind kind, long queueNanos, long marshalNanos, long flushNanos) {
+                assertEquals(0, queueNanos);
+                sent.add(kind);
+            }
+
+            public void tlsNegotiated(XMPPSessionContext session, long nanos, boolean success) {
+            }
+
+            public void saslAuthenticated(XMPPSessionContext session, String mechanism, long nanos, boolean success) {
+            }
+
+            public void resourceBound(XMPPSessionContext session, long nanos, boolean success) {
+            }
+
+            public void streamError(XMPPSessionContext session, String condition) {
+            }
+        });
+        handler.handshake(socket, connectionCtx);
+        handler.sendPacket(new PresencePacket());
+        handler.handle(socket, connectionCtx);
+        assertEquals(1, sent.size());
+        assertEquals(ConnectionMetrics.Kind.PRESENCE, sent.get(0));
+        assertEquals(7, received.size());
+        assertEquals(ConnectionMetrics.Kind.MESSAGE, received.get(0));
+    }
+
+    /**
+     * Interceptors see each stanza with its times in order, and stanzas they
+     * drop do not reach the listeners
+     */
+    public void testInterceptorDropsAndTimesStanzas() throws Exception {
+        String inRes = "com/echomine/xmpp/data/XMPPConnectionHandlerFlood.xml";
+        socket.setOutputStream(os);
+        socket.setInputStream(ClassUtil.getResourceAsStream(inRes));
+        PacketListenerManager listenerManager = new PacketListenerManager(new XMPPConnectionImpl());
+        handler.setPacketListenerManager(listenerManager);
+        final ArrayList<IStanzaPacket> received = new ArrayList<IStanzaPacket>();
+        listenerManager.addPacketListener(new IPacketListener() {
+            public void packetReceived(PacketEvent event) {
+                received.add(event.getPacket());
+            }
+        });
+        final ArrayList<IStanzaPacket> dispatched = new ArrayList<IStanzaPacket>();
+        final ArrayList<IStanzaPacket> sent = new ArrayList<IStanzaPacket>();
+        handler.addStanzaInterceptor(new IStanzaInterceptor() {
+            long parsed;
+
+            public IStanzaPacket received(IStanzaPacket packet, long readTime, long parsedTime) {
+                assertTrue(readTime <= parsedTime);
+                parsed = parsedTime;
+                return packet instanceof PresencePacket ? null : packet;
+            }
+
+            public void dispatched(IStanzaPacket packet, long dispatchedTime) {
+                assertTrue(parsed <= dispatchedTime);
+                dispatched.add(packet);
+            }
+
+            public IStanzaPacket sending(IStanzaPacket packet, long queuedTime) {
+                return packet;
+            }
+
+            public void sent(IStanzaPacket packet, long queuedTime, long marshalledTime, long flushedTime) {
+                assertTrue(queuedTime <= marshalledTime);
+                assertTrue(marshalledTime <= flushedTime);
+                sent.add(packet);
+            }
+        });
+        handler.handshake(socket, connectionCtx);
+        MessagePacket msg = new MessagePacket();
+        handler.sendPacket(msg);
+        handler.handle(socket, connectionCtx);
+        assertEquals(1, sent.size());
+        assertSame(msg, sent.get(0));
+        assertEquals(6, received.size());
+        assertEquals(received, dispatched);
+        for (int i = 0; i < received.size(); i++)
+            assertFalse(received.get(i) instanceof PresencePacket);
+    }
+
+    /**
+     * Stanzas rejected by the filter are not delivered, and iq results are not
+     * filtered
+     */
+    public void testStanzaFilterSkipsRejected() throws Exception {
+        String inRes = "com/echomine/xmpp/data/XMPPConnectionHandlerFlood.xml";
+        socket.setOutputStream(os);
+        socket.setInputStream(ClassUtil.getResourceAsStream(inRes));
+        PacketListenerManager listenerManager = new PacketListenerManager(
+                new XMPPConnectionImpl());
+        handler.setPacketListenerManager(listenerManager);
+        final ArrayList<IStanzaPacket> received = new ArrayList<IStanzaPacket>();
+        listenerManager.addPacketListener(new IPacketListener() {
+            public void packetReceived(PacketEvent event) {
+                received.add(event.getPacket());
+            }
+        });
+        final StringBuffer seen = new StringBuffer();
+        handler.setStanzaFilter(new IStanzaFilter() {
+            public boolean accept(String name, String from, String to, String type, String id) {
+                seen.append(name).append(' ');
+                return "message".equals(name) && !from.startsWith("juliet@");
+            }
+        });
+        handler.handshake(socket, connectionCtx);
+        handler.handle(socket, connectionCtx);
+        assertEquals("message message message presence message message ", seen.toString());
+        assertEquals(5, received.size());
+        assertEquals("5", ((MessagePacket) received.get(4)).getBody());
+        assertEquals(IQPacket.TYPE_RESULT, received.get(3).getType());
+    }
+
+    /**
+     * Iq requests rejected by the filter are still answered with an error
+     */
+    public void testStanzaFilterRepliesToRejectedIQ() throws Exception {
+        String inRes = "com/echomine/xmpp/data/XMPPConnectionHandlerWithUnknownIQ.xml";
+        String outRes = "com/echomine/xmpp/data/XMPPConnectionHandlerWithIQErrorReply.xml";
+        socket.setOutputStream(os);
+        socket.setInputStream(ClassUtil.getResourceAsStream(inRes));
+        handler.setStanzaFilter(new IStanzaFilter() {
+            public boolean accept(String name, String from, String to, String type, String id) {
+                return false;
+            }
+        });
+        handler.handshake(socket, connectionCtx);
+        handler.handle(socket, connectionCtx);
+        compare(outRes);
+    }
+
     class PacketReceiver implements IPacketListener {
         IStanzaPacket packet;
 
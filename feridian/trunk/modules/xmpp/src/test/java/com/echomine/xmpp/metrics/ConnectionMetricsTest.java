@@ -0,0 +1,190 @@
+package com.echomine.xmpp.metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import com.echomine.util.LatencyHistogram;
+import com.echomine.xmpp.ILoginStageListener.Stage;
+
+/**
+ * Tests the connection metrics and their registration
+ */
+public class ConnectionMetricsTest extends TestCase {
+    ConnectionMetrics total;
+    ConnectionMetrics metrics;
+
+    protected void setUp() throws Exception {
+        total = new ConnectionMetrics("total", null);
+        metrics = new ConnectionMetrics("conn", total);
+    }
+
+    protected void tearDown() throws Exception {
+        Metrics.setRegistry(null);
+    }
+
+    public void testRecordedOnParent() throws Exception {
+        metrics.stanzaReceived(ConnectionMetrics.Kind.MESSAGE, 2000);
+        metrics.stanzaReceived(ConnectionMetrics.Kind.IQ, 4000);
+        metrics.stanzaSent(ConnectionMetrics.Kind.PRESENCE);
+        metrics.stanzaMarshalled(1000);
+        metrics.streamError();
+        metrics.controlPacketDropped();
+        assertEquals(1, metrics.getMessagesIn());
+        assertEquals(1, metrics.getIQsIn());
+        assertEquals(2, metrics.getStanzasIn());
+        assertEquals(1, metrics.getPresencesOut());
+        assertEquals(3.0, metrics.getAverageParseTime(), 0.001);
+        assertEquals(1.0, metrics.getAverageMarshalTime(), 0.001);
+        assertEquals(2, total.getStanzasIn());
+        assertEquals(1, total.getStanzasOut());
+        assertEquals(1, total.getStreamErrors());
+        assertEquals(1, total.getControlPacketsDropped());
+        metrics.reset();
+        assertEquals(0, metrics.getStanzasIn());
+        assertEquals(0.0, metrics.getAverageParseTime(), 0.001);
+        assertEquals(2, total.getStanzasIn());
+    }
+
+    public void testOneStanzaOfEachIntervalSampled() throws Exception {
+        int received = 0;
+        int sent = 0;
+        for (int i = 0; i < ConnectionMetrics.SAMPLE_INTERVAL * 3; i++) {
+            if (metrics.sampleReceived())
+                received++;
+            if (metrics.sampleSent())
+                sent++;
+        }
+        assertEquals(3, received);
+        assertEquals(3, sent);
+    }
+
+    public void testReconnects() throws Exception {
+        metrics.connectionStarted();
+        assertEquals(1, metrics.getConnects());
+        assertEquals(0, metrics.getReconnects());
+        metrics.connectionStarted();
+        assertEquals(2, total.getConnects());
+        assertEquals(1, total.getReconnects());
+    }
+
+    public void testStageTimes() throws Exception {
+        metrics.stageCompleted(Stage.TLS);
+        assertEquals(0.0, metrics.getAverageTLSTime(), 0.001);
+        metrics.stageStarted(Stage.TLS);
+        Thread.sleep(20);
+        metrics.stageCompleted(Stage.TLS);
+        assertTrue(metrics.getAverageTLSTime() >= 15);
+        assertTrue(total.getAverageTLSTime() >= 15);
+        assertEquals(0.0, metrics.getAverageSASLTime(), 0.001);
+    }
+
+    public void testMeteredStreams() throws Exception {
+        InputStream in = metrics.meter(new ByteArrayInputStream(new byte[100]));
+        in.read();
+        in.read(new byte[64], 0, 64);
+        assertEquals(65, metrics.getBytesIn());
+        OutputStream out = metrics.meter(new ByteArrayOutputStream());
+        out.write(1);
+        out.write(new byte[10], 2, 5);
+        assertEquals(6, metrics.getBytesOut());
+        assertEquals(6, total.getBytesOut());
+    }
+
+    public void testTotalSumsOpenConnections() throws Exception {
+        final ArrayList<String> registered = new ArrayList<String>();
+        Metrics.setRegistry(new IMetricsRegistry() {
+            public void registerTotal(ConnectionMetrics total) {
+            }
+
+            public void register(ConnectionMetrics metrics) {
+                registered.add(metrics.getName());
+            }
+
+            public void unregister(ConnectionMetrics metrics) {
+                registered.remove(metrics.getName());
+            }
+        });
+        metrics.setQueueGauge(new IQueueGauge() {
+            public int getQueueDepth() {
+                return 3;
+            }
+
+            public int getPendingReplies() {
+                return 1;
+            }
+        });
+        assertEquals(0, total.getQueueDepth());
+        metrics.open();
+        metrics.open();
+        assertEquals(1, registered.size());
+        assertEquals(3, total.getQueueDepth());
+        assertEquals(1, total.getPendingReplies());
+        metrics.close();
+        assertEquals(0, registered.size());
+        assertEquals(0, total.getQueueDepth());
+    }
+
+    public void testJMXRegistry() throws Exception {
+        MBeanServer server = MBeanServerFactory.newMBeanServer();
+        JMXMetricsRegistry registry = new JMXMetricsRegistry(server);
+        registry.registerTotal(total);
+        registry.register(metrics);
+        metrics.stanzaReceived(ConnectionMetrics.Kind.PRESENCE, 0);
+        ObjectName name = new ObjectName("com.echomine.feridian:type=Connection,name=\"conn\"");
+        assertEquals(Long.valueOf(1), server.getAttribute(name, "PresencesIn"));
+        assertEquals(Long.valueOf(1), server.getAttribute(new ObjectName("com.echomine.feridian:type=Connections"), "StanzasIn"));
+        registry.unregister(metrics);
+        assertFalse(server.isRegistered(name));
+    }
+
+    public void testRoundTripsByNamespace() throws Exception {
+        metrics.iqReplied("jabber:iq:roster", 2000000);
+        metrics.iqReplied("jabber:iq:roster", 4000000);
+        metrics.iqReplied(null, 1000000);
+        assertEquals(2, metrics.getRoundTripHistogram("jabber:iq:roster").getCount());
+        assertEquals(4000, metrics.getRoundTripHistogram("jabber:iq:roster").getMax());
+        assertEquals(1, metrics.getRoundTripHistogram(ConnectionMetrics.NO_NAMESPACE).getCount());
+        assertNull(metrics.getRoundTripHistogram("jabber:iq:version"));
+        assertEquals(3, metrics.getIQRoundTrips());
+        assertEquals(3, total.getIQRoundTrips());
+        assertEquals(4000, total.getIQRoundTrip999thPercentile());
+        assertEquals(2, total.getIQRoundTripsByNamespace().length);
+        assertTrue(total.getIQRoundTripsByNamespace()[0].startsWith("jabber:iq:roster count=2"));
+        metrics.reset();
+        assertEquals(0, metrics.getIQRoundTrips());
+        assertTrue(metrics.getRoundTripNamespaces().isEmpty());
+        assertEquals(3, total.getIQRoundTrips());
+    }
+
+    public void testRoundTripIntervals() throws Exception {
+        metrics.iqReplied("jabber:iq:roster", 2000000);
+        metrics.iqReplied("jabber:iq:version", 1000000);
+        final ArrayList<Map<String, LatencyHistogram>> exported = new ArrayList<Map<String, LatencyHistogram>>();
+        IRoundTripExporter exporter = new IRoundTripExporter() {
+            public void export(ConnectionMetrics m, Map<String, LatencyHistogram> intervals) {
+                assertSame(metrics, m);
+                exported.add(intervals);
+            }
+        };
+        metrics.exportRoundTrips(exporter);
+        metrics.iqReplied("jabber:iq:roster", 3000000);
+        metrics.exportRoundTrips(exporter);
+        assertEquals(2, exported.size());
+        assertEquals(2, exported.get(0).size());
+        assertEquals(1, exported.get(1).size());
+        assertEquals(3000, exported.get(1).get("jabber:iq:roster").getMax());
+        // the cumulative histograms keep everything
+        assertEquals(2, metrics.getRoundTripHistogram("jabber:iq:roster").getCount());
+        assertEquals(3, metrics.getIQRoundTrips());
+    }
+}
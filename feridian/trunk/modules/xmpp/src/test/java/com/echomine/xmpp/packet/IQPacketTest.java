@@ -1,8 +1,13 @@
 package com.echomine.xmpp.packet;
 
 import java.io.StringReader;
+import java.util.Collections;
+
+import org.jibx.runtime.impl.UnmarshallingContext;
 
 import com.echomine.jibx.JiBXUtil;
+import com.echomine.xmpp.ExtensionProfile;
+import com.echomine.xmpp.XMPPStreamContext;
 import com.echomine.xmpp.XMPPTestCase;
 import com.echomine.xmpp.packet.IQPacket;
 
@@ -18,4 +23,65 @@ public class IQPacketTest extends XMPPTestCase {
         assertEquals(IQPacket.class, packet.getClass());
         assertEquals("iq_001", packet.getId());
     }
+
+    public void testUnmarshallRequestOutsideExtensionProfile() throws Exception {
+        String xml = "<iq xmlns='jabber:client' type='get' id='iq_001'><query xmlns='jabber:iq:privacy'/></iq>";
+        IQPacket packet = unmarshallWithProfile(xml);
+        assertEquals(IQPacket.TYPE_GET, packet.getType());
+        assertEquals(IQPacket.class, packet.getClass());
+    }
+
+    /**
+     * Results answer our own requests, thus are decoded whatever the profile
+     */
+    public void testUnmarshallResultOutsideExtensionProfile() throws Exception {
+        String xml = "<iq xmlns='jabber:client' type='result' id='iq_001'><query xmlns='jabber:iq:privacy'/></iq>";
+        IQPacket packet = unmarshallWithProfile(xml);
+        assertEquals(IQPacket.TYPE_RESULT, packet.getType());
+        assertEquals(PrivacyIQPacket.class, packet.getClass());
+    }
+
+    public void testUnmarshallRosterPushOutsideExtensionProfile() throws Exception {
+        String xml = "<iq xmlns='jabber:client' type='set' id='iq_001'><query xmlns='jabber:iq:roster'/></iq>";
+        assertEquals(RosterIQPacket.class, unmarshallWithProfile(xml).getClass());
+    }
+
+    public void testUnmarshallReplyIntoRequestClass() throws Exception {
+        String xml = "<iq xmlns='jabber:client' type='result' id='iq_001'/>";
+        XMPPStreamContext streamCtx = new XMPPStreamContext();
+        streamCtx.setReplyFactory(IQPacketFactory.getFactory(RosterIQPacket.class));
+        UnmarshallingContext uctx = (UnmarshallingContext) JiBXUtil.getFactory(IQPacket.class).createUnmarshallingContext();
+        uctx.setDocument(new StringReader(xml));
+        uctx.setUserContext(streamCtx);
+        IQPacket packet = (IQPacket) uctx.unmarshalElement();
+        assertEquals(RosterIQPacket.class, packet.getClass());
+        assertEquals(IQPacket.TYPE_RESULT, packet.getType());
+        assertEquals("iq_001", packet.getId());
+    }
+
+    public void testUnmarshallReplyWithChild() throws Exception {
+        String xml = "<iq xmlns='jabber:client' type='result' id='iq_001' from='example.com'><query xmlns='jabber:iq:roster'/></iq>";
+        XMPPStreamContext streamCtx = new XMPPStreamContext();
+        streamCtx.setReplyFactory(IQPacketFactory.getFactory(RosterIQPacket.class));
+        UnmarshallingContext uctx = (UnmarshallingContext) JiBXUtil.getFactory(IQPacket.class).createUnmarshallingContext();
+        uctx.setDocument(new StringReader(xml));
+        uctx.setUserContext(streamCtx);
+        IQPacket packet = (IQPacket) uctx.unmarshalElement();
+        assertEquals(RosterIQPacket.class, packet.getClass());
+        assertEquals(IQPacket.TYPE_RESULT, packet.getType());
+        assertEquals("iq_001", packet.getId());
+        assertEquals("example.com", packet.getFrom().toString());
+    }
+
+    /**
+     * Unmarshalls the iq packet with a profile that only decodes pings
+     */
+    private IQPacket unmarshallWithProfile(String xml) throws Exception {
+        XMPPStreamContext streamCtx = new XMPPStreamContext();
+        streamCtx.setExtensionProfile(new ExtensionProfile(Collections.singleton("urn:xmpp:ping"), ExtensionProfile.Mode.SKIP));
+        UnmarshallingContext uctx = (UnmarshallingContext) JiBXUtil.getFactory(IQPacket.class).createUnmarshallingContext();
+        uctx.setDocument(new StringReader(xml));
+        uctx.setUserContext(streamCtx);
+        return (IQPacket) uctx.unmarshalElement();
+    }
 }
@@ -1,12 +1,19 @@
 package com.echomine.xmpp.packet;
 
 import java.io.Reader;
+import java.util.Collections;
 import java.util.Locale;
 
+import org.jibx.runtime.impl.UnmarshallingContext;
+
+import com.echomine.feridian.FeridianConfiguration;
 import com.echomine.jibx.JiBXUtil;
 import com.echomine.xmpp.ErrorCode;
+import com.echomine.xmpp.ExtensionProfile;
 import com.echomine.xmpp.JID;
+import com.echomine.xmpp.XMPPStreamContext;
 import com.echomine.xmpp.XMPPTestCase;
+import com.echomine.xmpp.packet.mapper.MessagePacketMapper;
 
 /**
  * Tests the message packet
@@ -137,4 +144,108 @@ public class MessagePacketTest extends XMPPTestCase {
         assertEquals(MessagePacket.TYPE_CHAT, packet.getType());
         assertEquals("id_0001", packet.getId());
     }
+
+    public void testLazyUnmarshallForwardsUnparsedContent() throws Exception {
+        String inRes = "com/echomine/xmpp/data/MessageWithExtensions.xml";
+        FeridianConfiguration.getConfig().setLazyUnmarshalling(true);
+        MessagePacket packet;
+        try {
+            packet = (MessagePacket) JiBXUtil.unmarshallObject(getResourceAsReader(inRes), MessagePacket.class);
+        } finally {
+            FeridianConfiguration.getConfig().setLazyUnmarshalling(false);
+        }
+        assertNotNull(packet.getRawContent());
+        assertEquals("romeo@shakespeare.com", packet.getTo().toString());
+        assertFalse(packet.isError());
+        assertNotNull(packet.getRawContent());
+        JiBXUtil.marshallObject(writer, packet);
+        compare(getResourceAsReader(inRes));
+    }
+
+    public void testLazyUnmarshallParsesOnAccess() throws Exception {
+        String inRes = "com/echomine/xmpp/data/MessageWithExtensions.xml";
+        FeridianConfiguration.getConfig().setLazyUnmarshalling(true);
+        MessagePacket packet;
+        try {
+            packet = (MessagePacket) JiBXUtil.unmarshallObject(getResourceAsReader(inRes), MessagePacket.class);
+        } finally {
+            FeridianConfiguration.getConfig().setLazyUnmarshalling(false);
+        }
+        assertEquals("test body", packet.getBody());
+        assertNull(packet.getRawContent());
+        assertEquals("test subject", packet.getSubject());
+        assertEquals("test-thread", packet.getThreadID());
+        RosterIQPacket roster = (RosterIQPacket) packet.getExtension("jabber:iq:roster");
+        assertNotNull(roster);
+        assertEquals(MessagePacket.TYPE_CHAT, packet.getType());
+        // parsed packets are marshalled from their fields
+        JiBXUtil.marshallObject(writer, packet);
+        compare(getResourceAsReader(inRes));
+    }
+
+    public void testLazyUnmarshallAppliesExtensionProfile() throws Exception {
+        String inRes = "com/echomine/xmpp/data/MessageWithExtensions.xml";
+        ExtensionProfile profile = new ExtensionProfile(Collections.<String> emptySet(), ExtensionProfile.Mode.SKIP);
+        FeridianConfiguration.getConfig().setLazyUnmarshalling(true);
+        MessagePacket packet;
+        try {
+            packet = unmarshallWithProfile(getResourceAsReader(inRes), profile);
+        } finally {
+            FeridianConfiguration.getConfig().setLazyUnmarshalling(false);
+        }
+        assertNotNull(packet.getRawContent());
+        assertEquals("test body", packet.getBody());
+        assertNull(packet.getExtension("jabber:iq:roster"));
+    }
+
+    public void testLazyUnmarshallKeepsMalformedContent() throws Exception {
+        String raw = "<body>test body</body><thread>test-thread</thrd>";
+        MessagePacket packet = new MessagePacket();
+        packet.setRawContent(raw, new MessagePacketMapper("jabber:client", 0, "message"), null);
+        assertEquals("test body", packet.getBody());
+        assertNull(packet.getThreadID());
+        // the content is still sent as received
+        assertEquals(raw, packet.getRawContent());
+    }
+
+    public void testExtensionProfileSkipsExtensions() throws Exception {
+        String inRes = "com/echomine/xmpp/data/MessageWithExtensions.xml";
+        ExtensionProfile profile = new ExtensionProfile(Collections.<String> emptySet(), ExtensionProfile.Mode.SKIP);
+        MessagePacket packet = unmarshallWithProfile(getResourceAsReader(inRes), profile);
+        assertEquals("test body", packet.getBody());
+        assertEquals("test-thread", packet.getThreadID());
+        assertNull(packet.getExtension("jabber:iq:roster"));
+    }
+
+    public void testExtensionProfileKeepsRawMarkup() throws Exception {
+        String inRes = "com/echomine/xmpp/data/MessageWithExtensions.xml";
+        ExtensionProfile profile = new ExtensionProfile(Collections.<String> emptySet(), ExtensionProfile.Mode.RAW);
+        MessagePacket packet = unmarshallWithProfile(getResourceAsReader(inRes), profile);
+        RawExtensionPacket ext = (RawExtensionPacket) packet.getExtension("jabber:iq:roster");
+        assertNotNull(ext);
+        assertEquals("jabber:iq:roster", ext.getNamespace());
+        // raw extensions are written out as they were received
+        JiBXUtil.marshallObject(writer, packet);
+        compare(getResourceAsReader(inRes));
+    }
+
+    public void testExtensionProfileDecodesListedExtensions() throws Exception {
+        String inRes = "com/echomine/xmpp/data/MessageWithExtensions.xml";
+        ExtensionProfile profile = new ExtensionProfile(Collections.singleton("jabber:iq:roster"), ExtensionProfile.Mode.SKIP);
+        MessagePacket packet = unmarshallWithProfile(getResourceAsReader(inRes), profile);
+        assertTrue(packet.getExtension("jabber:iq:roster") instanceof RosterIQPacket);
+    }
+
+    /**
+     * Unmarshalls a message the way a connection does, with the stream
+     * context carrying the extension profile as the user context
+     */
+    private MessagePacket unmarshallWithProfile(Reader rdr, ExtensionProfile profile) throws Exception {
+        XMPPStreamContext streamCtx = new XMPPStreamContext();
+        streamCtx.setExtensionProfile(profile);
+        UnmarshallingContext uctx = (UnmarshallingContext) JiBXUtil.getFactory(MessagePacket.class).createUnmarshallingContext();
+        uctx.setDocument(rdr);
+        uctx.setUserContext(streamCtx);
+        return (MessagePacket) uctx.unmarshalElement();
+    }
 }
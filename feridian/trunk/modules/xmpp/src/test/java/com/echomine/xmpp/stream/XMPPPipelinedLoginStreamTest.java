@@ -0,0 +1,145 @@
+package com.echomine.xmpp.stream;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import com.echomine.net.MockSocket;
+import com.echomine.util.ClassUtil;
+import com.echomine.xmpp.BaseStreamTestCase;
+import com.echomine.xmpp.ExtensionProfile;
+import com.echomine.xmpp.IDGenerator;
+import com.echomine.xmpp.MockIDGenerator;
+import com.echomine.xmpp.XMPPAuthCallback;
+import com.echomine.xmpp.XMPPConstants;
+import com.echomine.xmpp.auth.PlainSaslAuthenticator;
+import com.echomine.xmpp.packet.StreamFeatures;
+
+/**
+ * Tests the pipelined login stream
+ */
+public class XMPPPipelinedLoginStreamTest extends BaseStreamTestCase implements XMPPConstants {
+    private static final String SASL_IN = "com/echomine/xmpp/data/SASLPlain_in.xml";
+    private static final String LOGIN_OUT = "com/echomine/xmpp/data/PipelinedLogin_out.xml";
+    StreamFeaturesCache cache;
+    MockSocket socket;
+    XMPPPipelinedLoginStream stream;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        IDGenerator.setIDGenerator(new SequenceIDGenerator());
+        sessCtx.setHostName("example.com");
+        ArrayList<String> mechanisms = new ArrayList<String>();
+        mechanisms.add("PLAIN");
+        streamCtx.getFeatures().addFeature(NS_STREAM_SASL, "mechanisms", mechanisms);
+        XMPPAuthCallback authCallback = new XMPPAuthCallback();
+        authCallback.setUsername("romeo");
+        authCallback.setPassword("somepass".toCharArray());
+        authCallback.setResource("Home");
+        streamCtx.setAuthCallback(authCallback);
+        // authentication output is not of interest here, only what is sent
+        // after authentication
+        writer.setOutput(new ByteArrayOutputStream());
+        socket = new MockSocket();
+        socket.setOutputStream(os);
+        streamCtx.setSocket(socket);
+        cache = new StreamFeaturesCache();
+        stream = new XMPPPipelinedLoginStream(new PlainSaslAuthenticator(), cache);
+    }
+
+    protected void tearDown() throws Exception {
+        IDGenerator.setIDGenerator(new MockIDGenerator());
+        super.tearDown();
+    }
+
+    public void testLoginWithoutCachedFeatures() throws Exception {
+        socket.setInputStream(ClassUtil.getResourceAsStream("com/echomine/xmpp/data/PipelinedLogin_in.xml"));
+        run(SASL_IN, stream, false, true);
+        endOutgoingStreamHeader();
+        compare(LOGIN_OUT);
+        assertEquals("Home", sessCtx.getResource());
+        StreamFeatures cached = cache.getAuthenticatedFeatures("example.com");
+        assertNotNull(cached);
+        assertTrue(cached.isBindingSupported());
+        assertTrue(cached.isSessionSupported());
+    }
+
+    /**
+     * The login replies are decoded even when the extension profile of the
+     * connection does not name their namespaces
+     */
+    public void testLoginWithRestrictiveExtensionProfile() throws Exception {
+        streamCtx.setExtensionProfile(new ExtensionProfile(Collections.singleton("urn:xmpp:ping"), ExtensionProfile.Mode.SKIP));
+        socket.setInputStream(ClassUtil.getResourceAsStream("com/echomine/xmpp/data/PipelinedLogin_in.xml"));
+        uctx.setDocument(ClassUtil.getResourceAsStream(SASL_IN), "UTF-8");
+        // setting the document clears the user context
+        uctx.setUserContext(streamCtx);
+        stripIncomingStreamHeader();
+        stream.process(sessCtx, streamCtx);
+        endOutgoingStreamHeader();
+        compare(LOGIN_OUT);
+        assertEquals("Home", sessCtx.getResource());
+    }
+
+    public void testPipelinedLoginWithRepliesOutOfOrder() throws Exception {
+        cache.putAuthenticatedFeatures("example.com", createFeatures(true));
+        socket.setInputStream(ClassUtil.getResourceAsStream("com/echomine/xmpp/data/PipelinedLoginOutOfOrder_in.xml"));
+        run(SASL_IN, stream, false, true);
+        endOutgoingStreamHeader();
+        compare(LOGIN_OUT);
+        assertEquals("Home", sessCtx.getResource());
+    }
+
+    /**
+     * A session request sent early to a host that no longer advertises
+     * sessions is allowed to fail
+     */
+    public void testPipelinedLoginIgnoresUnadvertisedFeatureError() throws Exception {
+        cache.putAuthenticatedFeatures("example.com", createFeatures(true));
+        socket.setInputStream(ClassUtil.getResourceAsStream("com/echomine/xmpp/data/PipelinedLoginWithoutSession_in.xml"));
+        run(SASL_IN, stream, false, true);
+        assertEquals("Home", sessCtx.getResource());
+        assertFalse(cache.getAuthenticatedFeatures("example.com").isSessionSupported());
+    }
+
+    /**
+     * A feature that was not expected is negotiated after the pipelined
+     * requests
+     */
+    public void testPipelinedLoginNegotiatesNewFeature() throws Exception {
+        cache.putAuthenticatedFeatures("example.com", createFeatures(false));
+        socket.setInputStream(ClassUtil.getResourceAsStream("com/echomine/xmpp/data/PipelinedLogin_in.xml"));
+        run(SASL_IN, stream, false, true);
+        endOutgoingStreamHeader();
+        compare(LOGIN_OUT);
+        assertTrue(cache.getAuthenticatedFeatures("example.com").isSessionSupported());
+    }
+
+    public void testCacheHoldsCopies() throws Exception {
+        StreamFeatures features = createFeatures(true);
+        cache.putAuthenticatedFeatures("example.com", features);
+        features.clear();
+        assertTrue(cache.getAuthenticatedFeatures("example.com").isBindingSupported());
+        cache.getAuthenticatedFeatures("example.com").clear();
+        assertTrue(cache.getAuthenticatedFeatures("example.com").isBindingSupported());
+    }
+
+    private StreamFeatures createFeatures(boolean session) {
+        StreamFeatures features = new StreamFeatures();
+        features.addFeature(NS_STREAM_BINDING, "bind", null);
+        if (session)
+            features.addFeature(NS_STREAM_SESSION, "session", null);
+        return features;
+    }
+
+    /**
+     * Generates sequential IDs so that replies can be told apart
+     */
+    static class SequenceIDGenerator extends IDGenerator {
+        private int id;
+
+        protected String generateID() {
+            return "test_00" + (++id);
+        }
+    }
+}